@@ -11,6 +11,7 @@ import org.micromanager.data.PipelineErrorException;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.events.internal.DefaultAcquisitionEndedEvent;
 import org.micromanager.events.internal.DefaultEventManager;
+import org.micromanager.internal.diagnostics.StageMetricsRecorder;
 import org.micromanager.internal.utils.ReportingUtils;
 
 /**
@@ -29,6 +30,9 @@ public final class DefaultTaggedImageSink  {
    private Datastore store_;
    private Pipeline pipeline_;
    private AcquisitionEngine engine_;
+   // Measures the time taken to hand each image to the pipeline; the queue
+   // depth includes images the engine has produced that we haven't taken.
+   private final StageMetricsRecorder metrics_;
 
    public DefaultTaggedImageSink(BlockingQueue<TaggedImage> queue,
          Pipeline pipeline, Datastore store, AcquisitionEngine engine) {
@@ -36,6 +40,8 @@ public final class DefaultTaggedImageSink  {
       pipeline_ = pipeline;
       store_ = store;
       engine_ = engine;
+      metrics_ = StageMetricsRecorder.create("Acquisition image sink");
+      metrics_.setBacklog(imageProducingQueue_);
    }
 
    public void start() {
@@ -59,6 +65,7 @@ public final class DefaultTaggedImageSink  {
                         // Acquisition has ended. Clean up under 'finally'
                         break;
                      }
+                     long receivedTime = metrics_.imageReceived();
                      try {
                         ++imageCount;
                         DefaultImage image = new DefaultImage(tagged);
@@ -78,6 +85,9 @@ public final class DefaultTaggedImageSink  {
                         handleOutOfMemory(e, sinkFullCallback);
                         break;
                      }
+                     finally {
+                        metrics_.imageFinished(receivedTime);
+                     }
                   }
                }
             } catch (Exception ex2) {
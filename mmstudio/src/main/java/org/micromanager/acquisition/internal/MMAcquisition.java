@@ -52,9 +52,11 @@ import org.micromanager.data.Storage;
 import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.StorageBoundedRAM;
 import org.micromanager.data.internal.StorageRAM;
 import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.data.internal.multipagetiff.WritingBacklogEvent;
 import org.micromanager.display.ControlsFactory;
 import org.micromanager.display.DisplayDestroyedEvent;
 import org.micromanager.display.DisplayWindow;
@@ -102,6 +104,8 @@ public final class MMAcquisition {
 
    private int imagesReceived_ = 0;
    private int imagesExpected_ = 0;
+   // Number of images that saving is behind by, or 0 if it's keeping up.
+   private int writesPending_ = 0;
    private UpdatableAlert alert_;
 
    public MMAcquisition(Studio studio, String name, JSONObject summaryMetadata,
@@ -125,6 +129,9 @@ public final class MMAcquisition {
                ReportingUtils.showError(e, "Unable to create directory for saving images.");
                eng.stop(true);
             }
+         } else if (StorageBoundedRAM.getMaxBytesInRAM() > 0) {
+            store_.setStorage(new StorageBoundedRAM(store_,
+                     StorageBoundedRAM.getMaxBytesInRAM()));
          } else {
             store_.setStorage(new StorageRAM(store_));
          }
@@ -357,14 +364,33 @@ public final class MMAcquisition {
       setProgressText();
    }
 
+   /**
+    * The storage is having to wait for the disk to catch up; let the user
+    * know that acquisition is being throttled.
+    */
+   @Subscribe
+   public void onWritingBacklog(WritingBacklogEvent event) {
+      writesPending_ = event.getNumPendingWrites();
+      if (event.getIsBehind()) {
+         ReportingUtils.logMessage("Saving has fallen behind by " +
+               writesPending_ + " images");
+      }
+      setProgressText();
+   }
+
    private void setProgressText() {
       if (imagesExpected_ > 0) {
          int numDigits = (int) (Math.log10(imagesExpected_) + 1);
          String format = "%0" + numDigits + "d";
          if (alert_ != null) {
-            alert_.setText(String.format(
+            String text = String.format(
                     "Received " + format + " of %d images",
-                    imagesReceived_, imagesExpected_));
+                    imagesReceived_, imagesExpected_);
+            if (writesPending_ > 0) {
+               text += String.format(" (saving behind by %d)",
+                     writesPending_);
+            }
+            alert_.setText(text);
          }
       } else if (alert_ != null) {
          alert_.setText("No images expected.");
@@ -194,7 +194,13 @@ public interface DataManager {
    /**
     * Generate a new Image with the provided pixel data, rules for interpreting
     * that pixel data, coordinates, and metadata.
-    * @param pixels A byte[] or short[] array of unsigned pixel data.
+    *
+    * The new Image takes ownership of the pixel array: it is used as is,
+    * without being copied, so the caller must not modify the array after
+    * calling this method. Pass a copy of the array if you need to keep
+    * changing it.
+    * @param pixels A byte[] or short[] array of unsigned pixel data. It
+    *        becomes part of the new Image.
     * @param width Width of the image, in pixels
     * @param height Height of the image, in pixels
     * @param bytesPerPixel How many bytes are allocated to each pixel in the
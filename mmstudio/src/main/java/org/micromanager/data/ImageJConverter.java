@@ -50,6 +50,11 @@ public interface ImageJConverter {
 
    /**
     * Create a new Image based on the provided ImageProcessor and metadata.
+    *
+    * The new Image uses the processor's pixel array without copying it
+    * (except for RGB processors, whose pixels are converted into a new
+    * array), so the processor must not be modified afterwards. Use
+    * processor.duplicate() first if you need to keep changing it.
     * @param processor ImageProcessor whose pixel data will form the data of
     *        the result image.
     * @param coords Coordinates for the new image.
@@ -0,0 +1,438 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data;
+
+import java.lang.reflect.Array;
+
+/**
+ * Geometric transforms (mirror, rotation by multiples of 90 degrees,
+ * transposition, cropping and splitting) that operate directly on raw pixel
+ * arrays, as returned by Image.getRawPixels(). Supported arrays are byte[]
+ * (8-bit grayscale, or RGB with 4 bytes per pixel), short[] (16-bit), and
+ * int[] or float[] (32-bit). Each method writes into a destination array
+ * supplied by the caller, so that callers that process many images of the
+ * same size can reuse their buffers; if the destination is null, a new array
+ * of the same type as the source is allocated. The source and destination
+ * must not be the same array. Rotations and transpositions are done in
+ * square blocks, so that both the rows being read and the rows being written
+ * stay in cache.
+ */
+public final class PixelTransforms {
+   // Valid rotation values, in degrees clockwise.
+   public static final int R0 = 0;
+   public static final int R90 = 90;
+   public static final int R180 = 180;
+   public static final int R270 = 270;
+
+   // Width and height, in pixels, of the blocks rotations are done in.
+   private static final int BLOCK_SIZE = 64;
+
+   private PixelTransforms() {}
+
+   /**
+    * Mirror the image around its vertical axis if requested, then rotate it
+    * clockwise. The result has its width and height swapped if rotation is
+    * R90 or R270.
+    * @param pixels Source pixel array.
+    * @param width Width of the source image, in pixels.
+    * @param height Height of the source image, in pixels.
+    * @param bytesPerPixel Bytes per pixel of the source image; for byte[]
+    *        arrays this is the number of array elements per pixel.
+    * @param isMirrored Whether or not to mirror the image.
+    * @param rotation Degrees to rotate by (R0, R90, R180, R270).
+    * @param dest Destination array, or null to allocate a new one.
+    * @return The destination array.
+    * @throws IllegalArgumentException if the rotation is not one of R0, R90,
+    *         R180, or R270, or the arrays are of the wrong type or size.
+    */
+   public static Object transform(Object pixels, int width, int height,
+         int bytesPerPixel, boolean isMirrored, int rotation, Object dest) {
+      // Express the destination index of the source pixel at (x, y) as
+      // offset + x * xStep + y * yStep.
+      int mirrorOffset = isMirrored ? width - 1 : 0;
+      int mirrorStep = isMirrored ? -1 : 1;
+      int offset;
+      int xStep;
+      int yStep;
+      switch (rotation) {
+         case R0:
+            offset = mirrorOffset;
+            xStep = mirrorStep;
+            yStep = width;
+            break;
+         case R90:
+            offset = mirrorOffset * height + height - 1;
+            xStep = mirrorStep * height;
+            yStep = -1;
+            break;
+         case R180:
+            offset = (height - 1) * width + width - 1 - mirrorOffset;
+            xStep = -mirrorStep;
+            yStep = -width;
+            break;
+         case R270:
+            offset = (width - 1 - mirrorOffset) * height;
+            xStep = -mirrorStep * height;
+            yStep = 1;
+            break;
+         default:
+            throw new IllegalArgumentException("Invalid rotation " +
+                  rotation + "; must be a multiple of 90 degrees");
+      }
+      int numPixels = width * height;
+      dest = getDestination(pixels, numPixels, bytesPerPixel, dest);
+      copy(pixels, width, height, bytesPerPixel, dest, offset, xStep, yStep);
+      return dest;
+   }
+
+   /**
+    * Swap the rows and columns of the image, i.e. mirror it around the
+    * diagonal through its top left corner. The result has width and height
+    * swapped.
+    * @param pixels Source pixel array.
+    * @param width Width of the source image, in pixels.
+    * @param height Height of the source image, in pixels.
+    * @param bytesPerPixel Bytes per pixel of the source image.
+    * @param dest Destination array, or null to allocate a new one.
+    * @return The destination array.
+    */
+   public static Object transpose(Object pixels, int width, int height,
+         int bytesPerPixel, Object dest) {
+      return transform(pixels, width, height, bytesPerPixel, true, R270,
+            dest);
+   }
+
+   /**
+    * Copy a rectangular region of the image.
+    * @param pixels Source pixel array.
+    * @param width Width of the source image, in pixels.
+    * @param height Height of the source image, in pixels.
+    * @param bytesPerPixel Bytes per pixel of the source image.
+    * @param x Left edge of the region.
+    * @param y Top edge of the region.
+    * @param cropWidth Width of the region.
+    * @param cropHeight Height of the region.
+    * @param dest Destination array, or null to allocate a new one.
+    * @return The destination array, holding cropWidth * cropHeight pixels.
+    * @throws IllegalArgumentException if the region does not lie within the
+    *         image.
+    */
+   public static Object crop(Object pixels, int width, int height,
+         int bytesPerPixel, int x, int y, int cropWidth, int cropHeight,
+         Object dest) {
+      if (x < 0 || y < 0 || cropWidth < 0 || cropHeight < 0 ||
+            x + cropWidth > width || y + cropHeight > height) {
+         throw new IllegalArgumentException("Region " + cropWidth + "x" +
+               cropHeight + " at (" + x + ", " + y +
+               ") lies outside of the " + width + "x" + height + " image");
+      }
+      int n = getElementsPerPixel(pixels, bytesPerPixel);
+      dest = getDestination(pixels, cropWidth * cropHeight, bytesPerPixel,
+            dest);
+      if (cropWidth == width) {
+         System.arraycopy(pixels, y * width * n, dest, 0,
+               cropWidth * cropHeight * n);
+      }
+      else {
+         for (int row = 0; row < cropHeight; ++row) {
+            System.arraycopy(pixels, ((y + row) * width + x) * n, dest,
+                  row * cropWidth * n, cropWidth * n);
+         }
+      }
+      return dest;
+   }
+
+   /**
+    * Split the image into equally sized parts, left to right or top to
+    * bottom. Any pixels left over at the right or bottom edge when the
+    * image size is not a multiple of numSplits are discarded.
+    * @param pixels Source pixel array.
+    * @param width Width of the source image, in pixels.
+    * @param height Height of the source image, in pixels.
+    * @param bytesPerPixel Bytes per pixel of the source image.
+    * @param numSplits Number of parts to split the image into.
+    * @param isVertical If true, split top to bottom, otherwise left to right.
+    * @param dests Destination arrays, or null to allocate new ones. Null
+    *        entries are also allocated.
+    * @return The destination arrays, one per part.
+    */
+   public static Object[] split(Object pixels, int width, int height,
+         int bytesPerPixel, int numSplits, boolean isVertical,
+         Object[] dests) {
+      if (dests == null) {
+         dests = new Object[numSplits];
+      }
+      else if (dests.length != numSplits) {
+         throw new IllegalArgumentException("Need " + numSplits +
+               " destination arrays, but got " + dests.length);
+      }
+      int partWidth = isVertical ? width : width / numSplits;
+      int partHeight = isVertical ? height / numSplits : height;
+      for (int i = 0; i < numSplits; ++i) {
+         int x = isVertical ? 0 : i * partWidth;
+         int y = isVertical ? i * partHeight : 0;
+         dests[i] = crop(pixels, width, height, bytesPerPixel, x, y,
+               partWidth, partHeight, dests[i]);
+      }
+      return dests;
+   }
+
+   /**
+    * Allocate an array of the same type as the provided one.
+    * @param pixels Array to match the type of.
+    * @param numPixels Number of pixels the new array must hold.
+    * @param bytesPerPixel Bytes per pixel of the image.
+    * @return A new, zeroed array.
+    */
+   public static Object newArrayLike(Object pixels, int numPixels,
+         int bytesPerPixel) {
+      if (pixels instanceof byte[]) {
+         return new byte[numPixels * bytesPerPixel];
+      }
+      else if (pixels instanceof short[]) {
+         return new short[numPixels];
+      }
+      else if (pixels instanceof int[]) {
+         return new int[numPixels];
+      }
+      else if (pixels instanceof float[]) {
+         return new float[numPixels];
+      }
+      throw new IllegalArgumentException("Unsupported pixel type " +
+            (pixels == null ? "null" : pixels.getClass().getName()));
+   }
+
+   private static int getElementsPerPixel(Object pixels, int bytesPerPixel) {
+      return pixels instanceof byte[] ? bytesPerPixel : 1;
+   }
+
+   private static Object getDestination(Object pixels, int numPixels,
+         int bytesPerPixel, Object dest) {
+      if (dest == null) {
+         return newArrayLike(pixels, numPixels, bytesPerPixel);
+      }
+      if (dest == pixels) {
+         throw new IllegalArgumentException(
+               "Source and destination must be different arrays");
+      }
+      if (dest.getClass() != pixels.getClass()) {
+         throw new IllegalArgumentException("Destination is a " +
+               dest.getClass().getSimpleName() + " but source is a " +
+               pixels.getClass().getSimpleName());
+      }
+      int needed = numPixels * getElementsPerPixel(pixels, bytesPerPixel);
+      if (Array.getLength(dest) < needed) {
+         throw new IllegalArgumentException("Destination holds " +
+               Array.getLength(dest) +
+               " elements, but " + needed + " are needed");
+      }
+      return dest;
+   }
+
+   /**
+    * Copy every pixel of the source to offset + x * xStep + y * yStep in
+    * the destination. When xStep is 1 or -1 rows map to rows and are copied
+    * one at a time. Otherwise rows map to columns, and the image is
+    * traversed in blocks, reading down the columns of each block so that
+    * the destination is written sequentially.
+    */
+   private static void copy(Object src, int width, int height,
+         int bytesPerPixel, Object dest, int offset, int xStep, int yStep) {
+      if (xStep == 1) {
+         int n = getElementsPerPixel(src, bytesPerPixel);
+         for (int y = 0; y < height; ++y) {
+            System.arraycopy(src, y * width * n, dest,
+                  (offset + y * yStep) * n, width * n);
+         }
+      }
+      else if (src instanceof byte[] && bytesPerPixel > 1) {
+         copyMulti((byte[]) src, (byte[]) dest, bytesPerPixel, width,
+               height, offset, xStep, yStep);
+      }
+      else if (src instanceof byte[]) {
+         copy((byte[]) src, (byte[]) dest, width, height, offset, xStep,
+               yStep);
+      }
+      else if (src instanceof short[]) {
+         copy((short[]) src, (short[]) dest, width, height, offset, xStep,
+               yStep);
+      }
+      else if (src instanceof int[]) {
+         copy((int[]) src, (int[]) dest, width, height, offset, xStep,
+               yStep);
+      }
+      else {
+         copy((float[]) src, (float[]) dest, width, height, offset, xStep,
+               yStep);
+      }
+   }
+
+   private static void copy(byte[] src, byte[] dest, int width, int height,
+         int offset, int xStep, int yStep) {
+      if (xStep == -1) {
+         for (int y = 0; y < height; ++y) {
+            int s = y * width;
+            int d = offset + y * yStep;
+            for (int x = 0; x < width; ++x) {
+               dest[d--] = src[s++];
+            }
+         }
+         return;
+      }
+      for (int by = 0; by < height; by += BLOCK_SIZE) {
+         int yEnd = Math.min(by + BLOCK_SIZE, height);
+         for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+            int xEnd = Math.min(bx + BLOCK_SIZE, width);
+            for (int x = bx; x < xEnd; ++x) {
+               int s = by * width + x;
+               int d = offset + by * yStep + x * xStep;
+               for (int y = by; y < yEnd; ++y) {
+                  dest[d] = src[s];
+                  s += width;
+                  d += yStep;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(short[] src, short[] dest, int width, int height,
+         int offset, int xStep, int yStep) {
+      if (xStep == -1) {
+         for (int y = 0; y < height; ++y) {
+            int s = y * width;
+            int d = offset + y * yStep;
+            for (int x = 0; x < width; ++x) {
+               dest[d--] = src[s++];
+            }
+         }
+         return;
+      }
+      for (int by = 0; by < height; by += BLOCK_SIZE) {
+         int yEnd = Math.min(by + BLOCK_SIZE, height);
+         for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+            int xEnd = Math.min(bx + BLOCK_SIZE, width);
+            for (int x = bx; x < xEnd; ++x) {
+               int s = by * width + x;
+               int d = offset + by * yStep + x * xStep;
+               for (int y = by; y < yEnd; ++y) {
+                  dest[d] = src[s];
+                  s += width;
+                  d += yStep;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(int[] src, int[] dest, int width, int height,
+         int offset, int xStep, int yStep) {
+      if (xStep == -1) {
+         for (int y = 0; y < height; ++y) {
+            int s = y * width;
+            int d = offset + y * yStep;
+            for (int x = 0; x < width; ++x) {
+               dest[d--] = src[s++];
+            }
+         }
+         return;
+      }
+      for (int by = 0; by < height; by += BLOCK_SIZE) {
+         int yEnd = Math.min(by + BLOCK_SIZE, height);
+         for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+            int xEnd = Math.min(bx + BLOCK_SIZE, width);
+            for (int x = bx; x < xEnd; ++x) {
+               int s = by * width + x;
+               int d = offset + by * yStep + x * xStep;
+               for (int y = by; y < yEnd; ++y) {
+                  dest[d] = src[s];
+                  s += width;
+                  d += yStep;
+               }
+            }
+         }
+      }
+   }
+
+   private static void copy(float[] src, float[] dest, int width, int height,
+         int offset, int xStep, int yStep) {
+      if (xStep == -1) {
+         for (int y = 0; y < height; ++y) {
+            int s = y * width;
+            int d = offset + y * yStep;
+            for (int x = 0; x < width; ++x) {
+               dest[d--] = src[s++];
+            }
+         }
+         return;
+      }
+      for (int by = 0; by < height; by += BLOCK_SIZE) {
+         int yEnd = Math.min(by + BLOCK_SIZE, height);
+         for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+            int xEnd = Math.min(bx + BLOCK_SIZE, width);
+            for (int x = bx; x < xEnd; ++x) {
+               int s = by * width + x;
+               int d = offset + by * yStep + x * xStep;
+               for (int y = by; y < yEnd; ++y) {
+                  dest[d] = src[s];
+                  s += width;
+                  d += yStep;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * As copy(), for byte arrays holding n bytes (e.g. RGB components) per
+    * pixel. Offsets and steps are in pixels.
+    */
+   private static void copyMulti(byte[] src, byte[] dest, int n, int width,
+         int height, int offset, int xStep, int yStep) {
+      if (xStep == -1) {
+         for (int y = 0; y < height; ++y) {
+            int s = y * width * n;
+            int d = (offset + y * yStep) * n;
+            for (int x = 0; x < width; ++x) {
+               System.arraycopy(src, s, dest, d, n);
+               s += n;
+               d -= n;
+            }
+         }
+         return;
+      }
+      for (int by = 0; by < height; by += BLOCK_SIZE) {
+         int yEnd = Math.min(by + BLOCK_SIZE, height);
+         for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+            int xEnd = Math.min(bx + BLOCK_SIZE, width);
+            for (int x = bx; x < xEnd; ++x) {
+               int s = (by * width + x) * n;
+               int d = (offset + by * yStep + x * xStep) * n;
+               for (int y = by; y < yEnd; ++y) {
+                  for (int i = 0; i < n; ++i) {
+                     dest[d + i] = src[s + i];
+                  }
+                  s += width * n;
+                  d += yStep * n;
+               }
+            }
+         }
+      }
+   }
+}
@@ -61,4 +61,20 @@ public abstract class Processor {
     * @param context ProcessorContext that can be used to hand images to
     */
    public void cleanup(ProcessorContext context) {};
+
+   /**
+    * Indicate whether this Processor may process multiple images at the same
+    * time. If this returns true, then in asynchronous pipelines
+    * processImage() may be called concurrently from several threads, each
+    * with its own ProcessorContext; the images output by each call are
+    * passed along the pipeline in the order in which the input images were
+    * received. Only return true if processImage() does not depend on or
+    * modify any state shared between calls. cleanup() is still called only
+    * once, after all images have been processed. The default implementation
+    * returns false.
+    * @return true if processImage() may be called concurrently.
+    */
+   public boolean getIsParallelSafe() {
+      return false;
+   }
 }
@@ -0,0 +1,98 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data;
+
+/**
+ * Performance statistics for one stage that images pass through on their
+ * way to storage, such as a Processor in a Pipeline, or the Datastore's
+ * putImage() method. Latencies are measured from when an image is handed
+ * to the stage to when the stage has finished with it, so they include any
+ * time the image spends waiting in the stage's queue. All methods are
+ * thread-safe.
+ */
+public interface StageMetrics {
+   /**
+    * Number of bins in the latency histogram. Bin 0 counts latencies of
+    * less than 1 microsecond; bin i (for i > 0) counts latencies from
+    * 2^(i-1) up to 2^i microseconds; the last bin also counts all longer
+    * latencies.
+    */
+   public static final int NUM_HISTOGRAM_BINS = 32;
+
+   /**
+    * Return a human-readable name for the stage.
+    * @return name of the stage
+    */
+   public String getName();
+
+   /**
+    * Return the number of images that have been handed to the stage and
+    * that it has not finished with yet.
+    * @return number of images waiting in or being handled by the stage
+    */
+   public int getQueueDepth();
+
+   /**
+    * Return the number of images the stage has finished with since it was
+    * created or last reset.
+    * @return total number of images
+    */
+   public long getImageCount();
+
+   /**
+    * Return the recent throughput of the stage, measured over the last few
+    * seconds.
+    * @return throughput in images per second
+    */
+   public double getImagesPerSecond();
+
+   /**
+    * Return the mean latency of all images since the stage was created or
+    * last reset.
+    * @return mean latency in milliseconds, or 0 if there have been no images
+    */
+   public double getMeanLatencyMs();
+
+   /**
+    * Return an estimate of the given percentile of latencies, based on the
+    * latency histogram; the result is the upper bound of the histogram bin
+    * that contains the percentile.
+    * @param percentile Percentile, between 0 and 100
+    * @return latency in milliseconds, or 0 if there have been no images
+    */
+   public double getLatencyPercentileMs(double percentile);
+
+   /**
+    * Return a copy of the latency histogram; see NUM_HISTOGRAM_BINS.
+    * @return array of counts of images, one per bin
+    */
+   public long[] getLatencyHistogram();
+
+   /**
+    * Return the time at which the stage last finished with an image.
+    * @return time in milliseconds as per System.currentTimeMillis(), or 0
+    *         if the stage has not handled any images
+    */
+   public long getLastImageTime();
+
+   /**
+    * Reset all counts and the histogram.
+    */
+   public void reset();
+}
@@ -0,0 +1,282 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import org.micromanager.data.Coords;
+
+/**
+ * Index of the image coordinates held by a Storage, for fast partial-coords
+ * lookups. Each image is assigned an integer "slot", and for every axis we
+ * keep a map from position along that axis to the set of slots with that
+ * position. A call to getMatching() is then a matter of intersecting one set
+ * per axis in the query, instead of examining every image.
+ *
+ * Slots are identified by the Coords packed into a long (see PackedCoords)
+ * and held in primitive arrays, so indexing an image does not cost a Coords
+ * object and a HashMap entry; Coords are regenerated only for the results of
+ * getMatching(). Coords that can't be packed exactly (custom axes, positions
+ * out of range, or legacy -1 positions) are kept in ordinary maps.
+ *
+ * This class also keeps track of the maximum position along each axis, so
+ * Storages don't need to rebuild a Coords every time they receive an image.
+ * As with the Storages that used to track this themselves, the maximum
+ * indices do not shrink when images are removed.
+ */
+public final class CoordsIndex {
+   private static final long EMPTY = -1;
+   // Value of slotToPacked_ for slots holding unpackable Coords.
+   private static final long UNPACKED = -2;
+   private static final int INITIAL_CAPACITY = 64;
+
+   // Table from packed Coords to slot.
+   private final PackedCoordsTable packedToSlot_;
+   // Packed Coords of each slot, or EMPTY for free slots.
+   private long[] slotToPacked_;
+   private int numSlots_ = 0;
+   private final HashMap<Coords, Integer> unpackedToSlot_;
+   private final HashMap<Integer, Coords> slotToUnpacked_;
+   // Slots that were used by removed Coords and can be reused.
+   private final BitSet freeSlots_;
+   // Axis -> position along axis -> slots with that position.
+   private final HashMap<String, HashMap<Integer, BitSet>> axisToSlots_;
+   private final HashMap<String, Integer> axisToMax_;
+   // Lazily generated from axisToMax_; null when out of date.
+   private Coords maxIndices_;
+
+   public CoordsIndex() {
+      packedToSlot_ = new PackedCoordsTable();
+      slotToPacked_ = new long[INITIAL_CAPACITY];
+      unpackedToSlot_ = new HashMap<Coords, Integer>();
+      slotToUnpacked_ = new HashMap<Integer, Coords>();
+      freeSlots_ = new BitSet();
+      axisToSlots_ = new HashMap<String, HashMap<Integer, BitSet>>();
+      axisToMax_ = new HashMap<String, Integer>();
+   }
+
+   /**
+    * Return the slot of the given Coords, or -1 if they are not indexed.
+    */
+   private int getSlot(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         Integer slot = unpackedToSlot_.get(coords);
+         return (slot == null) ? -1 : slot;
+      }
+      return (int) packedToSlot_.get(PackedCoords.pack(coords), -1);
+   }
+
+   private Coords getCoords(int slot) {
+      long packed = slotToPacked_[slot];
+      return (packed == UNPACKED) ? slotToUnpacked_.get(slot) :
+         PackedCoords.unpack(packed);
+   }
+
+   /**
+    * Add the given Coords to the index. Does nothing if they are already
+    * present.
+    * @return True if the Coords were newly added.
+    */
+   public synchronized boolean add(Coords coords) {
+      if (getSlot(coords) >= 0) {
+         return false;
+      }
+      int slot = freeSlots_.nextSetBit(0);
+      if (slot >= 0) {
+         freeSlots_.clear(slot);
+      }
+      else {
+         slot = numSlots_++;
+         if (slot == slotToPacked_.length) {
+            slotToPacked_ = Arrays.copyOf(slotToPacked_, slot * 2);
+         }
+      }
+      if (PackedCoords.canPackExactly(coords)) {
+         long packed = PackedCoords.pack(coords);
+         slotToPacked_[slot] = packed;
+         packedToSlot_.put(packed, slot);
+      }
+      else {
+         slotToPacked_[slot] = UNPACKED;
+         unpackedToSlot_.put(coords, slot);
+         slotToUnpacked_.put(slot, coords);
+      }
+      for (String axis : coords.getAxes()) {
+         int pos = coords.getIndex(axis);
+         if (pos < 0) {
+            // Legacy Coords may carry a -1 for "no position"; such axes
+            // can never be matched, so there's nothing to index.
+            continue;
+         }
+         HashMap<Integer, BitSet> posToSlots = axisToSlots_.get(axis);
+         if (posToSlots == null) {
+            posToSlots = new HashMap<Integer, BitSet>();
+            axisToSlots_.put(axis, posToSlots);
+         }
+         BitSet slots = posToSlots.get(pos);
+         if (slots == null) {
+            slots = new BitSet();
+            posToSlots.put(pos, slots);
+         }
+         slots.set(slot);
+         Integer curMax = axisToMax_.get(axis);
+         if (curMax == null || curMax < pos) {
+            axisToMax_.put(axis, pos);
+            maxIndices_ = null;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Remove the given Coords from the index.
+    * @return True if the Coords were present in the index.
+    */
+   public synchronized boolean remove(Coords coords) {
+      int slot = getSlot(coords);
+      if (slot < 0) {
+         return false;
+      }
+      if (slotToPacked_[slot] == UNPACKED) {
+         unpackedToSlot_.remove(coords);
+         slotToUnpacked_.remove(slot);
+      }
+      else {
+         packedToSlot_.remove(slotToPacked_[slot]);
+      }
+      slotToPacked_[slot] = EMPTY;
+      freeSlots_.set(slot);
+      for (String axis : coords.getAxes()) {
+         HashMap<Integer, BitSet> posToSlots = axisToSlots_.get(axis);
+         if (posToSlots == null) {
+            continue;
+         }
+         int pos = coords.getIndex(axis);
+         BitSet slots = posToSlots.get(pos);
+         if (slots != null) {
+            slots.clear(slot);
+            if (slots.isEmpty()) {
+               posToSlots.remove(pos);
+            }
+         }
+      }
+      return true;
+   }
+
+   public synchronized boolean contains(Coords coords) {
+      return getSlot(coords) >= 0;
+   }
+
+   public synchronized int size() {
+      return packedToSlot_.size() + unpackedToSlot_.size();
+   }
+
+   /**
+    * Return all indexed Coords that match the provided (possibly incomplete)
+    * Coords, as per Coords.matches().
+    */
+   public synchronized List<Coords> getMatching(Coords coords) {
+      List<String> axes = coords.getAxes();
+      if (axes.isEmpty()) {
+         ArrayList<Coords> all = new ArrayList<Coords>(size());
+         for (int slot = 0; slot < numSlots_; ++slot) {
+            if (slotToPacked_[slot] != EMPTY) {
+               all.add(getCoords(slot));
+            }
+         }
+         return all;
+      }
+      // Gather the slot set for each axis, bailing early if any is empty.
+      ArrayList<BitSet> sets = new ArrayList<BitSet>(axes.size());
+      BitSet smallest = null;
+      for (String axis : axes) {
+         HashMap<Integer, BitSet> posToSlots = axisToSlots_.get(axis);
+         int pos = coords.getIndex(axis);
+         BitSet slots;
+         if (pos < 0) {
+            // As in Coords.matches(), a query position of -1 matches Coords
+            // that have no position along the axis.
+            slots = getUsedSlots();
+            if (posToSlots != null) {
+               for (BitSet withPos : posToSlots.values()) {
+                  slots.andNot(withPos);
+               }
+            }
+         }
+         else {
+            slots = (posToSlots == null) ? null : posToSlots.get(pos);
+         }
+         if (slots == null) {
+            return new ArrayList<Coords>();
+         }
+         sets.add(slots);
+         if (smallest == null || slots.cardinality() < smallest.cardinality()) {
+            smallest = slots;
+         }
+      }
+      BitSet result = (BitSet) smallest.clone();
+      for (BitSet slots : sets) {
+         if (slots != smallest) {
+            result.and(slots);
+         }
+      }
+      ArrayList<Coords> matches = new ArrayList<Coords>(result.cardinality());
+      for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+         matches.add(getCoords(i));
+      }
+      return matches;
+   }
+
+   private BitSet getUsedSlots() {
+      BitSet result = new BitSet(numSlots_);
+      result.set(0, numSlots_);
+      result.andNot(freeSlots_);
+      return result;
+   }
+
+   /**
+    * Return the largest position seen along the given axis, or -1 if no
+    * Coords have had a position along that axis.
+    */
+   public synchronized int getMaxIndex(String axis) {
+      Integer result = axisToMax_.get(axis);
+      return (result == null) ? -1 : result;
+   }
+
+   public synchronized List<String> getAxes() {
+      return getMaxIndices().getAxes();
+   }
+
+   /**
+    * Return a Coords holding the largest position seen along each axis.
+    */
+   public synchronized Coords getMaxIndices() {
+      if (maxIndices_ == null) {
+         DefaultCoords.Builder builder = new DefaultCoords.Builder();
+         for (String axis : axisToMax_.keySet()) {
+            builder.index(axis, axisToMax_.get(axis));
+         }
+         maxIndices_ = builder.build();
+      }
+      return maxIndices_;
+   }
+}
@@ -89,6 +89,17 @@ public final class DefaultDataManager implements DataManager {
       return result;
    }
 
+   /**
+    * Generate a new Datastore with RAM-based Storage that keeps at most the
+    * specified amount of pixel data in memory, moving the rest to a
+    * temporary file (see StorageBoundedRAM).
+    */
+   public Datastore createBoundedRAMDatastore(long maxBytesInRAM) {
+      Datastore result = new DefaultDatastore();
+      result.setStorage(new StorageBoundedRAM(result, maxBytesInRAM));
+      return result;
+   }
+
    @Override
    public Datastore createMultipageTIFFDatastore(String directory,
          boolean shouldGenerateSeparateMetadata, boolean shouldSplitPositions)
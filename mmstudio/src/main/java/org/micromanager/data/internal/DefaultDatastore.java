@@ -35,11 +35,13 @@ import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
+import org.micromanager.data.StageMetrics;
 import org.micromanager.data.Storage;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.events.internal.DefaultEventManager;
 import org.micromanager.internal.MMStudio;
+import org.micromanager.internal.diagnostics.StageMetricsRecorder;
 import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.PrioritizedEventBus;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -78,6 +80,8 @@ public class DefaultDatastore implements Datastore {
    protected boolean isFrozen_ = false;
    private String savePath_ = null;
    private boolean haveSetSummary_ = false;
+   private final StageMetricsRecorder putImageMetrics_ =
+      StageMetricsRecorder.create("Datastore putImage");
 
    public DefaultDatastore() {
       bus_ = new PrioritizedEventBus();
@@ -196,10 +200,24 @@ public class DefaultDatastore implements Datastore {
          }
       }
 
-      if (storage_ != null) {
-         storage_.putImage(image);
+      long receivedTime = putImageMetrics_.imageReceived();
+      try {
+         if (storage_ != null) {
+            storage_.putImage(image);
+         }
+         bus_.post(new NewImageEvent(image, this));
+      }
+      finally {
+         putImageMetrics_.imageFinished(receivedTime);
       }
-      bus_.post(new NewImageEvent(image, this));
+   }
+
+   /**
+    * Returns performance statistics for putImage(), which include the time
+    * taken to hand images to the Storage.
+    */
+   public StageMetrics getPutImageMetrics() {
+      return putImageMetrics_;
    }
 
    @Override
@@ -396,7 +414,8 @@ public class DefaultDatastore implements Datastore {
          if (mode == Datastore.SaveMode.MULTIPAGE_TIFF) {
             saver = new StorageMultipageTiff(duplicate,
                path, true, true,
-               StorageMultipageTiff.getShouldSplitPositions());
+               StorageMultipageTiff.getShouldSplitPositions(),
+               StorageMultipageTiff.getShouldUseParallelWriters());
          }
          else if (mode == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
             saver = new StorageSinglePlaneTiffSeries(duplicate, path, true);
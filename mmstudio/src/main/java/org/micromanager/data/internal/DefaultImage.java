@@ -21,11 +21,13 @@
 package org.micromanager.data.internal;
 
 import ij.ImagePlus;
+import java.lang.reflect.Array;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,7 +39,6 @@ import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.internal.MMStudio;
-import org.micromanager.internal.utils.DirectBuffers;
 import org.micromanager.internal.utils.ImageUtils;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -48,19 +49,35 @@ import org.micromanager.internal.utils.ReportingUtils;
  * the image's index as part of a larger dataset (in the form of an
  * Coords instance).
  *
- * For efficiency during high-speed acquisitions, we store the image data in
- * a ByteBuffer or ShortBuffer. However, ImageJ wants to work with image data
- * in the form of byte[], short[], or int[] arrays (depending on pixel type).
- * getRawPixels(), the method exposed in the Image interface to access pixel
- * data, returns an ImageJ-style array, while getPixelBuffer (which is not
- * exposed in the API) returns the raw buffer.
+ * The image data is stored in a ByteBuffer or ShortBuffer. However, ImageJ
+ * wants to work with image data in the form of byte[], short[], or int[]
+ * arrays (depending on pixel type). getRawPixels(), the method exposed in the
+ * Image interface to access pixel data, returns an ImageJ-style array, while
+ * getPixelBuffer (which is not exposed in the API) returns a read-only view
+ * of the buffer.
+ *
+ * For efficiency during high-speed acquisitions, pixel data is not copied
+ * unless needed. Images adopt the array or buffer they are created with, and
+ * getRawPixels() returns the array that the image is stored in. Buffers that
+ * are not backed by an array (e.g. memory-mapped files) are copied into an
+ * array the first time getRawPixels() is called, and the image keeps using
+ * that array. Images created from another image share its pixels; the
+ * pixels are only copied when someone asks to modify them through
+ * getRawPixelsForWriting() (copy-on-write). getBytesCopied() reports how
+ * many bytes of pixel data were copied by an image.
  */
 public final class DefaultImage implements Image {
    private static final String COORDS_TAG = "completeCoords";
 
    private DefaultMetadata metadata_;
    private Coords coords_;
-   private Buffer rawPixels_;
+   private volatile Buffer rawPixels_;
+   // Whether rawPixels_ may be used by another image (or by whoever handed
+   // us the pixels), in which case they have to be copied before they can be
+   // modified.
+   private volatile boolean isShared_ = false;
+   // Number of bytes of pixel data copied by this image, for profiling
+   private final AtomicLong bytesCopied_ = new AtomicLong(0);
    // Width of the image, in pixels
    int pixelWidth_;
    // Height of the image, in pixels
@@ -94,11 +111,22 @@ public final class DefaultImage implements Image {
 
    /**
     * As above but allows either or both of the image coords and metadata to be
-    * overridden.
+    * overridden. The image takes over the pixel array of the TaggedImage,
+    * without copying it.
     */
    public DefaultImage(TaggedImage tagged, Coords coords, Metadata metadata)
          throws JSONException, IllegalArgumentException {
-      JSONObject tags = tagged.tags;
+      this(wrapArray(tagged.pix), tagged.tags, coords, metadata);
+   }
+
+   /**
+    * As above, but with the pixel data provided as a ByteBuffer or
+    * ShortBuffer, which is used without copying it (and may be read-only,
+    * e.g. a view of a memory-mapped file). The caller must not modify the
+    * buffer afterwards.
+    */
+   public DefaultImage(Buffer pixels, JSONObject tags, Coords coords,
+         Metadata metadata) throws JSONException, IllegalArgumentException {
       if (metadata == null) {
          metadata = DefaultMetadata.legacyFromJSON(tags);
          // HACK: assume that this Image was generated by the current hardware,
@@ -139,8 +167,8 @@ public final class DefaultImage implements Image {
       }
       coords_ = coords;
 
-      rawPixels_ = DirectBuffers.bufferFromArray(tagged.pix);
-      if (rawPixels_.capacity() == 0) {
+      rawPixels_ = pixels;
+      if (rawPixels_ == null || rawPixels_.capacity() == 0) {
          throw new IllegalArgumentException("Pixel data has length 0.");
       }
       pixelWidth_ = MDUtils.getWidth(tags);
@@ -151,7 +179,9 @@ public final class DefaultImage implements Image {
    }
 
    /**
-    * @param pixels Assumed to be a Java array of either bytes or shorts.
+    * @param pixels Assumed to be a Java array of either bytes or shorts. The
+    * image takes over the array without copying it, so the caller must not
+    * modify it afterwards.
     */
    public DefaultImage(Object pixels, int width, int height, int bytesPerPixel,
          int numComponents, Coords coords, Metadata metadata) 
@@ -163,7 +193,7 @@ public final class DefaultImage implements Image {
       }
       coords_ = coords;
 
-      rawPixels_ = DirectBuffers.bufferFromArray(pixels);
+      rawPixels_ = wrapArray(pixels);
       if (rawPixels_ == null || rawPixels_.capacity() < width * height) {
          throw new IllegalArgumentException("Invalid pixel data " + pixels);
       }
@@ -174,17 +204,48 @@ public final class DefaultImage implements Image {
       numComponents_ = numComponents;
    }
 
+   /**
+    * Create an Image that uses the provided ByteBuffer or ShortBuffer as its
+    * pixel data, without copying it (it may be read-only, e.g. a view of a
+    * memory-mapped file). The caller must not modify the buffer afterwards.
+    */
+   public DefaultImage(Buffer pixels, int width, int height, int bytesPerPixel,
+         int numComponents, Coords coords, Metadata metadata)
+         throws IllegalArgumentException {
+      metadata_ = (DefaultMetadata) metadata;
+      if (metadata_ == null) {
+         metadata_ = new DefaultMetadata.Builder().build();
+      }
+      coords_ = coords;
+      rawPixels_ = pixels;
+      if (rawPixels_ == null || rawPixels_.capacity() < width * height) {
+         throw new IllegalArgumentException("Invalid pixel data " + pixels);
+      }
+      pixelWidth_ = width;
+      pixelHeight_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      setBytesPerComponent();
+      numComponents_ = numComponents;
+   }
+
+   /**
+    * Create an Image with the pixels of source, which are shared with source
+    * rather than copied.
+    */
    public DefaultImage(Image source, Coords coords, Metadata metadata) {
       metadata_ = (DefaultMetadata) metadata;
       coords_ = coords;
       if (source instanceof DefaultImage) {
-         // Just copy their Buffer over directly.
-         rawPixels_ = ((DefaultImage) source).getPixelBuffer();
+         // Just share their Buffer directly.
+         DefaultImage defaultSource = (DefaultImage) source;
+         rawPixels_ = defaultSource.rawPixels_;
+         defaultSource.isShared_ = true;
       }
       else {
-         rawPixels_ = DirectBuffers.bufferFromArray(source.getRawPixels());
+         rawPixels_ = wrapArray(source.getRawPixels());
       }
-      if (rawPixels_.capacity() == 0) {
+      isShared_ = true;
+      if (rawPixels_ == null || rawPixels_.capacity() == 0) {
          throw new IllegalArgumentException("Pixel data has length 0.");
       }
       pixelWidth_ = source.getWidth();
@@ -231,44 +292,140 @@ public final class DefaultImage implements Image {
       return new DefaultImage(this, coords, metadata);
    }
 
+   /**
+    * Wraps a byte[] or short[] in a Buffer, without copying it.
+    * @return the Buffer, or null if pixels is not a byte[] or short[]
+    */
+   private static Buffer wrapArray(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ByteBuffer.wrap((byte[]) pixels);
+      }
+      else if (pixels instanceof short[]) {
+         return ShortBuffer.wrap((short[]) pixels);
+      }
+      return null;
+   }
+
+   /**
+    * @return the array that holds all of the buffer's data, or null if the
+    * buffer is not backed by such an array (e.g. because it is read-only or
+    * direct).
+    */
+   private static Object backingArray(Buffer buffer) {
+      if (!buffer.hasArray() || buffer.arrayOffset() != 0) {
+         return null;
+      }
+      Object array = buffer.array();
+      if (Array.getLength(array) != buffer.capacity()) {
+         return null;
+      }
+      return array;
+   }
+
+   /**
+    * Copy the contents of the buffer to a new array, and count the bytes
+    * copied.
+    */
+   private Object copyToArray(Buffer buffer) {
+      Object array = backingArray(buffer);
+      Object copy;
+      if (buffer instanceof ByteBuffer) {
+         copy = new byte[buffer.capacity()];
+         if (array == null) {
+            ByteBuffer source = ((ByteBuffer) buffer).duplicate();
+            source.rewind();
+            source.get((byte[]) copy);
+         }
+         bytesCopied_.addAndGet(buffer.capacity());
+      }
+      else if (buffer instanceof ShortBuffer) {
+         copy = new short[buffer.capacity()];
+         if (array == null) {
+            ShortBuffer source = ((ShortBuffer) buffer).duplicate();
+            source.rewind();
+            source.get((short[]) copy);
+         }
+         bytesCopied_.addAndGet(2L * buffer.capacity());
+      }
+      else {
+         throw new RuntimeException("Unrecognized pixel buffer type " + buffer.getClass());
+      }
+      if (array != null) {
+         System.arraycopy(array, 0, copy, 0, buffer.capacity());
+      }
+      return copy;
+   }
+
    /**
     * Note this returns a byte[], short[], or int[] array, not a ByteBuffer,
     * ShortBuffer, or IntBuffer. Use getPixelBuffer() for that.
+    * The returned array is the one this image is stored in, and must not be
+    * modified; use getRawPixelsCopy() or getRawPixelsForWriting() for that.
+    * Buffers not backed by an array are copied only once, after which this
+    * image uses the copy.
     */
    @Override
    public Object getRawPixels() {
-      return DirectBuffers.arrayFromBuffer(rawPixels_);
+      Object array = backingArray(rawPixels_);
+      if (array != null) {
+         return array;
+      }
+      synchronized (this) {
+         array = backingArray(rawPixels_);
+         if (array == null) {
+            array = copyToArray(rawPixels_);
+            rawPixels_ = wrapArray(array);
+         }
+         return array;
+      }
    }
 
    @Override
    public Object getRawPixelsCopy() {
-      Object original = getRawPixels();
-      Object copy;
-      int length;
-      if (original instanceof byte[]) {
-         byte[] tmp = (byte[]) original;
-         length = tmp.length;
-         copy = new byte[length];
-      }
-      else if (original instanceof short[]) {
-         short[] tmp = (short[]) original;
-         length = tmp.length;
-         copy = new short[length];
-      }
-      else if (original instanceof int[]) {
-         int[] tmp = (int[]) original;
-         length = tmp.length;
-         copy = new int[length];
-      }
-      else {
-         throw new RuntimeException("Unrecognized pixel type " + original.getClass());
-      }
-      System.arraycopy(original, 0, copy, 0, length);
-      return copy;
+      return copyToArray(rawPixels_);
    }
 
+   /**
+    * Return the pixel array of this image so that it can be modified in
+    * place. The pixels are copied first if they may be used elsewhere, i.e.
+    * when they are shared with another image or not stored in an array of
+    * their own (copy-on-write); after that, this image owns its pixels and
+    * they are no longer copied. Only use this on images that have not yet
+    * been handed to anyone else (such as an image just created by a
+    * processor), as the change is visible to all users of this image.
+    * @return byte[] or short[] array holding the pixels of this image
+    */
+   public synchronized Object getRawPixelsForWriting() {
+      Object array = backingArray(rawPixels_);
+      if (array == null || isShared_) {
+         array = copyToArray(rawPixels_);
+         rawPixels_ = wrapArray(array);
+         isShared_ = false;
+      }
+      return array;
+   }
+
+   /**
+    * @return a read-only view of the pixel data, which shares the data
+    * rather than copying it
+    */
    public Buffer getPixelBuffer() {
-      return rawPixels_;
+      Buffer pixels = rawPixels_;
+      if (pixels instanceof ShortBuffer) {
+         return ((ShortBuffer) pixels).asReadOnlyBuffer();
+      }
+      return ((ByteBuffer) pixels).asReadOnlyBuffer();
+   }
+
+   /**
+    * @return the number of bytes of pixel data that this image has copied
+    * so far, for profiling. Copies are made by getRawPixelsCopy(),
+    * getRawPixelsForComponent(), the first call to getRawPixels() on
+    * pixels that are not stored in an array, and getRawPixelsForWriting()
+    * on shared pixels.
+    */
+   public long getBytesCopied() {
+      return bytesCopied_.get();
    }
 
    // This is a bit ugly, due to needing to examine the type of rawPixels_,
@@ -280,12 +437,13 @@ public final class DefaultImage implements Image {
       // as ARGB images have 3 components but 4 bytes per pixel. But for
       // single-component images of course we want a divisor of only 1.
       int divisor = (numComponents_ == 1) ? 1 : bytesPerPixel_;
-      int length = rawPixels_.capacity() / divisor;
+      Buffer pixels = rawPixels_;
+      int length = pixels.capacity() / divisor;
       Object result;
-      if (rawPixels_ instanceof ByteBuffer) {
+      if (pixels instanceof ByteBuffer) {
          result = (Object) new byte[length];
       }
-      else if (rawPixels_ instanceof ShortBuffer) {
+      else if (pixels instanceof ShortBuffer) {
          result = (Object) new short[length];
       }
       else {
@@ -295,13 +453,14 @@ public final class DefaultImage implements Image {
       for (int i = 0; i < length; ++i) {
          // See above re: divisor for why we have to do fiddly stuff here.
          int sourceIndex = i * (numComponents_ == 1 ? 1 : bytesPerPixel_) + component;
-         if (rawPixels_ instanceof ByteBuffer) {
-            ((byte[]) result)[i] = ((ByteBuffer) rawPixels_).get(sourceIndex);
+         if (pixels instanceof ByteBuffer) {
+            ((byte[]) result)[i] = ((ByteBuffer) pixels).get(sourceIndex);
          }
-         else if (rawPixels_ instanceof ShortBuffer) {
-            ((short[]) result)[i] = ((ShortBuffer) rawPixels_).get(sourceIndex);
+         else if (pixels instanceof ShortBuffer) {
+            ((short[]) result)[i] = ((ShortBuffer) pixels).get(sourceIndex);
          }
       }
+      bytesCopied_.addAndGet((long) length * bytesPerComponent_);
       return result;
    }
 
@@ -52,10 +52,10 @@ public final class DefaultImageJConverter implements ImageJConverter {
       int height = image.getHeight();
       int bytesPerPixel = image.getBytesPerPixel();
       int numComponents = image.getNumComponents();
-      Object pixels = image.getRawPixels();
-      if (shouldCopy) {
-         pixels = image.getRawPixelsCopy();
-      }
+      // Copy straight from the image's storage rather than through
+      // getRawPixels(), which may itself have to copy.
+      Object pixels = shouldCopy ? image.getRawPixelsCopy() :
+         image.getRawPixels();
       if (bytesPerPixel == 4 && numComponents == 3) {
          if (pixels instanceof byte[]) {
             // Micro-Manager RGB images are currently RGB_ byte buffers.
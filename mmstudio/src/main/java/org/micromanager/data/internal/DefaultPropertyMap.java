@@ -31,9 +31,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -741,82 +744,174 @@ public final class DefaultPropertyMap implements PropertyMap {
                // nulls?
                continue;
             }
-            String type = property.getString(TYPE);
-            if (type.contentEquals(STRING)) {
-               builder.putString(key, property.getString(VALUE));
-            }
-            else if (type.contentEquals(STRING_ARRAY)) {
-               JSONArray tmp = property.getJSONArray(VALUE);
-               String[] valArr = new String[tmp.length()];
-               for (int j = 0; j < tmp.length(); ++j) {
-                  valArr[j] = tmp.getString(j);
+            Object value = property.get(VALUE);
+            if (value instanceof JSONArray) {
+               JSONArray array = (JSONArray) value;
+               List<Object> list = new ArrayList<Object>(array.length());
+               for (int j = 0; j < array.length(); ++j) {
+                  list.add(array.get(j));
                }
-               builder.putStringArray(key, valArr);
-            }
-            else if (type.contentEquals(INTEGER)) {
-               builder.putInt(key, property.getInt(VALUE));
-            }
-            else if (type.contentEquals(INTEGER_ARRAY)) {
-               JSONArray tmp = property.getJSONArray(VALUE);
-               Integer[] valArr = new Integer[tmp.length()];
-               for (int j = 0; j < tmp.length(); ++j) {
-                  valArr[j] = tmp.getInt(j);
-               }
-               builder.putIntArray(key, valArr);
-            }
-            else if (type.contentEquals(LONG)) {
-               builder.putLong(key, property.getLong(VALUE));
+               value = list;
             }
-            else if (type.contentEquals(LONG_ARRAY)) {
-               JSONArray tmp = property.getJSONArray(VALUE);
-               Long[] valArr = new Long[tmp.length()];
-               for (int j = 0; j < tmp.length(); ++j) {
-                  valArr[j] = tmp.getLong(j);
-               }
-               builder.putLongArray(key, valArr);
-            }
-            else if (type.contentEquals(DOUBLE)) {
-               builder.putDouble(key, property.getDouble(VALUE));
-            }
-            else if (type.contentEquals(DOUBLE_ARRAY)) {
-               JSONArray tmp = property.getJSONArray(VALUE);
-               Double[] valArr = new Double[tmp.length()];
-               for (int j = 0; j < tmp.length(); ++j) {
-                  valArr[j] = tmp.getDouble(j);
-               }
-               builder.putDoubleArray(key, valArr);
-            }
-            else if (type.contentEquals(BOOLEAN)) {
-               builder.putBoolean(key, property.getBoolean(VALUE));
+            putSerializedValue(builder, key, property.getString(TYPE), value);
+         }
+         catch (JSONException e) {
+            throw new RuntimeException("Error converting key " + key + " from JSON: " + e);
+         }
+      }
+      return (DefaultPropertyMap) builder.build();
+   }
+
+   /**
+    * As fromJSON(), but for a serialization that has already been parsed
+    * into Java objects: each value of the map is itself a Map holding the
+    * property's type and value, with arrays given as Lists. This lets
+    * callers that store property maps in some other form (such as binary
+    * image metadata) recreate them without going through JSON.
+    */
+   public static DefaultPropertyMap fromMap(Map<String, ?> map) {
+      Builder builder = new Builder();
+      for (Map.Entry<String, ?> entry : map.entrySet()) {
+         String key = entry.getKey();
+         if (!(entry.getValue() instanceof Map)) {
+            throw new RuntimeException("Property " + key + " is not a serialized property");
+         }
+         Map<?, ?> property = (Map<?, ?>) entry.getValue();
+         Object value = property.get(VALUE);
+         if (value == null) {
+            // As in fromJSON(), we refuse to load null values.
+            continue;
+         }
+         try {
+            putSerializedValue(builder, key,
+                  String.valueOf(property.get(TYPE)), value);
+         }
+         catch (JSONException e) {
+            throw new RuntimeException("Error converting key " + key + ": " + e);
+         }
+      }
+      return (DefaultPropertyMap) builder.build();
+   }
+
+   /**
+    * Add a property, given its serialized type and value, to the builder.
+    * Array values must be Lists. Numbers and booleans may be given as
+    * Strings, as JSONObject allows.
+    */
+   private static void putSerializedValue(Builder builder, String key,
+         String type, Object value) throws JSONException {
+      try {
+         if (type.contentEquals(STRING)) {
+            builder.putString(key, value.toString());
+         }
+         else if (type.contentEquals(STRING_ARRAY)) {
+            List<?> list = (List<?>) value;
+            String[] valArr = new String[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+               valArr[j] = list.get(j).toString();
             }
-            else if (type.contentEquals(BOOLEAN_ARRAY)) {
-               JSONArray tmp = property.getJSONArray(VALUE);
-               Boolean[] valArr = new Boolean[tmp.length()];
-               for (int j = 0; j < tmp.length(); ++j) {
-                  valArr[j] = tmp.getBoolean(j);
-               }
-               builder.putBooleanArray(key, valArr);
+            builder.putStringArray(key, valArr);
+         }
+         else if (type.contentEquals(INTEGER)) {
+            builder.putInt(key, toInt(value));
+         }
+         else if (type.contentEquals(INTEGER_ARRAY)) {
+            List<?> list = (List<?>) value;
+            Integer[] valArr = new Integer[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+               valArr[j] = toInt(list.get(j));
             }
-            else if (type.contentEquals(PROPERTY_MAP)) {
-               JSONObject tmp = new JSONObject(property.getString(VALUE));
-               builder.putPropertyMap(key, fromJSON(tmp));
+            builder.putIntArray(key, valArr);
+         }
+         else if (type.contentEquals(LONG)) {
+            builder.putLong(key, toLong(value));
+         }
+         else if (type.contentEquals(LONG_ARRAY)) {
+            List<?> list = (List<?>) value;
+            Long[] valArr = new Long[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+               valArr[j] = toLong(list.get(j));
             }
-            else if (type.contentEquals(OBJECT)) {
-               String tmp = property.getString(VALUE);
-               byte[] bytes = BaseEncoding.base64().decode(tmp);
-               builder.putProperty(key, new PropertyValue(bytes));
+            builder.putLongArray(key, valArr);
+         }
+         else if (type.contentEquals(DOUBLE)) {
+            builder.putDouble(key, toDouble(value));
+         }
+         else if (type.contentEquals(DOUBLE_ARRAY)) {
+            List<?> list = (List<?>) value;
+            Double[] valArr = new Double[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+               valArr[j] = toDouble(list.get(j));
             }
-            else {
-               throw new PropertyMap.TypeMismatchException(
-                     "Illegal property type " + type + " for property " +
-                     property);
+            builder.putDoubleArray(key, valArr);
+         }
+         else if (type.contentEquals(BOOLEAN)) {
+            builder.putBoolean(key, toBoolean(value));
+         }
+         else if (type.contentEquals(BOOLEAN_ARRAY)) {
+            List<?> list = (List<?>) value;
+            Boolean[] valArr = new Boolean[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+               valArr[j] = toBoolean(list.get(j));
             }
+            builder.putBooleanArray(key, valArr);
          }
-         catch (JSONException e) {
-            throw new RuntimeException("Error converting key " + key + " from JSON: " + e);
+         else if (type.contentEquals(PROPERTY_MAP)) {
+            JSONObject tmp = new JSONObject(value.toString());
+            builder.putPropertyMap(key, fromJSON(tmp));
+         }
+         else if (type.contentEquals(OBJECT)) {
+            byte[] bytes = BaseEncoding.base64().decode(value.toString());
+            builder.putProperty(key, new PropertyValue(bytes));
+         }
+         else {
+            throw new PropertyMap.TypeMismatchException(
+                  "Illegal property type " + type + " for property " + key);
          }
       }
-      return (DefaultPropertyMap) builder.build();
+      catch (ClassCastException e) {
+         throw new JSONException("Property " + key + " of type " + type +
+               " has invalid value " + value);
+      }
+      catch (NumberFormatException e) {
+         throw new JSONException("Property " + key + " of type " + type +
+               " has invalid value " + value);
+      }
+   }
+
+   // These follow the conversions done by JSONObject's getters.
+   private static double toDouble(Object value) {
+      if (value instanceof Number) {
+         return ((Number) value).doubleValue();
+      }
+      return Double.parseDouble(value.toString());
+   }
+
+   private static int toInt(Object value) {
+      if (value instanceof Number) {
+         return ((Number) value).intValue();
+      }
+      return (int) toDouble(value);
+   }
+
+   private static long toLong(Object value) {
+      if (value instanceof Number) {
+         return ((Number) value).longValue();
+      }
+      return (long) toDouble(value);
+   }
+
+   private static boolean toBoolean(Object value) throws JSONException {
+      if (value instanceof Boolean) {
+         return (Boolean) value;
+      }
+      if (value.toString().equalsIgnoreCase("true")) {
+         return true;
+      }
+      if (value.toString().equalsIgnoreCase("false")) {
+         return false;
+      }
+      throw new JSONException("Not a boolean: " + value);
    }
 
    @Override
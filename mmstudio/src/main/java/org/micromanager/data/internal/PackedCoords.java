@@ -0,0 +1,220 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import org.micromanager.data.Coords;
+
+/**
+ * Utility methods for representing a Coords as a single long, for use as a
+ * compact hash key by our storage classes. Only Coords that use the four
+ * standard axes (channel, z, time, and stage position), with positions that
+ * fit in the bit fields below, can be packed; see canPack().
+ *
+ * Each position is stored plus one, so that a field of 0 means the Coords
+ * have no position (or, as in legacy Coords, a position of -1) along that
+ * axis. Because of that, Coords with an explicit -1 position pack to the
+ * same value as Coords without that axis; maps keyed by Coords should use
+ * canPackExactly() rather than canPack(). The sign bit is never set, so
+ * packed values are always nonnegative.
+ */
+public final class PackedCoords {
+   private static final int CHANNEL_BITS = 8;
+   private static final int Z_BITS = 14;
+   private static final int TIME_BITS = 24;
+   private static final int POSITION_BITS = 17;
+
+   private static final int CHANNEL_SHIFT = 0;
+   private static final int Z_SHIFT = CHANNEL_SHIFT + CHANNEL_BITS;
+   private static final int TIME_SHIFT = Z_SHIFT + Z_BITS;
+   private static final int POSITION_SHIFT = TIME_SHIFT + TIME_BITS;
+
+   /**
+    * Return true if the given Coords can be represented as a packed long.
+    */
+   public static boolean canPack(Coords coords) {
+      for (String axis : coords.getAxes()) {
+         int pos = coords.getIndex(axis);
+         if (axis.equals(Coords.CHANNEL)) {
+            if (!fits(pos, CHANNEL_BITS)) {
+               return false;
+            }
+         }
+         else if (axis.equals(Coords.Z)) {
+            if (!fits(pos, Z_BITS)) {
+               return false;
+            }
+         }
+         else if (axis.equals(Coords.TIME)) {
+            if (!fits(pos, TIME_BITS)) {
+               return false;
+            }
+         }
+         else if (axis.equals(Coords.STAGE_POSITION)) {
+            if (!fits(pos, POSITION_BITS)) {
+               return false;
+            }
+         }
+         else {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Return true if the Coords can be packed such that unpacking them gives
+    * equal Coords, i.e. canPack() is true and no position is negative.
+    */
+   public static boolean canPackExactly(Coords coords) {
+      if (!canPack(coords)) {
+         return false;
+      }
+      for (String axis : coords.getAxes()) {
+         if (coords.getIndex(axis) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Return true if the given positions (with -1 meaning "no position along
+    * this axis") can be represented as a packed long.
+    */
+   public static boolean canPack(int channel, int z, int time, int position) {
+      return fits(channel, CHANNEL_BITS) && fits(z, Z_BITS) &&
+         fits(time, TIME_BITS) && fits(position, POSITION_BITS);
+   }
+
+   private static boolean fits(int pos, int bits) {
+      return pos >= -1 && pos + 1 < (1 << bits);
+   }
+
+   /**
+    * Pack the given Coords into a long.
+    * @throws IllegalArgumentException if canPack() would return false.
+    */
+   public static long pack(Coords coords) throws IllegalArgumentException {
+      if (!canPack(coords)) {
+         throw new IllegalArgumentException("Cannot pack coords " + coords);
+      }
+      return pack(coords.getChannel(), coords.getZ(), coords.getTime(),
+            coords.getStagePosition());
+   }
+
+   /**
+    * Pack the given positions into a long, with -1 meaning "no position
+    * along this axis". No range checking is performed.
+    */
+   public static long pack(int channel, int z, int time, int position) {
+      return (((long) channel + 1) << CHANNEL_SHIFT) |
+         (((long) z + 1) << Z_SHIFT) |
+         (((long) time + 1) << TIME_SHIFT) |
+         (((long) position + 1) << POSITION_SHIFT);
+   }
+
+   /**
+    * Return true if the given axis is one of the four axes that have a field
+    * in packed Coords.
+    */
+   public static boolean hasField(String axis) {
+      return axis.equals(Coords.CHANNEL) || axis.equals(Coords.Z) ||
+         axis.equals(Coords.TIME) || axis.equals(Coords.STAGE_POSITION);
+   }
+
+   /**
+    * Return a mask selecting the bits of a packed long that hold the given
+    * axes. Axes other than the four standard axes are ignored.
+    */
+   public static long getMask(Iterable<String> axes) {
+      long mask = 0;
+      for (String axis : axes) {
+         if (axis.equals(Coords.CHANNEL)) {
+            mask |= fieldMask(CHANNEL_SHIFT, CHANNEL_BITS);
+         }
+         else if (axis.equals(Coords.Z)) {
+            mask |= fieldMask(Z_SHIFT, Z_BITS);
+         }
+         else if (axis.equals(Coords.TIME)) {
+            mask |= fieldMask(TIME_SHIFT, TIME_BITS);
+         }
+         else if (axis.equals(Coords.STAGE_POSITION)) {
+            mask |= fieldMask(POSITION_SHIFT, POSITION_BITS);
+         }
+      }
+      return mask;
+   }
+
+   private static long fieldMask(int shift, int bits) {
+      return ((1L << bits) - 1) << shift;
+   }
+
+   public static int getChannel(long packed) {
+      return field(packed, CHANNEL_SHIFT, CHANNEL_BITS);
+   }
+
+   public static int getZ(long packed) {
+      return field(packed, Z_SHIFT, Z_BITS);
+   }
+
+   public static int getTime(long packed) {
+      return field(packed, TIME_SHIFT, TIME_BITS);
+   }
+
+   public static int getStagePosition(long packed) {
+      return field(packed, POSITION_SHIFT, POSITION_BITS);
+   }
+
+   private static int field(long packed, int shift, int bits) {
+      return (int) ((packed >>> shift) & ((1L << bits) - 1)) - 1;
+   }
+
+   /**
+    * Generate a Coords from a packed long. Axes with no position are
+    * omitted.
+    */
+   public static Coords unpack(long packed) {
+      DefaultCoords.Builder builder = new DefaultCoords.Builder();
+      int channel = getChannel(packed);
+      if (channel >= 0) {
+         builder.channel(channel);
+      }
+      int z = getZ(packed);
+      if (z >= 0) {
+         builder.z(z);
+      }
+      int time = getTime(packed);
+      if (time >= 0) {
+         builder.time(time);
+      }
+      int position = getStagePosition(packed);
+      if (position >= 0) {
+         builder.stagePosition(position);
+      }
+      return builder.build();
+   }
+
+   /**
+    * Mix the bits of a packed value, for use as a hash table index.
+    */
+   static int hash(long packed) {
+      long h = packed * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+}
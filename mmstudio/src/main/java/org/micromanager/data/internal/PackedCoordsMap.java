@@ -0,0 +1,154 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.micromanager.data.Coords;
+
+/**
+ * Map from Coords to arbitrary values, which stores Coords that can be
+ * packed exactly (see PackedCoords) as primitive longs in a
+ * PackedCoordsTable, instead of as HashMap entries keyed by Coords objects.
+ * Coords that cannot be packed exactly are kept in an ordinary HashMap. This
+ * class is not thread-safe.
+ */
+public final class PackedCoordsMap<V> {
+   private static final int INITIAL_CAPACITY = 16;
+
+   // Maps packed Coords to their index in packedValues_.
+   private final PackedCoordsTable packedToIndex_ = new PackedCoordsTable();
+   // Values for packed Coords, and their keys, kept dense so that
+   // iteration doesn't have to scan the table.
+   private final ArrayList<V> packedValues_ = new ArrayList<V>();
+   private long[] packedKeys_ = new long[INITIAL_CAPACITY];
+   private final HashMap<Coords, V> unpackable_ = new HashMap<Coords, V>();
+
+   public V get(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         return unpackable_.get(coords);
+      }
+      int index = (int) packedToIndex_.get(PackedCoords.pack(coords), -1);
+      return (index < 0) ? null : packedValues_.get(index);
+   }
+
+   public boolean containsKey(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         return unpackable_.containsKey(coords);
+      }
+      return packedToIndex_.containsKey(PackedCoords.pack(coords));
+   }
+
+   /**
+    * @return the previous value for these Coords, if any.
+    */
+   public V put(Coords coords, V value) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         return unpackable_.put(coords, value);
+      }
+      long key = PackedCoords.pack(coords);
+      int index = (int) packedToIndex_.get(key, -1);
+      if (index >= 0) {
+         return packedValues_.set(index, value);
+      }
+      index = packedValues_.size();
+      if (index == packedKeys_.length) {
+         long[] newKeys = new long[index * 2];
+         System.arraycopy(packedKeys_, 0, newKeys, 0, index);
+         packedKeys_ = newKeys;
+      }
+      packedKeys_[index] = key;
+      packedValues_.add(value);
+      packedToIndex_.put(key, index);
+      return null;
+   }
+
+   /**
+    * @return the removed value, or null if there was none.
+    */
+   public V remove(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         return unpackable_.remove(coords);
+      }
+      long key = PackedCoords.pack(coords);
+      int index = (int) packedToIndex_.get(key, -1);
+      if (index < 0) {
+         return null;
+      }
+      packedToIndex_.remove(key);
+      // Fill the gap with the last entry.
+      int last = packedValues_.size() - 1;
+      V prior = packedValues_.get(index);
+      if (index != last) {
+         packedKeys_[index] = packedKeys_[last];
+         packedValues_.set(index, packedValues_.get(last));
+         packedToIndex_.put(packedKeys_[index], index);
+      }
+      packedValues_.remove(last);
+      return prior;
+   }
+
+   public int size() {
+      return packedValues_.size() + unpackable_.size();
+   }
+
+   /**
+    * Return an arbitrary value from the map, or null if it is empty.
+    */
+   public V getAnyValue() {
+      if (!packedValues_.isEmpty()) {
+         return packedValues_.get(0);
+      }
+      for (V value : unpackable_.values()) {
+         return value;
+      }
+      return null;
+   }
+
+   public void clear() {
+      packedToIndex_.clear();
+      packedValues_.clear();
+      packedKeys_ = new long[INITIAL_CAPACITY];
+      unpackable_.clear();
+   }
+
+   /**
+    * Return a new list of all keys in the map.
+    */
+   public List<Coords> keys() {
+      ArrayList<Coords> result = new ArrayList<Coords>(size());
+      for (int i = 0; i < packedValues_.size(); ++i) {
+         result.add(PackedCoords.unpack(packedKeys_[i]));
+      }
+      result.addAll(unpackable_.keySet());
+      return result;
+   }
+
+   /**
+    * Return a new list of all values in the map.
+    */
+   public List<V> values() {
+      ArrayList<V> result = new ArrayList<V>(size());
+      result.addAll(packedValues_);
+      result.addAll(unpackable_.values());
+      return result;
+   }
+}
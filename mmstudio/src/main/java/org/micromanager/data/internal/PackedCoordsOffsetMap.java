@@ -0,0 +1,141 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.micromanager.data.Coords;
+
+/**
+ * Map from Coords to file offsets. Coords that can be packed exactly (see
+ * PackedCoords) are stored as primitive longs in a PackedCoordsTable; any
+ * others are kept in an ordinary HashMap. Used for the image index of
+ * multipage TIFF files, which is shared between the writing thread and
+ * readers, so methods are synchronized.
+ */
+public final class PackedCoordsOffsetMap {
+   /** Returned by get() for keys that are not in the map. */
+   public static final long NO_OFFSET = -1;
+
+   private final PackedCoordsTable packed_ = new PackedCoordsTable();
+   private final HashMap<Coords, Long> unpackable_ =
+      new HashMap<Coords, Long>();
+
+   /**
+    * Return the offset for the given packed Coords, or NO_OFFSET.
+    */
+   public synchronized long get(long packed) {
+      return packed_.get(packed, NO_OFFSET);
+   }
+
+   /**
+    * Return the offset for the given Coords, or NO_OFFSET.
+    */
+   public synchronized long get(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         Long result = unpackable_.get(coords);
+         return (result == null) ? NO_OFFSET : result;
+      }
+      return packed_.get(PackedCoords.pack(coords), NO_OFFSET);
+   }
+
+   public boolean containsKey(Coords coords) {
+      return get(coords) != NO_OFFSET;
+   }
+
+   /**
+    * Insert or replace the offset for the given packed Coords.
+    */
+   public synchronized void put(long packed, long offset) {
+      packed_.put(packed, offset);
+   }
+
+   /**
+    * Insert or replace the offset for the given Coords.
+    */
+   public synchronized void put(Coords coords, long offset) {
+      if (PackedCoords.canPackExactly(coords)) {
+         packed_.put(PackedCoords.pack(coords), offset);
+      }
+      else {
+         unpackable_.put(coords, offset);
+      }
+   }
+
+   /**
+    * Insert or replace the offset for the given positions, as read from a
+    * file's index map, where -1 means "no position along this axis".
+    */
+   public synchronized void put(int channel, int z, int time, int position,
+         long offset) {
+      if (PackedCoords.canPack(channel, z, time, position)) {
+         packed_.put(PackedCoords.pack(channel, z, time, position), offset);
+         return;
+      }
+      DefaultCoords.Builder builder = new DefaultCoords.Builder();
+      if (channel >= 0) {
+         builder.channel(channel);
+      }
+      if (z >= 0) {
+         builder.z(z);
+      }
+      if (time >= 0) {
+         builder.time(time);
+      }
+      if (position >= 0) {
+         builder.stagePosition(position);
+      }
+      unpackable_.put(builder.build(), offset);
+   }
+
+   public synchronized int size() {
+      return packed_.size() + unpackable_.size();
+   }
+
+   /**
+    * Return the packed keys in the map, in arbitrary order. Coords that
+    * can't be packed are not included; see getUnpackableKeys().
+    */
+   public synchronized long[] getPackedKeys() {
+      return packed_.getKeys();
+   }
+
+   /**
+    * Return the keys in the map that could not be packed, in arbitrary
+    * order.
+    */
+   public synchronized List<Coords> getUnpackableKeys() {
+      return new ArrayList<Coords>(unpackable_.keySet());
+   }
+
+   /**
+    * Return all keys in the map as Coords, in arbitrary order.
+    */
+   public synchronized List<Coords> keys() {
+      long[] packed = packed_.getKeys();
+      ArrayList<Coords> result = new ArrayList<Coords>(size());
+      for (long key : packed) {
+         result.add(PackedCoords.unpack(key));
+      }
+      result.addAll(unpackable_.keySet());
+      return result;
+   }
+}
@@ -0,0 +1,157 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from packed Coords (see PackedCoords) to long
+ * values, held in primitive arrays. Uses linear probing, and deletes by
+ * shifting later entries of a probe sequence backwards, so lookups never
+ * have to skip over tombstones. This is the table underlying
+ * PackedCoordsMap, PackedCoordsOffsetMap, and CoordsIndex. It is not
+ * thread-safe.
+ */
+final class PackedCoordsTable {
+   // Packed Coords are never negative, so this can't be a valid key.
+   private static final long EMPTY = -1;
+   private static final int INITIAL_CAPACITY = 64;
+
+   private long[] keys_;
+   private long[] values_;
+   private int size_ = 0;
+
+   public PackedCoordsTable() {
+      allocate(INITIAL_CAPACITY);
+   }
+
+   private void allocate(int capacity) {
+      keys_ = new long[capacity];
+      Arrays.fill(keys_, EMPTY);
+      values_ = new long[capacity];
+   }
+
+   /**
+    * Return the index of the slot holding the key, or of the empty slot
+    * where it would be inserted.
+    */
+   private int findSlot(long key) {
+      int mask = keys_.length - 1;
+      int slot = PackedCoords.hash(key) & mask;
+      while (keys_[slot] != EMPTY && keys_[slot] != key) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   /**
+    * Return the value for the given key, or missingValue if there is none.
+    */
+   public long get(long key, long missingValue) {
+      int slot = findSlot(key);
+      return (keys_[slot] == EMPTY) ? missingValue : values_[slot];
+   }
+
+   public boolean containsKey(long key) {
+      return keys_[findSlot(key)] != EMPTY;
+   }
+
+   /**
+    * Insert or replace the value for the given key, which must be
+    * nonnegative.
+    */
+   public void put(long key, long value) {
+      if (key < 0) {
+         throw new IllegalArgumentException("Invalid packed Coords " + key);
+      }
+      int slot = findSlot(key);
+      values_[slot] = value;
+      if (keys_[slot] == EMPTY) {
+         keys_[slot] = key;
+         size_++;
+         if (size_ * 2 > keys_.length) {
+            resize(keys_.length * 2);
+         }
+      }
+   }
+
+   /**
+    * @return True if the key was present.
+    */
+   public boolean remove(long key) {
+      int mask = keys_.length - 1;
+      int hole = findSlot(key);
+      if (keys_[hole] == EMPTY) {
+         return false;
+      }
+      int next = (hole + 1) & mask;
+      while (keys_[next] != EMPTY) {
+         int home = PackedCoords.hash(keys_[next]) & mask;
+         // Move the entry into the hole if the hole lies cyclically between
+         // its home slot and its current slot.
+         boolean shouldMove = (hole <= next) ?
+            (home <= hole || home > next) : (home <= hole && home > next);
+         if (shouldMove) {
+            keys_[hole] = keys_[next];
+            values_[hole] = values_[next];
+            hole = next;
+         }
+         next = (next + 1) & mask;
+      }
+      keys_[hole] = EMPTY;
+      size_--;
+      return true;
+   }
+
+   private void resize(int capacity) {
+      long[] oldKeys = keys_;
+      long[] oldValues = values_;
+      allocate(capacity);
+      for (int i = 0; i < oldKeys.length; ++i) {
+         if (oldKeys[i] != EMPTY) {
+            int slot = findSlot(oldKeys[i]);
+            keys_[slot] = oldKeys[i];
+            values_[slot] = oldValues[i];
+         }
+      }
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public void clear() {
+      allocate(INITIAL_CAPACITY);
+      size_ = 0;
+   }
+
+   /**
+    * Return all keys in the table, in arbitrary order.
+    */
+   public long[] getKeys() {
+      long[] result = new long[size_];
+      int i = 0;
+      for (long key : keys_) {
+         if (key != EMPTY) {
+            result[i++] = key;
+         }
+      }
+      return result;
+   }
+}
@@ -0,0 +1,433 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.common.eventbus.Subscribe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.NewSummaryMetadataEvent;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.DefaultUserProfile;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * RAM-based storage that keeps at most a fixed number of bytes of pixel data
+ * in memory. Unlike StorageRAM, which keeps the images it is given on the
+ * Java heap, pixel data is copied into direct (off-heap) buffers, so that
+ * it does not count against the heap and is never scanned or moved by the
+ * garbage collector. When the budget is exceeded, the pixels of the images
+ * that were least recently accessed are moved to a temporary scratch file,
+ * and are read back in when those images are requested again. Metadata and
+ * coordinates always stay in memory. Methods that interact with our image
+ * tables are synchronized.
+ *
+ * The images we return are views of our buffers. Calling getRawPixels() on
+ * one copies its pixels into a heap array that belongs to that Image object
+ * only, and goes away with it.
+ */
+public final class StorageBoundedRAM implements RewritableStorage {
+   private static final String MAX_BYTES_IN_RAM = "maximum number of bytes of pixel data to keep in RAM";
+
+   /**
+    * Everything we know about a single image. Exactly one of bytes and
+    * (for images that are not in RAM) scratchOffset describes where the
+    * pixel data currently lives; an image that has been paged back in keeps
+    * its scratchOffset so that evicting it again costs nothing.
+    */
+   private static class Entry {
+      final Coords coords;
+      final Metadata metadata;
+      final int width;
+      final int height;
+      final int bytesPerPixel;
+      final int numComponents;
+      final boolean isShort;
+      final int numBytes;
+      // Direct buffer holding the pixels (in native byte order for 16-bit
+      // images), or null if they are only in the scratch file.
+      ByteBuffer bytes;
+      long scratchOffset = -1;
+
+      public Entry(DefaultImage image) {
+         coords = image.getCoords();
+         metadata = image.getMetadata();
+         width = image.getWidth();
+         height = image.getHeight();
+         bytesPerPixel = image.getBytesPerPixel();
+         numComponents = image.getNumComponents();
+         Buffer pixels = image.getPixelBuffer();
+         isShort = pixels instanceof ShortBuffer;
+         numBytes = pixels.capacity() * (isShort ? 2 : 1);
+         bytes = ByteBuffer.allocateDirect(numBytes).order(
+               ByteOrder.nativeOrder());
+         if (isShort) {
+            ShortBuffer source = ((ShortBuffer) pixels).duplicate();
+            source.rewind();
+            bytes.asShortBuffer().put(source);
+         }
+         else {
+            ByteBuffer source = ((ByteBuffer) pixels).duplicate();
+            source.rewind();
+            bytes.put(source);
+            bytes.rewind();
+         }
+      }
+
+      /**
+       * Return a new Image that uses our pixel buffer, which must be in RAM.
+       * Our buffer is never modified, so the Image doesn't need a copy.
+       */
+      Image createImage() {
+         ByteBuffer view = bytes.duplicate().order(ByteOrder.nativeOrder());
+         Buffer pixels = isShort ? view.asShortBuffer() : view;
+         return new DefaultImage(pixels, width, height, bytesPerPixel,
+               numComponents, coords, metadata);
+      }
+   }
+
+   private final PackedCoordsMap<Entry> coordsToEntry_;
+   // Images whose pixels are currently in RAM, in access order (least
+   // recently accessed first).
+   private final LinkedHashMap<Coords, Entry> residentEntries_;
+   private final long maxBytesInRAM_;
+   private long bytesInRAM_ = 0;
+   // Offsets of scratch-file slots freed by deleted images, by slot size.
+   private final HashMap<Integer, ArrayList<Long>> freeSlots_;
+   private final File scratchDir_;
+   private File scratchFile_;
+   private RandomAccessFile scratchRAF_;
+   private FileChannel scratchChannel_;
+   private long scratchLength_ = 0;
+   private CoordsIndex coordsIndex_;
+   private SummaryMetadata summaryMetadata_;
+
+   /**
+    * @param store Datastore we provide storage for.
+    * @param maxBytesInRAM Maximum number of bytes of pixel data to keep in
+    *        memory. At least one image is always kept in memory regardless.
+    * @param scratchDir Directory to create the scratch file in, or null to
+    *        use the system temporary directory.
+    */
+   public StorageBoundedRAM(Datastore store, long maxBytesInRAM,
+         File scratchDir) {
+      if (maxBytesInRAM <= 0) {
+         throw new IllegalArgumentException("Memory budget must be positive");
+      }
+      maxBytesInRAM_ = maxBytesInRAM;
+      scratchDir_ = scratchDir;
+      coordsToEntry_ = new PackedCoordsMap<Entry>();
+      residentEntries_ = new LinkedHashMap<Coords, Entry>(16, 0.75f, true);
+      freeSlots_ = new HashMap<Integer, ArrayList<Long>>();
+      coordsIndex_ = new CoordsIndex();
+      summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
+      // It is imperative that we be notified of new images before anyone who
+      // wants to retrieve the images from the store is notified.
+      ((DefaultDatastore) store).registerForEvents(this, 0);
+   }
+
+   public StorageBoundedRAM(Datastore store, long maxBytesInRAM) {
+      this(store, maxBytesInRAM, null);
+   }
+
+   /**
+    * Add a new image to our storage, update coordsIndex_, and evict other
+    * images if we are now over budget.
+    */
+   @Override
+   public synchronized void putImage(Image image) {
+      DefaultImage defaultImage;
+      if (image instanceof DefaultImage) {
+         defaultImage = (DefaultImage) image;
+      }
+      else {
+         defaultImage = new DefaultImage(image, image.getCoords(),
+               image.getMetadata());
+      }
+      Coords coords = image.getCoords();
+      Entry entry = new Entry(defaultImage);
+      Entry oldEntry = coordsToEntry_.put(coords, entry);
+      if (oldEntry != null) {
+         // Overwriting an existing image; don't keep accounting for it.
+         release(oldEntry);
+      }
+      residentEntries_.put(coords, entry);
+      bytesInRAM_ += entry.numBytes;
+      coordsIndex_.add(coords);
+      evictAsNeeded();
+   }
+
+   /**
+    * Move the pixel data of the least-recently-accessed images out to the
+    * scratch file until we're within budget. The most recently accessed
+    * image is never evicted.
+    */
+   private void evictAsNeeded() {
+      Iterator<Entry> iter = residentEntries_.values().iterator();
+      while (bytesInRAM_ > maxBytesInRAM_ && residentEntries_.size() > 1 &&
+            iter.hasNext()) {
+         Entry entry = iter.next();
+         if (entry.scratchOffset < 0) {
+            try {
+               writeToScratch(entry);
+            }
+            catch (IOException e) {
+               ReportingUtils.logError(e, "Unable to move image at " +
+                     entry.coords + " to scratch file; keeping it in RAM");
+               return;
+            }
+         }
+         entry.bytes = null;
+         bytesInRAM_ -= entry.numBytes;
+         iter.remove();
+      }
+   }
+
+   private void writeToScratch(Entry entry) throws IOException {
+      if (scratchChannel_ == null) {
+         scratchFile_ = File.createTempFile("MMRAMStorage", ".tmp",
+               scratchDir_);
+         scratchFile_.deleteOnExit();
+         scratchRAF_ = new RandomAccessFile(scratchFile_, "rw");
+         scratchChannel_ = scratchRAF_.getChannel();
+      }
+      long offset;
+      ArrayList<Long> slots = freeSlots_.get(entry.numBytes);
+      if (slots != null && slots.size() > 0) {
+         offset = slots.remove(slots.size() - 1);
+      }
+      else {
+         offset = scratchLength_;
+         scratchLength_ += entry.numBytes;
+      }
+      ByteBuffer bytes = entry.bytes.duplicate();
+      bytes.rewind();
+      while (bytes.hasRemaining()) {
+         scratchChannel_.write(bytes, offset + bytes.position());
+      }
+      entry.scratchOffset = offset;
+   }
+
+   /**
+    * Return the image for the given entry, reading it back in from the
+    * scratch file if necessary.
+    */
+   private Image pageIn(Entry entry) {
+      if (entry.bytes != null) {
+         // Mark the image as recently used.
+         residentEntries_.get(entry.coords);
+         return entry.createImage();
+      }
+      ByteBuffer bytes = ByteBuffer.allocateDirect(entry.numBytes).order(
+            ByteOrder.nativeOrder());
+      try {
+         while (bytes.hasRemaining()) {
+            int numRead = scratchChannel_.read(bytes,
+                  entry.scratchOffset + bytes.position());
+            if (numRead < 0) {
+               throw new IOException("Unexpected end of scratch file");
+            }
+         }
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to read image at " +
+               entry.coords + " from scratch file");
+         return null;
+      }
+      bytes.rewind();
+      entry.bytes = bytes;
+      residentEntries_.put(entry.coords, entry);
+      bytesInRAM_ += entry.numBytes;
+      evictAsNeeded();
+      return entry.createImage();
+   }
+
+   @Override
+   public void freeze() {
+      // The Datastore handles making certain writes don't occur, and we don't
+      // do anything special to "finish" storing data, so this is a no-op.
+   }
+
+   @Override
+   public synchronized Image getImage(Coords coords) {
+      Entry entry = coordsToEntry_.get(coords);
+      if (entry == null) {
+         return null;
+      }
+      return pageIn(entry);
+   }
+
+   @Override
+   public synchronized Image getAnyImage() {
+      // Prefer an image that doesn't require any disk access.
+      for (Entry entry : residentEntries_.values()) {
+         return entry.createImage();
+      }
+      Entry entry = coordsToEntry_.getAnyValue();
+      return (entry == null) ? null : pageIn(entry);
+   }
+
+   @Override
+   public synchronized List<Image> getImagesMatching(Coords coords) {
+      ArrayList<Image> results = new ArrayList<Image>();
+      for (Coords imageCoords : coordsIndex_.getMatching(coords)) {
+         Image image = pageIn(coordsToEntry_.get(imageCoords));
+         if (image != null) {
+            results.add(image);
+         }
+      }
+      return results;
+   }
+
+   @Override
+   public synchronized Iterable<Coords> getUnorderedImageCoords() {
+      // Return a copy, since callers typically request images while
+      // iterating, which may rearrange our tables.
+      ArrayList<Coords> result = new ArrayList<Coords>(coordsToEntry_.size());
+      for (Entry entry : coordsToEntry_.values()) {
+         result.add(entry.coords);
+      }
+      return result;
+   }
+
+   @Override
+   public synchronized boolean hasImage(Coords coords) {
+      return coordsToEntry_.containsKey(coords);
+   }
+
+   @Override
+   public Integer getMaxIndex(String axis) {
+      return coordsIndex_.getMaxIndex(axis);
+   }
+
+   @Override
+   public List<String> getAxes() {
+      return coordsIndex_.getAxes();
+   }
+
+   @Override
+   public Coords getMaxIndices() {
+      return coordsIndex_.getMaxIndices();
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Subscribe
+   public void onNewSummary(NewSummaryMetadataEvent event) {
+      summaryMetadata_ = event.getSummaryMetadata();
+   }
+
+   @Override
+   public synchronized int getNumImages() {
+      return coordsToEntry_.size();
+   }
+
+   /**
+    * Return the number of bytes of pixel data currently held in RAM.
+    */
+   public synchronized long getBytesInRAM() {
+      return bytesInRAM_;
+   }
+
+   @Override
+   public synchronized void deleteImage(Coords coords) throws IllegalArgumentException {
+      Entry entry = coordsToEntry_.remove(coords);
+      if (entry == null) {
+         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+      }
+      coordsIndex_.remove(coords);
+      release(entry);
+   }
+
+   /**
+    * Stop counting the given entry's pixels against our budget, and make its
+    * scratch-file slot (if any) available for reuse. The entry must already
+    * have been removed from coordsToEntry_.
+    */
+   private void release(Entry entry) {
+      if (residentEntries_.get(entry.coords) == entry) {
+         residentEntries_.remove(entry.coords);
+      }
+      if (entry.bytes != null) {
+         bytesInRAM_ -= entry.numBytes;
+         entry.bytes = null;
+      }
+      if (entry.scratchOffset >= 0) {
+         if (!freeSlots_.containsKey(entry.numBytes)) {
+            freeSlots_.put(entry.numBytes, new ArrayList<Long>());
+         }
+         freeSlots_.get(entry.numBytes).add(entry.scratchOffset);
+         entry.scratchOffset = -1;
+      }
+   }
+
+   @Override
+   public synchronized void close() {
+      coordsToEntry_.clear();
+      residentEntries_.clear();
+      freeSlots_.clear();
+      bytesInRAM_ = 0;
+      if (scratchRAF_ != null) {
+         try {
+            scratchRAF_.close();
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Error closing scratch file");
+         }
+         if (!scratchFile_.delete()) {
+            ReportingUtils.logError("Unable to delete scratch file " +
+                  scratchFile_);
+         }
+         scratchRAF_ = null;
+         scratchChannel_ = null;
+      }
+   }
+
+   /**
+    * Return the memory budget for RAM-based acquisitions, in bytes, or 0 if
+    * acquisitions to RAM should not be limited.
+    */
+   public static long getMaxBytesInRAM() {
+      return DefaultUserProfile.getInstance().getLong(
+            StorageBoundedRAM.class, MAX_BYTES_IN_RAM, 0L);
+   }
+
+   public static void setMaxBytesInRAM(long maxBytes) {
+      DefaultUserProfile.getInstance().setLong(
+            StorageBoundedRAM.class, MAX_BYTES_IN_RAM, maxBytes);
+   }
+}
@@ -22,7 +22,6 @@ package org.micromanager.data.internal;
 
 import com.google.common.eventbus.Subscribe;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
@@ -33,16 +32,16 @@ import org.micromanager.data.SummaryMetadata;
 
 /**
  * Simple RAM-based storage for Datastores. Methods that interact with the
- * HashMap that is our image storage are synchronized.
+ * map that is our image storage are synchronized.
  */
 public final class StorageRAM implements RewritableStorage {
-   private HashMap<Coords, Image> coordsToImage_;
-   private Coords maxIndex_;
+   private PackedCoordsMap<Image> coordsToImage_;
+   private CoordsIndex coordsIndex_;
    private SummaryMetadata summaryMetadata_;
 
    public StorageRAM(Datastore store) {
-      coordsToImage_ = new HashMap<Coords, Image>();
-      maxIndex_ = new DefaultCoords.Builder().build();
+      coordsToImage_ = new PackedCoordsMap<Image>();
+      coordsIndex_ = new CoordsIndex();
       summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
       // It is imperative that we be notified of new images before anyone who
       // wants to retrieve the images from the store is notified.
@@ -50,21 +49,13 @@ public final class StorageRAM implements RewritableStorage {
    }
 
    /**
-    * Add a new image to our storage, and update maxIndex_.
+    * Add a new image to our storage, and update coordsIndex_.
     */
    @Override
    public synchronized void putImage(Image image) {
       Coords coords = image.getCoords();
       coordsToImage_.put(coords, image);
-      for (String axis : coords.getAxes()) {
-         if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
-            // Either this image is further along on this axis, or we have
-            // no index for this axis yet.
-            maxIndex_ = maxIndex_.copy()
-                  .index(axis, coords.getIndex(axis))
-                  .build();
-         }
-      }
+      coordsIndex_.add(coords);
    }
 
    @Override
@@ -75,55 +66,50 @@ public final class StorageRAM implements RewritableStorage {
 
    @Override
    public synchronized Image getImage(Coords coords) {
-      if (coordsToImage_.containsKey(coords)) {
-         return coordsToImage_.get(coords);
-      }
-      return null;
+      return coordsToImage_.get(coords);
    }
 
    @Override
    public synchronized Image getAnyImage() {
-      if (coordsToImage_.size() > 0) {
-         Coords coords = new ArrayList<Coords>(coordsToImage_.keySet()).get(0);
-         return coordsToImage_.get(coords);
-      }
-      return null;
+      return coordsToImage_.getAnyValue();
    }
 
    @Override
    public synchronized List<Image> getImagesMatching(Coords coords) {
       ArrayList<Image> results = new ArrayList<Image>();
-      for (Image image : coordsToImage_.values()) {
-         if (image.getCoords().matches(coords)) {
-            results.add(image);
-         }
+      for (Coords imageCoords : coordsIndex_.getMatching(coords)) {
+         results.add(coordsToImage_.get(imageCoords));
       }
       return results;
    }
 
    @Override
    public synchronized Iterable<Coords> getUnorderedImageCoords() {
-      return coordsToImage_.keySet();
+      ArrayList<Coords> result = new ArrayList<Coords>(coordsToImage_.size());
+      for (Image image : coordsToImage_.values()) {
+         result.add(image.getCoords());
+      }
+      return result;
    }
 
    @Override
-   public boolean hasImage(Coords coords) {
+   public synchronized boolean hasImage(Coords coords) {
       return coordsToImage_.containsKey(coords);
    }
 
    @Override
    public Integer getMaxIndex(String axis) {
-      return maxIndex_.getIndex(axis);
+      return coordsIndex_.getMaxIndex(axis);
    }
 
    @Override
    public List<String> getAxes() {
-      return maxIndex_.getAxes();
+      return coordsIndex_.getAxes();
    }
 
    @Override
    public Coords getMaxIndices() {
-      return maxIndex_;
+      return coordsIndex_.getMaxIndices();
    }
 
    @Override
@@ -137,7 +123,7 @@ public final class StorageRAM implements RewritableStorage {
    }
 
    @Override
-   public int getNumImages() {
+   public synchronized int getNumImages() {
       return coordsToImage_.size();
    }
 
@@ -147,6 +133,7 @@ public final class StorageRAM implements RewritableStorage {
          throw new IllegalArgumentException("Storage does not contain image at " + coords);
       }
       coordsToImage_.remove(coords);
+      coordsIndex_.remove(coords);
    }
 
    @Override
@@ -74,7 +74,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
    private HashMap<Coords, String> coordsToFilename_;
    private HashMap<Integer, String> positionIndexToName_;
    private ArrayList<String> orderedChannelNames_;
-   private Coords maxIndices_;
+   private CoordsIndex coordsIndex_;
    private boolean isMultiPosition_;
 
    public StorageSinglePlaneTiffSeries(DefaultDatastore store,
@@ -93,7 +93,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       metadataStreams_ = new HashMap<Integer, Writer>();
       positionIndexToName_ = new HashMap<Integer, String>();
       orderedChannelNames_ = new ArrayList<String>();
-      maxIndices_ = new DefaultCoords.Builder().build();
+      coordsIndex_ = new CoordsIndex();
       amLoading_ = false;
       isMultiPosition_ = true;
 
@@ -175,12 +175,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          // isn't?  See the above code that branches based on amLoading_.
          coordsToFilename_.put(coords, fileName);
       }
-      // Update our tracking of the max index along each axis.
-      for (String axis : coords.getAxes()) {
-         if (coords.getIndex(axis) > maxIndices_.getIndex(axis)) {
-            maxIndices_ = maxIndices_.copy().index(axis, coords.getIndex(axis)).build();
-         }
-      }
+      coordsIndex_.add(coords);
    }
 
    @Override
@@ -284,17 +279,8 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
    @Override
    public List<Image> getImagesMatching(Coords coords) {
       ArrayList<Image> result = new ArrayList<Image>();
-      for (Coords altCoords : coordsToFilename_.keySet()) {
-         boolean canUse = true;
-         for (String axis : coords.getAxes()) {
-            if (coords.getIndex(axis) != altCoords.getIndex(axis)) {
-               canUse = false;
-               break;
-            }
-         }
-         if (canUse) {
-            result.add(getImage(altCoords));
-         }
+      for (Coords altCoords : coordsIndex_.getMatching(coords)) {
+         result.add(getImage(altCoords));
       }
       return result;
    }
@@ -306,17 +292,17 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
 
    @Override
    public Integer getMaxIndex(String axis) {
-      return maxIndices_.getIndex(axis);
+      return coordsIndex_.getMaxIndex(axis);
    }
 
    @Override
    public List<String> getAxes() {
-      return maxIndices_.getAxes();
+      return coordsIndex_.getAxes();
    }
 
    @Override
    public Coords getMaxIndices() {
-      return maxIndices_;
+      return coordsIndex_.getMaxIndices();
    }
 
    @Override
@@ -0,0 +1,532 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultPropertyMap;
+import org.micromanager.internal.utils.MDUtils;
+
+/**
+ * Compact binary encoding of per-image metadata, used in place of the JSON
+ * text in the MM_METADATA tag when StorageMultipageTiff is configured to
+ * write binary metadata.
+ *
+ * Each file has a dictionary of metadata keys, which is stored once, in the
+ * summary metadata, under KEYS_TAG. It is seeded with the keys of the first
+ * image written to the file, since most acquisitions use the same keys for
+ * every image. Each image's metadata is then stored as a block of
+ * (key index, type, value) triples; keys that aren't in the dictionary are
+ * written inline. Nested objects and arrays are encoded recursively, with
+ * inline keys. All values are big-endian, regardless of the byte order of
+ * the TIFF file:
+ *
+ * block  := version:byte count:int entry*
+ * entry  := keyIndex:short [key:string if keyIndex == -1] value
+ * value  := type:byte payload
+ * string := length:int UTF-8 bytes
+ *
+ * Instances are not thread-safe, as encoding reuses an internal buffer.
+ */
+final class BinaryMetadataCodec {
+   /** Summary metadata key under which the key dictionary is stored. */
+   public static final String KEYS_TAG = "BinaryMetadataKeys";
+
+   private static final byte VERSION = 1;
+   private static final short INLINE_KEY = -1;
+
+   private static final byte TYPE_NULL = 0;
+   private static final byte TYPE_FALSE = 1;
+   private static final byte TYPE_TRUE = 2;
+   private static final byte TYPE_INT = 3;
+   private static final byte TYPE_LONG = 4;
+   private static final byte TYPE_DOUBLE = 5;
+   private static final byte TYPE_STRING = 6;
+   private static final byte TYPE_OBJECT = 7;
+   private static final byte TYPE_ARRAY = 8;
+
+   private final List<String> keys_;
+   private final HashMap<String, Integer> keyToIndex_;
+   private final ByteArrayOutputStream bytes_ = new ByteArrayOutputStream();
+   private final DataOutputStream output_ = new DataOutputStream(bytes_);
+
+   private BinaryMetadataCodec(List<String> keys) {
+      keys_ = keys;
+      keyToIndex_ = new HashMap<String, Integer>();
+      for (int i = 0; i < keys_.size(); ++i) {
+         keyToIndex_.put(keys_.get(i), i);
+      }
+   }
+
+   /**
+    * Create a codec whose dictionary holds the keys of the provided image
+    * tags, plus any of the given extra keys.
+    */
+   public static BinaryMetadataCodec forTags(JSONObject tags,
+         String... extraKeys) {
+      List<String> keys = new ArrayList<String>();
+      for (String key : MDUtils.getKeys(tags)) {
+         keys.add(key);
+      }
+      for (String key : extraKeys) {
+         if (!tags.has(key)) {
+            keys.add(key);
+         }
+      }
+      // Key indices are written as shorts.
+      if (keys.size() > Short.MAX_VALUE) {
+         keys = keys.subList(0, Short.MAX_VALUE);
+      }
+      return new BinaryMetadataCodec(keys);
+   }
+
+   /**
+    * Recreate the codec that was used to write a file, given that file's
+    * summary metadata. Returns null if the file does not use binary
+    * metadata.
+    */
+   public static BinaryMetadataCodec fromSummary(JSONObject summary)
+         throws JSONException {
+      if (summary == null || !summary.has(KEYS_TAG)) {
+         return null;
+      }
+      JSONArray array = summary.getJSONArray(KEYS_TAG);
+      List<String> keys = new ArrayList<String>(array.length());
+      for (int i = 0; i < array.length(); ++i) {
+         keys.add(array.getString(i));
+      }
+      return new BinaryMetadataCodec(keys);
+   }
+
+   /**
+    * Store our key dictionary in the provided summary metadata.
+    */
+   public void addToSummary(JSONObject summary) throws JSONException {
+      summary.put(KEYS_TAG, new JSONArray(keys_));
+   }
+
+   /**
+    * Encode the provided image tags.
+    */
+   public byte[] encode(JSONObject tags) throws JSONException, IOException {
+      bytes_.reset();
+      output_.writeByte(VERSION);
+      String[] keys = getKeys(tags);
+      output_.writeInt(keys.length);
+      for (String key : keys) {
+         Integer index = keyToIndex_.get(key);
+         if (index != null) {
+            output_.writeShort(index);
+         }
+         else {
+            output_.writeShort(INLINE_KEY);
+            writeString(key);
+         }
+         writeValue(tags.get(key));
+      }
+      output_.flush();
+      return bytes_.toByteArray();
+   }
+
+   private void writeValue(Object value) throws JSONException, IOException {
+      if (value == null || value == JSONObject.NULL) {
+         output_.writeByte(TYPE_NULL);
+      }
+      else if (value instanceof Boolean) {
+         output_.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+      }
+      else if (value instanceof Integer || value instanceof Short ||
+            value instanceof Byte) {
+         output_.writeByte(TYPE_INT);
+         output_.writeInt(((Number) value).intValue());
+      }
+      else if (value instanceof Long) {
+         output_.writeByte(TYPE_LONG);
+         output_.writeLong((Long) value);
+      }
+      else if (value instanceof Number) {
+         output_.writeByte(TYPE_DOUBLE);
+         output_.writeDouble(((Number) value).doubleValue());
+      }
+      else if (value instanceof JSONObject) {
+         JSONObject object = (JSONObject) value;
+         String[] keys = getKeys(object);
+         output_.writeByte(TYPE_OBJECT);
+         output_.writeInt(keys.length);
+         for (String key : keys) {
+            writeString(key);
+            writeValue(object.get(key));
+         }
+      }
+      else if (value instanceof JSONArray) {
+         JSONArray array = (JSONArray) value;
+         output_.writeByte(TYPE_ARRAY);
+         output_.writeInt(array.length());
+         for (int i = 0; i < array.length(); ++i) {
+            writeValue(array.get(i));
+         }
+      }
+      else {
+         output_.writeByte(TYPE_STRING);
+         writeString(value.toString());
+      }
+   }
+
+   /**
+    * Return all keys of the object. Unlike MDUtils.getKeys(), keys with null
+    * values are included, so that they survive a round trip.
+    */
+   private static String[] getKeys(JSONObject object) {
+      String[] result = new String[object.length()];
+      Iterator<?> keys = object.keys();
+      for (int i = 0; i < result.length; ++i) {
+         result[i] = keys.next().toString();
+      }
+      return result;
+   }
+
+   private void writeString(String s) throws IOException {
+      byte[] utf8 = s.getBytes("UTF-8");
+      output_.writeInt(utf8.length);
+      output_.write(utf8);
+   }
+
+   /**
+    * Decode a block of metadata written by encode(). The buffer's position
+    * is advanced past the block.
+    * @throws IOException if the block is malformed.
+    */
+   public JSONObject decode(ByteBuffer buffer) throws IOException {
+      try {
+         return (JSONObject) toJSON(readBlock(buffer));
+      }
+      catch (JSONException e) {
+         throw new IOException("Invalid binary metadata block: " + e.getMessage());
+      }
+   }
+
+   /**
+    * The parts of an image's metadata that are needed to create an Image.
+    * Fields that were not present in the metadata are null.
+    */
+   static final class ImageMetadata {
+      Metadata metadata;
+      Coords coords;
+      Integer width;
+      Integer height;
+      String pixelType;
+   }
+
+   /**
+    * Decode a block of metadata written by encode() directly into the
+    * image's Metadata, Coords, and pixel format, without going through
+    * JSONObject. The tags are interpreted as DefaultMetadata.legacyFromJSON()
+    * and DefaultImage would interpret the equivalent JSON; tags that are not
+    * part of the Metadata are dropped. The buffer's position is advanced
+    * past the block.
+    * @throws IOException if the block is malformed.
+    */
+   public ImageMetadata decodeImageMetadata(ByteBuffer buffer)
+         throws IOException {
+      Map<String, Object> tags = readBlock(buffer);
+      ImageMetadata result = new ImageMetadata();
+      result.width = getInteger(tags, "Width");
+      result.height = getInteger(tags, "Height");
+      result.pixelType = getString(tags, "PixelType");
+
+      DefaultCoords.Builder coords = new DefaultCoords.Builder();
+      Integer time = getInteger(tags, tags.containsKey("Frame") ?
+            "Frame" : "FrameIndex");
+      if (time != null) {
+         coords.time(time);
+      }
+      Integer position = getInteger(tags, "PositionIndex");
+      if (position != null) {
+         coords.stagePosition(position);
+      }
+      Integer z = getInteger(tags, tags.containsKey("SliceIndex") ?
+            "SliceIndex" : "Slice");
+      if (z != null) {
+         coords.z(z);
+      }
+      Integer channel = getInteger(tags, "ChannelIndex");
+      if (channel != null) {
+         coords.channel(channel);
+      }
+      result.coords = coords.build();
+
+      DefaultMetadata.Builder builder = new DefaultMetadata.Builder();
+      builder.binning(getBinning(tags));
+      Object summary = tags.get("Summary");
+      builder.bitDepth((summary instanceof Map) ?
+            getInteger((Map<?, ?>) summary, "BitDepth") :
+            getInteger(tags, "BitDepth"));
+      // See legacyFromJSON() for why "" is not a valid camera.
+      String camera = getString(tags, "Camera");
+      if (camera == null || camera.contentEquals("")) {
+         camera = getString(tags, "Core-Camera");
+      }
+      builder.camera(camera);
+      builder.elapsedTimeMs(getDouble(tags, "ElapsedTime-ms"));
+      builder.exposureMs(getDouble(tags, "Exposure-ms"));
+      builder.imageNumber(getLong(tags, "ImageNumber"));
+      builder.pixelAspect(getDouble(tags, "pixelAspect"));
+      Double pixelSize = getDouble(tags, "PixelSize_um");
+      builder.pixelSizeUm(pixelSize != null ? pixelSize :
+            getDouble(tags, "PixelSizeUm"));
+      builder.positionName(getString(tags, "PositionName"));
+      String receivedTime = getString(tags, "receivedTime");
+      builder.receivedTime(receivedTime != null ? receivedTime :
+            getString(tags, "Time"));
+      String roi = getString(tags, "ROI");
+      if (roi != null) {
+         try {
+            builder.ROI(MDUtils.parseROI(roi));
+         }
+         catch (IllegalArgumentException e) {}
+      }
+      String uuid = getString(tags, "UUID");
+      if (uuid != null) {
+         try {
+            builder.uuid(UUID.fromString(uuid));
+         }
+         catch (IllegalArgumentException e) {}
+      }
+      builder.xPositionUm(getDouble(tags, "XPositionUm"));
+      builder.yPositionUm(getDouble(tags, "YPositionUm"));
+      builder.zPositionUm(getDouble(tags, "ZPositionUm"));
+
+      try {
+         Object scopeKeys = tags.get("scopeDataKeys");
+         if (scopeKeys instanceof List) {
+            // Scope data properties are stored "flat" among the tags.
+            Map<String, Object> scopeData = new HashMap<String, Object>();
+            for (Object key : (List<?>) scopeKeys) {
+               scopeData.put(key.toString(), tags.get(key.toString()));
+            }
+            builder.scopeData(DefaultPropertyMap.fromMap(scopeData));
+         }
+         Object userData = tags.get("userData");
+         if (userData instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> userMap = (Map<String, Object>) userData;
+            builder.userData(DefaultPropertyMap.fromMap(userMap));
+         }
+      }
+      catch (RuntimeException e) {
+         throw new IOException("Invalid property map in binary metadata: " + e.getMessage());
+      }
+      result.metadata = builder.build();
+      return result;
+   }
+
+   // The following getters return null for missing values, and otherwise
+   // convert values as the corresponding JSONObject getters would.
+
+   private static String getString(Map<?, ?> tags, String key) {
+      Object value = tags.get(key);
+      return (value == null) ? null : value.toString();
+   }
+
+   private static Double getDouble(Map<?, ?> tags, String key) {
+      Object value = tags.get(key);
+      if (value instanceof Number) {
+         return ((Number) value).doubleValue();
+      }
+      if (value instanceof String) {
+         try {
+            return Double.parseDouble((String) value);
+         }
+         catch (NumberFormatException e) {}
+      }
+      return null;
+   }
+
+   private static Integer getInteger(Map<?, ?> tags, String key) {
+      Object value = tags.get(key);
+      if (value instanceof Number) {
+         return ((Number) value).intValue();
+      }
+      Double result = getDouble(tags, key);
+      return (result == null) ? null : result.intValue();
+   }
+
+   private static Long getLong(Map<?, ?> tags, String key) {
+      Object value = tags.get(key);
+      if (value instanceof Number) {
+         return ((Number) value).longValue();
+      }
+      Double result = getDouble(tags, key);
+      return (result == null) ? null : result.longValue();
+   }
+
+   /**
+    * As MDUtils.getBinning(), which also accepts values like "2x2".
+    */
+   private static Integer getBinning(Map<?, ?> tags) {
+      Integer result = getInteger(tags, "Binning");
+      String value = getString(tags, "Binning");
+      if (result == null && value != null && value.contains("x")) {
+         try {
+            result = Integer.parseInt(value.split("x", 2)[0]);
+         }
+         catch (NumberFormatException e) {}
+      }
+      return result;
+   }
+
+   /**
+    * Read a block into a map of plain Java objects: objects are Maps,
+    * arrays are Lists, and null values are null.
+    */
+   private Map<String, Object> readBlock(ByteBuffer buffer)
+         throws IOException {
+      ByteOrder order = buffer.order();
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      try {
+         byte version = buffer.get();
+         if (version != VERSION) {
+            throw new IOException("Unsupported binary metadata version " + version);
+         }
+         int count = buffer.getInt();
+         Map<String, Object> result = new HashMap<String, Object>();
+         for (int i = 0; i < count; ++i) {
+            short index = buffer.getShort();
+            String key;
+            if (index == INLINE_KEY) {
+               key = readString(buffer);
+            }
+            else if (index >= 0 && index < keys_.size()) {
+               key = keys_.get(index);
+            }
+            else {
+               throw new IOException("Invalid binary metadata key index " + index);
+            }
+            result.put(key, readValue(buffer));
+         }
+         return result;
+      }
+      catch (BufferUnderflowException e) {
+         throw new IOException("Truncated binary metadata block");
+      }
+      finally {
+         buffer.order(order);
+      }
+   }
+
+   private Object readValue(ByteBuffer buffer) throws IOException {
+      byte type = buffer.get();
+      switch (type) {
+         case TYPE_NULL:
+            return null;
+         case TYPE_FALSE:
+            return Boolean.FALSE;
+         case TYPE_TRUE:
+            return Boolean.TRUE;
+         case TYPE_INT:
+            return buffer.getInt();
+         case TYPE_LONG:
+            return buffer.getLong();
+         case TYPE_DOUBLE:
+            return buffer.getDouble();
+         case TYPE_STRING:
+            return readString(buffer);
+         case TYPE_OBJECT:
+            int numKeys = buffer.getInt();
+            Map<String, Object> object = new HashMap<String, Object>();
+            for (int i = 0; i < numKeys; ++i) {
+               String key = readString(buffer);
+               object.put(key, readValue(buffer));
+            }
+            return object;
+         case TYPE_ARRAY:
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+               throw new IOException("Invalid binary metadata array length " + length);
+            }
+            List<Object> array = new ArrayList<Object>(length);
+            for (int i = 0; i < length; ++i) {
+               array.add(readValue(buffer));
+            }
+            return array;
+         default:
+            throw new IOException("Invalid binary metadata value type " + type);
+      }
+   }
+
+   /**
+    * Convert a value returned by readValue() to its JSON equivalent.
+    */
+   private static Object toJSON(Object value) throws JSONException {
+      if (value == null) {
+         return JSONObject.NULL;
+      }
+      if (value instanceof Map) {
+         JSONObject result = new JSONObject();
+         for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            result.put(entry.getKey().toString(), toJSON(entry.getValue()));
+         }
+         return result;
+      }
+      if (value instanceof List) {
+         JSONArray result = new JSONArray();
+         for (Object item : (List<?>) value) {
+            result.put(toJSON(item));
+         }
+         return result;
+      }
+      return value;
+   }
+
+   private String readString(ByteBuffer buffer) throws IOException {
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+         throw new IOException("Invalid binary metadata string length " + length);
+      }
+      String result;
+      if (buffer.hasArray()) {
+         result = new String(buffer.array(),
+               buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+      }
+      else {
+         byte[] utf8 = new byte[length];
+         buffer.duplicate().get(utf8);
+         result = new String(utf8, "UTF-8");
+      }
+      buffer.position(buffer.position() + length);
+      return result;
+   }
+}
@@ -27,6 +27,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -58,16 +59,21 @@ class FileSet {
    private boolean expectedImageOrder_ = true;
    private int ifdCount_ = 0;
    private StorageMultipageTiff masterStorage_;
+   private ThreadPoolExecutor writingExecutor_;
+   private WriteBufferPool bufferPool_;
    int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
    int currentFrame_ = 0;
 
    
    public FileSet(JSONObject firstImageTags, StorageMultipageTiff masterStorage,
          OMEMetadata omeMetadata,
-         boolean splitByXYPosition, boolean separateMetadataFile)
+         boolean splitByXYPosition, boolean separateMetadataFile,
+         ThreadPoolExecutor writingExecutor, WriteBufferPool bufferPool)
       throws IOException {
       tiffWriters_ = new LinkedList<MultipageTiffWriter>();  
       masterStorage_ = masterStorage;
+      writingExecutor_ = writingExecutor;
+      bufferPool_ = bufferPool;
       omeMetadata_ = omeMetadata;
       splitByXYPosition_ = splitByXYPosition;
       separateMetadataFile_ = separateMetadataFile;
@@ -78,7 +84,8 @@ class FileSet {
       currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
       //make first writer
       tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-            firstImageTags, currentTiffFilename_));
+            firstImageTags, currentTiffFilename_, writingExecutor_,
+            bufferPool_));
 
       try {
          if (separateMetadataFile_) {
@@ -89,6 +96,21 @@ class FileSet {
       }
    }
 
+   /**
+    * Return the executor that performs file I/O for this FileSet. Depending
+    * on the storage's settings, it may be shared with other FileSets.
+    */
+   public ThreadPoolExecutor getWritingExecutor() {
+      return writingExecutor_;
+   }
+
+   /**
+    * Return all writers in this set, in the order their files were created.
+    */
+   public List<MultipageTiffWriter> getWriters() {
+      return tiffWriters_;
+   }
+
    public String getCurrentUUID() {
       return currentTiffUUID_;
    }
@@ -152,7 +174,8 @@ class FileSet {
          currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
          ifdCount_ = 0;
          tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-               img.tags, currentTiffFilename_));
+               img.tags, currentTiffFilename_, writingExecutor_,
+               bufferPool_));
       }      
 
       //Add filename to image tags
@@ -305,7 +328,7 @@ class FileSet {
       if (numFrames > frame + 1 ) {
          TreeSet<Coords> writtenImages = new TreeSet<Coords>();
          for (MultipageTiffWriter w : tiffWriters_) {
-            writtenImages.addAll(w.getIndexMap().keySet());
+            writtenImages.addAll(w.getIndexMap().keys());
             w.setAbortedNumFrames(frame + 1);
          }
          int positionIndex = writtenImages.first().getStagePosition();
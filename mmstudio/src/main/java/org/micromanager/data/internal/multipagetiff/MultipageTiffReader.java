@@ -27,12 +27,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -47,6 +49,8 @@ import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.data.internal.DefaultMetadata;
 import org.micromanager.data.internal.DefaultPropertyMap;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PackedCoords;
+import org.micromanager.data.internal.PackedCoordsOffsetMap;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplayWindow;
 import org.micromanager.internal.utils.MDUtils;
@@ -57,6 +61,12 @@ import org.micromanager.internal.utils.VersionUtils;
 public final class MultipageTiffReader {
 
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   // When memory-mapping files, we map them in regions of this size. Each
+   // region extends a further MAPPED_REGION_OVERLAP bytes past its nominal
+   // end, so that any image of up to that size that starts in the region
+   // also ends in it; larger images are mapped individually.
+   private static final long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+   private static final long MAPPED_REGION_OVERLAP = 64L * 1024 * 1024;
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
    public static final char STRIP_OFFSETS = MultipageTiffWriter.STRIP_OFFSETS;    
    public static final char SAMPLES_PER_PIXEL = MultipageTiffWriter.SAMPLES_PER_PIXEL;
@@ -64,6 +74,7 @@ public final class MultipageTiffReader {
    public static final char IMAGE_DESCRIPTION = MultipageTiffWriter.IMAGE_DESCRIPTION;
 
    public static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
+   public static final char MM_BINARY_METADATA = MultipageTiffWriter.MM_BINARY_METADATA;
    // Note: ordering of axes here matches that in MDUtils.getLabel().
    // If you change this, you will need to track down places where the size of
    // the position list is implicitly kept (e.g. in the size of a single index
@@ -71,6 +82,7 @@ public final class MultipageTiffReader {
    public static final ImmutableList<String> ALLOWED_AXES = ImmutableList.of("channel", "z", "time", "position");
 
    private ByteOrder byteOrder_;  
+   private TiffFormat format_ = TiffFormat.CLASSIC;
    private File file_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
@@ -78,11 +90,20 @@ public final class MultipageTiffReader {
    private StorageMultipageTiff masterStorage_;
    private SummaryMetadata summaryMetadata_;
    private JSONObject summaryJSON_;
+   // Null if the file does not contain binary metadata.
+   private BinaryMetadataCodec metadataCodec_;
    private int byteDepth_ = 0;
    private boolean rgb_;
    private boolean writingFinished_;
 
-   private HashMap<Coords, Long> coordsToOffset_;
+   private PackedCoordsOffsetMap coordsToOffset_;
+
+   // If true, pixel data is exposed as views of memory-mapped regions of the
+   // file instead of being copied into the heap. Only used for files that
+   // have been opened from disk (and thus will not change).
+   private boolean shouldMemoryMap_ = false;
+   private final HashMap<Long, MappedByteBuffer> mappedRegions_ =
+      new HashMap<Long, MappedByteBuffer>();
 
    /**
     * This constructor is used for a file that is currently being written.
@@ -90,19 +111,22 @@ public final class MultipageTiffReader {
     *        augmented with display settings and values that are normally
     *        only stored in image metadata. See the
     *        MultipageTiffWriter.augmentWithImageMetadata() method.
+    * \param format The format the file is being written in.
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage,
          SummaryMetadata summaryMD, JSONObject summaryJSON,
-         JSONObject firstImageTags) {
+         JSONObject firstImageTags, TiffFormat format) {
       masterStorage_ = masterStorage;
       summaryMetadata_ = summaryMD;
       summaryJSON_ = summaryJSON;
       byteOrder_ = MultipageTiffWriter.BYTE_ORDER;
+      format_ = format;
+      metadataCodec_ = readMetadataCodec(summaryJSON_);
       getRGBAndByteDepth(firstImageTags);
       writingFinished_ = false;
    }
 
-   public void setIndexMap(HashMap<Coords, Long> indexMap) {
+   public void setIndexMap(PackedCoordsOffsetMap indexMap) {
       coordsToOffset_ = indexMap;
    }
 
@@ -114,6 +138,16 @@ public final class MultipageTiffReader {
     * This constructor is used for opening datasets that have already been saved
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage, File file) throws IOException, InvalidIndexMapException {
+      this(masterStorage, file, true);
+   }
+
+   /**
+    * As above, but optionally skip reading the file's index map, for when
+    * image locations are known from elsewhere (i.e. a SidecarIndex); in that
+    * case images can only be read with readImageAt().
+    */
+   public MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+         boolean shouldReadIndexMap) throws IOException, InvalidIndexMapException {
       masterStorage_ = masterStorage;
       file_ = file;
       try {
@@ -122,17 +156,24 @@ public final class MultipageTiffReader {
          ReportingUtils.showError("Can't successfully open file: " +  file_.getName());
       }
       writingFinished_ = true;
+      shouldMemoryMap_ = masterStorage_.getUsesMemoryMapping();
       long firstIFD = readHeader();
       summaryJSON_ = readSummaryMD();
       summaryMetadata_ = DefaultSummaryMetadata.legacyFromJSON(summaryJSON_);
+      metadataCodec_ = readMetadataCodec(summaryJSON_);
 
-      try {
-         readIndexMap();
+      if (shouldReadIndexMap) {
+         try {
+            readIndexMap();
+         }
+         catch (IOException e) {
+            // Normally I'd frown on converting exception types like this, but
+            // we want to differentiate index map errors from other errors.
+            throw new InvalidIndexMapException(e);
+         }
       }
-      catch (IOException e) {
-         // Normally I'd frown on converting exception types like this, but we
-         // want to differentiate index map errors from other errors.
-         throw new InvalidIndexMapException(e);
+      else {
+         coordsToOffset_ = new PackedCoordsOffsetMap();
       }
 
       readComments();
@@ -196,7 +237,8 @@ public final class MultipageTiffReader {
         return false;
       }
       FileChannel channel = ra.getChannel();
-      ByteBuffer tiffHeader = ByteBuffer.allocate(36);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(
+            TiffFormat.BIG.getSummaryMDHeaderPosition() + 4);
       ByteOrder bo;
       channel.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
@@ -208,9 +250,14 @@ public final class MultipageTiffReader {
          throw new IOException("Error reading Tiff header");
       }
       tiffHeader.order(bo);
-      int summaryMDHeader = tiffHeader.getInt(32);
       channel.close();
       ra.close();
+      TiffFormat format = TiffFormat.fromIdentifier(tiffHeader.getShort(2));
+      if (format == null) {
+         return false;
+      }
+      int summaryMDHeader = tiffHeader.getInt(
+            format.getSummaryMDHeaderPosition());
       if (summaryMDHeader == MultipageTiffWriter.SUMMARY_MD_HEADER) {
          return true;
       }
@@ -218,53 +265,83 @@ public final class MultipageTiffReader {
    }
 
 
+   private static BinaryMetadataCodec readMetadataCodec(JSONObject summary) {
+      try {
+         return BinaryMetadataCodec.fromSummary(summary);
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Unable to read binary metadata keys; only basic image metadata will be available");
+         return null;
+      }
+   }
+
    public void finishedWriting() {
       writingFinished_ = true;
    }
 
    private void getRGBAndByteDepth(JSONObject md) {
       try {
-         String pixelType = MDUtils.getPixelType(md);
-         rgb_ = pixelType.startsWith("RGB");
-         if (pixelType.equals("RGB32") || pixelType.equals("GRAY8")) {
-            byteDepth_ = 1;
-         } else {
-            byteDepth_ = 2;
-         }
+         setPixelType(MDUtils.getPixelType(md));
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
    }
 
+   private void setPixelType(String pixelType) {
+      rgb_ = pixelType.startsWith("RGB");
+      if (pixelType.equals("RGB32") || pixelType.equals("GRAY8")) {
+         byteDepth_ = 1;
+      } else {
+         byteDepth_ = 2;
+      }
+   }
+
    public SummaryMetadata getSummaryMetadata() {
       return summaryMetadata_;
    }
 
    public DefaultImage readImage(Coords coords) {
-      if (!coordsToOffset_.containsKey(coords)) {
+      long byteOffset = coordsToOffset_.get(coords);
+      if (byteOffset == PackedCoordsOffsetMap.NO_OFFSET) {
          // Coordinates not in our map; maybe the writer hasn't finished
          // writing it?
          return null;
       }
+      return readImageAt(byteOffset);
+   }
+
+   /**
+    * Read the image whose IFD starts at the given offset in the file.
+    */
+   public DefaultImage readImageAt(long byteOffset) {
       if (fileChannel_ == null) {
          ReportingUtils.logError("Attempted to read image on FileChannel that is null");
          return null;
       }
       try {
-         long byteOffset = coordsToOffset_.get(coords);
 
          IFDData data = readIFD(byteOffset);
-         TaggedImage tagged = readTaggedImage(data);
-         // The metadata in the TaggedImage needs to be augmented with
-         // fields from the summary JSON, or else we won't be able to
-         // construct a DefaultImage from it.
-         augmentWithSummaryMetadata(tagged.tags);
+         if (data.binaryMDLength > 0 && metadataCodec_ != null) {
+            DefaultImage image = readImageWithBinaryMetadata(data);
+            if (image != null) {
+               return image;
+            }
+         }
+         JSONObject tags = readMetadata(data, true);
+         // Either a view of the mapped file, or null if we must read the
+         // pixels into the heap.
+         Buffer mappedPixels = mapPixels(data);
+         Object pixels = (mappedPixels == null) ? readPixels(data) : null;
+         // The metadata needs to be augmented with fields from the summary
+         // JSON, or else we won't be able to construct a DefaultImage from
+         // it.
+         augmentWithSummaryMetadata(tags);
          // Manually create new Metadata for the image we're about to
-         // create. Just passing the bare TaggedImage in would make
+         // create. Just passing the bare tags in would make
          // Micro-Manager assume that the image was created by the scope
          // this instance of the program is running, which has ramifications
          // for the scope data properties.
-         Metadata metadata = DefaultMetadata.legacyFromJSON(tagged.tags);
+         Metadata metadata = DefaultMetadata.legacyFromJSON(tags);
          // All keys that are part of the scope data cannot be part of
          // the user data.
          // TODO: assumes knowledge of how DefaultMetadata serializes
@@ -284,9 +361,13 @@ public final class MultipageTiffReader {
             // location for scope data or user data, so we just stuff all
             // unused tags into the userData section.
             metadata = metadata.copy().userData(
-                  MDUtils.extractUserData(tagged.tags, blockedKeys)).build();
+                  MDUtils.extractUserData(tags, blockedKeys)).build();
          }
-         return new DefaultImage(tagged, null, metadata);
+         if (mappedPixels != null) {
+            return new DefaultImage(mappedPixels, tags, null, metadata);
+         }
+         return new DefaultImage(new TaggedImage(pixels, tags), null,
+               metadata);
       }
       catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -298,6 +379,77 @@ public final class MultipageTiffReader {
       return null;
    }
 
+   /**
+    * Read an image whose metadata is in binary form, decoding the metadata
+    * directly rather than converting it to JSON and back. Returns null if
+    * the binary metadata can't be decoded, in which case the caller should
+    * fall back to the JSON metadata.
+    */
+   private DefaultImage readImageWithBinaryMetadata(IFDData data)
+         throws IOException {
+      ByteBuffer binaryBuffer = ByteBuffer.allocate((int) data.binaryMDLength);
+      fileChannel_.read(binaryBuffer, data.binaryMDOffset);
+      binaryBuffer.rewind();
+      BinaryMetadataCodec.ImageMetadata md;
+      try {
+         md = metadataCodec_.decodeImageMetadata(binaryBuffer);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Couldn't decode binary image metadata; using JSON metadata instead");
+         return null;
+      }
+      if (md.width == null || md.height == null || md.pixelType == null) {
+         // Fill in the gaps from the summary metadata.
+         JSONObject format = new JSONObject();
+         augmentWithSummaryMetadata(format);
+         try {
+            if (md.width == null) {
+               md.width = MDUtils.getWidth(format);
+            }
+            if (md.height == null) {
+               md.height = MDUtils.getHeight(format);
+            }
+            if (md.pixelType == null) {
+               md.pixelType = MDUtils.getPixelType(format);
+            }
+         }
+         catch (JSONException e) {
+            ReportingUtils.logError(e, "Couldn't determine image format; using JSON metadata instead");
+            return null;
+         }
+      }
+      if (byteDepth_ == 0) {
+         setPixelType(md.pixelType);
+      }
+      int bytesPerPixel;
+      int numComponents = 1;
+      if (md.pixelType.equals("GRAY8")) {
+         bytesPerPixel = 1;
+      }
+      else if (md.pixelType.equals("GRAY16")) {
+         bytesPerPixel = 2;
+      }
+      else if (md.pixelType.equals("RGB32")) {
+         bytesPerPixel = 4;
+         numComponents = 3;
+      }
+      else if (md.pixelType.equals("RGB64")) {
+         bytesPerPixel = 8;
+         numComponents = 3;
+      }
+      else {
+         ReportingUtils.logError("Unsupported pixel type " + md.pixelType + "; using JSON metadata instead");
+         return null;
+      }
+      Buffer mappedPixels = mapPixels(data);
+      if (mappedPixels != null) {
+         return new DefaultImage(mappedPixels, md.width, md.height,
+               bytesPerPixel, numComponents, md.coords, md.metadata);
+      }
+      return new DefaultImage(readPixels(data), md.width, md.height,
+            bytesPerPixel, numComponents, md.coords, md.metadata);
+   }
+
    /**
     * Given the metadata for a TaggedImage, augment it with fields from the
     * summary JSON that are needed for our DefaultImage class to parse the
@@ -330,16 +482,16 @@ public final class MultipageTiffReader {
       }
    }
 
-   public Set<Coords> getIndexKeys() {
+   public List<Coords> getIndexKeys() {
       if (coordsToOffset_ == null)
          return null;
-      return coordsToOffset_.keySet();
+      return coordsToOffset_.keys();
    }
 
    private JSONObject readSummaryMD() {
       try {
          ByteBuffer mdInfo = ByteBuffer.allocate(8).order(byteOrder_);
-         fileChannel_.read(mdInfo, 32);
+         fileChannel_.read(mdInfo, format_.getSummaryMDHeaderPosition());
          int header = mdInfo.getInt(0);
          int length = mdInfo.getInt(4);
 
@@ -349,7 +501,7 @@ public final class MultipageTiffReader {
          }
 
          ByteBuffer mdBuffer = ByteBuffer.allocate(length).order(byteOrder_);
-         fileChannel_.read(mdBuffer, 40);
+         fileChannel_.read(mdBuffer, format_.getSummaryMDPosition());
          JSONObject summaryMD = new JSONObject(getString(mdBuffer));
 
          return summaryMD;
@@ -377,7 +529,9 @@ public final class MultipageTiffReader {
       boolean didCreate = false;
       ByteBuffer buffer = null;
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+         long offset = readOffsetHeaderAndOffset(
+               MultipageTiffWriter.COMMENTS_OFFSET_HEADER,
+               format_.getCommentsOffsetPosition());
          ByteBuffer header = readIntoBuffer(offset, 8);
          if (header.getInt(0) != MultipageTiffWriter.COMMENTS_HEADER) {
             ReportingUtils.logError("Can't find image comments in file: " + file_.getName());
@@ -426,62 +580,67 @@ public final class MultipageTiffReader {
    }
 
    private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset) throws IOException  {
-      ByteBuffer buffer1 = readIntoBuffer(startOffset,8);
+      ByteBuffer buffer1 = readIntoBuffer(startOffset, format_.getFieldSize());
       int offsetHeader = buffer1.getInt(0);
       if ( offsetHeader != offsetHeaderVal) {
          throw new IOException("Offset header incorrect, expected: " + offsetHeaderVal +"   found: " + offsetHeader);
       }
-      return unsignInt(buffer1.getInt(4));     
+      return format_.getOffset(buffer1, 4);
    }
 
    private void readIndexMap() throws IOException, InvalidIndexMapException {
-      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, 8);
+      long offset = readOffsetHeaderAndOffset(
+            MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER,
+            format_.getIndexMapOffsetPosition());
       ByteBuffer header = readIntoBuffer(offset, 8);
       if (header.getInt(0) != MultipageTiffWriter.INDEX_MAP_HEADER) {
          throw new InvalidIndexMapException();
       }
       int numMappings = header.getInt(4);
-      coordsToOffset_ = new HashMap<Coords, Long>();
-      ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
+      int entrySize = format_.getIndexMapEntrySize();
+      coordsToOffset_ = new PackedCoordsOffsetMap();
+      ByteBuffer mapBuffer = readIntoBuffer(offset+8, entrySize*numMappings);     
       for (int i = 0; i < numMappings; i++) {
-         int channel = mapBuffer.getInt(i*20);
-         int slice = mapBuffer.getInt(i*20+4);
-         int frame = mapBuffer.getInt(i*20+8);
-         int position = mapBuffer.getInt(i*20+12);
-         long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
+         int channel = mapBuffer.getInt(i*entrySize);
+         int slice = mapBuffer.getInt(i*entrySize+4);
+         int frame = mapBuffer.getInt(i*entrySize+8);
+         int position = mapBuffer.getInt(i*entrySize+12);
+         long imageOffset = format_.getOffset(mapBuffer, i*entrySize+16);
          if (imageOffset == 0) {
             break; // end of index map reached
          }
          //If a duplicate label is read, forget about the previous one
          //if data has been intentionally overwritten, this gives the most current version
-         DefaultCoords.Builder builder = new DefaultCoords.Builder();
-         builder.channel(channel)
-               .z(slice)
-               .time(frame)
-               .stagePosition(position);
-         coordsToOffset_.put(builder.build(), imageOffset);
+         coordsToOffset_.put(channel, slice, frame, position, imageOffset);
       }
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset,2);
-      int numEntries = buff.getChar(0);
-
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      int countSize = format_.getEntryCountSize();
+      int entrySize = format_.getEntrySize();
+      ByteBuffer buff = readIntoBuffer(byteOffset, countSize);
+      int numEntries = (format_ == TiffFormat.BIG) ?
+         (int) buff.getLong(0) : buff.getChar(0);
+
+      ByteBuffer entries = readIntoBuffer(byteOffset + countSize,
+            numEntries*entrySize + format_.getOffsetSize()).order(byteOrder_);
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
-         IFDEntry entry = readDirectoryEntry(i*12, entries);
+         IFDEntry entry = readDirectoryEntry(i*entrySize, entries);
          if (entry.tag == MM_METADATA) {
             data.mdOffset = entry.value;
             data.mdLength = entry.count;
+         } else if (entry.tag == MM_BINARY_METADATA) {
+            data.binaryMDOffset = entry.value;
+            data.binaryMDLength = entry.count;
          } else if (entry.tag == STRIP_OFFSETS) {
             data.pixelOffset = entry.value;
          } else if (entry.tag == STRIP_BYTE_COUNTS) {
             data.bytesPerImage = entry.value;
          } 
       }
-      data.nextIFD = unsignInt(entries.getInt(numEntries*12));
-      data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
+      data.nextIFD = format_.getOffset(entries, numEntries*entrySize);
+      data.nextIFDOffsetLocation = byteOffset + countSize + numEntries*entrySize;
       if (data.pixelOffset == 0 || data.bytesPerImage == 0 ||
             data.mdOffset == 0 || data.mdLength == 0) {
          throw new IOException("Failed to read image from file at offset " +
@@ -500,21 +659,103 @@ public final class MultipageTiffReader {
       }
    }
 
-   private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
-      JSONObject md = new JSONObject();
-      try {
-         md = new JSONObject(getString(mdBuffer));
-      } catch (JSONException ex) {
-         ReportingUtils.logError(ex, "Couldn't convert file image metadata to JSON");
+   /**
+    * @param fullMetadata If false, and the image has binary metadata, only
+    *        the (abbreviated) JSON metadata is read, which is sufficient to
+    *        determine the image's coordinates.
+    */
+   private TaggedImage readTaggedImage(IFDData data, boolean fullMetadata) throws IOException {
+      JSONObject md = readMetadata(data, fullMetadata);
+      return new TaggedImage(readPixels(data), md);
+   }
+
+   /**
+    * Read the image metadata for the given IFD; see readTaggedImage() for
+    * the fullMetadata parameter.
+    */
+   private JSONObject readMetadata(IFDData data, boolean fullMetadata) throws IOException {
+      JSONObject md = null;
+      if (fullMetadata && data.binaryMDLength > 0 && metadataCodec_ != null) {
+         ByteBuffer binaryBuffer = ByteBuffer.allocate((int) data.binaryMDLength);
+         fileChannel_.read(binaryBuffer, data.binaryMDOffset);
+         binaryBuffer.rewind();
+         try {
+            md = metadataCodec_.decode(binaryBuffer);
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Couldn't decode binary image metadata; using JSON metadata instead");
+         }
+      }
+      if (md == null) {
+         ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
+         fileChannel_.read(mdBuffer, data.mdOffset);
+         md = new JSONObject();
+         try {
+            md = new JSONObject(getString(mdBuffer));
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex, "Couldn't convert file image metadata to JSON");
+         }
       }
 
       if (byteDepth_ == 0) {
          getRGBAndByteDepth(md);
       }
+      return md;
+   }
+
+   /**
+    * Return the pixel data for the given IFD as a read-only view of the
+    * memory-mapped file, or null if we aren't memory-mapping or the data
+    * must be reformatted (as for RGB images). Must be called after
+    * readMetadata(), which determines our pixel type.
+    */
+   private Buffer mapPixels(IFDData data) throws IOException {
+      if (!shouldMemoryMap_ || rgb_ || (byteDepth_ != 1 && byteDepth_ != 2)) {
+         return null;
+      }
+      ByteBuffer bytes = getMappedRange(data.pixelOffset, data.bytesPerImage);
+      if (byteDepth_ == 1) {
+         return bytes;
+      }
+      return bytes.asShortBuffer();
+   }
+
+   /**
+    * Return a read-only view of the given range of the file.
+    */
+   private ByteBuffer getMappedRange(long offset, long length) throws IOException {
+      if (offset + length > fileChannel_.size()) {
+         throw new IOException("Image data at " + offset + " extends past end of file");
+      }
+      long regionIndex = offset / MAPPED_REGION_SIZE;
+      long regionStart = regionIndex * MAPPED_REGION_SIZE;
+      synchronized(mappedRegions_) {
+         MappedByteBuffer region = mappedRegions_.get(regionIndex);
+         if (region == null) {
+            long regionLength = Math.min(
+                  MAPPED_REGION_SIZE + MAPPED_REGION_OVERLAP,
+                  fileChannel_.size() - regionStart);
+            region = fileChannel_.map(FileChannel.MapMode.READ_ONLY,
+                  regionStart, regionLength);
+            mappedRegions_.put(regionIndex, region);
+         }
+         if (offset + length <= regionStart + region.capacity()) {
+            ByteBuffer result = region.duplicate();
+            result.position((int) (offset - regionStart));
+            result.limit((int) (offset - regionStart + length));
+            return result.slice().order(byteOrder_);
+         }
+      }
+      return fileChannel_.map(FileChannel.MapMode.READ_ONLY, offset, length)
+         .order(byteOrder_);
+   }
+
+   /**
+    * Read the pixel data for the given IFD into a new array.
+    */
+   private Object readPixels(IFDData data) throws IOException {
+      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
+      fileChannel_.read(pixelBuffer, data.pixelOffset);
 
       if (rgb_) {
          if (byteDepth_ == 1) {
@@ -528,7 +769,7 @@ public final class MultipageTiffReader {
                   i++;
                }
             }
-            return new TaggedImage(pixels, md);
+            return pixels;
          } else {
              short[] pixels = new short[(int) (2 * (data.bytesPerImage/3))];
             int i = 0;           
@@ -540,22 +781,25 @@ public final class MultipageTiffReader {
                   i++;
                }
             }
-            return new TaggedImage(pixels, md);
+            return pixels;
          }
       } else {
          if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
+            return pixelBuffer.array();
          } else {
             short[] pix = new short[pixelBuffer.capacity()/2];
             for (int i = 0; i < pix.length; i++ ) {
                pix[i] = pixelBuffer.getShort(i*2);
             }
-            return new TaggedImage(pix, md);
+            return pix;
          }
       }
    }
 
    private IFDEntry readDirectoryEntry(int offset, ByteBuffer buffer) throws IOException {
+      if (format_ == TiffFormat.BIG) {
+         return readBigTiffDirectoryEntry(offset, buffer);
+      }
       char tag =  buffer.getChar(offset); 
       char type = buffer.getChar(offset + 2);
       long count = unsignInt( buffer.getInt(offset + 4) );
@@ -568,9 +812,24 @@ public final class MultipageTiffReader {
       return (new IFDEntry(tag,type,count,value));
    }
 
+   private IFDEntry readBigTiffDirectoryEntry(int offset, ByteBuffer buffer) {
+      char tag = buffer.getChar(offset);
+      char type = buffer.getChar(offset + 2);
+      long count = buffer.getLong(offset + 4);
+      long value;
+      if (type == 3 && count == 1) {
+         value = buffer.getChar(offset + 12);
+      } else if (type == 4 && count == 1) {
+         value = unsignInt(buffer.getInt(offset + 12));
+      } else {
+         value = buffer.getLong(offset + 12);
+      }
+      return new IFDEntry(tag, type, count, value);
+   }
+
    //returns byteoffset of first IFD
    private long readHeader() throws IOException {           
-      ByteBuffer tiffHeader = ByteBuffer.allocate(8);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(16);
       fileChannel_.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
       if (zeroOne == 0x4949 ) {
@@ -582,9 +841,16 @@ public final class MultipageTiffReader {
       }
       tiffHeader.order( byteOrder_ );  
       short twoThree = tiffHeader.getShort(2);
-      if (twoThree != 42) {
+      format_ = TiffFormat.fromIdentifier(twoThree);
+      if (format_ == null) {
          throw new IOException("Tiff identifier code incorrect");
       }
+      if (format_ == TiffFormat.BIG) {
+         if (tiffHeader.getShort(4) != 8) {
+            throw new IOException("Unsupported BigTIFF offset size " + tiffHeader.getShort(4));
+         }
+         return tiffHeader.getLong(8);
+      }
       return unsignInt(tiffHeader.getInt(4));
    }
 
@@ -603,6 +869,14 @@ public final class MultipageTiffReader {
    }
 
    public void close() throws IOException {
+      // Drop our references so that regions no image uses can be
+      // unmapped. Regions that images still view remain valid (and keep
+      // the file mapped) until those images are garbage-collected, which
+      // is why StorageMultipageTiff does not map files on Windows, where
+      // mapped files can't be deleted or renamed.
+      synchronized(mappedRegions_) {
+         mappedRegions_.clear();
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -627,7 +901,7 @@ public final class MultipageTiffReader {
    // the ImageDescription tag location
    private void fixIndexMap(long firstIFD, String fileName) throws IOException {
       long filePosition = firstIFD;
-      coordsToOffset_ = new HashMap<Coords, Long>();
+      coordsToOffset_ = new PackedCoordsOffsetMap();
       long progBarMax = (fileChannel_.size() / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
@@ -642,14 +916,15 @@ public final class MultipageTiffReader {
             if (data.nextIFD == 0) {
                break;
             }
-            TaggedImage ti = readTaggedImage(data);
+            // The JSON metadata is enough to determine coordinates.
+            TaggedImage ti = readTaggedImage(data, false);
             if (ti.tags == null || ti.tags.length() == 0) {  //Blank placeholder image, dont add to index map
                filePosition = data.nextIFD;
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            coordsToOffset_.put(DefaultCoords.legacyFromJSON(ti.tags),
-                  filePosition);
+            Coords coords = DefaultCoords.legacyFromJSON(ti.tags);
+            coordsToOffset_.put(coords, filePosition);
 
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
@@ -672,8 +947,8 @@ public final class MultipageTiffReader {
 
       filePosition += writeIndexMap(filePosition);
 
-      ByteBuffer buffer = ByteBuffer.allocate(4).order(byteOrder_);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = ByteBuffer.allocate(format_.getOffsetSize()).order(byteOrder_);
+      format_.putOffset(buffer, 0, 0);
       fileChannel_.write(buffer, nextIFDOffsetLocation); 
 
       filePosition += writeDisplaySettings(
@@ -696,43 +971,46 @@ public final class MultipageTiffReader {
       fileChannel_.write(header, filePosition);
       fileChannel_.write(buffer, filePosition + 8);
 
-      ByteBuffer offsetHeader = ByteBuffer.allocate(8).order(MultipageTiffWriter.BYTE_ORDER);
+      ByteBuffer offsetHeader = ByteBuffer.allocate(format_.getFieldSize()).order(MultipageTiffWriter.BYTE_ORDER);
       offsetHeader.putInt(0, MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition);
-      fileChannel_.write(offsetHeader, 16);
+      format_.putOffset(offsetHeader, 4, filePosition);
+      fileChannel_.write(offsetHeader, format_.getDisplaySettingsOffsetPosition());
       return numReservedBytes + 8;
    }
 
    private int writeIndexMap(long filePosition) throws IOException {
       // TODO: this method presumes only four axes exist.
-      //Write 4 byte header, 4 byte number of entries, and 20 bytes for each
-      //entry
+      //Write 4 byte header, 4 byte number of entries, and 20 bytes (24 for
+      //BigTIFF) for each entry
       int numMappings = coordsToOffset_.size();
-      ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(byteOrder_);
+      int entrySize = format_.getIndexMapEntrySize();
+      ByteBuffer buffer = ByteBuffer.allocate(8 + entrySize * numMappings).order(byteOrder_);
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
-      for (Coords coords : coordsToOffset_.keySet()) {
-         for (String axis : ALLOWED_AXES) {
-            buffer.putInt(4 * position, coords.getIndex(axis));
-            position++;
-         }
-         // TODO: this probably doesn't help our performance any, but I want
-         // the extra logging just in case.
-         for (String axis : coords.getAxes()) {
-            if (!ALLOWED_AXES.contains(axis)) {
-               ReportingUtils.logError("Axis " + axis + " is ignored because it is not one of " + ALLOWED_AXES.toString());
-            }
-         }
-         buffer.putInt(4 * position, coordsToOffset_.get(coords).intValue());
-         position++;
+      int position = 8;
+      // Axes are written in the order of ALLOWED_AXES.
+      for (long packed : coordsToOffset_.getPackedKeys()) {
+         buffer.putInt(position, PackedCoords.getChannel(packed));
+         buffer.putInt(position + 4, PackedCoords.getZ(packed));
+         buffer.putInt(position + 8, PackedCoords.getTime(packed));
+         buffer.putInt(position + 12, PackedCoords.getStagePosition(packed));
+         format_.putOffset(buffer, position + 16, coordsToOffset_.get(packed));
+         position += entrySize;
+      }
+      for (Coords coords : coordsToOffset_.getUnpackableKeys()) {
+         buffer.putInt(position, coords.getChannel());
+         buffer.putInt(position + 4, coords.getZ());
+         buffer.putInt(position + 8, coords.getTime());
+         buffer.putInt(position + 12, coords.getStagePosition());
+         format_.putOffset(buffer, position + 16, coordsToOffset_.get(coords));
+         position += entrySize;
       }
       fileChannel_.write(buffer, filePosition);
 
-      ByteBuffer header = ByteBuffer.allocate(8).order(byteOrder_);
+      ByteBuffer header = ByteBuffer.allocate(format_.getFieldSize()).order(byteOrder_);
       header.putInt(0, MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER);
-      header.putInt(4, (int) filePosition);
-      fileChannel_.write(header, 8);
+      format_.putOffset(header, 4, filePosition);
+      fileChannel_.write(header, format_.getIndexMapOffsetPosition());
       return buffer.capacity();
    }
 
@@ -741,6 +1019,8 @@ public final class MultipageTiffReader {
       public long bytesPerImage;
       public long mdOffset;
       public long mdLength;
+      public long binaryMDOffset;
+      public long binaryMDLength;
       public long nextIFD;
       public long nextIFDOffsetLocation;
 
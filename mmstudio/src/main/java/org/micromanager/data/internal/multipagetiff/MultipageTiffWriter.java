@@ -34,10 +34,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -50,6 +48,8 @@ import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.data.internal.DefaultCoords;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PackedCoords;
+import org.micromanager.data.internal.PackedCoordsOffsetMap;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplayWindow;
@@ -63,6 +63,8 @@ import org.micromanager.internal.utils.ReportingUtils;
 public final class MultipageTiffWriter {
 
    private static final long BYTES_PER_GIG = 1073741824;
+   // Maximum file size for classic TIFF files; BigTIFF files have no limit.
+   // We also never preallocate more than this much space.
    private static final long MAX_FILE_SIZE = 4 * BYTES_PER_GIG;
    public static final int DISPLAY_SETTINGS_BYTES_PER_CHANNEL = 256;
    //1 MB for now...might have to increase
@@ -92,21 +94,44 @@ public final class MultipageTiffWriter {
    public static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
    public static final char IJ_METADATA = TiffDecoder.META_DATA;
    public static final char MM_METADATA = 51123;
+   // Per-image metadata in the format of BinaryMetadataCodec; only present
+   // if the file was written with binary metadata enabled.
+   public static final char MM_BINARY_METADATA = 51124;
    
    public static final int SUMMARY_MD_HEADER = 2355492;
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
+
+   // Callers of writeImage() block while the writing queue is longer than
+   // this, so that a slow disk applies back-pressure to the acquisition
+   // instead of letting queued pixel buffers pile up in memory.
+   private static final int MAX_QUEUED_WRITES = 20;
+
+   // When writing binary metadata, these are the only keys that are also
+   // written as JSON text in the MM_METADATA tag, so that older readers can
+   // still index and display the images.
+   private static final String[] LEGACY_METADATA_KEYS = new String[] {
+      "ChannelIndex", "SliceIndex", "FrameIndex", "PositionIndex", "Width",
+      "Height", "PixelType", "completeCoords", "FileName"};
    
    private StorageMultipageTiff masterStorage_;
+   private TiffFormat format_;
+   private String filename_;
+   // Null unless we are writing binary metadata.
+   private BinaryMetadataCodec metadataCodec_;
+   // Largest amount of per-image metadata written so far, used to estimate
+   // space requirements when writing binary metadata.
+   private int maxMetadataLength_ = 0;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
    private ThreadPoolExecutor writingExecutor_;
+   private WriteBufferPool bufferPool_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
    private int bufferPosition_;
    private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<Coords, Long> coordsToOffset_;
+   private PackedCoordsOffsetMap coordsToOffset_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
@@ -122,10 +147,21 @@ public final class MultipageTiffWriter {
    private MultipageTiffReader reader_;
    private long blankPixelsOffset_ = -1;
    
+   /**
+    * @param writingExecutor Executor that performs all file I/O for this
+    *        writer; shared among all writers in the same FileSet.
+    * @param bufferPool Pool of pixel buffers to draw from; shared among all
+    *        writers that use the same writingExecutor.
+    */
    public MultipageTiffWriter(StorageMultipageTiff masterStorage,
-         JSONObject firstImageTags, String filename)
+         JSONObject firstImageTags, String filename,
+         ThreadPoolExecutor writingExecutor, WriteBufferPool bufferPool)
          throws IOException {
       masterStorage_ = masterStorage;
+      writingExecutor_ = writingExecutor;
+      bufferPool_ = bufferPool;
+      format_ = masterStorage.getTiffFormat();
+      filename_ = filename;
       // TODO: casting to DefaultSummaryMetadata here.
       DefaultSummaryMetadata summary = (DefaultSummaryMetadata) masterStorage.getSummaryMetadata();
       File f = new File(masterStorage.getDiskLocation() + "/" + filename);
@@ -151,8 +187,21 @@ public final class MultipageTiffWriter {
             (DefaultImage) masterStorage_.getAnyImage());
       augmentWithDisplaySettings(summaryJSON,
             DefaultDisplaySettings.getStandardSettings(DefaultDisplayWindow.DEFAULT_SETTINGS_KEY));
+      if (masterStorage.getUsesBinaryMetadata()) {
+         // FileSet adds the filename to each image's tags after creating
+         // the writer.
+         metadataCodec_ = BinaryMetadataCodec.forTags(firstImageTags,
+               "FileName");
+         try {
+            metadataCodec_.addToSummary(summaryJSON);
+         }
+         catch (JSONException e) {
+            ReportingUtils.logError(e, "Unable to store binary metadata keys; falling back to JSON metadata");
+            metadataCodec_ = null;
+         }
+      }
       reader_ = new MultipageTiffReader(masterStorage_, summary, summaryJSON,
-            firstImageTags);
+            firstImageTags, format_);
 
       //This is an overestimate of file size because file gets truncated at end
       long fileSize = Math.min(MAX_FILE_SIZE,
@@ -175,8 +224,7 @@ public final class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterStorage_.getWritingExecutor();
-      coordsToOffset_ = new HashMap<Coords, Long>();
+      coordsToOffset_ = new PackedCoordsOffsetMap();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(coordsToOffset_);
       buffers_ = new LinkedList<ByteBuffer>();
@@ -224,80 +272,10 @@ public final class MultipageTiffWriter {
       }
    }
 
-   //
-   // Buffer allocation and recycling
-   //
-
-   // The idea here is to recycle the direct buffers for image pixels, because
-   // allocation is slow. It is expected that we do not need a large pool,
-   // because the only aim is to avoid situations where allocation is limiting
-   // at steady state. If writing is, on average, faster than incoming images,
-   // the pool should always have a buffer ready for a new request.
-   // Ideally we would also evict unused buffers after a timeout, so as not to
-   // leak memory after writing has concluded.
-
-   private static final int BUFFER_DIRECT_THRESHOLD = 1024;
    private static ByteBuffer allocateByteBuffer(int capacity) {
-      ByteBuffer b = capacity >= BUFFER_DIRECT_THRESHOLD ?
-            ByteBuffer.allocateDirect(capacity) :
-            ByteBuffer.allocate(capacity);
-      return b.order(BYTE_ORDER);
-   }
-
-   private static final int BUFFER_POOL_SIZE =
-         System.getProperty("sun.arch.data.model").equals("32") ? 0 : 3;
-   private static final Deque<ByteBuffer> pooledBuffers_;
-   static {
-      if (BUFFER_POOL_SIZE > 0) {
-         pooledBuffers_ = new ArrayDeque<ByteBuffer>(BUFFER_POOL_SIZE);
-      }
-      else {
-         pooledBuffers_ = null;
-      }
-   }
-   private static int pooledBufferCapacity_ = 0;
-
-   private static ByteBuffer getLargeBuffer(int capacity) {
-      if (BUFFER_POOL_SIZE == 0) {
-         return allocateByteBuffer(capacity);
-      }
-
-      synchronized (MultipageTiffWriter.class) {
-         if (capacity != pooledBufferCapacity_) {
-            pooledBuffers_.clear();
-            pooledBufferCapacity_ = capacity;
-         }
-
-         // Recycle in LIFO order (smaller images may still be in L3 cache)
-         ByteBuffer b = pooledBuffers_.pollFirst();
-         if (b != null) {
-            // Ensure correct byte order in case recycled from other source
-            b.order(BYTE_ORDER).clear();
-            return b;
-         }
-      }
-      return allocateByteBuffer(capacity);
+      return WriteBufferPool.allocateByteBuffer(capacity);
    }
 
-   private static void tryRecycleLargeBuffer(ByteBuffer b) {
-      // Keep up to BUFFER_POOL_SIZE direct buffers of the current size
-      if (BUFFER_POOL_SIZE == 0 || !b.isDirect()) {
-         return;
-      }
-      synchronized (MultipageTiffWriter.class) {
-         if (b.capacity() == pooledBufferCapacity_) {
-            if (pooledBuffers_.size() == BUFFER_POOL_SIZE) {
-               pooledBuffers_.removeLast(); // Discard oldest
-            }
-            pooledBuffers_.addFirst(b);
-         }
-      }
-   }
-
-   //
-   //
-   //
-
    private void executeWritingTask(Runnable writingTask) {
       writingExecutor_.execute(writingTask);
    }
@@ -313,7 +291,7 @@ public final class MultipageTiffWriter {
             catch (IOException e) {
                ReportingUtils.logError(e);
             }
-            tryRecycleLargeBuffer(buffer);
+            bufferPool_.tryRecycleLargeBuffer(buffer);
          }
       });
    }
@@ -329,7 +307,7 @@ public final class MultipageTiffWriter {
                ReportingUtils.logError(e);
             }
             for (ByteBuffer buffer : buffers) {
-               tryRecycleLargeBuffer(buffer);
+               bufferPool_.tryRecycleLargeBuffer(buffer);
             }
          }
       });
@@ -339,7 +317,14 @@ public final class MultipageTiffWriter {
       return reader_;
    }
    
-   public HashMap<Coords, Long> getIndexMap() {
+   /**
+    * Return the name of our file, relative to the storage's directory.
+    */
+   public String getFilename() {
+      return filename_;
+   }
+
+   public PackedCoordsOffsetMap getIndexMap() {
       return coordsToOffset_;
    }
    
@@ -350,6 +335,10 @@ public final class MultipageTiffWriter {
       }
       byte[] summaryMDBytes = getBytesFromString(summaryMD.toString());
       int mdLength = summaryMDBytes.length;
+      if (format_ == TiffFormat.BIG) {
+         writeBigTiffHeaderAndSummaryMD(summaryMDBytes);
+         return;
+      }
       //20 bytes plus 8 header for index map
       long maxImagesInFile = MAX_FILE_SIZE / bytesPerImagePixels_;
       long indexMapSpace = 8 + 20 * maxImagesInFile;
@@ -389,6 +378,100 @@ public final class MultipageTiffWriter {
       fileChannelWrite(buffers);
       filePosition_ += headerBuffer.capacity() + mdLength +indexMapSpace;
    }
+
+   /**
+    * BigTIFF files have no size limit, so we can't reserve space for the
+    * index map up front; instead it is written after the last image, in
+    * finish(). Until then the index map offset is 0, so an unfinished file
+    * will be detected as needing its index map fixed.
+    */
+   private void writeBigTiffHeaderAndSummaryMD(byte[] summaryMDBytes) {
+      int mdLength = summaryMDBytes.length;
+      int headerLength = format_.getSummaryMDPosition();
+      ByteBuffer headerBuffer = allocateByteBuffer(headerLength);
+      //16 bytes for file header: byte order, identifier, offset size,
+      //reserved, first IFD offset
+      if (BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN)) {
+         headerBuffer.putChar(0, (char) 0x4d4d);
+      } else {
+         headerBuffer.putChar(0, (char) 0x4949);
+      }
+      headerBuffer.putChar(2, (char) format_.getIdentifier());
+      headerBuffer.putChar(4, (char) format_.getOffsetSize());
+      headerBuffer.putChar(6, (char) 0);
+      headerBuffer.putLong(8, headerLength + mdLength);
+
+      headerBuffer.putInt(format_.getIndexMapOffsetPosition(),
+            INDEX_MAP_OFFSET_HEADER);
+      // Display settings and comments offsets are written later.
+      headerBuffer.putInt(format_.getSummaryMDHeaderPosition(),
+            SUMMARY_MD_HEADER);
+      headerBuffer.putInt(format_.getSummaryMDHeaderPosition() + 4, mdLength);
+
+      ByteBuffer[] buffers = new ByteBuffer[2];
+      buffers[0] = headerBuffer;
+      buffers[1] = ByteBuffer.wrap(summaryMDBytes);
+      fileChannelWrite(buffers);
+      filePosition_ += headerLength + mdLength;
+   }
+
+   /**
+    * Write the complete index map at the current file position, and point
+    * the header at it. Only used for BigTIFF files.
+    */
+   private void writeIndexMapAtEnd() {
+      long[] keys = coordsToOffset_.getPackedKeys();
+      List<Coords> unpackable = coordsToOffset_.getUnpackableKeys();
+      int numEntries = keys.length + unpackable.size();
+      int entrySize = format_.getIndexMapEntrySize();
+      ByteBuffer buffer = allocateByteBuffer(8 + entrySize * numEntries);
+      buffer.putInt(0, INDEX_MAP_HEADER);
+      buffer.putInt(4, numEntries);
+      int position = 8;
+      // Axes are written in the order of MultipageTiffReader.ALLOWED_AXES.
+      for (long packed : keys) {
+         buffer.putInt(position, PackedCoords.getChannel(packed));
+         buffer.putInt(position + 4, PackedCoords.getZ(packed));
+         buffer.putInt(position + 8, PackedCoords.getTime(packed));
+         buffer.putInt(position + 12, PackedCoords.getStagePosition(packed));
+         format_.putOffset(buffer, position + 16, coordsToOffset_.get(packed));
+         position += entrySize;
+      }
+      for (Coords coords : unpackable) {
+         buffer.putInt(position, coords.getChannel());
+         buffer.putInt(position + 4, coords.getZ());
+         buffer.putInt(position + 8, coords.getTime());
+         buffer.putInt(position + 12, coords.getStagePosition());
+         format_.putOffset(buffer, position + 16, coordsToOffset_.get(coords));
+         position += entrySize;
+      }
+      fileChannelWrite(buffer, filePosition_);
+      writeHeaderField(INDEX_MAP_OFFSET_HEADER, filePosition_,
+            format_.getIndexMapOffsetPosition());
+      filePosition_ += buffer.capacity();
+   }
+
+   /**
+    * Write one of our header fields: an identifying value followed by an
+    * offset.
+    */
+   private void writeHeaderField(int header, long offset, long position) {
+      ByteBuffer buffer = allocateByteBuffer(format_.getFieldSize());
+      buffer.putInt(0, header);
+      format_.putOffset(buffer, 4, offset);
+      fileChannelWrite(buffer, position);
+   }
+
+   /**
+    * Fill in the count and value (offset) of an IFD entry that was written
+    * earlier as a placeholder.
+    */
+   private void updateIFDEntry(long entryPosition, long count, long offset) {
+      ByteBuffer buffer = allocateByteBuffer(2 * format_.getOffsetSize());
+      format_.putOffset(buffer, 0, count);
+      format_.putOffset(buffer, format_.getOffsetSize(), offset);
+      fileChannelWrite(buffer, entryPosition + 4);
+   }
    
    /**
     * Called when there is no more data to be written. Write null offset after
@@ -399,6 +482,10 @@ public final class MultipageTiffWriter {
     */
    public void finish() throws IOException {
       writeNullOffsetAfterLastImage();
+      if (format_ == TiffFormat.BIG) {
+         writeIndexMapAtEnd();
+         return;
+      }
       // go back to the index map header and change the number of entries from
       // the max value allotted early to the actual number written The
       // MultipageTiffReader no longer needs this because it interperets 0's as
@@ -451,6 +538,9 @@ public final class MultipageTiffWriter {
    }
    
    public boolean hasSpaceForFullOMEMetadata(int length) {
+      if (format_ == TiffFormat.BIG) {
+         return true;
+      }
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
       long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
@@ -461,7 +551,13 @@ public final class MultipageTiffWriter {
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+      if (format_ == TiffFormat.BIG) {
+         return true;
+      }
+      // Avoid serializing the metadata just to measure it if we're going to
+      // encode it as binary anyway.
+      int mdLength = (metadataCodec_ != null) ? 2 * maxMetadataLength_ :
+         img.tags.toString().length();
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
@@ -488,9 +584,10 @@ public final class MultipageTiffWriter {
       if (writingExecutor_ != null) {
          int queueSize = writingExecutor_.getQueue().size();
          int attemptCount = 0;
-         while (queueSize > 20) {
+         while (queueSize > MAX_QUEUED_WRITES) {
             if (attemptCount == 0) {
                ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
+               masterStorage_.reportWritingBacklog(queueSize);
             }
             ++attemptCount;
             try {
@@ -500,6 +597,9 @@ public final class MultipageTiffWriter {
                ReportingUtils.logError(ex);
             }
          }
+         if (attemptCount > 0) {
+            masterStorage_.reportWritingBacklog(0);
+         }
       }
       long offset = filePosition_;
       writeIFD(img);
@@ -516,6 +616,10 @@ public final class MultipageTiffWriter {
       //If a duplicate key is received, forget about the previous one
       //this allows overwriting of images without loss of data
       coordsToOffset_.put(coords, offset);
+      if (format_ == TiffFormat.BIG) {
+         // The index map is written in its entirety by finish().
+         return;
+      }
       ByteBuffer buffer = allocateByteBuffer(20);
       int bufOffset = 0;
       for (String axis : MultipageTiffReader.ALLOWED_AXES) {
@@ -556,31 +660,38 @@ public final class MultipageTiffWriter {
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
+      byte[] binaryMDBytes = getBinaryMetadataBytes(img.tags);
+      JSONObject jsonTags = img.tags;
+      if (binaryMDBytes != null) {
+         numEntries++;
+         jsonTags = getLegacyTags(img.tags);
+      }
+      byte[] mdBytes = getBytesFromString(jsonTags.toString() + " ");
       // Null-terminate buffer.
       mdBytes[mdBytes.length - 1] = 0;
+      int binaryMDLength = (binaryMDBytes == null) ? 0 : binaryMDBytes.length;
+      maxMetadataLength_ = Math.max(maxMetadataLength_,
+            mdBytes.length + binaryMDLength);
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     //(BigTIFF: 8 bytes for number of entries, 20 per entry, 8 byte offset,
+     //and bits per sample and resolution are stored in the entries)
+     int IFDandBitDepthBytes = format_.getIFDSize(numEntries) + getExtraBitDepthBytes();
+     int totalBytes = IFDandBitDepthBytes + getExtraResolutionBytes() + mdBytes.length + binaryMDLength + bytesPerImagePixels_;
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + format_.getIFDSize(numEntries);
+     nextIFDOffsetLocation_ = filePosition_ + format_.getEntryCountSize() + numEntries * format_.getEntrySize();
      
      bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
+      writeNumEntries(ifdBuffer, numEntries);
       writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
       writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
+      tagDataOffset += writeBitsPerSampleEntry(ifdBuffer, charView, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
@@ -591,15 +702,12 @@ public final class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
-      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, tagDataOffset );
+      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,getOffsetType(),1, tagDataOffset );
       tagDataOffset += bytesPerImagePixels_;
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
       writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
       writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
+      tagDataOffset += writeResolutionEntries(ifdBuffer, charView, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
@@ -609,25 +717,78 @@ public final class MultipageTiffWriter {
       }
       writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
       tagDataOffset += mdBytes.length;
+      if (binaryMDBytes != null) {
+         writeIFDEntry(ifdBuffer,charView,MM_BINARY_METADATA,(char)7,binaryMDLength,tagDataOffset);
+         tagDataOffset += binaryMDLength;
+      }
       //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
+      format_.putOffset(ifdBuffer, bufferPosition_, tagDataOffset);
+      bufferPosition_ += format_.getOffsetSize();
       
-      if (rgb_) {
+      if (getExtraBitDepthBytes() > 0) {
          charView.put(bufferPosition_/2,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
       buffers_.add(ifdBuffer);
       buffers_.add(getPixelBuffer(img.pix));
-      buffers_.add(getResolutionValuesBuffer());   
+      if (getExtraResolutionBytes() > 0) {
+         buffers_.add(getResolutionValuesBuffer());
+      }
       buffers_.add(ByteBuffer.wrap(mdBytes));
+      if (binaryMDBytes != null) {
+         buffers_.add(ByteBuffer.wrap(binaryMDBytes));
+      }
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
 
+   /**
+    * Encode the given tags with our BinaryMetadataCodec. Returns null if
+    * we aren't writing binary metadata, or if encoding fails, in which case
+    * the full JSON metadata should be written instead.
+    */
+   private byte[] getBinaryMetadataBytes(JSONObject tags) {
+      if (metadataCodec_ == null) {
+         return null;
+      }
+      try {
+         return metadataCodec_.encode(tags);
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Unable to encode binary metadata; writing JSON instead");
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to encode binary metadata; writing JSON instead");
+      }
+      return null;
+   }
+
+   /**
+    * Return the subset of the given tags that we write as JSON when also
+    * writing binary metadata.
+    */
+   private JSONObject getLegacyTags(JSONObject tags) {
+      JSONObject result = new JSONObject();
+      for (String key : LEGACY_METADATA_KEYS) {
+         if (tags.has(key)) {
+            try {
+               result.put(key, tags.get(key));
+            }
+            catch (JSONException e) {
+               ReportingUtils.logError(e, "Unable to copy metadata key " + key);
+            }
+         }
+      }
+      return result;
+   }
+
    private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
+      if (format_ == TiffFormat.BIG) {
+         writeBigTiffIFDEntry(buffer, cBuffer, tag, type, count, value);
+         return;
+      }
       cBuffer.put(bufferPosition_ / 2, tag);
       cBuffer.put(bufferPosition_ / 2 + 1, type);
       buffer.putInt(bufferPosition_ + 4, (int) count);
@@ -640,6 +801,93 @@ public final class MultipageTiffWriter {
       bufferPosition_ += 12;
    }
 
+   /**
+    * BigTIFF entries have an 8-byte count and an 8-byte value field; values
+    * smaller than that are left-justified in the field.
+    */
+   private void writeBigTiffIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) {
+      cBuffer.put(bufferPosition_ / 2, tag);
+      cBuffer.put(bufferPosition_ / 2 + 1, type);
+      buffer.putLong(bufferPosition_ + 4, count);
+      if (type == 3 && count == 1) {
+         buffer.putChar(bufferPosition_ + 12, (char) value);
+      } else if (type == 4 && count == 1) {
+         buffer.putInt(bufferPosition_ + 12, (int) value);
+      } else {
+         buffer.putLong(bufferPosition_ + 12, value);
+      }
+      bufferPosition_ += 20;
+   }
+
+   private void writeNumEntries(ByteBuffer buffer, char numEntries) {
+      if (format_ == TiffFormat.BIG) {
+         buffer.putLong(bufferPosition_, numEntries);
+      }
+      else {
+         buffer.putChar(bufferPosition_, numEntries);
+      }
+      bufferPosition_ += format_.getEntryCountSize();
+   }
+
+   /** TIFF type to use for offsets: LONG or (BigTIFF) LONG8. */
+   private char getOffsetType() {
+      return (char) (format_ == TiffFormat.BIG ? 16 : 4);
+   }
+
+   /**
+    * Bytes needed after the IFD for RGB bits-per-sample values; BigTIFF can
+    * fit them in the entry.
+    */
+   private int getExtraBitDepthBytes() {
+      return (rgb_ && format_ == TiffFormat.CLASSIC) ? 6 : 0;
+   }
+
+   /**
+    * Bytes needed after the pixels for the X/Y resolution rationals; BigTIFF
+    * can fit them in the entries.
+    */
+   private int getExtraResolutionBytes() {
+      return format_ == TiffFormat.CLASSIC ? 16 : 0;
+   }
+
+   /**
+    * @return the number of bytes of tag data the entry refers to.
+    */
+   private int writeBitsPerSampleEntry(ByteBuffer buffer, CharBuffer cBuffer, long tagDataOffset) throws IOException {
+      if (!rgb_) {
+         writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 1, byteDepth_ * 8);
+         return 0;
+      }
+      if (format_ == TiffFormat.CLASSIC) {
+         writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 3, tagDataOffset);
+         return 6;
+      }
+      int valuePosition = bufferPosition_ + 12;
+      writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 3, 0);
+      for (int i = 0; i < 3; ++i) {
+         buffer.putChar(valuePosition + 2 * i, (char) (byteDepth_ * 8));
+      }
+      return 0;
+   }
+
+   /**
+    * @return the number of bytes of tag data the entries refer to.
+    */
+   private int writeResolutionEntries(ByteBuffer buffer, CharBuffer cBuffer, long tagDataOffset) throws IOException {
+      if (format_ == TiffFormat.CLASSIC) {
+         writeIFDEntry(buffer,cBuffer,X_RESOLUTION, (char)5, 1, tagDataOffset);
+         writeIFDEntry(buffer,cBuffer,Y_RESOLUTION, (char)5, 1, tagDataOffset + 8);
+         return 16;
+      }
+      for (char tag : new char[] {X_RESOLUTION, Y_RESOLUTION}) {
+         int valuePosition = bufferPosition_ + 12;
+         writeIFDEntry(buffer, cBuffer, tag, (char) 5, 1, 0);
+         buffer.putInt(valuePosition, (int) resNumerator_);
+         buffer.putInt(valuePosition + 4, (int) resDenomenator_);
+      }
+      return 0;
+   }
+
    private ByteBuffer getResolutionValuesBuffer() throws IOException {
       ByteBuffer buffer = allocateByteBuffer(16);
       buffer.putInt(0,(int)resNumerator_);
@@ -691,7 +939,7 @@ public final class MultipageTiffWriter {
                   count++;
                }
             }
-            ByteBuffer buffer = getLargeBuffer(rgbaPix.length * 2);
+            ByteBuffer buffer = bufferPool_.getLargeBuffer(rgbaPix.length * 2);
             buffer.asShortBuffer().put(rgbaPix);
             return buffer;
          }
@@ -700,7 +948,7 @@ public final class MultipageTiffWriter {
             return ByteBuffer.wrap((byte[]) pixels);
          } else {
             short[] pix = (short[]) pixels;
-            ByteBuffer buffer = getLargeBuffer(pix.length * 2);
+            ByteBuffer buffer = bufferPool_.getLargeBuffer(pix.length * 2);
             buffer.asShortBuffer().put(pix);
             return buffer;
          }
@@ -785,10 +1033,7 @@ public final class MultipageTiffWriter {
 
       //Header (1) File info (1) display ranges (1) LUTS (1 per channel)
       int numMDEntries = 3 + numChannels;
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, numMDEntries);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataCountsTagPosition_ + 4);
+      updateIFDEntry(ijMetadataCountsTagPosition_, numMDEntries, filePosition_);
 
       fileChannelWrite(mdByteCountsBuffer, filePosition_);
       filePosition_ += mdByteCountsBufferSize;
@@ -860,10 +1105,7 @@ public final class MultipageTiffWriter {
          }
       }
 
-      ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, mdBufferSize);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataTagPosition_ + 4);
+      updateIFDEntry(ijMetadataTagPosition_, mdBufferSize, filePosition_);
 
       fileChannelWrite(mdBuffer, filePosition_);
       filePosition_ += mdBufferSize;
@@ -919,10 +1161,7 @@ public final class MultipageTiffWriter {
       // Null-terminate string
       bytes[bytes.length - 1] = 0;
       //write first image IFD
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, bytes.length);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
+      updateIFDEntry(imageDescriptionTagOffset, bytes.length, filePosition_);
 
       //write String
       fileChannelWrite(ByteBuffer.wrap(bytes), filePosition_);
@@ -939,8 +1178,8 @@ public final class MultipageTiffWriter {
    }
 
    private void writeNullOffsetAfterLastImage() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(4);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = allocateByteBuffer(format_.getOffsetSize());
+      format_.putOffset(buffer, 0, 0);
       fileChannelWrite(buffer, nextIFDOffsetLocation_);
    }
 
@@ -974,10 +1213,8 @@ public final class MultipageTiffWriter {
          fileChannelWrite(header, filePosition_);
          fileChannelWrite(buffer, filePosition_ + 8);
 
-         ByteBuffer offsetHeader = allocateByteBuffer(8);
-         offsetHeader.putInt(0, COMMENTS_OFFSET_HEADER);
-         offsetHeader.putInt(4, (int) filePosition_);
-         fileChannelWrite(offsetHeader, 24);
+         writeHeaderField(COMMENTS_OFFSET_HEADER, filePosition_,
+               format_.getCommentsOffsetPosition());
          filePosition_ += 8 + commentsBytes.length;
       }
       catch (JSONException e) {
@@ -998,10 +1235,8 @@ public final class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 16);
+      writeHeaderField(DISPLAY_SETTINGS_OFFSET_HEADER, filePosition_,
+            format_.getDisplaySettingsOffsetPosition());
       filePosition_ += numReservedBytes + 8;
    }
   
@@ -1012,30 +1247,30 @@ public final class MultipageTiffWriter {
       char numEntries = (char) ((firstIFD_ ? ENTRIES_PER_IFD + 2 : ENTRIES_PER_IFD)
               + (firstIFD_ ? 2 : 0));
      
-      byte[] mdBytes = getBytesFromString("NULL ");
+      // In BigTIFF, values of up to 8 bytes are stored inside the IFD
+      // entry, so pad the placeholder to keep it out-of-line like real
+      // metadata.
+      byte[] mdBytes = getBytesFromString(
+            format_ == TiffFormat.BIG ? "NULL     " : "NULL ");
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length
+     int IFDandBitDepthBytes = format_.getIFDSize(numEntries) + getExtraBitDepthBytes();
+     int totalBytes = IFDandBitDepthBytes + getExtraResolutionBytes() + mdBytes.length
              + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + format_.getIFDSize(numEntries);
+     nextIFDOffsetLocation_ = filePosition_ + format_.getEntryCountSize() + numEntries * format_.getEntrySize();
      
      bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
+      writeNumEntries(ifdBuffer, numEntries);
       writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
       writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
+      tagDataOffset += writeBitsPerSampleEntry(ifdBuffer, charView, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
@@ -1049,20 +1284,17 @@ public final class MultipageTiffWriter {
       }
            
       if (!blankPixelsAlreadyWritten) { //Write blank pixels
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, tagDataOffset);
+         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, getOffsetType(), 1, tagDataOffset);
          blankPixelsOffset_ = tagDataOffset;
          tagDataOffset += bytesPerImagePixels_;
       } else {
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, blankPixelsOffset_);
+         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, getOffsetType(), 1, blankPixelsOffset_);
       }
       
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
       writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
       writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
+      tagDataOffset += writeResolutionEntries(ifdBuffer, charView, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
@@ -1073,10 +1305,10 @@ public final class MultipageTiffWriter {
       writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
       tagDataOffset += mdBytes.length;
       //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
+      format_.putOffset(ifdBuffer, bufferPosition_, tagDataOffset);
+      bufferPosition_ += format_.getOffsetSize();
       
-      if (rgb_) {
+      if (getExtraBitDepthBytes() > 0) {
          charView.put(bufferPosition_/2,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
@@ -1085,7 +1317,9 @@ public final class MultipageTiffWriter {
       if (!blankPixelsAlreadyWritten) {
          buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
       }
-      buffers_.add(getResolutionValuesBuffer());   
+      if (getExtraResolutionBytes() > 0) {
+         buffers_.add(getResolutionValuesBuffer());
+      }
       buffers_.add(ByteBuffer.wrap(mdBytes));
       
       filePosition_ += totalBytes;
@@ -0,0 +1,408 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.CoordsIndex;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.PackedCoords;
+import org.micromanager.data.internal.PackedCoordsOffsetMap;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * An index of every image in a multipage TIFF dataset, stored in a single
+ * file alongside the TIFF files. StorageMultipageTiff writes it when it
+ * finishes writing a dataset, and uses it when opening the dataset, so that
+ * it need not open every file and read its index map (or, worse, walk its
+ * IFDs) before the first image can be displayed.
+ *
+ * The index is memory-mapped where StorageMultipageTiff allows memory
+ * mapping (otherwise it is read into the heap), and its entries are sorted
+ * by packed Coords (see PackedCoords), so lookups are a binary search.
+ * Layout (big-endian):
+ *
+ * header  := MAGIC:int VERSION:int numFiles:int numEntries:int
+ * file    := nameLength:int name:UTF-8 fileLength:long
+ * entry   := packedCoords:long offset:long fileId:int
+ *
+ * where offset is the position of the image's IFD in the file with the
+ * given index in the file list. The index is only used if every file it
+ * lists still exists with the same length, and no other TIFF files have
+ * been added to the directory.
+ */
+final class SidecarIndex {
+   public static final String FILENAME = "MMStack.index";
+
+   private static final int MAGIC = 0x4d4d4958; // "MMIX"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 16;
+   private static final int ENTRY_SIZE = 20;
+
+   private final File[] files_;
+   private final ByteBuffer entries_;
+   private final int numEntries_;
+   private Coords maxIndices_;
+   // Built on demand by getMatching().
+   private CoordsIndex coordsIndex_;
+
+   private SidecarIndex(File[] files, ByteBuffer entries, int numEntries) {
+      files_ = files;
+      entries_ = entries;
+      numEntries_ = numEntries;
+   }
+
+   /**
+    * Write an index for the given files, whose index maps are provided in
+    * the same order. Nothing is written (and any existing index is removed)
+    * if the maps do not hold exactly expectedCount distinct images, e.g.
+    * because some images had Coords that can't be packed.
+    */
+   public static void write(File directory, List<File> files,
+         List<PackedCoordsOffsetMap> indexMaps, int expectedCount)
+         throws IOException {
+      File target = new File(directory, FILENAME);
+      int total = 0;
+      long[][] keys = new long[indexMaps.size()][];
+      for (int i = 0; i < indexMaps.size(); ++i) {
+         keys[i] = indexMaps.get(i).getPackedKeys();
+         total += keys[i].length;
+      }
+      long[] sorted = new long[total];
+      int pos = 0;
+      for (long[] fileKeys : keys) {
+         System.arraycopy(fileKeys, 0, sorted, pos, fileKeys.length);
+         pos += fileKeys.length;
+      }
+      Arrays.sort(sorted);
+      boolean isComplete = (total == expectedCount);
+      for (int i = 1; i < total && isComplete; ++i) {
+         isComplete = sorted[i] != sorted[i - 1];
+      }
+      if (!isComplete) {
+         ReportingUtils.logMessage("Not writing sidecar index: index maps hold " + total + " images, expected " + expectedCount);
+         target.delete();
+         return;
+      }
+
+      long[] offsets = new long[total];
+      int[] fileIds = new int[total];
+      for (int id = 0; id < keys.length; ++id) {
+         PackedCoordsOffsetMap map = indexMaps.get(id);
+         for (long key : keys[id]) {
+            int entry = Arrays.binarySearch(sorted, key);
+            offsets[entry] = map.get(key);
+            fileIds[entry] = id;
+         }
+      }
+
+      List<byte[]> names = new ArrayList<byte[]>(files.size());
+      int size = HEADER_SIZE + total * ENTRY_SIZE;
+      for (File file : files) {
+         byte[] name = file.getName().getBytes("UTF-8");
+         names.add(name);
+         size += 4 + name.length + 8;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(files.size()).putInt(total);
+      for (int i = 0; i < files.size(); ++i) {
+         buffer.putInt(names.get(i).length).put(names.get(i));
+         buffer.putLong(files.get(i).length());
+      }
+      for (int i = 0; i < total; ++i) {
+         buffer.putLong(sorted[i]).putLong(offsets[i]).putInt(fileIds[i]);
+      }
+      buffer.flip();
+
+      // Write to a temporary file first, so that a partially-written index
+      // is never mistaken for a valid one.
+      File temp = new File(directory, FILENAME + ".tmp");
+      RandomAccessFile raFile = new RandomAccessFile(temp, "rw");
+      try {
+         raFile.setLength(0);
+         FileChannel channel = raFile.getChannel();
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      }
+      finally {
+         raFile.close();
+      }
+      target.delete();
+      if (!temp.renameTo(target)) {
+         temp.delete();
+         throw new IOException("Unable to create " + target);
+      }
+   }
+
+   /**
+    * Open the index in the given directory, if there is one and it is
+    * consistent with the TIFF files in the directory. Otherwise return null.
+    */
+   public static SidecarIndex open(File directory) {
+      File indexFile = new File(directory, FILENAME);
+      if (!indexFile.isFile()) {
+         return null;
+      }
+      try {
+         ByteBuffer buffer;
+         RandomAccessFile raFile = new RandomAccessFile(indexFile, "r");
+         try {
+            FileChannel channel = raFile.getChannel();
+            if (StorageMultipageTiff.getCanUseMemoryMapping()) {
+               // The mapping remains valid after the channel is closed.
+               buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                     channel.size());
+            }
+            else {
+               // On Windows, a mapped file can't be deleted or replaced
+               // until the mapping is garbage-collected, so read it instead.
+               if (channel.size() > Integer.MAX_VALUE) {
+                  ReportingUtils.logMessage("Ignoring oversized sidecar index " + indexFile);
+                  return null;
+               }
+               buffer = ByteBuffer.allocate((int) channel.size());
+               while (buffer.hasRemaining()) {
+                  if (channel.read(buffer) < 0) {
+                     break;
+                  }
+               }
+               buffer.flip();
+            }
+         }
+         finally {
+            raFile.close();
+         }
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            ReportingUtils.logMessage("Ignoring unrecognized sidecar index " + indexFile);
+            return null;
+         }
+         int numFiles = buffer.getInt();
+         int numEntries = buffer.getInt();
+         File[] files = new File[numFiles];
+         HashSet<String> names = new HashSet<String>();
+         for (int i = 0; i < numFiles; ++i) {
+            int nameLength = buffer.getInt();
+            if (nameLength < 0 || nameLength > buffer.remaining()) {
+               ReportingUtils.logMessage("Ignoring corrupt sidecar index " + indexFile);
+               return null;
+            }
+            byte[] name = new byte[nameLength];
+            buffer.get(name);
+            files[i] = new File(directory, new String(name, "UTF-8"));
+            names.add(files[i].getName());
+            if (files[i].length() != buffer.getLong()) {
+               ReportingUtils.logMessage("Ignoring out-of-date sidecar index " + indexFile);
+               return null;
+            }
+         }
+         for (File f : directory.listFiles()) {
+            String name = f.getName();
+            if ((name.endsWith(".tif") || name.endsWith(".TIF")) &&
+                  !names.contains(name)) {
+               ReportingUtils.logMessage("Ignoring sidecar index " + indexFile + " that does not include " + name);
+               return null;
+            }
+         }
+         if (buffer.remaining() != (long) numEntries * ENTRY_SIZE) {
+            ReportingUtils.logMessage("Ignoring truncated sidecar index " + indexFile);
+            return null;
+         }
+         return new SidecarIndex(files, buffer.slice(), numEntries);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to read sidecar index " + indexFile);
+      }
+      catch (BufferUnderflowException e) {
+         ReportingUtils.logError(e, "Ignoring truncated sidecar index " + indexFile);
+      }
+      return null;
+   }
+
+   public int size() {
+      return numEntries_;
+   }
+
+   public int getNumFiles() {
+      return files_.length;
+   }
+
+   /**
+    * Return the file with the given ID, or null if the ID is out of range
+    * (which indicates that the index is corrupt).
+    */
+   public File getFile(int fileId) {
+      if (fileId < 0 || fileId >= files_.length) {
+         return null;
+      }
+      return files_[fileId];
+   }
+
+   public long getPackedCoords(int entry) {
+      return entries_.getLong(entry * ENTRY_SIZE);
+   }
+
+   public long getOffset(int entry) {
+      return entries_.getLong(entry * ENTRY_SIZE + 8);
+   }
+
+   public int getFileId(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 16);
+   }
+
+   /**
+    * Return the entry for the given Coords, or -1 if there is none.
+    */
+   public int find(Coords coords) {
+      if (!PackedCoords.canPackExactly(coords)) {
+         return -1;
+      }
+      long target = PackedCoords.pack(coords);
+      int low = 0;
+      int high = numEntries_ - 1;
+      while (low <= high) {
+         int mid = (low + high) >>> 1;
+         long packed = getPackedCoords(mid);
+         if (packed < target) {
+            low = mid + 1;
+         }
+         else if (packed > target) {
+            high = mid - 1;
+         }
+         else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Return the entries whose Coords match the provided (possibly
+    * incomplete) Coords, as per Coords.matches(). The first call builds a
+    * per-axis index of all entries, so that partial-Coords lookups don't
+    * need to examine every entry.
+    */
+   public List<Integer> getMatching(Coords coords) {
+      List<Coords> matches = getCoordsIndex().getMatching(coords);
+      ArrayList<Integer> result = new ArrayList<Integer>(matches.size());
+      for (Coords match : matches) {
+         result.add(find(match));
+      }
+      Collections.sort(result);
+      return result;
+   }
+
+   private synchronized CoordsIndex getCoordsIndex() {
+      if (coordsIndex_ == null) {
+         coordsIndex_ = new CoordsIndex();
+         for (int i = 0; i < numEntries_; ++i) {
+            coordsIndex_.add(PackedCoords.unpack(getPackedCoords(i)));
+         }
+      }
+      return coordsIndex_;
+   }
+
+   /**
+    * Return a Coords holding the largest position along each axis.
+    */
+   public synchronized Coords getMaxIndices() {
+      if (maxIndices_ == null) {
+         int channel = -1, z = -1, time = -1, position = -1;
+         for (int i = 0; i < numEntries_; ++i) {
+            long packed = getPackedCoords(i);
+            channel = Math.max(channel, PackedCoords.getChannel(packed));
+            z = Math.max(z, PackedCoords.getZ(packed));
+            time = Math.max(time, PackedCoords.getTime(packed));
+            position = Math.max(position,
+                  PackedCoords.getStagePosition(packed));
+         }
+         DefaultCoords.Builder builder = new DefaultCoords.Builder();
+         if (channel >= 0) {
+            builder.channel(channel);
+         }
+         if (z >= 0) {
+            builder.z(z);
+         }
+         if (time >= 0) {
+            builder.time(time);
+         }
+         if (position >= 0) {
+            builder.stagePosition(position);
+         }
+         maxIndices_ = builder.build();
+      }
+      return maxIndices_;
+   }
+
+   /**
+    * Return a read-only view of the Coords of every image in the index.
+    * Coords are generated as the set is iterated over.
+    */
+   public AbstractSet<Coords> getCoordsSet() {
+      return new AbstractSet<Coords>() {
+         @Override
+         public Iterator<Coords> iterator() {
+            return new Iterator<Coords>() {
+               private int next_ = 0;
+
+               @Override
+               public boolean hasNext() {
+                  return next_ < numEntries_;
+               }
+
+               @Override
+               public Coords next() {
+                  if (next_ >= numEntries_) {
+                     throw new NoSuchElementException();
+                  }
+                  return PackedCoords.unpack(getPackedCoords(next_++));
+               }
+
+               @Override
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+
+         @Override
+         public int size() {
+            return numEntries_;
+         }
+
+         @Override
+         public boolean contains(Object o) {
+            return (o instanceof Coords) && find((Coords) o) >= 0;
+         }
+      };
+   }
+}
@@ -36,8 +36,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -48,11 +50,15 @@ import org.micromanager.data.Image;
 import org.micromanager.data.NewSummaryMetadataEvent;
 import org.micromanager.data.Storage;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.CoordsIndex;
 import org.micromanager.data.internal.DefaultCoords;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.PackedCoordsOffsetMap;
+import org.micromanager.internal.diagnostics.StageMetricsRecorder;
 import org.micromanager.internal.utils.DefaultUserProfile;
+import org.micromanager.internal.utils.JavaUtils;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.MMException;
 import org.micromanager.internal.utils.ProgressBar;
@@ -68,6 +74,10 @@ import org.micromanager.internal.utils.ReportingUtils;
 public final class StorageMultipageTiff implements Storage {
    private static final String SHOULD_GENERATE_METADATA_FILE = "generate a metadata file when saving datasets as multipage TIFF files";
    private static final String SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS = "generate a separate multipage TIFF file for each stage position";
+   private static final String SHOULD_USE_PARALLEL_WRITERS = "use a separate writing thread for each stage position's multipage TIFF files";
+   private static final String SHOULD_USE_BIGTIFF = "write multipage TIFF files in BigTIFF format";
+   private static final String SHOULD_USE_BINARY_METADATA = "write per-image metadata in multipage TIFF files in binary format";
+   private static final String SHOULD_USE_MEMORY_MAPPING = "read multipage TIFF files using memory mapping";
    private static final HashSet<String> ALLOWED_AXES = new HashSet<String>(
          Arrays.asList(Coords.CHANNEL, Coords.TIME, Coords.Z,
             Coords.STAGE_POSITION));
@@ -80,7 +90,21 @@ public final class StorageMultipageTiff implements Storage {
    private String directory_;
    final private boolean separateMetadataFile_;
    private boolean splitByXYPosition_ = true;
+   // If true, each FileSet gets its own writing thread and buffer pool;
+   // otherwise all FileSets share writingExecutor_.
+   private boolean parallelWriters_ = false;
+   // Number of writers currently waiting on their writing queues.
+   private final AtomicInteger numWritersBehind_ = new AtomicInteger(0);
+   // Format for files we write; files we read may be in either format.
+   private TiffFormat format_ = TiffFormat.CLASSIC;
+   // Whether files we write store per-image metadata in binary form.
+   private boolean binaryMetadata_ = false;
+   // Whether readers of existing files map them into memory.
+   private boolean memoryMapping_ = false;
    private volatile boolean finished_ = false;
+   // Measures the time from receiving each image to it being written.
+   private final StageMetricsRecorder writingMetrics_ =
+      StageMetricsRecorder.create("Multipage TIFF writing");
    private OMEMetadata omeMetadata_;
    private int lastFrame_ = 0;
    private int lastAcquiredPosition_ = 0;
@@ -99,13 +123,27 @@ public final class StorageMultipageTiff implements Storage {
    
    //Map of image labels to file 
    private TreeMap<Coords, MultipageTiffReader> coordsToReader_;
-   // Keeps track of our maximum extent along each axis.
-   private Coords maxIndices_;
+   // Index of the keys of coordsToReader_, for partial-coords lookups; also
+   // keeps track of our maximum extent along each axis.
+   private CoordsIndex coordsIndex_ = new CoordsIndex();
+
+   // When opening a dataset that has a sidecar index, we look images up in
+   // the index instead of in coordsToReader_ and coordsIndex_ (which remain
+   // empty), and only open each file when one of its images is requested.
+   private SidecarIndex sidecarIndex_;
+   private MultipageTiffReader[] sidecarReaders_;
   
    public StorageMultipageTiff(Datastore store, String dir, Boolean amInWriteMode)
          throws IOException {
       this(store, dir, amInWriteMode, getShouldGenerateMetadataFile(),
-            getShouldSplitPositions());
+            getShouldSplitPositions(), getShouldUseParallelWriters());
+   }
+
+   public StorageMultipageTiff(Datastore store, String dir,
+         boolean amInWriteMode, boolean separateMDFile,
+         boolean separateFilesForPositions) throws IOException {
+      this(store, dir, amInWriteMode, separateMDFile,
+            separateFilesForPositions, false);
    }
    
    /*
@@ -114,13 +152,16 @@ public final class StorageMultipageTiff implements Storage {
     */
    public StorageMultipageTiff(Datastore store, String dir,
          boolean amInWriteMode, boolean separateMDFile,
-         boolean separateFilesForPositions) throws IOException {
+         boolean separateFilesForPositions, boolean parallelWriters)
+         throws IOException {
       store_ = (DefaultDatastore) store;
       // We must be notified of changes in the Datastore before everyone else,
       // so that others can read those changes out of the Datastore later.
       store_.registerForEvents(this, 0);
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
+      // Parallel writers only make sense when there are multiple FileSets.
+      parallelWriters_ = parallelWriters && splitByXYPosition_;
 
       amInWriteMode_ = amInWriteMode;
       directory_ = dir;
@@ -128,6 +169,10 @@ public final class StorageMultipageTiff implements Storage {
       coordsToReader_ = new TreeMap<Coords, MultipageTiffReader>();
 
       if (amInWriteMode_) {
+         if (getShouldUseBigTiff()) {
+            format_ = TiffFormat.BIG;
+         }
+         binaryMetadata_ = getShouldUseBinaryMetadata();
          positionToFileSet_ = new HashMap<Integer, FileSet>();
          // Create the directory now, even though we have nothing to write to
          // it, so we can detect e.g. permissions errors that would cause
@@ -143,6 +188,8 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
       else {
+         memoryMapping_ = getCanUseMemoryMapping() &&
+            getShouldUseMemoryMapping();
          openExistingDataSet();
       }
    }
@@ -157,10 +204,60 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
    
+   /**
+    * Return the executor shared by all FileSets, or null if each FileSet
+    * has its own (or no images have been written yet).
+    */
    public ThreadPoolExecutor getWritingExecutor() {
       return writingExecutor_;
    }
 
+   private static ThreadPoolExecutor createWritingExecutor(final String name) {
+      return new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+            new LinkedBlockingQueue<java.lang.Runnable>(),
+            new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  return new Thread(r, name);
+               }
+            });
+   }
+
+   /**
+    * Return all executors that our FileSets are writing with.
+    */
+   private List<ThreadPoolExecutor> getWritingExecutors() {
+      ArrayList<ThreadPoolExecutor> result = new ArrayList<ThreadPoolExecutor>();
+      if (writingExecutor_ != null) {
+         result.add(writingExecutor_);
+      }
+      if (parallelWriters_ && positionToFileSet_ != null) {
+         for (FileSet set : positionToFileSet_.values()) {
+            result.add(set.getWritingExecutor());
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Called by our writers when they have to wait for their writing queue
+    * to drain before accepting more images (numPending > 0), and again once
+    * they are able to proceed (numPending == 0); each writer makes these
+    * calls in pairs. Posts a WritingBacklogEvent to the Datastore when the
+    * first writer falls behind and when the last one catches up, so the
+    * acquisition can report it.
+    */
+   void reportWritingBacklog(int numPending) {
+      if (numPending > 0) {
+         if (numWritersBehind_.incrementAndGet() == 1) {
+            store_.publishEvent(new WritingBacklogEvent(numPending));
+         }
+      }
+      else if (numWritersBehind_.decrementAndGet() == 0) {
+         store_.publishEvent(new WritingBacklogEvent(0));
+      }
+   }
+
    boolean slicesFirst() {
       String[] order = summaryMetadata_.getAxisOrder();
       if (order == null) {
@@ -190,6 +287,11 @@ public final class StorageMultipageTiff implements Storage {
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
 
+      SidecarIndex index = SidecarIndex.open(dir);
+      if (index != null && openWithSidecarIndex(index)) {
+         return;
+      }
+
       ProgressBar progressBar = null;
       // Allow operation in headless mode.
       if (!GraphicsEnvironment.isHeadless()) {
@@ -225,6 +327,87 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
 
+   /**
+    * Set up to read images via the provided index. Only the file holding
+    * the first image in the index is opened now. Returns false if that
+    * fails, in which case the dataset should be opened the slow way.
+    */
+   private boolean openWithSidecarIndex(SidecarIndex index) {
+      if (index.size() == 0) {
+         return false;
+      }
+      sidecarIndex_ = index;
+      sidecarReaders_ = new MultipageTiffReader[index.getNumFiles()];
+      MultipageTiffReader reader = getSidecarReader(index.getFileId(0));
+      if (reader == null) {
+         sidecarIndex_ = null;
+         sidecarReaders_ = null;
+         return false;
+      }
+      firstImage_ = reader.readImageAt(index.getOffset(0));
+      lastFrameOpenedDataSet_ = index.getMaxIndices().getTime();
+      // TODO: coercing to DefaultSummaryMetadata here to match method
+      // signature; see our setSummaryMetadata methods for more info.
+      setSummaryMetadata((DefaultSummaryMetadata) reader.getSummaryMetadata(), false);
+      return true;
+   }
+
+   /**
+    * Return the reader for the file with the given ID in our sidecar index,
+    * opening the file if necessary. Returns null if the file can't be read.
+    */
+   private MultipageTiffReader getSidecarReader(int fileId) {
+      synchronized(sidecarReaders_) {
+         File file = sidecarIndex_.getFile(fileId);
+         if (file == null) {
+            ReportingUtils.logError("Invalid file ID " + fileId + " in sidecar index");
+            return null;
+         }
+         if (sidecarReaders_[fileId] == null) {
+            try {
+               sidecarReaders_[fileId] = new MultipageTiffReader(this, file,
+                     false);
+            }
+            catch (IOException e) {
+               ReportingUtils.logError(e, "Couldn't open file: " + file);
+            }
+         }
+         return sidecarReaders_[fileId];
+      }
+   }
+
+   private Image readSidecarImage(int entry) {
+      MultipageTiffReader reader = getSidecarReader(
+            sidecarIndex_.getFileId(entry));
+      if (reader == null) {
+         return null;
+      }
+      return reader.readImageAt(sidecarIndex_.getOffset(entry));
+   }
+
+   /**
+    * Write a SidecarIndex for the files we have written, so that the
+    * dataset can be opened quickly.
+    */
+   private void writeSidecarIndex() {
+      ArrayList<File> files = new ArrayList<File>();
+      ArrayList<PackedCoordsOffsetMap> indexMaps =
+         new ArrayList<PackedCoordsOffsetMap>();
+      for (FileSet set : positionToFileSet_.values()) {
+         for (MultipageTiffWriter writer : set.getWriters()) {
+            files.add(new File(directory_, writer.getFilename()));
+            indexMaps.add(writer.getIndexMap());
+         }
+      }
+      try {
+         SidecarIndex.write(new File(directory_), files, indexMaps,
+               coordsToReader_.size());
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to write sidecar index; dataset will be slower to open");
+      }
+   }
+
    private MultipageTiffReader loadFile(File f) {
       MultipageTiffReader reader = null;
       try {
@@ -249,9 +432,10 @@ public final class StorageMultipageTiff implements Storage {
             // Open the file normally.
             reader = new MultipageTiffReader(this, f);
          }
-         Set<Coords> readerCoords = reader.getIndexKeys();
+         List<Coords> readerCoords = reader.getIndexKeys();
          for (Coords coords : readerCoords) {
             coordsToReader_.put(coords, reader);
+            coordsIndex_.add(coords);
             lastFrameOpenedDataSet_ = Math.max(coords.getTime(),
                   lastFrameOpenedDataSet_);
             if (firstImage_ == null) {
@@ -291,13 +475,8 @@ public final class StorageMultipageTiff implements Storage {
    }
 
    private void writeImage(DefaultImage image, boolean waitForWritingToFinish) throws MMException, InterruptedException, ExecutionException, IOException {
-      writeImage(image);
+      Future f = writeImage(image);
       if (waitForWritingToFinish) {
-         Future f = writingExecutor_.submit(new Runnable() {
-            @Override
-            public void run() {
-            }
-         });
          f.get();
       }
    }
@@ -309,8 +488,9 @@ public final class StorageMultipageTiff implements Storage {
     * MultipageTiffReader.readImage() returning a coherent (i.e.
     * finished-writing) image if our getImage() method is called before writing
     * is completed.
+    * @return a Future that completes when the image has been written.
     */
-   private void writeImage(DefaultImage image) throws MMException, IOException {
+   private Future writeImage(DefaultImage image) throws MMException, IOException {
       if (!amInWriteMode_) {
          ReportingUtils.showError("Tried to write image to a finished data set");
          throw new MMException("This ImageFileManager is read-only.");
@@ -321,42 +501,31 @@ public final class StorageMultipageTiff implements Storage {
          coordsToPendingImage_.put(coords, image);
       }
 
-      startWritingTask(image);
+      final long receivedTime = writingMetrics_.imageReceived();
+      ThreadPoolExecutor executor = startWritingTask(image);
 
-      writingExecutor_.submit(new Runnable() {
+      return executor.submit(new Runnable() {
          @Override
          public void run() {
             synchronized(coordsToPendingImage_) {
                coordsToPendingImage_.remove(coords);
             }
+            writingMetrics_.imageFinished(receivedTime);
          }
       });
    };
 
    /**
     * This method handles starting the process of writing images (which means
-    * that it ultimately submits a task to writingExecutor_).
+    * that it ultimately submits a task to the FileSet's writing executor).
+    * @return the executor that the image is being written with.
     */
-   private void startWritingTask(DefaultImage image) throws MMException, IOException {
-      // Update maxIndices_
-      if (maxIndices_ == null) {
-         maxIndices_ = image.getCoords().copy().build();
-      }
-      else {
-         for (String axis : image.getCoords().getAxes()) {
-            int pos = image.getCoords().getIndex(axis);
-            if (pos > maxIndices_.getIndex(axis)) {
-               maxIndices_ = maxIndices_.copy().index(axis, pos).build();
-            }
-         }
-      }
+   private ThreadPoolExecutor startWritingTask(DefaultImage image) throws MMException, IOException {
       TaggedImage taggedImage = image.legacyToTaggedImage();
 
       // initialize writing executor
-      if (writingExecutor_ == null) {
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0,
-               TimeUnit.NANOSECONDS,
-               new LinkedBlockingQueue<java.lang.Runnable>());
+      if (writingExecutor_ == null && !parallelWriters_) {
+         writingExecutor_ = createWritingExecutor("Multipage TIFF writer");
       }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
@@ -372,9 +541,16 @@ public final class StorageMultipageTiff implements Storage {
       }
 
       if (!positionToFileSet_.containsKey(fileSetIndex)) {
+         ThreadPoolExecutor executor = writingExecutor_;
+         WriteBufferPool pool = WriteBufferPool.SHARED;
+         if (parallelWriters_) {
+            executor = createWritingExecutor(
+                  "Multipage TIFF writer for position " + fileSetIndex);
+            pool = new WriteBufferPool();
+         }
          positionToFileSet_.put(fileSetIndex,
                new FileSet(taggedImage.tags, this, omeMetadata_,
-                  splitByXYPosition_, separateMetadataFile_));
+                  splitByXYPosition_, separateMetadataFile_, executor, pool));
       }
       FileSet set = positionToFileSet_.get(fileSetIndex);
 
@@ -382,6 +558,7 @@ public final class StorageMultipageTiff implements Storage {
          set.writeImage(taggedImage);
          DefaultCoords coords = DefaultCoords.legacyFromJSON(taggedImage.tags);
          coordsToReader_.put(coords, set.getCurrentReader());
+         coordsIndex_.add(coords);
       } catch (IOException ex) {
         ReportingUtils.showError(ex, "Failed to write image to file.");
       }
@@ -394,9 +571,13 @@ public final class StorageMultipageTiff implements Storage {
          frame = 0;
       }
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
+      return set.getWritingExecutor();
    }
 
    public Set<Coords> imageKeys() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getCoordsSet();
+      }
       return coordsToReader_.keySet();
    }
 
@@ -487,16 +668,20 @@ public final class StorageMultipageTiff implements Storage {
                progressBar.setProgress(count);
             }
          }
-         //shut down writing executor--pause here until all tasks have finished
-         //writing so that no attempt is made to close the dataset (and thus
-         //the FileChannel) before everything has finished writing mkae sure
-         //all images have finished writing if they are on seperate thread
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
+         //shut down writing executors--pause here until all tasks have
+         //finished writing so that no attempt is made to close the dataset
+         //(and thus the FileChannel) before everything has finished writing
+         //mkae sure all images have finished writing if they are on seperate
+         //threads
+         List<ThreadPoolExecutor> executors = getWritingExecutors();
+         for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+         }
+         for (ThreadPoolExecutor executor : executors) {
             try {
                // Wait for tasks to finish.
                int i = 0;
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
+               while (!executor.awaitTermination(4, TimeUnit.SECONDS)) {
                   ReportingUtils.logMessage("Waiting for image stack to finish writing (" + i + ")...");
                   i++;
                }
@@ -506,6 +691,8 @@ public final class StorageMultipageTiff implements Storage {
                Thread.interrupted();
             }
          }
+         // All files are now complete.
+         writeSidecarIndex();
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
       }
@@ -568,6 +755,31 @@ public final class StorageMultipageTiff implements Storage {
       return summaryMetadataString_;
    }
 
+   /**
+    * Return the format that new files are written in. Classic TIFF files
+    * are limited to 4GB, so each FileSet may be spread over several files;
+    * BigTIFF files have no size limit.
+    */
+   public TiffFormat getTiffFormat() {
+      return format_;
+   }
+
+   /**
+    * Return true if new files store per-image metadata in binary form
+    * (see BinaryMetadataCodec) rather than as JSON text.
+    */
+   public boolean getUsesBinaryMetadata() {
+      return binaryMetadata_;
+   }
+
+   /**
+    * Return true if images are read from memory-mapped files, in which case
+    * their pixel buffers are read-only views of the file contents.
+    */
+   public boolean getUsesMemoryMapping() {
+      return memoryMapping_;
+   }
+
    public boolean getSplitByStagePosition() {
       return splitByXYPosition_;
    }
@@ -613,43 +825,34 @@ public final class StorageMultipageTiff implements Storage {
 
    @Override
    public int getNumImages() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.size();
+      }
       return coordsToReader_.keySet().size();
    }
 
    @Override
    public Coords getMaxIndices() {
-      // TODO: this method is pretty poorly-implemented at current.
-      if (maxIndices_ == null) {
-         // Calculate max indices by examining all registered Readers.
-         HashMap<String, Integer> maxIndices = new HashMap<String, Integer>();
-         for (Coords coords : coordsToReader_.keySet()) {
-            for (String axis : coords.getAxes()) {
-               if (!maxIndices.containsKey(axis) ||
-                     coords.getIndex(axis) > maxIndices.get(axis)) {
-                  maxIndices.put(axis, coords.getIndex(axis));
-               }
-            }
-         }
-         DefaultCoords.Builder builder = new DefaultCoords.Builder();
-         for (String axis : maxIndices.keySet()) {
-            builder.index(axis, maxIndices.get(axis));
-         }
-         maxIndices_ = builder.build();
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getMaxIndices();
       }
-      return maxIndices_;
+      return coordsIndex_.getMaxIndices();
    }
 
-   /**
-    * TODO: in future there will probably be a cleaner way to implement this.
-    */
    @Override
    public List<String> getAxes() {
-      return getMaxIndices().getAxes();
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getMaxIndices().getAxes();
+      }
+      return coordsIndex_.getAxes();
    }
 
    @Override
    public Integer getMaxIndex(String axis) {
-      return getMaxIndices().getIndex(axis);
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getMaxIndices().getIndex(axis);
+      }
+      return coordsIndex_.getMaxIndex(axis);
    }
 
    // Convenience function.
@@ -682,8 +885,14 @@ public final class StorageMultipageTiff implements Storage {
             }
          }
       }
-      for (Coords imageCoords : coordsToReader_.keySet()) {
-         if (imageCoords.matches(coords)) {
+      if (sidecarIndex_ != null) {
+         for (int entry : sidecarIndex_.getMatching(coords)) {
+            result.add(readSidecarImage(entry));
+         }
+         return new ArrayList<Image>(result);
+      }
+      for (Coords imageCoords : coordsIndex_.getMatching(coords)) {
+         if (!coordsToPendingImage_.containsKey(imageCoords)) {
             result.add(coordsToReader_.get(imageCoords).readImage(imageCoords));
          }
       }
@@ -697,6 +906,14 @@ public final class StorageMultipageTiff implements Storage {
             return coordsToPendingImage_.get(coords);
          }
       }
+      if (sidecarIndex_ != null) {
+         int entry = sidecarIndex_.find(coords);
+         if (entry < 0) {
+            ReportingUtils.logError("Asked for image at " + coords + " that doesn't exist");
+            return null;
+         }
+         return readSidecarImage(entry);
+      }
       if (!coordsToReader_.containsKey(coords)) {
          ReportingUtils.logError("Asked for image at " + coords + " that doesn't exist");
          return null;
@@ -711,11 +928,17 @@ public final class StorageMultipageTiff implements Storage {
 
    @Override
    public Iterable<Coords> getUnorderedImageCoords() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getCoordsSet();
+      }
       return coordsToReader_.keySet();
    }
 
    @Override
    public boolean hasImage(Coords coords) {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.find(coords) >= 0;
+      }
       return coordsToPendingImage_.containsKey(coords) ||
          coordsToReader_.containsKey(coords);
    }
@@ -732,6 +955,21 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
       // For files we read from disk.
+      if (sidecarReaders_ != null) {
+         synchronized(sidecarReaders_) {
+            for (MultipageTiffReader reader : sidecarReaders_) {
+               if (reader == null) {
+                  continue;
+               }
+               try {
+                  reader.close();
+               }
+               catch (IOException e) {
+                  ReportingUtils.logError(e, "Error cleaning up open file descriptor");
+               }
+            }
+         }
+      }
       for (MultipageTiffReader reader : coordsToReader_.values()) {
          try {
             reader.close();
@@ -764,4 +1002,82 @@ public final class StorageMultipageTiff implements Storage {
             StorageMultipageTiff.class,
             SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS, shouldSplit);
    }
+
+   /**
+    * Whether each stage position (when positions are split into separate
+    * files) should be written by its own thread. This lets writing
+    * throughput scale with the number of positions on storage that can
+    * handle multiple concurrent writes (e.g. SSD arrays).
+    */
+   public static boolean getShouldUseParallelWriters() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class,
+            SHOULD_USE_PARALLEL_WRITERS, false);
+   }
+
+   public static void setShouldUseParallelWriters(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class,
+            SHOULD_USE_PARALLEL_WRITERS, shouldUse);
+   }
+
+   /**
+    * Whether to write BigTIFF (64-bit offset) files instead of classic TIFF
+    * files. BigTIFF files are not limited to 4GB, so each stage position
+    * (or the whole dataset) is written to a single file, but they cannot be
+    * opened by older readers, including older versions of Micro-Manager.
+    */
+   public static boolean getShouldUseBigTiff() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BIGTIFF, false);
+   }
+
+   public static void setShouldUseBigTiff(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BIGTIFF, shouldUse);
+   }
+
+   /**
+    * Whether to store per-image metadata in a compact binary form instead of
+    * as JSON text, which is faster to write and read. Only the image
+    * coordinates and dimensions are also stored as JSON, so older versions
+    * of Micro-Manager can open the files but will not see the rest of the
+    * per-image metadata.
+    */
+   public static boolean getShouldUseBinaryMetadata() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BINARY_METADATA, false);
+   }
+
+   public static void setShouldUseBinaryMetadata(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BINARY_METADATA, shouldUse);
+   }
+
+   /**
+    * Whether to read existing files by mapping them into memory instead of
+    * copying each image's pixels into the Java heap. This reduces memory use
+    * and speeds up browsing of large datasets, at the cost of holding the
+    * files open until the mappings are garbage-collected.
+    */
+   public static boolean getShouldUseMemoryMapping() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_MEMORY_MAPPING, false);
+   }
+
+   /**
+    * Whether memory mapping can be used on this system at all. Mapping large
+    * files is pointless with a 32-bit address space. On Windows, a mapped
+    * file can't be deleted or renamed until every image that still views it
+    * has been garbage-collected, which would leave closed datasets locked.
+    */
+   public static boolean getCanUseMemoryMapping() {
+      return !JavaUtils.isWindows() &&
+         !"32".equals(System.getProperty("sun.arch.data.model"));
+   }
+
+   public static void setShouldUseMemoryMapping(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_MEMORY_MAPPING, shouldUse);
+   }
 }
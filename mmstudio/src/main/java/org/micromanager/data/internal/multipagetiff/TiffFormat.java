@@ -0,0 +1,141 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The two TIFF variants that MultipageTiffWriter can produce, and the sizes
+ * of the structures that differ between them. Classic TIFF uses 32-bit
+ * offsets, which limits files to 4GB; BigTIFF uses 64-bit offsets.
+ *
+ * Our own header fields follow the TIFF header: the index map offset, the
+ * display settings offset, the comments offset, and the summary metadata
+ * length, each preceded by a 4-byte identifying value (see the *_HEADER
+ * constants in MultipageTiffWriter). Each field is as wide as an offset in
+ * the given format. The summary metadata follows the last field.
+ */
+public enum TiffFormat {
+   CLASSIC(42, 8, 4, 2, 12),
+   BIG(43, 16, 8, 8, 20);
+
+   private final int identifier_;
+   private final int headerSize_;
+   private final int offsetSize_;
+   private final int entryCountSize_;
+   private final int entrySize_;
+
+   private TiffFormat(int identifier, int headerSize, int offsetSize,
+         int entryCountSize, int entrySize) {
+      identifier_ = identifier;
+      headerSize_ = headerSize;
+      offsetSize_ = offsetSize;
+      entryCountSize_ = entryCountSize;
+      entrySize_ = entrySize;
+   }
+
+   /**
+    * Return the format with the given identifier (bytes 2-3 of the file), or
+    * null if it isn't one we know of.
+    */
+   public static TiffFormat fromIdentifier(int identifier) {
+      for (TiffFormat format : values()) {
+         if (format.identifier_ == identifier) {
+            return format;
+         }
+      }
+      return null;
+   }
+
+   public int getIdentifier() {
+      return identifier_;
+   }
+
+   public int getOffsetSize() {
+      return offsetSize_;
+   }
+
+   /** Size of the count of entries at the start of an IFD. */
+   public int getEntryCountSize() {
+      return entryCountSize_;
+   }
+
+   /** Size of a single IFD entry. */
+   public int getEntrySize() {
+      return entrySize_;
+   }
+
+   /** Size of an IFD with the given number of entries, not counting any
+    * values stored outside of the entries. */
+   public int getIFDSize(int numEntries) {
+      return entryCountSize_ + numEntries * entrySize_ + offsetSize_;
+   }
+
+   /** Size of one index map entry: four axis positions plus an offset. */
+   public int getIndexMapEntrySize() {
+      return 16 + offsetSize_;
+   }
+
+   /** Size of one of our header fields (identifier plus value). */
+   public int getFieldSize() {
+      return 4 + offsetSize_;
+   }
+
+   public int getIndexMapOffsetPosition() {
+      return headerSize_;
+   }
+
+   public int getDisplaySettingsOffsetPosition() {
+      return headerSize_ + getFieldSize();
+   }
+
+   public int getCommentsOffsetPosition() {
+      return headerSize_ + 2 * getFieldSize();
+   }
+
+   public int getSummaryMDHeaderPosition() {
+      return headerSize_ + 3 * getFieldSize();
+   }
+
+   public int getSummaryMDPosition() {
+      return headerSize_ + 4 * getFieldSize();
+   }
+
+   /**
+    * Read an offset of the appropriate size from the buffer.
+    */
+   public long getOffset(ByteBuffer buffer, int index) {
+      if (offsetSize_ == 8) {
+         return buffer.getLong(index);
+      }
+      return buffer.getInt(index) & 0xffffffffL;
+   }
+
+   /**
+    * Write an offset of the appropriate size to the buffer.
+    */
+   public void putOffset(ByteBuffer buffer, int index, long offset) {
+      if (offsetSize_ == 8) {
+         buffer.putLong(index, offset);
+      }
+      else {
+         buffer.putInt(index, (int) offset);
+      }
+   }
+}
@@ -0,0 +1,98 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of direct buffers for image pixels, used by MultipageTiffWriter.
+ *
+ * The idea here is to recycle the direct buffers for image pixels, because
+ * allocation is slow. It is expected that we do not need a large pool,
+ * because the only aim is to avoid situations where allocation is limiting
+ * at steady state. If writing is, on average, faster than incoming images,
+ * the pool should always have a buffer ready for a new request.
+ * Ideally we would also evict unused buffers after a timeout, so as not to
+ * leak memory after writing has concluded.
+ *
+ * When all FileSets share one writing thread, they also share the SHARED
+ * pool. When each FileSet has its own writing thread, it also gets its own
+ * pool, so that writers don't contend for (or steal) each other's buffers.
+ */
+final class WriteBufferPool {
+   private static final int BUFFER_DIRECT_THRESHOLD = 1024;
+   private static final int POOL_SIZE =
+         System.getProperty("sun.arch.data.model").equals("32") ? 0 : 3;
+
+   public static final WriteBufferPool SHARED = new WriteBufferPool();
+
+   private final Deque<ByteBuffer> buffers_;
+   private int capacity_ = 0;
+
+   public WriteBufferPool() {
+      buffers_ = (POOL_SIZE > 0) ? new ArrayDeque<ByteBuffer>(POOL_SIZE) :
+         null;
+   }
+
+   public static ByteBuffer allocateByteBuffer(int capacity) {
+      ByteBuffer b = capacity >= BUFFER_DIRECT_THRESHOLD ?
+            ByteBuffer.allocateDirect(capacity) :
+            ByteBuffer.allocate(capacity);
+      return b.order(MultipageTiffWriter.BYTE_ORDER);
+   }
+
+   public ByteBuffer getLargeBuffer(int capacity) {
+      if (POOL_SIZE == 0) {
+         return allocateByteBuffer(capacity);
+      }
+
+      synchronized (this) {
+         if (capacity != capacity_) {
+            buffers_.clear();
+            capacity_ = capacity;
+         }
+
+         // Recycle in LIFO order (smaller images may still be in L3 cache)
+         ByteBuffer b = buffers_.pollFirst();
+         if (b != null) {
+            // Ensure correct byte order in case recycled from other source
+            b.order(MultipageTiffWriter.BYTE_ORDER).clear();
+            return b;
+         }
+      }
+      return allocateByteBuffer(capacity);
+   }
+
+   public void tryRecycleLargeBuffer(ByteBuffer b) {
+      // Keep up to POOL_SIZE direct buffers of the current size
+      if (POOL_SIZE == 0 || !b.isDirect()) {
+         return;
+      }
+      synchronized (this) {
+         if (b.capacity() == capacity_) {
+            if (buffers_.size() == POOL_SIZE) {
+               buffers_.removeLast(); // Discard oldest
+            }
+            buffers_.addFirst(b);
+         }
+      }
+   }
+}
@@ -0,0 +1,44 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+/**
+ * This event is posted on the Datastore's event bus when StorageMultipageTiff
+ * falls behind on writing images to disk (and therefore starts blocking new
+ * images until its writing queue drains), and again when it catches up.
+ */
+public final class WritingBacklogEvent {
+   private final int numPending_;
+
+   public WritingBacklogEvent(int numPending) {
+      numPending_ = numPending;
+   }
+
+   /**
+    * Return the number of writes that were queued when the storage fell
+    * behind, or 0 if it has caught up.
+    */
+   public int getNumPendingWrites() {
+      return numPending_;
+   }
+
+   public boolean getIsBehind() {
+      return numPending_ > 0;
+   }
+}
@@ -20,20 +20,83 @@
 
 package org.micromanager.data.internal.pipeline;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
 import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
 
+/**
+ * Runs a Processor in its own thread, fed by a bounded queue of images.
+ * If the Processor is parallel-safe, then images are instead handed off to
+ * a pool of worker threads, and a separate output thread passes the
+ * results along the pipeline in the order the images were received.
+ */
 public final class AsynchronousContext extends BaseContext {
-   private boolean isFlushed_ = false;
-   private LinkedBlockingQueue<ImageWrapper> inputQueue_ = null;
+   // Placed in pendingOutputs_ to indicate that the pipeline is flushing.
+   private static final Future<List<Image>> FLUSH_MARKER =
+      new FutureTask<List<Image>>(new Callable<List<Image>>() {
+         @Override
+         public List<Image> call() {
+            return null;
+         }
+      });
+
+   private final LinkedBlockingQueue<ImageWrapper> inputQueue_;
+   private final int batchSize_;
+   // These are only used for parallel-safe processors.
+   private ExecutorService workers_ = null;
+   private LinkedBlockingQueue<Future<List<Image>>> pendingOutputs_ = null;
 
    public AsynchronousContext(Processor processor,
          Datastore store, DefaultPipeline parent) {
+      this(processor, store, parent, DefaultPipeline.getStageQueueDepth(),
+            DefaultPipeline.getMaxProcessorThreads());
+   }
+
+   /**
+    * @param queueDepth Number of images that may wait for the processor
+    *        before insertImage() blocks.
+    * @param numThreads Number of threads to use if the processor is
+    *        parallel-safe.
+    */
+   public AsynchronousContext(Processor processor,
+         Datastore store, DefaultPipeline parent, int queueDepth,
+         int numThreads) {
       super(processor, store, parent);
-      inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(1);
+      batchSize_ = Math.max(1, queueDepth);
+      inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(batchSize_);
+      if (numThreads > 1 && processor_.getIsParallelSafe()) {
+         final String name = "Processor worker for " + processor_;
+         workers_ = Executors.newFixedThreadPool(numThreads,
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     return new Thread(r, name);
+                  }
+               });
+         // Limits how many images can be in the workers' hands at once, so
+         // that we don't accept images faster than we can output them.
+         pendingOutputs_ = new LinkedBlockingQueue<Future<List<Image>>>(
+               2 * numThreads);
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               emitOutputs();
+            }
+         }, "Processor output for " + processor_).start();
+      }
       // Create a new thread to do processing in.
       new Thread(new Runnable() {
          @Override
@@ -45,55 +108,110 @@ public final class AsynchronousContext extends BaseContext {
 
    /**
     * This method runs in a separate thread, and pulls images from the
-    * input queue, to feed into the processor. It only runs when the pipeline
-    * is in asynchronous mode; in synchronous mode, the processor is invoked
-    * directly by insertImage().
+    * input queue, to feed into the processor (or to the worker threads, for
+    * parallel-safe processors). It only runs when the pipeline is in
+    * asynchronous mode; in synchronous mode, the processor is invoked
+    * directly by insertImage(). The thread exits once the pipeline has been
+    * flushed.
     */
    private void monitorQueue() {
+      ArrayList<ImageWrapper> batch = new ArrayList<ImageWrapper>(batchSize_);
       while (true) {
-         ImageWrapper wrapper = null;
          try {
-            wrapper = inputQueue_.poll(1000, TimeUnit.MILLISECONDS);
+            batch.add(inputQueue_.take());
          }
          catch (InterruptedException e) {
             // Ignore it.
-            Thread.currentThread().interrupt();
+            continue;
          }
-         if (wrapper == null) {
-            // Queue is empty.
-            if (isFlushed_) {
-               // All done.
+         // Take everything else that is already waiting, rather than waking
+         // up once per image.
+         inputQueue_.drainTo(batch, batchSize_ - 1);
+         for (ImageWrapper wrapper : batch) {
+            if (wrapper.getImage() == null) {
+               if (workers_ == null) {
+                  finishFlush(wrapper);
+               }
+               else {
+                  // The output thread finishes the flush once the workers
+                  // are done.
+                  putPendingOutput(FLUSH_MARKER);
+               }
                return;
             }
+            if (workers_ == null) {
+               try {
+                  processor_.processImage(wrapper.getImage(), this);
+               }
+               catch (Exception e) {
+                  ReportingUtils.logError(e, "Processor failed to process image");
+                  // Pass the exception to our parent.
+                  parent_.exceptionOccurred(e);
+               }
+               metrics_.imageFinished(wrapper.getReceivedTime());
+            }
             else {
-               // Go back to polling.
-               continue;
+               putPendingOutput(workers_.submit(new WorkerTask(wrapper)));
             }
          }
-         if (wrapper.getImage() == null) {
-            // Flushing the queue; cleanup the processor and pass the empty
-            // wrapper along.
-            processor_.cleanup(this);
-            if (sink_ != null) {
-               sink_.insertImage(wrapper);
-            }
-            isFlushed_ = true;
-            if (flushLatch_ != null) {
-               flushLatch_.countDown();
-            }
+         batch.clear();
+      }
+   }
+
+   private void putPendingOutput(Future<List<Image>> output) {
+      try {
+         pendingOutputs_.put(output);
+      }
+      catch (InterruptedException e) {
+         ReportingUtils.logError(e, "Interrupted while passing image to processor");
+      }
+   }
+
+   /**
+    * This method runs in a separate thread for parallel-safe processors,
+    * and passes the images output by the workers along the pipeline, in
+    * order.
+    */
+   private void emitOutputs() {
+      while (true) {
+         Future<List<Image>> output;
+         try {
+            output = pendingOutputs_.take();
          }
-         else {
-            // Non-null image: process it.
-            isFlushed_ = false;
-            try {
-               processor_.processImage(wrapper.getImage(), this);
-            }
-            catch (Exception e) {
-               ReportingUtils.logError(e, "Processor failed to process image");
-               // Pass the exception to our parent.
-               parent_.exceptionOccurred(e);
+         catch (InterruptedException e) {
+            // Ignore it.
+            continue;
+         }
+         if (output == FLUSH_MARKER) {
+            workers_.shutdown();
+            finishFlush(new ImageWrapper(null));
+            return;
+         }
+         try {
+            for (Image image : output.get()) {
+               outputImage(image);
             }
          }
+         catch (InterruptedException e) {
+            ReportingUtils.logError(e, "Interrupted while waiting for processed image");
+         }
+         catch (ExecutionException e) {
+            ReportingUtils.logError(e, "Processor failed to process image");
+            parent_.exceptionOccurred(e);
+         }
+      }
+   }
+
+   /**
+    * Cleanup the processor and pass the empty wrapper along.
+    */
+   private void finishFlush(ImageWrapper wrapper) {
+      processor_.cleanup(this);
+      if (sink_ != null) {
+         sink_.insertImage(wrapper);
+      }
+      if (flushLatch_ != null) {
+         flushLatch_.countDown();
       }
    }
 
@@ -102,6 +220,9 @@ public final class AsynchronousContext extends BaseContext {
     * flush the pipeline instead, passing the null along to the next context.
     */
    public void insertImage(ImageWrapper wrapper) {
+      if (wrapper.getImage() != null) {
+         wrapper.setReceivedTime(metrics_.imageReceived());
+      }
       try {
          inputQueue_.put(wrapper);
       }
@@ -109,4 +230,41 @@ public final class AsynchronousContext extends BaseContext {
          ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
       }
    }
+
+   /**
+    * Processes a single image on a worker thread, collecting the images the
+    * processor outputs so that emitOutputs() can pass them along in order.
+    */
+   private class WorkerTask implements Callable<List<Image>>, ProcessorContext {
+      private final ImageWrapper wrapper_;
+      private final ArrayList<Image> outputs_ = new ArrayList<Image>();
+
+      public WorkerTask(ImageWrapper wrapper) {
+         wrapper_ = wrapper;
+      }
+
+      @Override
+      public List<Image> call() {
+         try {
+            processor_.processImage(wrapper_.getImage(), this);
+         }
+         catch (Exception e) {
+            ReportingUtils.logError(e, "Processor failed to process image");
+            // Pass the exception to our parent.
+            parent_.exceptionOccurred(e);
+         }
+         metrics_.imageFinished(wrapper_.getReceivedTime());
+         return outputs_;
+      }
+
+      @Override
+      public void outputImage(Image image) {
+         outputs_.add(image);
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return AsynchronousContext.this.getSummaryMetadata();
+      }
+   }
 }
@@ -27,7 +27,9 @@ import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.StageMetrics;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.diagnostics.StageMetricsRecorder;
 import org.micromanager.internal.utils.ReportingUtils;
 
 public abstract class BaseContext implements ProcessorContext {
@@ -36,12 +38,15 @@ public abstract class BaseContext implements ProcessorContext {
    protected Datastore store_;
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
+   protected final StageMetricsRecorder metrics_;
 
    public BaseContext(Processor processor, Datastore store,
          DefaultPipeline parent) {
       processor_ = processor;
       store_ = store;
       parent_ = parent;
+      metrics_ = StageMetricsRecorder.create(
+            "Processor " + processor.getClass().getSimpleName());
    }
 
    /**
@@ -101,6 +106,13 @@ public abstract class BaseContext implements ProcessorContext {
     */
    abstract public void insertImage(ImageWrapper wrapper);
 
+   /**
+    * Return the performance statistics for our processor.
+    */
+   public StageMetrics getMetrics() {
+      return metrics_;
+   }
+
    @Override
    public SummaryMetadata getSummaryMetadata() {
       return store_.getSummaryMetadata();
@@ -21,6 +21,7 @@
 package org.micromanager.data.internal.pipeline;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import org.micromanager.data.Datastore;
@@ -30,11 +31,15 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Pipeline;
 import org.micromanager.data.PipelineErrorException;
 import org.micromanager.data.Processor;
+import org.micromanager.data.StageMetrics;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.DefaultUserProfile;
 import org.micromanager.internal.utils.ReportingUtils;
 
 public final class DefaultPipeline implements Pipeline {
-   
+   private static final String STAGE_QUEUE_DEPTH = "number of images that can wait for each processor in an asynchronous pipeline";
+   private static final String MAX_PROCESSOR_THREADS = "maximum number of threads used by each parallel-safe processor";
+
    private List<Processor> processors_;
    private List<BaseContext> contexts_;
    private Datastore store_;
@@ -43,21 +48,34 @@ public final class DefaultPipeline implements Pipeline {
    private boolean amHalting_ = false;
    private boolean isHalted_ = false;
    private boolean isFlushComplete_ = false;
-   private ArrayList<Exception> exceptions_;
+   // Contexts may report exceptions from several threads at once.
+   private List<Exception> exceptions_;
 
-   @SuppressWarnings("LeakingThisInConstructor")
    public DefaultPipeline(List<Processor> processors, Datastore store,
          boolean isSynchronous) {
+      this(processors, store, isSynchronous, getStageQueueDepth(),
+            getMaxProcessorThreads());
+   }
+
+   /**
+    * Create a pipeline with the given queue depth and number of threads for
+    * each stage, which only matter in asynchronous mode; see
+    * AsynchronousContext.
+    */
+   @SuppressWarnings("LeakingThisInConstructor")
+   public DefaultPipeline(List<Processor> processors, Datastore store,
+         boolean isSynchronous, int queueDepth, int numThreads) {
       processors_ = processors;
       store_ = store;
       contexts_ = new ArrayList<BaseContext>();
-      exceptions_ = new ArrayList<Exception>();
+      exceptions_ = Collections.synchronizedList(new ArrayList<Exception>());
       for (Processor processor : processors_) {
          if (isSynchronous) {
             contexts_.add(new SynchronousContext(processor, store_, this));
          }
          else {
-            contexts_.add(new AsynchronousContext(processor, store_, this));
+            contexts_.add(new AsynchronousContext(processor, store_, this,
+                     queueDepth, numThreads));
          }
       }
       // Chain the contexts together. The last one goes to the Datastore by
@@ -168,7 +186,51 @@ public final class DefaultPipeline implements Pipeline {
       return processors_;
    }
 
+   /**
+    * Return performance statistics for each Processor in the Pipeline, in
+    * the same order as getProcessors().
+    */
+   public List<StageMetrics> getStageMetrics() {
+      ArrayList<StageMetrics> result = new ArrayList<StageMetrics>();
+      for (BaseContext context : contexts_) {
+         result.add(context.getMetrics());
+      }
+      return result;
+   }
+
    public void exceptionOccurred(Exception e) {
       exceptions_.add(e);
    }
+
+   /**
+    * Number of images that can wait to be processed by each processor in an
+    * asynchronous pipeline before the previous stage (or the acquisition)
+    * blocks. Each processor takes all waiting images at once, so larger
+    * queues reduce per-image overhead, at the cost of memory.
+    */
+   public static int getStageQueueDepth() {
+      return DefaultUserProfile.getInstance().getInt(
+            DefaultPipeline.class, STAGE_QUEUE_DEPTH, 8);
+   }
+
+   public static void setStageQueueDepth(int depth) {
+      DefaultUserProfile.getInstance().setInt(
+            DefaultPipeline.class, STAGE_QUEUE_DEPTH, depth);
+   }
+
+   /**
+    * Maximum number of threads used by each processor that declares itself
+    * parallel-safe (see Processor.getIsParallelSafe()). Defaults to the
+    * number of available processors.
+    */
+   public static int getMaxProcessorThreads() {
+      return DefaultUserProfile.getInstance().getInt(
+            DefaultPipeline.class, MAX_PROCESSOR_THREADS,
+            Runtime.getRuntime().availableProcessors());
+   }
+
+   public static void setMaxProcessorThreads(int numThreads) {
+      DefaultUserProfile.getInstance().setInt(
+            DefaultPipeline.class, MAX_PROCESSOR_THREADS, numThreads);
+   }
 }
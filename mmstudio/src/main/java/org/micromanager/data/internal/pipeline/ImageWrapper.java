@@ -29,6 +29,7 @@ import org.micromanager.data.Image;
  */
 public final class ImageWrapper {
    private Image image_;
+   private long receivedTime_ = 0;
 
    public ImageWrapper(Image image) {
       image_ = image;
@@ -37,4 +38,16 @@ public final class ImageWrapper {
    public Image getImage() {
       return image_;
    }
+
+   /**
+    * Set the time at which the image was handed to a context, as returned
+    * by StageMetricsRecorder.imageReceived().
+    */
+   public void setReceivedTime(long time) {
+      receivedTime_ = time;
+   }
+
+   public long getReceivedTime() {
+      return receivedTime_;
+   }
 }
@@ -47,6 +47,7 @@ public final class SynchronousContext extends BaseContext {
          }
       }
       else {
+         long receivedTime = metrics_.imageReceived();
          try {
             processor_.processImage(wrapper.getImage(), this);
          }
@@ -55,6 +56,7 @@ public final class SynchronousContext extends BaseContext {
             // Pass the exception to our parent.
             parent_.exceptionOccurred(e);
          }
+         metrics_.imageFinished(receivedTime);
       }
    }
 }
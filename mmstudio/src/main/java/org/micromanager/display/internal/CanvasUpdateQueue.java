@@ -294,6 +294,12 @@ public final class CanvasUpdateQueue {
          ijBuffer.put(ByteBuffer.wrap(reordered).asIntBuffer());
          pixels = ijPixels;
       }
+      else {
+         // getRawPixels() returns the array the image is stored in, which
+         // is shared with the Datastore; give ImageJ its own copy, as it
+         // modifies the processor's pixels when the user edits the image.
+         pixels = image.getRawPixelsCopy();
+      }
       plus.getProcessor().setPixels(pixels);
 
       // Recalculate histogram data, if necessary (because the image
@@ -212,7 +212,9 @@ public final class MMVirtualStack extends ij.VirtualStack {
             // Extract the appropriate component.
             return image.getRawPixelsForComponent((flatIndex - 1) % image.getNumComponents());
          }
-         return image.getRawPixels();
+         // ImageJ may modify the array it gets, so don't give it the one
+         // the image is stored in.
+         return image.getRawPixelsCopy();
       }
       studio_.logs().logError("Null image at " + curCoords_);
       return null;
@@ -229,7 +231,7 @@ public final class MMVirtualStack extends ij.VirtualStack {
          studio_.logs().logError("Tried to get a processor for an invalid image index " + flatIndex + " which ImageJ treats as " + mapFlatIndexToCoords(flatIndex));
          return null;
       }
-      ImageProcessor result = ((DefaultImageJConverter) studio_.data().ij()).createProcessor(image, false);
+      ImageProcessor result = ((DefaultImageJConverter) studio_.data().ij()).createProcessor(image, true);
       if (result == null) {
          int numPixels = -1;
          String type = "unknown";
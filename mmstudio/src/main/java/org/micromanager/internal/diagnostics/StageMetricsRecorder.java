@@ -0,0 +1,208 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.diagnostics;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import org.micromanager.data.StageMetrics;
+
+/**
+ * Records StageMetrics for one stage of image handling. The stage calls
+ * imageReceived() when it is handed an image and imageFinished() when it is
+ * done with it.
+ *
+ * All recorders created by create() are tracked (weakly) so that they can
+ * be listed in the throughput monitor.
+ */
+public final class StageMetricsRecorder implements StageMetrics {
+   // Throughput is measured over windows of this length.
+   private static final long RATE_WINDOW_NS = 2000000000L;
+
+   private static final List<WeakReference<StageMetricsRecorder>> allRecorders_ =
+      new ArrayList<WeakReference<StageMetricsRecorder>>();
+
+   private final String name_;
+   private Queue<?> backlog_ = null;
+   private int pending_ = 0;
+   private long count_ = 0;
+   private long totalNs_ = 0;
+   private final long[] histogram_ = new long[NUM_HISTOGRAM_BINS];
+   private long lastFinishNs_ = 0;
+   private long lastFinishMs_ = 0;
+   private long windowStartNs_ = 0;
+   private long windowCount_ = 0;
+   private double rate_ = 0;
+
+   private StageMetricsRecorder(String name) {
+      name_ = name;
+   }
+
+   /**
+    * Create a new recorder and add it to the list returned by
+    * getAllRecorders().
+    */
+   public static StageMetricsRecorder create(String name) {
+      StageMetricsRecorder result = new StageMetricsRecorder(name);
+      synchronized(allRecorders_) {
+         allRecorders_.add(new WeakReference<StageMetricsRecorder>(result));
+      }
+      return result;
+   }
+
+   /**
+    * Return all recorders that have not yet been garbage-collected, in the
+    * order they were created.
+    */
+   public static List<StageMetricsRecorder> getAllRecorders() {
+      ArrayList<StageMetricsRecorder> result = new ArrayList<StageMetricsRecorder>();
+      synchronized(allRecorders_) {
+         Iterator<WeakReference<StageMetricsRecorder>> iter = allRecorders_.iterator();
+         while (iter.hasNext()) {
+            StageMetricsRecorder recorder = iter.next().get();
+            if (recorder == null) {
+               iter.remove();
+            }
+            else {
+               result.add(recorder);
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Provide a queue of images waiting to be handed to the stage, whose size
+    * is included in getQueueDepth().
+    */
+   public synchronized void setBacklog(Queue<?> backlog) {
+      backlog_ = backlog;
+   }
+
+   /**
+    * Note that the stage has been handed an image.
+    * @return the time to pass to imageFinished().
+    */
+   public synchronized long imageReceived() {
+      ++pending_;
+      return System.nanoTime();
+   }
+
+   /**
+    * Note that the stage has finished with an image.
+    * @param receivedNs The value returned by the corresponding call to
+    *        imageReceived().
+    */
+   public synchronized void imageFinished(long receivedNs) {
+      long now = System.nanoTime();
+      long latency = Math.max(0, now - receivedNs);
+      pending_ = Math.max(0, pending_ - 1);
+      ++count_;
+      totalNs_ += latency;
+      ++histogram_[getBin(latency)];
+      lastFinishNs_ = now;
+      lastFinishMs_ = System.currentTimeMillis();
+      if (windowCount_ == 0) {
+         windowStartNs_ = receivedNs;
+      }
+      ++windowCount_;
+      if (now - windowStartNs_ >= RATE_WINDOW_NS) {
+         rate_ = windowCount_ * 1e9 / (now - windowStartNs_);
+         windowStartNs_ = now;
+         windowCount_ = 0;
+      }
+   }
+
+   private static int getBin(long latencyNs) {
+      long micros = latencyNs / 1000;
+      int bin = 64 - Long.numberOfLeadingZeros(micros);
+      return Math.min(bin, NUM_HISTOGRAM_BINS - 1);
+   }
+
+   private static double getBinUpperBoundMs(int bin) {
+      return Math.pow(2, bin) / 1000;
+   }
+
+   @Override
+   public String getName() {
+      return name_;
+   }
+
+   @Override
+   public synchronized int getQueueDepth() {
+      return pending_ + (backlog_ == null ? 0 : backlog_.size());
+   }
+
+   @Override
+   public synchronized long getImageCount() {
+      return count_;
+   }
+
+   @Override
+   public synchronized double getImagesPerSecond() {
+      long now = System.nanoTime();
+      if (count_ == 0 || now - lastFinishNs_ > 2 * RATE_WINDOW_NS) {
+         // Nothing has happened recently.
+         return 0;
+      }
+      if (rate_ == 0 && now > windowStartNs_) {
+         // Still in our first window.
+         return windowCount_ * 1e9 / (now - windowStartNs_);
+      }
+      return rate_;
+   }
+
+   @Override
+   public synchronized double getMeanLatencyMs() {
+      if (count_ == 0) {
+         return 0;
+      }
+      return totalNs_ / 1e6 / count_;
+   }
+
+   @Override
+   public synchronized double getLatencyPercentileMs(double percentile) {
+      if (count_ == 0) {
+         return 0;
+      }
+      long target = (long) Math.ceil(count_ * percentile / 100);
+      long total = 0;
+      for (int i = 0; i < NUM_HISTOGRAM_BINS; ++i) {
+         total += histogram_[i];
+         if (total >= target && total > 0) {
+            return getBinUpperBoundMs(i);
+         }
+      }
+      return getBinUpperBoundMs(NUM_HISTOGRAM_BINS - 1);
+   }
+
+   @Override
+   public synchronized long[] getLatencyHistogram() {
+      return histogram_.clone();
+   }
+
+   @Override
+   public synchronized long getLastImageTime() {
+      return lastFinishMs_;
+   }
+
+   @Override
+   public synchronized void reset() {
+      count_ = 0;
+      totalNs_ = 0;
+      Arrays.fill(histogram_, 0);
+      windowCount_ = 0;
+      rate_ = 0;
+   }
+}
@@ -0,0 +1,163 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal.diagnostics.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.micromanager.internal.diagnostics.StageMetricsRecorder;
+
+/**
+ * Live view of the StageMetrics of all stages that images pass through
+ * (acquisition sink, pipeline processors, datastores, and file writers),
+ * so that the stage limiting throughput can be identified.
+ */
+public final class ThroughputMonitorFrame extends javax.swing.JFrame {
+   private static final int REFRESH_INTERVAL_MS = 1000;
+   // Stages that haven't handled an image for this long are hidden unless
+   // the user asks to see them.
+   private static final long IDLE_TIME_MS = 60000;
+   private static final String[] COLUMNS = new String[] {
+      "Stage", "Queued", "Images", "Images/s", "Mean (ms)", "Median (ms)",
+      "99% (ms)"
+   };
+
+   private static ThroughputMonitorFrame instance_ = null;
+
+   private final MetricsTableModel model_;
+   private final javax.swing.JCheckBox showIdleCheckBox_;
+   private final javax.swing.Timer timer_;
+
+   /**
+    * Show the monitor, creating it if necessary. Must be called on the EDT.
+    */
+   public static void showMonitor() {
+      if (instance_ == null) {
+         instance_ = new ThroughputMonitorFrame();
+      }
+      instance_.setVisible(true);
+      instance_.toFront();
+   }
+
+   private ThroughputMonitorFrame() {
+      super("Throughput Monitor");
+      setDefaultCloseOperation(javax.swing.WindowConstants.HIDE_ON_CLOSE);
+
+      model_ = new MetricsTableModel();
+      javax.swing.JTable table = new javax.swing.JTable(model_);
+      table.getColumnModel().getColumn(0).setPreferredWidth(200);
+
+      showIdleCheckBox_ = new javax.swing.JCheckBox("Show idle stages");
+      showIdleCheckBox_.addActionListener(new java.awt.event.ActionListener() {
+         @Override
+         public void actionPerformed(java.awt.event.ActionEvent e) {
+            refresh();
+         }
+      });
+
+      javax.swing.JButton resetButton = new javax.swing.JButton("Reset");
+      resetButton.addActionListener(new java.awt.event.ActionListener() {
+         @Override
+         public void actionPerformed(java.awt.event.ActionEvent e) {
+            for (StageMetricsRecorder recorder : StageMetricsRecorder.getAllRecorders()) {
+               recorder.reset();
+            }
+            refresh();
+         }
+      });
+
+      setLayout(new net.miginfocom.swing.MigLayout(
+               "fill, insets dialog",
+               "[grow, fill]",
+               "[grow, fill]related[]"));
+      add(new javax.swing.JScrollPane(table), "wrap, width 700, height 200");
+      add(showIdleCheckBox_, "split 2");
+      add(resetButton, "gapleft push, growx 0");
+      pack();
+
+      timer_ = new javax.swing.Timer(REFRESH_INTERVAL_MS,
+            new java.awt.event.ActionListener() {
+               @Override
+               public void actionPerformed(java.awt.event.ActionEvent e) {
+                  refresh();
+               }
+            });
+      addComponentListener(new java.awt.event.ComponentAdapter() {
+         @Override
+         public void componentShown(java.awt.event.ComponentEvent e) {
+            refresh();
+            timer_.start();
+         }
+
+         @Override
+         public void componentHidden(java.awt.event.ComponentEvent e) {
+            timer_.stop();
+         }
+      });
+   }
+
+   private void refresh() {
+      List<StageMetricsRecorder> stages = new ArrayList<StageMetricsRecorder>();
+      long now = System.currentTimeMillis();
+      for (StageMetricsRecorder recorder : StageMetricsRecorder.getAllRecorders()) {
+         if (showIdleCheckBox_.isSelected() ||
+               recorder.getQueueDepth() > 0 ||
+               now - recorder.getLastImageTime() < IDLE_TIME_MS) {
+            stages.add(recorder);
+         }
+      }
+      model_.setStages(stages);
+   }
+
+   private static class MetricsTableModel extends javax.swing.table.AbstractTableModel {
+      private List<StageMetricsRecorder> stages_ = new ArrayList<StageMetricsRecorder>();
+
+      void setStages(List<StageMetricsRecorder> stages) {
+         stages_ = stages;
+         fireTableDataChanged();
+      }
+
+      @Override
+      public int getRowCount() {
+         return stages_.size();
+      }
+
+      @Override
+      public int getColumnCount() {
+         return COLUMNS.length;
+      }
+
+      @Override
+      public String getColumnName(int column) {
+         return COLUMNS[column];
+      }
+
+      @Override
+      public Object getValueAt(int row, int column) {
+         StageMetricsRecorder stage = stages_.get(row);
+         switch (column) {
+            case 0:
+               return stage.getName();
+            case 1:
+               return stage.getQueueDepth();
+            case 2:
+               return stage.getImageCount();
+            case 3:
+               return String.format("%.1f", stage.getImagesPerSecond());
+            case 4:
+               return String.format("%.3f", stage.getMeanLatencyMs());
+            case 5:
+               return String.format("%.3f", stage.getLatencyPercentileMs(50));
+            default:
+               return String.format("%.3f", stage.getLatencyPercentileMs(99));
+         }
+      }
+   }
+}
@@ -251,6 +251,54 @@ public final class OptionsDlg extends MMDialog {
             StorageMultipageTiff.setShouldSplitPositions(separateFilesForPositionsMPTiffCheckBox.isSelected());
          }
       });
+
+      final JCheckBox parallelWritersMPTiffCheckBox = new JCheckBox();
+      parallelWritersMPTiffCheckBox.setText("Write each XY position's Image Stack Files on a separate thread");
+      parallelWritersMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseParallelWriters());
+      parallelWritersMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseParallelWriters(parallelWritersMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox bigTiffMPTiffCheckBox = new JCheckBox();
+      bigTiffMPTiffCheckBox.setText("Save Image Stack Files as BigTIFF (no 4GB file size limit)");
+      bigTiffMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseBigTiff());
+      bigTiffMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseBigTiff(bigTiffMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox binaryMetadataMPTiffCheckBox = new JCheckBox();
+      binaryMetadataMPTiffCheckBox.setText("Save image metadata in Image Stack Files in binary format (faster)");
+      binaryMetadataMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseBinaryMetadata());
+      binaryMetadataMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseBinaryMetadata(binaryMetadataMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox memoryMapMPTiffCheckBox = new JCheckBox();
+      memoryMapMPTiffCheckBox.setText("Read Image Stack Files using memory mapping (less memory use when browsing)");
+      memoryMapMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseMemoryMapping());
+      if (!StorageMultipageTiff.getCanUseMemoryMapping()) {
+         memoryMapMPTiffCheckBox.setEnabled(false);
+         memoryMapMPTiffCheckBox.setToolTipText("Not available on this system; mapped files would stay locked after their datasets are closed");
+      }
+      memoryMapMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseMemoryMapping(memoryMapMPTiffCheckBox.isSelected());
+         }
+      });
   
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
@@ -310,6 +358,10 @@ public final class OptionsDlg extends MMDialog {
 
       super.add(metadataFileWithMultipageTiffCheckBox, "wrap");
       super.add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      super.add(parallelWritersMPTiffCheckBox, "wrap");
+      super.add(bigTiffMPTiffCheckBox, "wrap");
+      super.add(binaryMetadataMPTiffCheckBox, "wrap");
+      super.add(memoryMapMPTiffCheckBox, "wrap");
 
       super.add(new JSeparator(), "wrap");
 
@@ -58,6 +58,16 @@ public final class HelpMenu {
          }
       );
 
+      GUIUtils.addMenuItem(helpMenu, "Throughput Monitor...",
+         "Show how long images spend in each stage of acquisition, processing and saving",
+         new Runnable() {
+            @Override
+            public void run() {
+               org.micromanager.internal.diagnostics.gui.ThroughputMonitorFrame.showMonitor();
+            }
+         }
+      );
+
       GUIUtils.addMenuItem(helpMenu, "About Micromanager", null,
          new Runnable() {
             @Override
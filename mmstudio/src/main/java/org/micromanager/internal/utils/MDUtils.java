@@ -553,8 +553,14 @@ public final class MDUtils {
 
    public static Rectangle getROI(JSONObject tags)
       throws IllegalArgumentException, JSONException {
-      String roiString = tags.getString("ROI");
+      return parseROI(tags.getString("ROI"));
+   }
 
+   /**
+    * Parse the value of an ROI tag, as written by setROI().
+    */
+   public static Rectangle parseROI(String roiString)
+      throws IllegalArgumentException {
       // roiString is a '-'-separated sequence of 4 integers (an unfortunate
       // choice when the integers are negative). Although all 4 parameters are
       // positive, negative numbers have been observed in the wild, and the
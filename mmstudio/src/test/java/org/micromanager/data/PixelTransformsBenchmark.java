@@ -0,0 +1,98 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Compares the time taken to mirror and rotate a 16-bit camera sized image
+ * using ImageJ processors, as ImageFlipper used to, with PixelTransforms.
+ * Not a unit test; run main() by hand.
+ */
+public class PixelTransformsBenchmark {
+   private static final int WIDTH = 2048;
+   private static final int HEIGHT = 2048;
+   private static final int ITERATIONS = 50;
+
+   public static void main(String[] args) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; ++i) {
+         pixels[i] = (short) i;
+      }
+      short[] dest = new short[pixels.length];
+      for (int rotation : new int[] {PixelTransforms.R90,
+            PixelTransforms.R180, PixelTransforms.R270}) {
+         // Warm up both paths before timing them.
+         for (int i = 0; i < ITERATIONS; ++i) {
+            transformImageJ(pixels.clone(), true, rotation);
+            PixelTransforms.transform(pixels, WIDTH, HEIGHT, 2, true,
+                  rotation, dest);
+         }
+         // ImageJ transforms in place, so each iteration needs a fresh copy
+         // of the pixels; don't count the time taken to make it.
+         long imageJ = 0;
+         for (int i = 0; i < ITERATIONS; ++i) {
+            short[] copy = pixels.clone();
+            long start = System.nanoTime();
+            transformImageJ(copy, true, rotation);
+            imageJ += System.nanoTime() - start;
+         }
+         long start = System.nanoTime();
+         for (int i = 0; i < ITERATIONS; ++i) {
+            PixelTransforms.transform(pixels, WIDTH, HEIGHT, 2, true,
+                  rotation, null);
+         }
+         long allocating = System.nanoTime() - start;
+         start = System.nanoTime();
+         for (int i = 0; i < ITERATIONS; ++i) {
+            PixelTransforms.transform(pixels, WIDTH, HEIGHT, 2, true,
+                  rotation, dest);
+         }
+         long reusing = System.nanoTime() - start;
+         System.out.println(String.format(
+                  "Rotation %d: ImageJ %.2f ms, PixelTransforms %.2f ms " +
+                  "(%.2f ms reusing the destination)", rotation,
+                  imageJ / 1e6 / ITERATIONS, allocating / 1e6 / ITERATIONS,
+                  reusing / 1e6 / ITERATIONS));
+      }
+   }
+
+   /**
+    * Modifies the provided pixels.
+    */
+   private static Object transformImageJ(short[] pixels, boolean isMirrored,
+         int rotation) {
+      ImageProcessor proc = new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+      if (isMirrored) {
+         proc.flipHorizontal();
+      }
+      if (rotation == PixelTransforms.R90) {
+         proc = proc.rotateRight();
+      }
+      if (rotation == PixelTransforms.R180) {
+         proc = proc.rotateRight();
+         proc = proc.rotateRight();
+      }
+      if (rotation == PixelTransforms.R270) {
+         proc = proc.rotateLeft();
+      }
+      return proc.getPixels();
+   }
+}
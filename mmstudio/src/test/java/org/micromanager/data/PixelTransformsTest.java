@@ -0,0 +1,111 @@
+package org.micromanager.data;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PixelTransformsTest {
+
+   private static final int[] ROTATIONS = new int[] {PixelTransforms.R0,
+      PixelTransforms.R90, PixelTransforms.R180, PixelTransforms.R270};
+
+   /**
+    * Return the source coordinates of the pixel that ends up at (x, y) after
+    * mirroring and rotating, by undoing one rotation step at a time.
+    */
+   private static int[] sourceOf(int x, int y, int width, int height,
+         boolean isMirrored, int rotation) {
+      int w = (rotation == PixelTransforms.R90 ||
+            rotation == PixelTransforms.R270) ? height : width;
+      int h = (w == width) ? height : width;
+      for (int r = 0; r < rotation; r += 90) {
+         // Undo a clockwise rotation of a w x h result.
+         int sx = y;
+         int sy = w - 1 - x;
+         x = sx;
+         y = sy;
+         int tmp = w;
+         w = h;
+         h = tmp;
+      }
+      if (isMirrored) {
+         x = width - 1 - x;
+      }
+      return new int[] {x, y};
+   }
+
+   @Test
+   public void transformsMatchReference() {
+      Random random = new Random(3);
+      int[][] sizes = new int[][] {{1, 1}, {7, 3}, {64, 64}, {130, 67},
+         {3, 200}};
+      for (int[] size : sizes) {
+         int width = size[0];
+         int height = size[1];
+         short[] shorts = new short[width * height];
+         float[] floats = new float[width * height];
+         byte[] rgb = new byte[width * height * 4];
+         for (int i = 0; i < shorts.length; ++i) {
+            shorts[i] = (short) random.nextInt();
+            floats[i] = random.nextFloat();
+         }
+         random.nextBytes(rgb);
+         for (int rotation : ROTATIONS) {
+            for (boolean isMirrored : new boolean[] {false, true}) {
+               short[] shortResult = (short[]) PixelTransforms.transform(
+                     shorts, width, height, 2, isMirrored, rotation, null);
+               float[] floatResult = (float[]) PixelTransforms.transform(
+                     floats, width, height, 4, isMirrored, rotation,
+                     new float[floats.length]);
+               byte[] rgbResult = (byte[]) PixelTransforms.transform(
+                     rgb, width, height, 4, isMirrored, rotation, null);
+               int newWidth = shortResult.length / (rotation % 180 == 0 ?
+                     height : width);
+               for (int i = 0; i < shortResult.length; ++i) {
+                  int[] s = sourceOf(i % newWidth, i / newWidth, width,
+                        height, isMirrored, rotation);
+                  int index = s[1] * width + s[0];
+                  assertEquals(shorts[index], shortResult[i]);
+                  assertEquals(floats[index], floatResult[i], 0);
+                  for (int c = 0; c < 4; ++c) {
+                     assertEquals(rgb[index * 4 + c], rgbResult[i * 4 + c]);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void transposeSwapsRowsAndColumns() {
+      byte[] pixels = new byte[] {1, 2, 3, 4, 5, 6};
+      byte[] result = (byte[]) PixelTransforms.transpose(pixels, 3, 2, 1,
+            null);
+      assertArrayEquals(new byte[] {1, 4, 2, 5, 3, 6}, result);
+   }
+
+   @Test
+   public void splitsIntoEqualParts() {
+      short[] pixels = new short[] {
+         1, 2, 3, 4, 5,
+         6, 7, 8, 9, 10};
+      Object[] parts = PixelTransforms.split(pixels, 5, 2, 2, 2, false,
+            null);
+      assertArrayEquals(new short[] {1, 2, 6, 7}, (short[]) parts[0]);
+      assertArrayEquals(new short[] {3, 4, 8, 9}, (short[]) parts[1]);
+
+      parts = PixelTransforms.split(pixels, 5, 2, 2, 2, true, null);
+      assertArrayEquals(new short[] {1, 2, 3, 4, 5}, (short[]) parts[0]);
+      assertArrayEquals(new short[] {6, 7, 8, 9, 10}, (short[]) parts[1]);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsInvalidRotation() {
+      PixelTransforms.transform(new short[4], 2, 2, 2, false, 45, null);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsTooSmallDestination() {
+      PixelTransforms.crop(new short[16], 4, 4, 2, 1, 1, 2, 2, new short[3]);
+   }
+}
@@ -0,0 +1,108 @@
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class CoordsIndexTest {
+
+   @Test
+   public void matchesAgreeWithLinearScan() {
+      CoordsIndex index = new CoordsIndex();
+      List<Coords> stored = new ArrayList<Coords>();
+      for (int t = 0; t < 10; ++t) {
+         for (int z = 0; z < 5; ++z) {
+            for (int c = 0; c < 3; ++c) {
+               Coords coords = new DefaultCoords.Builder().time(t).z(z)
+                  .channel(c).build();
+               assertTrue(index.add(coords));
+               stored.add(coords);
+            }
+         }
+      }
+      assertFalse(index.add(stored.get(0)));
+
+      Random random = new Random(1234);
+      for (int i = 0; i < 40; ++i) {
+         index.remove(stored.remove(random.nextInt(stored.size())));
+      }
+      assertEquals(stored.size(), index.size());
+
+      for (int i = 0; i < 100; ++i) {
+         DefaultCoords.Builder builder = new DefaultCoords.Builder();
+         if (random.nextBoolean()) {
+            builder.time(random.nextInt(12));
+         }
+         if (random.nextBoolean()) {
+            builder.z(random.nextInt(5));
+         }
+         if (random.nextBoolean()) {
+            builder.channel(random.nextInt(3));
+         }
+         Coords query = builder.build();
+         HashSet<Coords> expected = new HashSet<Coords>();
+         for (Coords coords : stored) {
+            if (coords.matches(query)) {
+               expected.add(coords);
+            }
+         }
+         List<Coords> actual = index.getMatching(query);
+         assertEquals(expected.size(), actual.size());
+         assertEquals(expected, new HashSet<Coords>(actual));
+      }
+   }
+
+   @Test
+   public void handlesCoordsThatCannotBePacked() {
+      CoordsIndex index = new CoordsIndex();
+      Coords packable = new DefaultCoords.Builder().time(2).channel(1).build();
+      Coords custom = new DefaultCoords.Builder().time(2).channel(1)
+         .index("angle", 4).build();
+      Coords large = new DefaultCoords.Builder().time(2).z(100000).build();
+      assertTrue(index.add(packable));
+      assertTrue(index.add(custom));
+      assertTrue(index.add(large));
+      assertFalse(index.add(custom));
+      assertEquals(3, index.size());
+      assertEquals(new HashSet<Coords>(Arrays.asList(packable, custom)),
+            new HashSet<Coords>(index.getMatching(
+                  new DefaultCoords.Builder().channel(1).build())));
+      assertEquals(3, index.getMatching(
+               new DefaultCoords.Builder().time(2).build()).size());
+
+      // A position of -1 matches Coords without that axis.
+      assertEquals(new HashSet<Coords>(Arrays.asList(packable, custom)),
+            new HashSet<Coords>(index.getMatching(
+                  new DefaultCoords.Builder().time(2).z(-1).build())));
+
+      assertTrue(index.remove(custom));
+      assertFalse(index.contains(custom));
+      assertTrue(index.contains(packable));
+      assertEquals(Arrays.asList(packable), index.getMatching(
+               new DefaultCoords.Builder().channel(1).build()));
+      // The freed slot is reused for packable Coords.
+      Coords other = new DefaultCoords.Builder().time(3).channel(1).build();
+      assertTrue(index.add(other));
+      assertEquals(2, index.getMatching(
+               new DefaultCoords.Builder().channel(1).build()).size());
+   }
+
+   @Test
+   public void maxIndicesTrackAdditions() {
+      CoordsIndex index = new CoordsIndex();
+      assertEquals(-1, index.getMaxIndex(Coords.TIME));
+      index.add(new DefaultCoords.Builder().time(3).z(1).build());
+      index.add(new DefaultCoords.Builder().time(1).z(7).build());
+      assertEquals(3, index.getMaxIndex(Coords.TIME));
+      assertEquals(7, index.getMaxIndex(Coords.Z));
+      assertEquals(-1, index.getMaxIndex(Coords.CHANNEL));
+      assertEquals(2, index.getAxes().size());
+      assertEquals(new DefaultCoords.Builder().time(3).z(7).build(),
+            index.getMaxIndices());
+   }
+}
@@ -0,0 +1,81 @@
+package org.micromanager.data.internal;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class DefaultImageTest {
+
+   private static DefaultImage createImage(short[] pixels) {
+      return new DefaultImage(pixels, 4, 2, 2, 1,
+            new DefaultCoords.Builder().time(0).build(),
+            new DefaultMetadata.Builder().build());
+   }
+
+   @Test
+   public void adoptsArrayWithoutCopying() {
+      short[] pixels = new short[] {1, 2, 3, 4, 5, 6, 7, 8};
+      DefaultImage image = createImage(pixels);
+      assertSame(pixels, image.getRawPixels());
+      assertSame(pixels, image.getRawPixelsForWriting());
+      assertEquals(0, image.getBytesCopied());
+
+      short[] copy = (short[]) image.getRawPixelsCopy();
+      assertNotSame(pixels, copy);
+      assertArrayEquals(pixels, copy);
+      assertEquals(2 * pixels.length, image.getBytesCopied());
+   }
+
+   @Test
+   public void copiesSharedPixelsOnWrite() {
+      short[] pixels = new short[] {1, 2, 3, 4, 5, 6, 7, 8};
+      DefaultImage image = createImage(pixels);
+      Coords coords = new DefaultCoords.Builder().time(1).build();
+      DefaultImage copy = (DefaultImage) image.copyAtCoords(coords);
+      assertSame(pixels, copy.getRawPixels());
+
+      short[] written = (short[]) copy.getRawPixelsForWriting();
+      assertNotSame(pixels, written);
+      written[0] = 42;
+      assertEquals(1, image.getIntensityAt(0, 0));
+      assertEquals(42, copy.getIntensityAt(0, 0));
+      assertEquals(2 * pixels.length, copy.getBytesCopied());
+      // Once copied, the copy owns its pixels
+      assertSame(written, copy.getRawPixelsForWriting());
+      assertEquals(2 * pixels.length, copy.getBytesCopied());
+
+      // The original still shares its array with whoever made the copy
+      assertNotSame(pixels, image.getRawPixelsForWriting());
+   }
+
+   @Test
+   public void copiesDirectBufferOnce() {
+      ShortBuffer buffer = ByteBuffer.allocateDirect(16)
+            .order(ByteOrder.nativeOrder()).asShortBuffer();
+      for (short i = 0; i < 8; ++i) {
+         buffer.put(i, i);
+      }
+      DefaultImage image = new DefaultImage(buffer, 4, 2, 2, 1,
+            new DefaultCoords.Builder().time(0).build(),
+            new DefaultMetadata.Builder().build());
+      short[] pixels = (short[]) image.getRawPixels();
+      assertEquals(7, pixels[7]);
+      assertEquals(16, image.getBytesCopied());
+      assertSame(pixels, image.getRawPixels());
+      assertEquals(16, image.getBytesCopied());
+   }
+
+   @Test
+   public void pixelBufferIsReadOnlyView() {
+      short[] pixels = new short[] {1, 2, 3, 4, 5, 6, 7, 8};
+      DefaultImage image = createImage(pixels);
+      Buffer view = image.getPixelBuffer();
+      assertTrue(view.isReadOnly());
+      assertEquals(8, ((ShortBuffer) view).get(7));
+      assertEquals(0, image.getBytesCopied());
+   }
+}
@@ -0,0 +1,178 @@
+package org.micromanager.data.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class PackedCoordsTest {
+
+   private static void assertRoundTrip(Coords coords) {
+      assertTrue(PackedCoords.canPack(coords));
+      assertTrue(PackedCoords.canPackExactly(coords));
+      long packed = PackedCoords.pack(coords);
+      assertTrue(packed >= 0);
+      assertEquals(coords, PackedCoords.unpack(packed));
+      assertEquals(coords.getChannel(), PackedCoords.getChannel(packed));
+      assertEquals(coords.getZ(), PackedCoords.getZ(packed));
+      assertEquals(coords.getTime(), PackedCoords.getTime(packed));
+      assertEquals(coords.getStagePosition(),
+            PackedCoords.getStagePosition(packed));
+   }
+
+   @Test
+   public void roundTripsCoords() {
+      assertRoundTrip(new DefaultCoords.Builder().build());
+      assertRoundTrip(new DefaultCoords.Builder().time(0).build());
+      assertRoundTrip(new DefaultCoords.Builder().channel(2).z(7).build());
+      assertRoundTrip(new DefaultCoords.Builder().channel(0).z(0).time(0)
+            .stagePosition(0).build());
+      // Largest positions that fit
+      assertRoundTrip(new DefaultCoords.Builder().channel(254).z(16382)
+            .time((1 << 24) - 2).stagePosition(131070).build());
+
+      Random random = new Random(42);
+      for (int i = 0; i < 1000; ++i) {
+         DefaultCoords.Builder builder = new DefaultCoords.Builder();
+         if (random.nextBoolean()) {
+            builder.channel(random.nextInt(255));
+         }
+         if (random.nextBoolean()) {
+            builder.z(random.nextInt(16383));
+         }
+         if (random.nextBoolean()) {
+            builder.time(random.nextInt((1 << 24) - 1));
+         }
+         if (random.nextBoolean()) {
+            builder.stagePosition(random.nextInt(131071));
+         }
+         assertRoundTrip(builder.build());
+      }
+   }
+
+   @Test
+   public void rejectsOutOfRangeCoords() {
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().channel(255).build()));
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().z(16383).build()));
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().time(1 << 24).build()));
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().stagePosition(131071).build()));
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().time(-2).build()));
+      assertFalse(PackedCoords.canPack(
+               new DefaultCoords.Builder().index("view", 0).build()));
+      assertFalse(PackedCoords.canPack(255, 0, 0, 0));
+      assertFalse(PackedCoords.canPack(0, 0, 0, -2));
+      assertTrue(PackedCoords.canPack(-1, -1, -1, -1));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void refusesToPackOutOfRangeCoords() {
+      PackedCoords.pack(new DefaultCoords.Builder().channel(255).build());
+   }
+
+   @Test
+   public void negativePositionIsNotExact() {
+      // A legacy -1 position packs to the same value as a missing axis, so
+      // it can be packed, but not exactly.
+      Coords legacy = new DefaultCoords.Builder().time(3).channel(-1).build();
+      Coords modern = new DefaultCoords.Builder().time(3).build();
+      assertTrue(PackedCoords.canPack(legacy));
+      assertFalse(PackedCoords.canPackExactly(legacy));
+      assertEquals(PackedCoords.pack(modern), PackedCoords.pack(legacy));
+      assertEquals(PackedCoords.pack(modern),
+            PackedCoords.pack(-1, -1, 3, -1));
+   }
+
+   @Test
+   public void packedValuesAreDistinct() {
+      HashSet<Long> seen = new HashSet<Long>();
+      for (int c = -1; c < 3; ++c) {
+         for (int z = -1; z < 3; ++z) {
+            for (int t = -1; t < 3; ++t) {
+               for (int p = -1; p < 3; ++p) {
+                  assertTrue(seen.add(PackedCoords.pack(c, z, t, p)));
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void maskSelectsAxes() {
+      long packed = PackedCoords.pack(new DefaultCoords.Builder().channel(1)
+            .z(2).time(3).stagePosition(4).build());
+      long mask = PackedCoords.getMask(java.util.Arrays.asList(
+               Coords.TIME, Coords.CHANNEL));
+      assertEquals(PackedCoords.pack(
+               new DefaultCoords.Builder().channel(1).time(3).build()),
+            packed & mask);
+   }
+
+   @Test
+   public void mapKeepsLegacyCoordsSeparate() {
+      PackedCoordsMap<String> map = new PackedCoordsMap<String>();
+      Coords legacy = new DefaultCoords.Builder().time(3).channel(-1).build();
+      Coords modern = new DefaultCoords.Builder().time(3).build();
+      Coords wide = new DefaultCoords.Builder().channel(300).build();
+      assertNull(map.put(modern, "modern"));
+      assertNull(map.put(legacy, "legacy"));
+      assertNull(map.put(wide, "wide"));
+      assertEquals(3, map.size());
+      assertEquals("modern", map.get(modern));
+      assertEquals("legacy", map.get(legacy));
+      assertEquals("wide", map.get(wide));
+      assertEquals("modern", map.remove(modern));
+      assertEquals("legacy", map.get(legacy));
+      assertNull(map.get(modern));
+   }
+
+   @Test
+   public void mapAgreesWithHashMap() {
+      PackedCoordsMap<Integer> map = new PackedCoordsMap<Integer>();
+      HashMap<Coords, Integer> expected = new HashMap<Coords, Integer>();
+      Random random = new Random(7);
+      for (int i = 0; i < 5000; ++i) {
+         Coords coords = new DefaultCoords.Builder()
+            .time(random.nextInt(40)).z(random.nextInt(10))
+            .channel(random.nextInt(300)).build();
+         if (random.nextInt(3) == 0) {
+            assertEquals(expected.remove(coords), map.remove(coords));
+         }
+         else {
+            assertEquals(expected.put(coords, i), map.put(coords, i));
+         }
+      }
+      assertEquals(expected.size(), map.size());
+      assertEquals(new HashSet<Coords>(expected.keySet()),
+            new HashSet<Coords>(map.keys()));
+      for (Coords coords : expected.keySet()) {
+         assertTrue(map.containsKey(coords));
+         assertEquals(expected.get(coords), map.get(coords));
+      }
+   }
+
+   @Test
+   public void offsetMapFallsBackForUnpackableCoords() {
+      PackedCoordsOffsetMap map = new PackedCoordsOffsetMap();
+      Coords wide = new DefaultCoords.Builder().channel(300).z(1).build();
+      map.put(wide, 1000);
+      map.put(2, 3, -1, -1, 2000);
+      map.put(400, 3, -1, -1, 3000);
+      assertEquals(3, map.size());
+      assertEquals(1000, map.get(wide));
+      assertEquals(2000, map.get(
+               new DefaultCoords.Builder().channel(2).z(3).build()));
+      assertEquals(3000, map.get(
+               new DefaultCoords.Builder().channel(400).z(3).build()));
+      assertEquals(1, map.getPackedKeys().length);
+      assertEquals(2, map.getUnpackableKeys().size());
+      assertEquals(PackedCoordsOffsetMap.NO_OFFSET, map.get(
+               new DefaultCoords.Builder().channel(2).z(3).time(-1).build()));
+   }
+}
@@ -0,0 +1,124 @@
+package org.micromanager.data.internal;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+public class StorageBoundedRAMTest {
+   private static final int WIDTH = 8;
+   private static final int HEIGHT = 8;
+   // Two bytes per pixel
+   private static final int IMAGE_BYTES = WIDTH * HEIGHT * 2;
+
+   private StorageBoundedRAM storage_;
+
+   @Before
+   public void setUp() {
+      // Room for two images
+      storage_ = new StorageBoundedRAM(new DefaultDatastore(),
+            2 * IMAGE_BYTES);
+   }
+
+   @After
+   public void tearDown() {
+      storage_.close();
+   }
+
+   private static Coords coords(int time) {
+      return new DefaultCoords.Builder().time(time).build();
+   }
+
+   private static Image createImage(int time, int seed) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; ++i) {
+         pixels[i] = (short) (seed * 1000 + i);
+      }
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1, coords(time),
+            new DefaultMetadata.Builder().build());
+   }
+
+   private static void assertPixels(int seed, Image image) {
+      assertNotNull(image);
+      short[] pixels = (short[]) image.getRawPixels();
+      assertEquals(WIDTH * HEIGHT, pixels.length);
+      for (int i = 0; i < pixels.length; ++i) {
+         assertEquals((short) (seed * 1000 + i), pixels[i]);
+      }
+   }
+
+   @Test
+   public void evictsToStayWithinBudget() {
+      for (int t = 0; t < 5; ++t) {
+         storage_.putImage(createImage(t, t));
+         assertTrue(storage_.getBytesInRAM() <= 2 * IMAGE_BYTES);
+      }
+      assertEquals(2 * IMAGE_BYTES, storage_.getBytesInRAM());
+      assertEquals(5, storage_.getNumImages());
+      for (int t = 0; t < 5; ++t) {
+         assertTrue(storage_.hasImage(coords(t)));
+      }
+   }
+
+   @Test
+   public void pagesInAfterEviction() {
+      for (int t = 0; t < 5; ++t) {
+         storage_.putImage(createImage(t, t));
+      }
+      // Read them all back in an order that forces repeated page-ins
+      for (int t = 0; t < 5; ++t) {
+         assertPixels(t, storage_.getImage(coords(t)));
+         assertTrue(storage_.getBytesInRAM() <= 2 * IMAGE_BYTES);
+      }
+      for (int t = 4; t >= 0; --t) {
+         assertPixels(t, storage_.getImage(coords(t)));
+      }
+      assertEquals(2 * IMAGE_BYTES, storage_.getBytesInRAM());
+   }
+
+   @Test
+   public void returnedImagesSurviveEviction() {
+      storage_.putImage(createImage(0, 0));
+      Image image = storage_.getImage(coords(0));
+      for (int t = 1; t < 5; ++t) {
+         storage_.putImage(createImage(t, t));
+      }
+      assertPixels(0, image);
+   }
+
+   @Test
+   public void overwritesPagedOutImage() {
+      for (int t = 0; t < 3; ++t) {
+         storage_.putImage(createImage(t, t));
+      }
+      // Image 0 is now only in the scratch file.
+      storage_.putImage(createImage(0, 7));
+      assertEquals(3, storage_.getNumImages());
+      assertEquals(2 * IMAGE_BYTES, storage_.getBytesInRAM());
+      assertPixels(7, storage_.getImage(coords(0)));
+      assertPixels(1, storage_.getImage(coords(1)));
+      assertPixels(2, storage_.getImage(coords(2)));
+      assertPixels(7, storage_.getImage(coords(0)));
+      assertEquals(2 * IMAGE_BYTES, storage_.getBytesInRAM());
+   }
+
+   @Test
+   public void deletesPagedOutImage() {
+      for (int t = 0; t < 3; ++t) {
+         storage_.putImage(createImage(t, t));
+      }
+      storage_.deleteImage(coords(0));
+      assertFalse(storage_.hasImage(coords(0)));
+      assertEquals(2, storage_.getNumImages());
+      assertEquals(2 * IMAGE_BYTES, storage_.getBytesInRAM());
+      // A new image may reuse the deleted image's scratch slot.
+      for (int t = 3; t < 5; ++t) {
+         storage_.putImage(createImage(t, t));
+      }
+      for (int t = 1; t < 5; ++t) {
+         assertPixels(t, storage_.getImage(coords(t)));
+      }
+   }
+}
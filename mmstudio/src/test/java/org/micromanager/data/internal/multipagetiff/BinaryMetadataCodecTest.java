@@ -0,0 +1,133 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import static org.junit.Assert.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultPropertyMap;
+
+public class BinaryMetadataCodecTest {
+
+   private static JSONObject makeTags(int frame) throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("FrameIndex", frame);
+      tags.put("ChannelIndex", 0);
+      tags.put("ElapsedTime-ms", 12.5 * frame);
+      tags.put("Camera", "Camera-1");
+      tags.put("ReceivedTime", "2016-01-01 00:00:00.000 -0800");
+      tags.put("SequenceNumber", 1L << 40);
+      tags.put("Binning", JSONObject.NULL);
+      tags.put("ROI", "0-0-512-512");
+      tags.put("IsOn", true);
+      JSONObject userData = new JSONObject();
+      userData.put("note", "\u00b5m scale");
+      userData.put("values", new JSONArray("[1, 2.5, \"three\", false]"));
+      tags.put("userData", userData);
+      return tags;
+   }
+
+   @Test
+   public void roundTripsThroughSummary() throws Exception {
+      BinaryMetadataCodec writer = BinaryMetadataCodec.forTags(makeTags(0),
+            "FileName");
+      JSONObject summary = new JSONObject();
+      writer.addToSummary(summary);
+      BinaryMetadataCodec reader = BinaryMetadataCodec.fromSummary(summary);
+      assertNotNull(reader);
+
+      for (int frame = 0; frame < 3; ++frame) {
+         JSONObject tags = makeTags(frame);
+         tags.put("FileName", "foo.ome.tif");
+         if (frame == 2) {
+            // Not in the dictionary; must be written inline.
+            tags.put("Extra", "extra value");
+         }
+         JSONObject decoded = reader.decode(ByteBuffer.wrap(writer.encode(tags)));
+         assertEquals(tags.toString(), decoded.toString());
+      }
+   }
+
+   @Test
+   public void fromSummaryWithoutKeysReturnsNull() throws Exception {
+      assertNull(BinaryMetadataCodec.fromSummary(new JSONObject()));
+   }
+
+   @Test(expected = java.io.IOException.class)
+   public void truncatedBlockFails() throws Exception {
+      BinaryMetadataCodec codec = BinaryMetadataCodec.forTags(makeTags(0));
+      byte[] bytes = codec.encode(makeTags(1));
+      ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length / 2).slice();
+      codec.decode(truncated);
+   }
+
+   @Test
+   public void decodesImageMetadataLikeJSON() throws Exception {
+      Metadata metadata = new DefaultMetadata.Builder()
+         .binning(2).bitDepth(12).camera("Camera-1").elapsedTimeMs(12.5)
+         .exposureMs(10.0).imageNumber(1L << 40).pixelSizeUm(0.65)
+         .positionName("Pos-3").receivedTime("2016-01-01 00:00:00.000")
+         .ROI(new Rectangle(-4, 8, 512, 256)).uuid(UUID.randomUUID())
+         .xPositionUm(1.5).yPositionUm(-2.5).zPositionUm(100.0)
+         .scopeData(new DefaultPropertyMap.Builder()
+               .putString("Camera-Gain", "4")
+               .putDouble("Stage-Z", 100.0).build())
+         .userData(new DefaultPropertyMap.Builder()
+               .putInt("count", 3)
+               .putLongArray("ids", new Long[] {1L, 1L << 40})
+               .putBoolean("flag", true).build())
+         .build();
+      JSONObject tags = ((DefaultMetadata) metadata).toJSON();
+      tags.put("Width", 512);
+      tags.put("Height", 256);
+      tags.put("PixelType", "GRAY16");
+      tags.put("FrameIndex", 4);
+      tags.put("SliceIndex", 2);
+      tags.put("ChannelIndex", 1);
+      tags.put("PositionIndex", 3);
+
+      BinaryMetadataCodec codec = BinaryMetadataCodec.forTags(tags);
+      BinaryMetadataCodec.ImageMetadata decoded = codec.decodeImageMetadata(
+            ByteBuffer.wrap(codec.encode(tags)));
+      assertEquals(512, (int) decoded.width);
+      assertEquals(256, (int) decoded.height);
+      assertEquals("GRAY16", decoded.pixelType);
+      assertEquals(new DefaultCoords.Builder().time(4).z(2).channel(1)
+            .stagePosition(3).build(), decoded.coords);
+      assertEquals(
+            ((DefaultMetadata) DefaultMetadata.legacyFromJSON(tags)).toJSON().toString(),
+            ((DefaultMetadata) decoded.metadata).toJSON().toString());
+      assertEquals(metadata.getImageNumber(), decoded.metadata.getImageNumber());
+      assertEquals(metadata.getROI(), decoded.metadata.getROI());
+      assertEquals(metadata.getUUID(), decoded.metadata.getUUID());
+      assertEquals("4", decoded.metadata.getScopeData().getString("Camera-Gain"));
+      assertArrayEquals(new Long[] {1L, 1L << 40},
+            decoded.metadata.getUserData().getLongArray("ids"));
+   }
+
+   @Test
+   public void decodesSparseImageMetadata() throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Frame", 2);
+      tags.put("Binning", "2x2");
+      tags.put("Camera", "");
+      tags.put("Core-Camera", "Camera-2");
+      tags.put("Exposure-ms", "25.0");
+      BinaryMetadataCodec codec = BinaryMetadataCodec.forTags(tags);
+      BinaryMetadataCodec.ImageMetadata decoded = codec.decodeImageMetadata(
+            ByteBuffer.wrap(codec.encode(tags)));
+      assertNull(decoded.width);
+      assertNull(decoded.pixelType);
+      assertEquals(new DefaultCoords.Builder().time(2).build(),
+            decoded.coords);
+      assertEquals(2, (int) decoded.metadata.getBinning());
+      assertEquals("Camera-2", decoded.metadata.getCamera());
+      assertEquals(25.0, decoded.metadata.getExposureMs(), 0);
+      assertNull(decoded.metadata.getUserData());
+   }
+}
@@ -0,0 +1,119 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.PackedCoords;
+import org.micromanager.data.internal.PackedCoordsOffsetMap;
+
+public class SidecarIndexTest {
+   private File dir_;
+   private List<File> files_;
+   private List<PackedCoordsOffsetMap> maps_;
+
+   private static void writeBytes(File file, int count) throws IOException {
+      FileOutputStream stream = new FileOutputStream(file);
+      try {
+         stream.write(new byte[count]);
+      }
+      finally {
+         stream.close();
+      }
+   }
+
+   @Before
+   public void setUp() throws IOException {
+      dir_ = File.createTempFile("SidecarIndexTest", "");
+      dir_.delete();
+      dir_.mkdir();
+      File pos0 = new File(dir_, "test_MMStack_Pos0.ome.tif");
+      File pos1 = new File(dir_, "test_MMStack_Pos1.ome.tif");
+      writeBytes(pos0, 100);
+      writeBytes(pos1, 200);
+      files_ = Arrays.asList(pos0, pos1);
+
+      PackedCoordsOffsetMap map0 = new PackedCoordsOffsetMap();
+      PackedCoordsOffsetMap map1 = new PackedCoordsOffsetMap();
+      for (int t = 0; t < 4; ++t) {
+         for (int c = 0; c < 2; ++c) {
+            map0.put(PackedCoords.pack(c, -1, t, 0), 1000 * t + c);
+            map1.put(PackedCoords.pack(c, -1, t, 1), 2000 * t + c);
+         }
+      }
+      maps_ = Arrays.asList(map0, map1);
+   }
+
+   @After
+   public void tearDown() {
+      for (File f : dir_.listFiles()) {
+         f.delete();
+      }
+      dir_.delete();
+   }
+
+   @Test
+   public void roundTrip() throws IOException {
+      SidecarIndex.write(dir_, files_, maps_, 16);
+      SidecarIndex index = SidecarIndex.open(dir_);
+      assertNotNull(index);
+      assertEquals(16, index.size());
+      assertEquals(2, index.getNumFiles());
+
+      Coords coords = new DefaultCoords.Builder().channel(1).time(3)
+         .stagePosition(1).build();
+      int entry = index.find(coords);
+      assertTrue(entry >= 0);
+      assertEquals(files_.get(1).getName(),
+            index.getFile(index.getFileId(entry)).getName());
+      assertEquals(6001, index.getOffset(entry));
+      assertEquals(-1, index.find(
+               new DefaultCoords.Builder().channel(2).time(0).build()));
+
+      List<Integer> matches = index.getMatching(
+            new DefaultCoords.Builder().time(2).build());
+      assertEquals(4, matches.size());
+      HashSet<Coords> matched = new HashSet<Coords>();
+      for (int i : matches) {
+         matched.add(PackedCoords.unpack(index.getPackedCoords(i)));
+      }
+      assertTrue(matched.contains(new DefaultCoords.Builder().channel(0)
+               .time(2).stagePosition(1).build()));
+
+      Coords max = index.getMaxIndices();
+      assertEquals(1, max.getChannel());
+      assertEquals(3, max.getTime());
+      assertEquals(1, max.getStagePosition());
+      assertEquals(-1, max.getZ());
+      assertEquals(16, new HashSet<Coords>(index.getCoordsSet()).size());
+      assertTrue(index.getCoordsSet().contains(coords));
+   }
+
+   @Test
+   public void ignoresStaleIndex() throws IOException {
+      SidecarIndex.write(dir_, files_, maps_, 16);
+      writeBytes(files_.get(0), 150);
+      assertNull(SidecarIndex.open(dir_));
+   }
+
+   @Test
+   public void ignoresIndexMissingFiles() throws IOException {
+      SidecarIndex.write(dir_, files_, maps_, 16);
+      writeBytes(new File(dir_, "test_MMStack_Pos2.ome.tif"), 10);
+      assertNull(SidecarIndex.open(dir_));
+   }
+
+   @Test
+   public void skipsIncompleteIndex() throws IOException {
+      SidecarIndex.write(dir_, files_, maps_, 17);
+      assertFalse(new File(dir_, SidecarIndex.FILENAME).exists());
+   }
+}
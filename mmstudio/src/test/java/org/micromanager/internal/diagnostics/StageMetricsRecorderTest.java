@@ -0,0 +1,37 @@
+package org.micromanager.internal.diagnostics;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.micromanager.data.StageMetrics;
+
+public class StageMetricsRecorderTest {
+   @Test
+   public void recordsLatencies() {
+      StageMetricsRecorder recorder = StageMetricsRecorder.create("test");
+      assertTrue(StageMetricsRecorder.getAllRecorders().contains(recorder));
+      assertEquals(0, recorder.getLatencyPercentileMs(50), 0);
+
+      long now = recorder.imageReceived();
+      recorder.imageReceived();
+      assertEquals(2, recorder.getQueueDepth());
+      // 3 ms and 100 ms ago.
+      recorder.imageFinished(now - 3000000);
+      recorder.imageFinished(now - 100000000);
+      assertEquals(0, recorder.getQueueDepth());
+      assertEquals(2, recorder.getImageCount());
+      assertTrue(recorder.getMeanLatencyMs() >= 51.5);
+
+      long[] histogram = recorder.getLatencyHistogram();
+      assertEquals(StageMetrics.NUM_HISTOGRAM_BINS, histogram.length);
+      // 3 ms falls in [2.048, 4.096) ms; 100 ms in [65.536, 131.072) ms.
+      assertEquals(1, histogram[12]);
+      assertEquals(1, histogram[17]);
+      assertEquals(4.096, recorder.getLatencyPercentileMs(50), 1e-9);
+      assertEquals(131.072, recorder.getLatencyPercentileMs(99), 1e-9);
+      assertTrue(recorder.getImagesPerSecond() > 0);
+
+      recorder.reset();
+      assertEquals(0, recorder.getImageCount());
+      assertEquals(0, recorder.getLatencyHistogram()[12]);
+   }
+}
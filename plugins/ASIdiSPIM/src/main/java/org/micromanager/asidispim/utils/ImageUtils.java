@@ -35,10 +35,10 @@ public class ImageUtils {
       if (img.getNumComponents() > 1) 
          throw new NotImplementedException("Conversion of RGB images is not yet implemented");
       if (img.getBytesPerPixel() == 1) {
-         ip = new ByteProcessor(img.getWidth(), img.getHeight(), (byte[]) img.getRawPixels());
+         ip = new ByteProcessor(img.getWidth(), img.getHeight(), (byte[]) img.getRawPixelsCopy());
       } else if (img.getBytesPerPixel() == 2) {
          ip = new ShortProcessor(img.getWidth(), img.getHeight());
-         ip.setPixels((short[]) img.getRawPixels());
+         ip.setPixels((short[]) img.getRawPixelsCopy());
       }
       
       return ip;
@@ -0,0 +1,233 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Running per-pixel statistics over a series of 8 or 16-bit frames, updated
+ * as each frame arrives, so that combining N frames needs a constant amount
+ * of memory rather than N frames. Large frames are updated in row bands on
+ * the provided executor.
+ */
+class FrameAccumulator {
+
+   // Frames smaller than this are not worth splitting over threads.
+   private static final int MIN_PIXELS_PER_BAND = 256 * 1024;
+
+   private static final int MEAN = 0;
+   private static final int SUM = 1;
+   private static final int MAX = 2;
+   private static final int MIN = 3;
+   private static final int STDDEV = 4;
+
+   private final int algo_;
+   private final ExecutorService executor_;
+
+   private int width_;
+   private int height_;
+   private int bytesPerPixel_;
+   private int count_;
+
+   // Sum for Mean and Sum, current extreme value for Max and Min, and the
+   // Welford mean and sum of squared differences for standard deviation.
+   private long[] sum_;
+   private int[] extrema_;
+   private double[] mean_;
+   private double[] m2_;
+
+   /**
+    * @param executor used to update large frames in parallel, may be null
+    */
+   FrameAccumulator(String processorAlgo, ExecutorService executor) {
+      if (processorAlgo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
+         algo_ = MEAN;
+      } else if (processorAlgo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         algo_ = SUM;
+      } else if (processorAlgo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+         algo_ = MAX;
+      } else if (processorAlgo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         algo_ = MIN;
+      } else if (processorAlgo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV)) {
+         algo_ = STDDEV;
+      } else {
+         throw new IllegalArgumentException("FrameCombiner : Algorithm called "
+                 + processorAlgo + " is not implemented or not found.");
+      }
+      executor_ = executor;
+   }
+
+   /**
+    * @return number of frames added since the last call to getResult()
+    */
+   int getCount() {
+      return count_;
+   }
+
+   /**
+    * Add one frame to the running statistics. All frames added before the
+    * next call to getResult() must have the same size and pixel type.
+    */
+   void add(final Object pixels, int width, int height, int bytesPerPixel)
+           throws InterruptedException, ExecutionException {
+      if (count_ == 0) {
+         allocate(width, height, bytesPerPixel);
+      }
+      final boolean first = count_ == 0;
+      count_++;
+      runInBands(new BandTask() {
+         @Override
+         public void run(int start, int end) {
+            addBand(pixels, start, end, first);
+         }
+      });
+   }
+
+   /**
+    * Compute the combined frame from all frames added so far, and start
+    * over. The accumulators are kept for the next series of frames.
+    * @return a new byte[] or short[] array holding the result
+    */
+   Object getResult() throws InterruptedException, ExecutionException {
+      final Object result = bytesPerPixel_ == 1
+              ? new byte[width_ * height_] : new short[width_ * height_];
+      runInBands(new BandTask() {
+         @Override
+         public void run(int start, int end) {
+            if (result instanceof byte[]) {
+               byte[] bytes = (byte[]) result;
+               for (int i = start; i < end; i++) {
+                  bytes[i] = (byte) getValue(i);
+               }
+            } else {
+               short[] shorts = (short[]) result;
+               for (int i = start; i < end; i++) {
+                  shorts[i] = (short) getValue(i);
+               }
+            }
+         }
+      });
+      count_ = 0;
+      return result;
+   }
+
+   private void allocate(int width, int height, int bytesPerPixel) {
+      int numPixels = width * height;
+      width_ = width;
+      height_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      if (algo_ == MEAN || algo_ == SUM) {
+         if (sum_ == null || sum_.length != numPixels) {
+            sum_ = new long[numPixels];
+         }
+      } else if (algo_ == MAX || algo_ == MIN) {
+         if (extrema_ == null || extrema_.length != numPixels) {
+            extrema_ = new int[numPixels];
+         }
+      } else if (mean_ == null || mean_.length != numPixels) {
+         mean_ = new double[numPixels];
+         m2_ = new double[numPixels];
+      }
+   }
+
+   private static int getPixel(byte[] bytes, short[] shorts, int i) {
+      return bytes != null ? bytes[i] & 0xff : shorts[i] & 0xffff;
+   }
+
+   private void addBand(Object pixels, int start, int end, boolean first) {
+      byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+      short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+      switch (algo_) {
+         case MEAN:
+         case SUM:
+            for (int i = start; i < end; i++) {
+               int value = getPixel(bytes, shorts, i);
+               sum_[i] = first ? value : sum_[i] + value;
+            }
+            break;
+         case MAX:
+            for (int i = start; i < end; i++) {
+               int value = getPixel(bytes, shorts, i);
+               extrema_[i] = first ? value : Math.max(extrema_[i], value);
+            }
+            break;
+         case MIN:
+            for (int i = start; i < end; i++) {
+               int value = getPixel(bytes, shorts, i);
+               extrema_[i] = first ? value : Math.min(extrema_[i], value);
+            }
+            break;
+         default:
+            // Welford's update of the mean and sum of squared differences
+            for (int i = start; i < end; i++) {
+               int value = getPixel(bytes, shorts, i);
+               if (first) {
+                  mean_[i] = value;
+                  m2_[i] = 0;
+               } else {
+                  double delta = value - mean_[i];
+                  mean_[i] += delta / count_;
+                  m2_[i] += delta * (value - mean_[i]);
+               }
+            }
+            break;
+      }
+   }
+
+   private int getValue(int i) {
+      switch (algo_) {
+         case MEAN:
+            return (int) (sum_[i] / count_);
+         case SUM:
+            return (int) sum_[i];
+         case STDDEV:
+            return count_ > 1 ? (int) Math.sqrt(m2_[i] / (count_ - 1)) : 0;
+         default:
+            return extrema_[i];
+      }
+   }
+
+   private interface BandTask {
+      void run(int start, int end);
+   }
+
+   /**
+    * Run the task over all pixels, split into bands of whole rows when the
+    * frame is large enough and an executor is available.
+    */
+   private void runInBands(final BandTask task)
+           throws InterruptedException, ExecutionException {
+      int numPixels = width_ * height_;
+      int numBands = executor_ == null ? 1
+              : Math.min(Runtime.getRuntime().availableProcessors(),
+                      numPixels / MIN_PIXELS_PER_BAND);
+      if (numBands <= 1) {
+         task.run(0, numPixels);
+         return;
+      }
+      List<Future<?>> futures = new ArrayList<Future<?>>(numBands);
+      for (int band = 0; band < numBands; band++) {
+         final int start = (int) ((long) height_ * band / numBands) * width_;
+         final int end = (int) ((long) height_ * (band + 1) / numBands) * width_;
+         futures.add(executor_.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               task.run(start, end);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         for (Future<?> future : futures) {
+            future.cancel(true);
+         }
+      }
+   }
+}
@@ -6,6 +6,9 @@ import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,6 +34,8 @@ public class FrameCombiner extends Processor {
    private boolean imageCanBeProcessed_ = true;
 
    private HashMap<Coords, SingleCombinationProcessor> singleAquisitions_;
+   // Shared by all combinations to update large frames in row bands
+   private final ThreadPoolExecutor executor_;
 
    public FrameCombiner(Studio studio, String processorDimension, String processorAlgo,
            int numerOfImagesToProcess, String channelsToAvoidString) {
@@ -57,6 +62,16 @@ public class FrameCombiner extends Processor {
       // Each index will be a combination of Z, Channel and StagePosition
       singleAquisitions_ = new HashMap();
 
+      // Idle threads time out, so nothing lingers if cleanup() is never called
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      if (numThreads > 1) {
+         executor_ = new ThreadPoolExecutor(numThreads, numThreads, 10, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue<Runnable>());
+         executor_.allowCoreThreadTimeOut(true);
+      } else {
+         executor_ = null;
+      }
+
    }
 
    @Override
@@ -101,7 +116,7 @@ public class FrameCombiner extends Processor {
          }
 
          singleAcquProc = new SingleCombinationProcessor(coords, studio_, processorAlgo_, processorDimension_,
-                 numerOfImagesToProcess_, processCombinations, !channelsToAvoid_.isEmpty());
+                 numerOfImagesToProcess_, processCombinations, !channelsToAvoid_.isEmpty(), executor_);
          singleAquisitions_.put(coords, singleAcquProc);
       } else {
          singleAcquProc = singleAquisitions_.get(coords);
@@ -162,6 +177,10 @@ public class FrameCombiner extends Processor {
       }
       singleAquisitions_ = null;
 
+      if (executor_ != null) {
+         executor_.shutdownNow();
+      }
+
    }
 
    private static Boolean isValidIntRangeInput(String channelToAvoidString) {
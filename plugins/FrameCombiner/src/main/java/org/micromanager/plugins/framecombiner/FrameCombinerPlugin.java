@@ -13,7 +13,7 @@ import org.scijava.plugin.Plugin;
 public class FrameCombinerPlugin implements ProcessorPlugin, SciJavaPlugin {
 
    public static String menuName = "Frame Combiner";
-   public static String tooltipDescription = "Combine multiple images into a single output image (mean/sum/max/min)";
+   public static String tooltipDescription = "Combine multiple images into a single output image (mean/sum/max/min/standard deviation)";
    public static String versionNumber = "1.0";
    public static String copyright = "Hadrien Mary";
 
@@ -22,6 +22,7 @@ public class FrameCombinerPlugin implements ProcessorPlugin, SciJavaPlugin {
    public static String PROCESSOR_ALGO_SUM = "Sum";
    public static String PROCESSOR_ALGO_MAX = "Max";
    public static String PROCESSOR_ALGO_MIN = "Min";
+   public static String PROCESSOR_ALGO_STDDEV = "Standard Deviation";
    public final static String PROCESSOR_DIMENSION_TIME = "Time";
    public final static String PROCESSOR_DIMENSION_Z = "Z";
 
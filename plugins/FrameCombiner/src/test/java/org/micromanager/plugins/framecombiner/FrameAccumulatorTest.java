@@ -0,0 +1,160 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares FrameAccumulator with a direct computation over all frames.
+ */
+public class FrameAccumulatorTest {
+   private static final int NUM_FRAMES = 7;
+
+   private ExecutorService executor_;
+
+   @Before
+   public void setUp() {
+      executor_ = Executors.newFixedThreadPool(4);
+   }
+
+   @After
+   public void tearDown() {
+      executor_.shutdownNow();
+   }
+
+   /**
+    * Random frames whose values lie in the top quarter of the pixel range,
+    * with the first pixels set to the extreme values of the range.
+    */
+   private static Object[] createFrames(int numPixels, int bytesPerPixel,
+         long seed) {
+      Random random = new Random(seed);
+      int maxValue = bytesPerPixel == 1 ? 0xff : 0xffff;
+      Object[] frames = new Object[NUM_FRAMES];
+      for (int f = 0; f < NUM_FRAMES; f++) {
+         int[] values = new int[numPixels];
+         for (int i = 0; i < numPixels; i++) {
+            values[i] = maxValue - random.nextInt(maxValue / 4 + 1);
+         }
+         values[0] = maxValue;
+         values[1] = 0;
+         values[2] = f % 2 == 0 ? maxValue : 0;
+         if (bytesPerPixel == 1) {
+            byte[] bytes = new byte[numPixels];
+            for (int i = 0; i < numPixels; i++) {
+               bytes[i] = (byte) values[i];
+            }
+            frames[f] = bytes;
+         } else {
+            short[] shorts = new short[numPixels];
+            for (int i = 0; i < numPixels; i++) {
+               shorts[i] = (short) values[i];
+            }
+            frames[f] = shorts;
+         }
+      }
+      return frames;
+   }
+
+   private static int getPixel(Object pixels, int i) {
+      return pixels instanceof byte[] ?
+            ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff;
+   }
+
+   private static int expectedValue(String algo, Object[] frames, int i) {
+      long sum = 0;
+      int max = Integer.MIN_VALUE;
+      int min = Integer.MAX_VALUE;
+      for (Object frame : frames) {
+         int value = getPixel(frame, i);
+         sum += value;
+         max = Math.max(max, value);
+         min = Math.min(min, value);
+      }
+      if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
+         return (int) (sum / frames.length);
+      }
+      if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         // Like the old float-based code, the sum is truncated to the pixel
+         // type rather than clipped.
+         return (int) sum;
+      }
+      if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+         return max;
+      }
+      if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         return min;
+      }
+      double mean = (double) sum / frames.length;
+      double squares = 0;
+      for (Object frame : frames) {
+         double delta = getPixel(frame, i) - mean;
+         squares += delta * delta;
+      }
+      return (int) Math.sqrt(squares / (frames.length - 1));
+   }
+
+   private void check(String algo, int width, int height, int bytesPerPixel,
+         long seed) throws Exception {
+      Object[] frames = createFrames(width * height, bytesPerPixel, seed);
+      FrameAccumulator accumulator = new FrameAccumulator(algo, executor_);
+      // Run twice, as the accumulator is reused for the next series
+      for (int series = 0; series < 2; series++) {
+         for (Object frame : frames) {
+            accumulator.add(frame, width, height, bytesPerPixel);
+         }
+         Assert.assertEquals(NUM_FRAMES, accumulator.getCount());
+         Object result = accumulator.getResult();
+         Assert.assertEquals(0, accumulator.getCount());
+         Assert.assertEquals(bytesPerPixel == 1, result instanceof byte[]);
+         int mask = bytesPerPixel == 1 ? 0xff : 0xffff;
+         for (int i = 0; i < width * height; i++) {
+            int expected = expectedValue(algo, frames, i) & mask;
+            int actual = getPixel(result, i);
+            if (algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV)) {
+               // Welford's method may round differently
+               Assert.assertEquals(algo + " at " + i, expected, actual, 1);
+            } else {
+               Assert.assertEquals(algo + " at " + i, expected, actual);
+            }
+         }
+      }
+   }
+
+   private void checkAll(int bytesPerPixel) throws Exception {
+      String[] algos = {FrameCombinerPlugin.PROCESSOR_ALGO_MEAN,
+         FrameCombinerPlugin.PROCESSOR_ALGO_SUM,
+         FrameCombinerPlugin.PROCESSOR_ALGO_MAX,
+         FrameCombinerPlugin.PROCESSOR_ALGO_MIN,
+         FrameCombinerPlugin.PROCESSOR_ALGO_STDDEV};
+      for (String algo : algos) {
+         check(algo, 37, 23, bytesPerPixel, 1);
+      }
+   }
+
+   @Test
+   public void test8Bit() throws Exception {
+      checkAll(1);
+   }
+
+   @Test
+   public void test16Bit() throws Exception {
+      checkAll(2);
+   }
+
+   @Test
+   public void testLargeFrameInBands() throws Exception {
+      // Large enough to be split over threads on multicore machines
+      check(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN, 1024, 1024, 2, 2);
+      check(FrameCombinerPlugin.PROCESSOR_ALGO_MAX, 1024, 1024, 2, 3);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testUnknownAlgorithm() {
+      new FrameAccumulator("Median", null);
+   }
+}
@@ -0,0 +1,474 @@
+/**
+ * Levenberg-Marquardt Gaussian fitting of batches of spots, without per spot
+ * allocations
+ *
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.ASYMMETRIC;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.BGR;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.CIRCLE;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.ELLIPSE;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.INT;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.LEVENBERGMARQUARD;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.LEVENBERGMARQUARDMLE;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.S;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.S1;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.S2;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.S3;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.XC;
+import static edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit.YC;
+import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+
+/**
+ * Fits the same Gaussian models as GaussianFit does in its (weighted) 
+ * Levenberg-Marquardt modes, but for a batch of spots at a time.
+ * Pixels and parameters of all spots in the batch are kept back to back in 
+ * flat primitive arrays, the model and its derivatives are evaluated inline,
+ * and the normal equations are solved with a small Cholesky decomposition in
+ * pre-allocated scratch space.  Apart from growing the pixel buffer, fitting
+ * a batch does not allocate anything.
+ * 
+ * Instances are not thread safe, use one fitter per thread.
+ */
+public class BatchGaussianFitter {
+   
+   private static final double INITIALLAMBDA = 0.001;
+   private static final double MAXLAMBDA = 1.0e10;
+   
+   private final int shape_;
+   private final boolean mle_;
+   private final boolean fixWidth_;
+   private final double fixedWidth_;
+   private final int nrParams_;
+   private final int capacity_;
+   
+   // Per spot data, spot i uses pixels_[pixelOffset_[i]] up to 
+   // pixels_[pixelOffset_[i + 1]] and params_[i * nrParams_] up to 
+   // params_[(i + 1) * nrParams_]
+   private double[] pixels_;
+   private final int[] pixelOffset_;
+   private final int[] width_;
+   private final double[] params_;
+   private final double[] apertureIntensity_;
+   private final double[] apertureBackground_;
+   private final boolean[] converged_;
+   private int size_ = 0;
+   
+   // scratch space for the solver
+   private final double[] p_;
+   private final double[] trial_;
+   private double[] alpha_;
+   private double[] beta_;
+   private double[] trialAlpha_;
+   private double[] trialBeta_;
+   private final double[] jacobian_;
+   private final double[] cholesky_;
+   private final double[] step_;
+   
+   /**
+    * @param fitMode - fit mode as used by GaussianFit
+    * @return true if this fitter can be used for the given fitMode,
+    *          the Nelder-Mead modes need GaussianFit
+    */
+   public static boolean supportsFitMode(int fitMode) {
+      return fitMode == LEVENBERGMARQUARD || fitMode == LEVENBERGMARQUARDMLE;
+   }
+
+   /**
+    * Arguments are the same as those of GaussianFit
+    * 
+    * @param shape - fit circle (1) ellipse(2), or ellipse with varying angle (3)
+    * @param fitMode - Levenberg Marquard (2), or LevenberMarquard MLE(4)
+    * @param fixWidth - if true, do not fit the width
+    * @param fixedWidth - width of the Gaussian in pixels
+    * @param capacity - maximum number of spots in a batch
+    */
+   public BatchGaussianFitter(int shape, final int fitMode, 
+           final boolean fixWidth, final double fixedWidth, final int capacity) {
+      if (!supportsFitMode(fitMode)) {
+         throw new IllegalArgumentException("Unsupported fit mode: " + fitMode);
+      }
+      mle_ = fitMode == LEVENBERGMARQUARDMLE;
+      // As in GaussianFit, a fixed width is only used with circular Gaussians
+      if (fixWidth && fixedWidth > 0.0) {
+         shape = CIRCLE;
+         fixWidth_ = true;
+         fixedWidth_ = fixedWidth;
+      } else {
+         fixWidth_ = false;
+         fixedWidth_ = -1.0;
+      }
+      shape_ = shape;
+      nrParams_ = shape_ + (fixWidth_ ? 3 : 4);
+      capacity_ = capacity;
+      
+      pixels_ = new double[capacity * 100];
+      pixelOffset_ = new int[capacity + 1];
+      width_ = new int[capacity];
+      params_ = new double[capacity * nrParams_];
+      apertureIntensity_ = new double[capacity];
+      apertureBackground_ = new double[capacity];
+      converged_ = new boolean[capacity];
+      
+      p_ = new double[nrParams_];
+      trial_ = new double[nrParams_];
+      alpha_ = new double[nrParams_ * nrParams_];
+      beta_ = new double[nrParams_];
+      trialAlpha_ = new double[nrParams_ * nrParams_];
+      trialBeta_ = new double[nrParams_];
+      jacobian_ = new double[nrParams_];
+      cholesky_ = new double[nrParams_ * nrParams_];
+      step_ = new double[nrParams_];
+   }
+   
+   /**
+    * Removes all spots from the batch
+    */
+   public void clear() {
+      size_ = 0;
+   }
+   
+   public int size() {
+      return size_;
+   }
+   
+   public boolean isFull() {
+      return size_ == capacity_;
+   }
+   
+   /**
+    * Adds a spot to the batch and estimates its starting parameters
+    * 
+    * @param pixels - 16-bit pixels of the image of the spot
+    * @param width - width of the image in pixels
+    * @param height - height of the image in pixels
+    * @return index of the spot in this batch
+    */
+   public int add(short[] pixels, int width, int height) {
+      if (size_ == capacity_) {
+         throw new IllegalStateException("Batch is full");
+      }
+      int nrPixels = width * height;
+      int offset = pixelOffset_[size_];
+      if (offset + nrPixels > pixels_.length) {
+         double[] newPixels = new double[Math.max(2 * pixels_.length, 
+                 offset + nrPixels)];
+         System.arraycopy(pixels_, 0, newPixels, 0, offset);
+         pixels_ = newPixels;
+      }
+      for (int i = 0; i < nrPixels; i++) {
+         pixels_[offset + i] = pixels[i] & 0xffff;
+      }
+      width_[size_] = width;
+      pixelOffset_[size_ + 1] = offset + nrPixels;
+      converged_[size_] = false;
+      estimateParameters(size_);
+      return size_++;
+   }
+   
+   /**
+    * Fits all spots in the batch
+    * 
+    * @param maxIterations - maximum number of Levenberg-Marquardt iterations
+    *                         per spot
+    */
+   public void fit(int maxIterations) {
+      for (int i = 0; i < size_; i++) {
+         converged_[i] = fitSpot(i, maxIterations);
+      }
+   }
+   
+   /**
+    * @param index - index of the spot in the batch
+    * @return Fit result in the same form as GaussianFit.dogaussianfit returns it,
+    *          parameters of a fit that did not converge consist of a single 0.0
+    */
+   public GaussianFit.Data getData(int index) {
+      double[] parms = {0.0};
+      if (converged_[index]) {
+         parms = new double[nrParams_];
+         System.arraycopy(params_, index * nrParams_, parms, 0, nrParams_);
+         if (shape_ == ELLIPSE) {
+            double[] prms = GaussianUtils.ellipseParmConversion(parms[S1], 
+                    parms[S2], parms[S3]);
+            parms[S1] = prms[1];
+            parms[S2] = prms[2];
+            parms[S3] = prms[0];
+         }
+      }
+      return new GaussianFit.Data(parms, apertureIntensity_[index], 
+              apertureBackground_[index]);
+   }
+   
+   /**
+    * Same estimates as used by GaussianFit: background from the outer rows and
+    * columns, signal from total intensity minus background, center from the
+    * centroid, and a hard coded width of 0.9 pixel.
+    */
+   private void estimateParameters(int index) {
+      final int offset = pixelOffset_[index];
+      final int width = width_[index];
+      final int nrPixels = pixelOffset_[index + 1] - offset;
+      final int height = nrPixels / width;
+      final int p = index * nrParams_;
+      
+      double s = 0.9;
+      if (!fixWidth_) {
+         params_[p + S] = s;
+      } else {
+         s = fixedWidth_;
+      }
+      if (shape_ >= ASYMMETRIC) {
+         params_[p + S2] = 0.9;
+      }
+      if (shape_ == ELLIPSE) {
+         params_[p + S1] = 1;
+         params_[p + S2] = 0;
+         params_[p + S3] = 1;
+      }
+      
+      double bg = 0.0;
+      int lastRowOffset = offset + (height - 1) * width;
+      for (int x = 0; x < width; x++) {
+         bg += pixels_[offset + x] + pixels_[lastRowOffset + x];
+      }
+      for (int y = 1; y < height - 1; y++) {
+         bg += pixels_[offset + y * width] + pixels_[offset + (y + 1) * width - 1];
+      }
+      double background = bg / (2 * width + 2 * (height - 2));
+      
+      double total = 0.0;
+      double mx = 0.0;
+      double my = 0.0;
+      for (int y = 0, i = offset; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            total += pixels_[i];
+            mx += pixels_[i] * x;
+            my += pixels_[i] * y;
+         }
+      }
+      double signal = total - background * nrPixels;
+      params_[p + INT] = signal / (2 * Math.PI * s * s);
+      params_[p + BGR] = background;
+      params_[p + XC] = mx / total;
+      params_[p + YC] = my / total;
+      apertureIntensity_[index] = signal;
+      apertureBackground_[index] = background;
+   }
+   
+   /**
+    * Levenberg-Marquardt minimization of the (weighted) sum of squares, using
+    * the same convergence criteria as GaussianFit
+    * 
+    * @return true if the fit converged
+    */
+   private boolean fitSpot(int index, int maxIterations) {
+      final int n = nrParams_;
+      System.arraycopy(params_, index * n, p_, 0, n);
+      double chi2 = evaluate(index, p_, alpha_, beta_);
+      if (Double.isNaN(chi2) || Double.isInfinite(chi2)) {
+         return false;
+      }
+      double lambda = INITIALLAMBDA;
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         if (!solve(lambda)) {
+            lambda *= 10;
+            if (lambda > MAXLAMBDA) {
+               return false;
+            }
+            continue;
+         }
+         for (int i = 0; i < n; i++) {
+            trial_[i] = p_[i] + step_[i];
+         }
+         double trialChi2 = evaluate(index, trial_, trialAlpha_, trialBeta_);
+         if (trialChi2 < chi2) {
+            boolean converged = hasConverged(p_, trial_);
+            System.arraycopy(trial_, 0, p_, 0, n);
+            double[] tmp = alpha_;
+            alpha_ = trialAlpha_;
+            trialAlpha_ = tmp;
+            tmp = beta_;
+            beta_ = trialBeta_;
+            trialBeta_ = tmp;
+            chi2 = trialChi2;
+            lambda /= 10;
+            if (converged) {
+               System.arraycopy(p_, 0, params_, index * n, n);
+               return true;
+            }
+         } else {
+            lambda *= 10;
+            if (lambda > MAXLAMBDA) {
+               // no step improves the fit any longer, we are at the minimum
+               System.arraycopy(p_, 0, params_, index * n, n);
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+   
+   private boolean hasConverged(double[] p, double[] c) {
+      return Math.abs(p[INT] - c[INT]) < 10 &&
+              Math.abs(p[BGR] - c[BGR]) < 0.2 &&
+              Math.abs(p[XC] - c[XC]) < 0.01 &&
+              Math.abs(p[YC] - c[YC]) < 0.01 &&
+              (fixWidth_ || Math.abs(p[S] - c[S]) < 5);
+   }
+   
+   /**
+    * Calculates the (weighted) sum of squared residuals of the model with 
+    * parameters p, and the lower triangle of J'WJ and J'Wr in alpha and beta
+    * 
+    * @return sum of squared residuals, or NaN when the parameters are invalid
+    */
+   private double evaluate(int index, double[] p, double[] alpha, double[] beta) {
+      final int n = nrParams_;
+      final int offset = pixelOffset_[index];
+      final int width = width_[index];
+      final int height = (pixelOffset_[index + 1] - offset) / width;
+      for (int i = 0; i < n * n; i++) {
+         alpha[i] = 0.0;
+      }
+      for (int i = 0; i < n; i++) {
+         beta[i] = 0.0;
+      }
+      final double a = p[INT];
+      final double b = p[BGR];
+      final double xc = p[XC];
+      final double yc = p[YC];
+      // coefficients of the exponent, for the ellipse these are the fit parameters
+      double cxx, cyy, cxy = 0.0;
+      double sx = fixWidth_ ? fixedWidth_ : p[S1];
+      double sy = sx;
+      if (shape_ == ASYMMETRIC) {
+         sy = p[S2];
+      }
+      if (shape_ == ELLIPSE) {
+         cxx = p[S1];
+         cxy = p[S2];
+         cyy = p[S3];
+      } else {
+         cxx = 1.0 / (sx * sx);
+         cyy = 1.0 / (sy * sy);
+      }
+      final double[] j = jacobian_;
+      double chi2 = 0.0;
+      for (int y = 0, i = offset; y < height; y++) {
+         final double dy = y - yc;
+         for (int x = 0; x < width; x++, i++) {
+            final double dx = x - xc;
+            final double g = Math.exp(-0.5 * (cxx * dx * dx + cyy * dy * dy 
+                    + 2.0 * cxy * dx * dy));
+            final double q = a * g;
+            final double r = pixels_[i] - (q + b);
+            j[INT] = g;
+            j[BGR] = 1.0;
+            if (shape_ == ELLIPSE) {
+               j[XC] = (cxx * dx + cxy * dy) * q;
+               j[YC] = (cxy * dx + cyy * dy) * q;
+               j[S1] = -0.5 * dx * dx * q;
+               j[S2] = -dx * dy * q;
+               j[S3] = -0.5 * dy * dy * q;
+            } else {
+               j[XC] = dx * q * cxx;
+               j[YC] = dy * q * cyy;
+               if (shape_ == ASYMMETRIC) {
+                  j[S1] = dx * dx * q * cxx / sx;
+                  j[S2] = dy * dy * q * cyy / sy;
+               } else if (!fixWidth_) {
+                  j[S] = (dx * dx + dy * dy) * q * cxx / sx;
+               }
+            }
+            // weights as used by GaussianFit in MLE mode, avoiding division by 0
+            final double w = mle_ ? 1.0 / Math.max(pixels_[i], 1.0) : 1.0;
+            chi2 += w * r * r;
+            for (int k = 0; k < n; k++) {
+               final double wjk = w * j[k];
+               beta[k] += wjk * r;
+               for (int l = 0; l <= k; l++) {
+                  alpha[k * n + l] += wjk * j[l];
+               }
+            }
+         }
+      }
+      if (Double.isInfinite(chi2)) {
+         return Double.NaN;
+      }
+      return chi2;
+   }
+   
+   /**
+    * Solves (alpha + lambda * diag(alpha)) step = beta by Cholesky decomposition
+    * 
+    * @return false if the matrix is not positive definite
+    */
+   private boolean solve(double lambda) {
+      final int n = nrParams_;
+      final double[] l = cholesky_;
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            double sum = alpha_[i * n + j];
+            if (i == j) {
+               sum *= 1.0 + lambda;
+            }
+            for (int k = 0; k < j; k++) {
+               sum -= l[i * n + k] * l[j * n + k];
+            }
+            if (i == j) {
+               if (!(sum > 0.0)) {
+                  return false;
+               }
+               l[i * n + i] = Math.sqrt(sum);
+            } else {
+               l[i * n + j] = sum / l[j * n + j];
+            }
+         }
+      }
+      for (int i = 0; i < n; i++) {
+         double sum = beta_[i];
+         for (int k = 0; k < i; k++) {
+            sum -= l[i * n + k] * step_[k];
+         }
+         step_[i] = sum / l[i * n + i];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+         double sum = step_[i];
+         for (int k = i + 1; k < n; k++) {
+            sum -= l[k * n + i] * step_[k];
+         }
+         step_[i] = sum / l[i * n + i];
+      }
+      return true;
+   }
+   
+}
@@ -555,50 +555,49 @@ public class LoadAndSave {
                }
 
                int counter = 0;
-               for (SpotData gd : rowData[rowNr].spotList_) {
+               SpotStore spots = rowData[rowNr].spotList_;
+               for (int n = 0; n < spots.size(); n++) {
 
                   if ((counter % 1000) == 0) {
                      ij.IJ.showStatus("Saving spotData...");
-                     ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
+                     ij.IJ.showProgress(counter, spots.size());
                   }
 
-                  if (gd != null) {
-                     TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
-                     // TODO: precede all these calls with check for presence of member
-                     // or be OK with default values?
-                     spotBuilder.setMolecule(counter).
-                             setFrame(gd.getFrame()).
-                             setChannel(gd.getChannel()).
-                             setPos(gd.getPosition()).
-                             setSlice(gd.getSlice()).
-                             setX((float) gd.getXCenter()).
-                             setY((float) gd.getYCenter()).
-                             setIntensity((float) gd.getIntensity()).
-                             setBackground((float) gd.getBackground()).
-                             setXPosition(gd.getX()).
-                             setYPosition(gd.getY()).
-                             setWidth((float) gd.getWidth()).
-                             setA((float) gd.getA()).
-                             setTheta((float) gd.getTheta()).
-                             setXPrecision((float) gd.getSigma()).
-                             setExtension(MMLocM.intensityAperture, 
-                                  gd.getValue(SpotData.Keys.APERTUREINTENSITY).floatValue()).
-                             setExtension(MMLocM.intensityBackground, 
-                                  gd.getValue(SpotData.Keys.APERTUREBACKGROUND).floatValue()).
-                             setExtension(MMLocM.intensityRatio, 
-                                  gd.getValue(SpotData.Keys.INTENSITYRATIO).floatValue()).
-                             setExtension(MMLocM.mSigma, 
-                                  gd.getValue(SpotData.Keys.MSIGMA).floatValue());
-                     if (rowData[rowNr].hasZ_) {
-                        spotBuilder.setZ((float) gd.getZCenter());
-                     }
-
-                     TaggedSpotsProtos.Spot spot = spotBuilder.build();
-                     
-                     // write message size and message
-                     spot.writeDelimitedTo(fo);
-                     counter++;
+                  TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+                  // TODO: precede all these calls with check for presence of member
+                  // or be OK with default values?
+                  spotBuilder.setMolecule(counter).
+                          setFrame(spots.getFrame(n)).
+                          setChannel(spots.getChannel(n)).
+                          setPos(spots.getPosition(n)).
+                          setSlice(spots.getSlice(n)).
+                          setX((float) spots.getXCenter(n)).
+                          setY((float) spots.getYCenter(n)).
+                          setIntensity((float) spots.getIntensity(n)).
+                          setBackground((float) spots.getBackground(n)).
+                          setXPosition(spots.getX(n)).
+                          setYPosition(spots.getY(n)).
+                          setWidth((float) spots.getWidth(n)).
+                          setA((float) spots.getA(n)).
+                          setTheta((float) spots.getTheta(n)).
+                          setXPrecision((float) spots.getSigma(n)).
+                          setExtension(MMLocM.intensityAperture, 
+                               spots.getValue(SpotData.Keys.APERTUREINTENSITY, n).floatValue()).
+                          setExtension(MMLocM.intensityBackground, 
+                               spots.getValue(SpotData.Keys.APERTUREBACKGROUND, n).floatValue()).
+                          setExtension(MMLocM.intensityRatio, 
+                               spots.getValue(SpotData.Keys.INTENSITYRATIO, n).floatValue()).
+                          setExtension(MMLocM.mSigma, 
+                               spots.getValue(SpotData.Keys.MSIGMA, n).floatValue());
+                  if (rowData[rowNr].hasZ_) {
+                     spotBuilder.setZ((float) spots.getZCenter(n));
                   }
+
+                  TaggedSpotsProtos.Spot spot = spotBuilder.build();
+                  
+                  // write message size and message
+                  spot.writeDelimitedTo(fo);
+                  counter++;
                }
 
                FileChannel fc = fo.getChannel();
@@ -703,54 +702,53 @@ public class LoadAndSave {
                      fw.write("\n");
 
                      int counter = 1;
-                     for (SpotData gd : rows[rowNr].spotList_) {
+                     SpotStore spots = rows[rowNr].spotList_;
+                     for (int n = 0; n < spots.size(); n++) {
 
                         if ((counter % 1000) == 0) {
                            ij.IJ.showStatus("Saving spotData...");
-                           ij.IJ.showProgress(counter, rows[rowNr].spotList_.size());
+                           ij.IJ.showProgress(counter, spots.size());
                         }
 
-                        if (gd != null) {
-                           fw.write("" + counter + tab
-                                   + gd.getFrame() + tab
-                                   + gd.getSlice() + tab
-                                   + gd.getChannel() + tab
-                                   + gd.getPosition() + tab
-                                   + gd.getX() + tab
-                                   + gd.getY() + tab
-                                   + String.format("%.2f", gd.getXCenter()) + tab
-                                   + String.format("%.2f", gd.getYCenter()) + tab
-                                   + String.format("%.2f", gd.getIntensity()) + tab
-                                   + String.format("%.2f", gd.getBackground()) + tab
-                                   + String.format("%.2f", gd.getWidth()) + tab
-                                   + String.format("%.3f", gd.getA()) + tab
-                                   + String.format("%.3f", gd.getTheta()) + tab
-                                   + String.format("%.3f", gd.getSigma()) + tab);
-                           String remainder = "";
-                           if (gd.hasKey(SpotData.Keys.APERTUREINTENSITY)) {
-                              remainder += String.format("%.2f", gd.getValue(SpotData.Keys.APERTUREINTENSITY).floatValue());
-                           }
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.APERTUREBACKGROUND)) {
-                              remainder += String.format("%.2f", gd.getValue(SpotData.Keys.APERTUREBACKGROUND).floatValue());
-                           }
-
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.INTENSITYRATIO)) {
-                              remainder += String.format("%.3f", gd.getValue(SpotData.Keys.INTENSITYRATIO).floatValue());
-                           }
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.MSIGMA)) {
-                              remainder += String.format("%.3f", gd.getValue(SpotData.Keys.MSIGMA).floatValue());
-                           }
-                           fw.write(remainder);
-                           if (rows[rowNr].hasZ_) {
-                              fw.write(tab + String.format("%.2f", gd.getZCenter()));
-                           }
-                           fw.write("\n");
-
-                           counter++;
+                        fw.write("" + counter + tab
+                                + spots.getFrame(n) + tab
+                                + spots.getSlice(n) + tab
+                                + spots.getChannel(n) + tab
+                                + spots.getPosition(n) + tab
+                                + spots.getX(n) + tab
+                                + spots.getY(n) + tab
+                                + String.format("%.2f", spots.getXCenter(n)) + tab
+                                + String.format("%.2f", spots.getYCenter(n)) + tab
+                                + String.format("%.2f", spots.getIntensity(n)) + tab
+                                + String.format("%.2f", spots.getBackground(n)) + tab
+                                + String.format("%.2f", spots.getWidth(n)) + tab
+                                + String.format("%.3f", spots.getA(n)) + tab
+                                + String.format("%.3f", spots.getTheta(n)) + tab
+                                + String.format("%.3f", spots.getSigma(n)) + tab);
+                        String remainder = "";
+                        if (spots.hasKey(SpotData.Keys.APERTUREINTENSITY, n)) {
+                           remainder += String.format("%.2f", spots.getValue(SpotData.Keys.APERTUREINTENSITY, n).floatValue());
                         }
+                        remainder += tab;
+                        if (spots.hasKey(SpotData.Keys.APERTUREBACKGROUND, n)) {
+                           remainder += String.format("%.2f", spots.getValue(SpotData.Keys.APERTUREBACKGROUND, n).floatValue());
+                        }
+
+                        remainder += tab;
+                        if (spots.hasKey(SpotData.Keys.INTENSITYRATIO, n)) {
+                           remainder += String.format("%.3f", spots.getValue(SpotData.Keys.INTENSITYRATIO, n).floatValue());
+                        }
+                        remainder += tab;
+                        if (spots.hasKey(SpotData.Keys.MSIGMA, n)) {
+                           remainder += String.format("%.3f", spots.getValue(SpotData.Keys.MSIGMA, n).floatValue());
+                        }
+                        fw.write(remainder);
+                        if (rows[rowNr].hasZ_) {
+                           fw.write(tab + String.format("%.2f", spots.getZCenter(n)));
+                        }
+                        fw.write("\n");
+
+                        counter++;
                      }
 
                      fw.close();
@@ -188,9 +188,15 @@ public class RowData {
 
    }
 
-   public final List<SpotData> spotList_;
+   public final SpotStore spotList_;
    private Map<Integer, List<SpotData>> frameIndexSpotList_;
-   private Map<ImageIndex, List<SpotData>> indexedSpotList_;
+   // indices of the spots sorted by frame (or slice), then frame, slice, 
+   // channel and position, and for each image the range in this array
+   private int[] sortedIndices_;
+   private Map<ImageIndex, int[]> imageRanges_;
+   // indices of the spots sorted by frame only, and the range of each frame
+   private int[] frameSortedIndices_;
+   private Map<Integer, int[]> frameRanges_;
    public final ArrayList<Double> timePoints_;
    private String name_;             // name as it appears in the DataCollection table
    public final String title_;      // ImagePlus title of the image
@@ -237,7 +243,7 @@ public class RowData {
       nrSlices_ = b.nrSlices_;
       nrPositions_ = b.nrPositions_;
       maxNrSpots_ = b.maxNrSpots_;
-      spotList_ = new ArrayList<SpotData>(b.spotList_);
+      spotList_ = SpotStore.of(b.spotList_);
       if (b.timePoints_ != null) {
          timePoints_ = new ArrayList<Double>(b.timePoints_);
       } else {
@@ -261,13 +267,11 @@ public class RowData {
          stdX = stdPoint.x;
          stdY = stdPoint.y;
          std = Math.sqrt(stdX * stdX + stdY * stdY);
-         for (SpotData spot : spotList_) {
-            nrPhotons += spot.getIntensity();
-         }
          List<Integer> channelList = new ArrayList<Integer>();
-         for (SpotData spot : spotList_) {
-            if (!channelList.contains(spot.getChannel()) ) {
-               channelList.add(spot.getChannel());
+         for (int i = 0; i < spotList_.size(); i++) {
+            nrPhotons += spotList_.getIntensity(i);
+            if (!channelList.contains(spotList_.getChannel(i)) ) {
+               channelList.add(spotList_.getChannel(i));
             }
          }
          for (Integer i : channelList) {
@@ -300,35 +304,51 @@ public class RowData {
    }
    
    /**
-    * Populates the list frameIndexSpotList which gives access to spots by frame
+    * Populates the list frameIndexSpotList which gives access to spots by frame,
+    * and the index used to look up the spots in a given image.
+    * Spots are sorted by frame with a counting sort on the int columns of the
+    * spot store, and the lists in the index are views on the sorted indices.
     */
    public void index() {
       boolean useFrames = nrFrames_ > nrSlices_;
-      int nr = nrSlices_;
-      if (useFrames) {
-         nr = nrFrames_;
-      }
-
-      frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
-      indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
-
-      for (SpotData spot : spotList_) {
-         int frameIndex = spot.getSlice();
-         if (useFrames) {
-            frameIndex = spot.getFrame();
+      int[] frameIndices = useFrames ? spotList_.frameColumn() : 
+              spotList_.sliceColumn();
+      int[] sortedIndices = SpotStore.sortedIndices(frameIndices, 
+              spotList_.frameColumn(), spotList_.sliceColumn(), 
+              spotList_.channelColumn(), spotList_.positionColumn());
+
+      Map<Integer, List<SpotData>> frameIndexSpotList = 
+              new HashMap<Integer, List<SpotData>>();
+      Map<ImageIndex, int[]> imageRanges = new HashMap<ImageIndex, int[]>();
+      int frameStart = 0;
+      int imageStart = 0;
+      for (int i = 1; i <= sortedIndices.length; i++) {
+         int previous = sortedIndices[i - 1];
+         boolean newImage = i == sortedIndices.length;
+         if (!newImage) {
+            int current = sortedIndices[i];
+            newImage = spotList_.getFrame(current) != spotList_.getFrame(previous)
+                    || spotList_.getSlice(current) != spotList_.getSlice(previous)
+                    || spotList_.getChannel(current) != spotList_.getChannel(previous)
+                    || spotList_.getPosition(current) != spotList_.getPosition(previous);
          }
-         if (frameIndexSpotList_.get(frameIndex) == null) {
-            frameIndexSpotList_.put(frameIndex, new ArrayList<SpotData>());
+         if (newImage) {
+            imageRanges.put(new ImageIndex(spotList_.getFrame(previous), 
+                    spotList_.getSlice(previous), spotList_.getChannel(previous),
+                    spotList_.getPosition(previous)), new int[] {imageStart, i});
+            imageStart = i;
          }
-         frameIndexSpotList_.get(frameIndex).add(spot);
-
-         ImageIndex ii = new ImageIndex(spot.getFrame(), spot.getSlice(),
-                 spot.getChannel(), spot.getPosition());
-         if (indexedSpotList_.get(ii) == null) {
-            indexedSpotList_.put(ii, new ArrayList<SpotData>());
+         if (i == sortedIndices.length || 
+                 frameIndices[sortedIndices[i]] != frameIndices[previous]) {
+            frameIndexSpotList.put(frameIndices[previous], 
+                    spotList_.view(sortedIndices, frameStart, i));
+            frameStart = i;
          }
-         indexedSpotList_.get(ii).add(spot);
       }
+      
+      sortedIndices_ = sortedIndices;
+      imageRanges_ = imageRanges;
+      frameIndexSpotList_ = frameIndexSpotList;
    }
    
    public Map<Integer, List<SpotData>> getSpotListIndexedByFrame () {
@@ -339,12 +359,59 @@ public class RowData {
    }
            
 
+   /**
+    * Returns the spots found in the given image.  The returned list is 
+    * newly created, so its spots can be compared by identity.
+    * 
+    * @return list of spots in this image, or null if there are none
+    */
    public List<SpotData> get(int frame, int slice, int channel, int position) {
       ImageIndex ii = new ImageIndex(frame, slice, channel, position);
-      if (indexedSpotList_ == null) {
+      if (imageRanges_ == null) {
          index();
       }
-      return indexedSpotList_.get(ii);
+      int[] range = imageRanges_.get(ii);
+      if (range == null) {
+         return null;
+      }
+      return new ArrayList<SpotData>(spotList_.view(sortedIndices_, range[0], range[1]));
+   }
+
+   /**
+    * Returns all spots in the given frame, regardless of slice, channel and 
+    * position, in the order they are stored in.  The returned list is newly
+    * created.  The index used for the lookup is built on the first call.
+    * 
+    * @param frame - frame number
+    * @return list of spots in this frame, empty if there are none
+    */
+   public List<SpotData> getSpotsInFrame(int frame) {
+      indexFrames();
+      int[] range = frameRanges_.get(frame);
+      if (range == null) {
+         return new ArrayList<SpotData>();
+      }
+      return new ArrayList<SpotData>(spotList_.view(frameSortedIndices_, 
+              range[0], range[1]));
+   }
+   
+   private synchronized void indexFrames() {
+      if (frameRanges_ != null) {
+         return;
+      }
+      int[] frames = spotList_.frameColumn();
+      int[] sortedIndices = SpotStore.sortedIndices(frames);
+      Map<Integer, int[]> frameRanges = new HashMap<Integer, int[]>();
+      int frameStart = 0;
+      for (int i = 1; i <= sortedIndices.length; i++) {
+         int previous = frames[sortedIndices[i - 1]];
+         if (i == sortedIndices.length || frames[sortedIndices[i]] != previous) {
+            frameRanges.put(previous, new int[] {frameStart, i});
+            frameStart = i;
+         }
+      }
+      frameSortedIndices_ = sortedIndices;
+      frameRanges_ = frameRanges;
    }
 
    /**
@@ -359,10 +426,10 @@ public class RowData {
     * @return desired spot or null if not found
     */
    public SpotData get(int frame, int channel, double xPos, double yPos) {
-      for (SpotData spot : spotList_) {
-         if (spot.getFrame() == frame && spot.getChannel() == channel
-                 && spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
-            return spot;
+      for (int i = 0; i < spotList_.size(); i++) {
+         if (spotList_.getFrame(i) == frame && spotList_.getChannel(i) == channel
+                 && spotList_.getXCenter(i) == xPos && spotList_.getYCenter(i) == yPos) {
+            return spotList_.get(i);
          }
       }
 
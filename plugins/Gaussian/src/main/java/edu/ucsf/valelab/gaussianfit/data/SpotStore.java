@@ -0,0 +1,384 @@
+/*
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+*/
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Immutable, column oriented storage for the spots of a dataset.
+ * 
+ * Every property of the spots is stored in its own primitive array, and 
+ * values of extra keys (see SpotData.Keys) in a column per key, with NaN for
+ * spots that do not have that key.  This uses a fraction of the memory 
+ * needed by a SpotData object per spot, and lets code that processes all
+ * spots (rendering, filtering, drift correction, saving) run over contiguous
+ * arrays using the index based getters.
+ * 
+ * To stay compatible with code written for List&lt;SpotData&gt;, this is also
+ * a read only list.  Its get function creates a new SpotData each time 
+ * it is called, so spot objects obtained this way should not be compared by 
+ * identity, and changing them does not change the data in the store.
+ * Image data of the spots is not kept.
+ */
+public class SpotStore extends AbstractList<SpotData> implements RandomAccess {
+   
+   private final int size_;
+   private final int[] frame_;
+   private final int[] channel_;
+   private final int[] slice_;
+   private final int[] position_;
+   private final int[] nr_;
+   private final int[] x_;
+   private final int[] y_;
+   private final int[] nrLinks_;
+   private final int[] originalFrame_;
+   private final double[] intensity_;
+   private final double[] background_;
+   private final double[] xCenter_;
+   private final double[] yCenter_;
+   private final double[] zCenter_;
+   private final double[] xOri_;
+   private final double[] yOri_;
+   private final double[] zOri_;
+   private final double[] width_;
+   private final double[] a_;
+   private final double[] theta_;
+   private final double[] sigma_;
+   private final Map<String, double[]> extraColumns_;
+   
+   /**
+    * Returns a store with the given spots.  Since stores are immutable, a 
+    * list that already is a SpotStore is returned as is.
+    * 
+    * @param spots - spots to store, null entries are skipped
+    * @return store containing the spots
+    */
+   public static SpotStore of(List<SpotData> spots) {
+      if (spots instanceof SpotStore) {
+         return (SpotStore) spots;
+      }
+      return new SpotStore(spots);
+   }
+   
+   private SpotStore(List<SpotData> spots) {
+      int size = 0;
+      for (SpotData spot : spots) {
+         if (spot != null) {
+            size++;
+         }
+      }
+      size_ = size;
+      frame_ = new int[size];
+      channel_ = new int[size];
+      slice_ = new int[size];
+      position_ = new int[size];
+      nr_ = new int[size];
+      x_ = new int[size];
+      y_ = new int[size];
+      nrLinks_ = new int[size];
+      originalFrame_ = new int[size];
+      intensity_ = new double[size];
+      background_ = new double[size];
+      xCenter_ = new double[size];
+      yCenter_ = new double[size];
+      zCenter_ = new double[size];
+      xOri_ = new double[size];
+      yOri_ = new double[size];
+      zOri_ = new double[size];
+      width_ = new double[size];
+      a_ = new double[size];
+      theta_ = new double[size];
+      sigma_ = new double[size];
+      extraColumns_ = new LinkedHashMap<String, double[]>();
+      
+      int i = 0;
+      for (SpotData spot : spots) {
+         if (spot == null) {
+            continue;
+         }
+         frame_[i] = spot.getFrame();
+         channel_[i] = spot.getChannel();
+         slice_[i] = spot.getSlice();
+         position_[i] = spot.getPosition();
+         nr_[i] = spot.getNr();
+         x_[i] = spot.getX();
+         y_[i] = spot.getY();
+         nrLinks_[i] = spot.nrLinks_;
+         originalFrame_[i] = spot.originalFrame_;
+         intensity_[i] = spot.getIntensity();
+         background_[i] = spot.getBackground();
+         xCenter_[i] = spot.getXCenter();
+         yCenter_[i] = spot.getYCenter();
+         zCenter_[i] = spot.getZCenter();
+         xOri_[i] = spot.getXOri();
+         yOri_[i] = spot.geYOri();
+         zOri_[i] = spot.getZOri();
+         width_[i] = spot.getWidth();
+         a_[i] = spot.getA();
+         theta_[i] = spot.getTheta();
+         sigma_[i] = spot.getSigma();
+         for (String key : spot.getKeys()) {
+            double[] column = extraColumns_.get(key);
+            if (column == null) {
+               column = new double[size];
+               Arrays.fill(column, Double.NaN);
+               extraColumns_.put(key, column);
+            }
+            column[i] = spot.getValue(key);
+         }
+         i++;
+      }
+   }
+   
+   @Override
+   public int size() {
+      return size_;
+   }
+   
+   /**
+    * Creates a new SpotData with the values of the spot at the given index
+    * 
+    * @param index - index of the spot in this store
+    * @return newly created SpotData
+    */
+   @Override
+   public SpotData get(int index) {
+      if (index < 0 || index >= size_) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size_);
+      }
+      SpotData spot = new SpotData(null, channel_[index], slice_[index], 
+              frame_[index], position_[index], nr_[index], x_[index], y_[index]);
+      spot.setData(intensity_[index], background_[index], xCenter_[index], 
+              yCenter_[index], zCenter_[index], width_[index], a_[index], 
+              theta_[index], sigma_[index]);
+      spot.setZCenter(zCenter_[index]);
+      spot.setOriginalPosition(xOri_[index], yOri_[index], zOri_[index]);
+      spot.nrLinks_ = nrLinks_[index];
+      spot.originalFrame_ = originalFrame_[index];
+      for (Map.Entry<String, double[]> column : extraColumns_.entrySet()) {
+         double value = column.getValue()[index];
+         if (!Double.isNaN(value)) {
+            spot.addKeyValue(column.getKey(), value);
+         }
+      }
+      return spot;
+   }
+   
+   /**
+    * Returns a read only list of the spots at the given indices
+    * 
+    * @param indices - array with indices into this store
+    * @param from - first element of indices to use
+    * @param to - element of indices after the last one to use
+    * @return List with spots at indices[from] up to indices[to - 1]
+    */
+   public List<SpotData> view(int[] indices, int from, int to) {
+      return new View(indices, from, to);
+   }
+   
+   private class View extends AbstractList<SpotData> implements RandomAccess {
+      private final int[] indices_;
+      private final int from_;
+      private final int to_;
+      
+      private View(int[] indices, int from, int to) {
+         indices_ = indices;
+         from_ = from;
+         to_ = to;
+      }
+
+      @Override
+      public SpotData get(int index) {
+         if (index < 0 || index >= to_ - from_) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " 
+                    + (to_ - from_));
+         }
+         return SpotStore.this.get(indices_[from_ + index]);
+      }
+
+      @Override
+      public int size() {
+         return to_ - from_;
+      }
+   }
+   
+   /**
+    * Sorts the spots by the given keys using a stable counting sort per key,
+    * so that spots with the same keys stay in the order they were stored in.
+    * 
+    * @param keys - int columns to sort by (one value per spot), the first 
+    *             column is the most significant one
+    * @return indices of the spots in sorted order
+    */
+   static int[] sortedIndices(int[]... keys) {
+      int n = keys.length > 0 ? keys[0].length : 0;
+      int[] order = new int[n];
+      for (int i = 0; i < n; i++) {
+         order[i] = i;
+      }
+      int[] tmp = new int[n];
+      for (int k = keys.length - 1; k >= 0; k--) {
+         int[] key = keys[k];
+         if (n == 0) {
+            break;
+         }
+         int min = key[0];
+         int max = key[0];
+         for (int i = 1; i < n; i++) {
+            min = Math.min(min, key[i]);
+            max = Math.max(max, key[i]);
+         }
+         int[] offsets = new int[max - min + 2];
+         for (int i = 0; i < n; i++) {
+            offsets[key[i] - min + 1]++;
+         }
+         for (int v = 1; v < offsets.length; v++) {
+            offsets[v] += offsets[v - 1];
+         }
+         for (int i = 0; i < n; i++) {
+            int spot = order[i];
+            tmp[offsets[key[spot] - min]++] = spot;
+         }
+         int[] swap = order;
+         order = tmp;
+         tmp = swap;
+      }
+      return order;
+   }
+   
+   public int getFrame(int index) {
+      return frame_[index];
+   }
+   public int getChannel(int index) {
+      return channel_[index];
+   }
+   public int getSlice(int index) {
+      return slice_[index];
+   }
+   public int getPosition(int index) {
+      return position_[index];
+   }
+   public int getNr(int index) {
+      return nr_[index];
+   }
+   public int getX(int index) {
+      return x_[index];
+   }
+   public int getY(int index) {
+      return y_[index];
+   }
+   public int getNrLinks(int index) {
+      return nrLinks_[index];
+   }
+   public int getOriginalFrame(int index) {
+      return originalFrame_[index];
+   }
+   public double getIntensity(int index) {
+      return intensity_[index];
+   }
+   public double getBackground(int index) {
+      return background_[index];
+   }
+   public double getXCenter(int index) {
+      return xCenter_[index];
+   }
+   public double getYCenter(int index) {
+      return yCenter_[index];
+   }
+   public double getZCenter(int index) {
+      return zCenter_[index];
+   }
+   public double getXOri(int index) {
+      return xOri_[index];
+   }
+   public double getYOri(int index) {
+      return yOri_[index];
+   }
+   public double getZOri(int index) {
+      return zOri_[index];
+   }
+   public double getWidth(int index) {
+      return width_[index];
+   }
+   public double getA(int index) {
+      return a_[index];
+   }
+   public double getTheta(int index) {
+      return theta_[index];
+   }
+   public double getSigma(int index) {
+      return sigma_[index];
+   }
+   
+   /**
+    * @return all extra keys that are present in at least one spot
+    */
+   public String[] getKeys() {
+      return extraColumns_.keySet().toArray(new String[extraColumns_.size()]);
+   }
+   
+   public boolean hasKey(String key, int index) {
+      double[] column = extraColumns_.get(key);
+      return column != null && !Double.isNaN(column[index]);
+   }
+   
+   /**
+    * @param key - one of SpotData.Keys
+    * @param index - index of the spot
+    * @return value for the key, or null if the spot does not have this key
+    */
+   public Double getValue(String key, int index) {
+      double[] column = extraColumns_.get(key);
+      if (column == null || Double.isNaN(column[index])) {
+         return null;
+      }
+      return column[index];
+   }
+   
+   // package private access to the columns, for indexing in RowData
+   int[] frameColumn() {
+      return frame_;
+   }
+   int[] sliceColumn() {
+      return slice_;
+   }
+   int[] channelColumn() {
+      return channel_;
+   }
+   int[] positionColumn() {
+      return position_;
+   }
+   
+}
@@ -33,9 +33,9 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasetdisplay;
 
 import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
-import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -46,6 +46,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -55,8 +62,133 @@ public class ImageRenderer {
     private final int[][] iceLut_ = new int[256][];
     static int[][] zLut_ = new int[256][]; 
       
+   // size in pixels of the square tiles of the output image that are 
+   // rendered in parallel
+   static final int TILESIZE = 256;
+      
+   /**
+    * Spots binned by the output tiles they touch.  Stored as one array of 
+    * indices into the list of rendered spots, sorted by tile, and the offset 
+    * of each tile in that array.  A spot whose footprint crosses tile borders
+    * is listed in each of the tiles it touches.
+    */
+   static class Tiles {
+      final int width_;
+      final int height_;
+      final int nrTilesX_;
+      final int nrTilesY_;
+      final int[] tileStart_;
+      final int[] tileSpots_;
+      
+      /**
+       * @param width - width of the rendered image
+       * @param height - height of the rendered image
+       * @param xc - x position of each spot in the rendered image
+       * @param yc - y position of each spot in the rendered image
+       * @param halfWidth - distance from the center that each spot reaches
+       * @param nrSpots - number of spots in the arrays
+       */
+      Tiles(int width, int height, int[] xc, int[] yc, int[] halfWidth, 
+              int nrSpots) {
+         width_ = width;
+         height_ = height;
+         nrTilesX_ = (width + TILESIZE - 1) / TILESIZE;
+         nrTilesY_ = (height + TILESIZE - 1) / TILESIZE;
+         tileStart_ = new int[nrTilesX_ * nrTilesY_ + 1];
+         // count the spots in each tile
+         for (int i = 0; i < nrSpots; i++) {
+            for (int ty = tile(yc[i] - halfWidth[i], nrTilesY_); 
+                    ty <= tile(yc[i] + halfWidth[i], nrTilesY_); ty++) {
+               for (int tx = tile(xc[i] - halfWidth[i], nrTilesX_); 
+                       tx <= tile(xc[i] + halfWidth[i], nrTilesX_); tx++) {
+                  tileStart_[ty * nrTilesX_ + tx + 1]++;
+               }
+            }
+         }
+         for (int t = 1; t < tileStart_.length; t++) {
+            tileStart_[t] += tileStart_[t - 1];
+         }
+         // and fill in the spots of each tile
+         tileSpots_ = new int[tileStart_[tileStart_.length - 1]];
+         int[] next = Arrays.copyOf(tileStart_, tileStart_.length - 1);
+         for (int i = 0; i < nrSpots; i++) {
+            for (int ty = tile(yc[i] - halfWidth[i], nrTilesY_); 
+                    ty <= tile(yc[i] + halfWidth[i], nrTilesY_); ty++) {
+               for (int tx = tile(xc[i] - halfWidth[i], nrTilesX_); 
+                       tx <= tile(xc[i] + halfWidth[i], nrTilesX_); tx++) {
+                  tileSpots_[next[ty * nrTilesX_ + tx]++] = i;
+               }
+            }
+         }
+      }
+      
+      private static int tile(int p, int nrTiles) {
+         return Math.max(0, Math.min(nrTiles - 1, p / TILESIZE));
+      }
+      
+      int size() {
+         return nrTilesX_ * nrTilesY_;
+      }
+      
+      int x0(int tile) {
+         return (tile % nrTilesX_) * TILESIZE;
+      }
+      
+      int x1(int tile) {
+         return Math.min(width_, x0(tile) + TILESIZE);
+      }
+      
+      int y0(int tile) {
+         return (tile / nrTilesX_) * TILESIZE;
+      }
+      
+      int y1(int tile) {
+         return Math.min(height_, y0(tile) + TILESIZE);
+      }
+   }
+   
+   /**
+    * Renders a single tile of the output image.  Tiles do not overlap, so 
+    * they can be rendered at the same time, each one only writing to its 
+    * own pixels.
+    */
+   private interface TileRenderer {
+      void render(int tile);
+   }
+   
+   /**
+    * Renders all tiles using ImageJ's number of threads, and shows progress
+    */
+   private static void renderTiles(final Tiles tiles, final TileRenderer renderer) 
+           throws InterruptedException, ExecutionException {
+      ExecutorService tileThreads = Executors.newFixedThreadPool(
+              ij.Prefs.getThreads());
+      try {
+         List<Future<?>> results = new ArrayList<Future<?>>(tiles.size());
+         for (int t = 0; t < tiles.size(); t++) {
+            final int tile = t;
+            results.add(tileThreads.submit(new Runnable() {
+               @Override
+               public void run() {
+                  renderer.render(tile);
+               }
+            }));
+         }
+         for (int t = 0; t < results.size(); t++) {
+            ij.IJ.showProgress(t, results.size());
+            results.get(t).get();
+         }
+      } finally {
+         tileThreads.shutdownNow();
+      }
+   }
+   
    /**
     * Renders spotdata using various renderModes
+    * The output image is divided in tiles, and spots are binned by the tiles
+    * they touch, after which the tiles are rendered in parallel.  Only spots
+    * that are inside rect are used, so passing the visible part of the 
+    * (magnified) image as rect only renders what will be shown.
     * 
     * @param rowData - MyRowData structure to be rendered
     * @param method - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
@@ -91,82 +223,115 @@ public class ImageRenderer {
       int endx = rect.x + rect.width;
       int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
-
+      final double factor = magnification / rowData.pixelSizeNm_;
+      final SpotStore spots = rowData.spotList_;
+      
+      // spots that will be rendered, with their position in the output image 
+      // and the number of pixels they extend from their center 
+      final int[] spotIndex = new int[spots.size()];
+      final int[] xc = new int[spots.size()];
+      final int[] yc = new int[spots.size()];
+      final int[] halfWidth = new int[spots.size()];
+      int nrSpots = 0;
 
       try {
+         ij.IJ.showStatus("Rendering Image...");
          if (method == 0) {
+            for (int n = 0; n < spots.size(); n++) {
+               if (sf.filter(spots, n)) {
+                  int x = (int) (factor * spots.getXCenter(n));
+                  int y = (int) (factor * spots.getYCenter(n));
+                  if (x > rect.x && x < endx && y > rect.y && y < endy) {
+                     x -= rect.x;
+                     y -= rect.y;
+                     int index = (y * width) + x;
+                     if (index < size && index > 0) {
+                        spotIndex[nrSpots] = n;
+                        xc[nrSpots] = x;
+                        yc[nrSpots] = y;
+                        nrSpots++;
+                     }
+                  }
+               }
+            }
+            final Tiles tiles = new Tiles(width, height, xc, yc, halfWidth, nrSpots);
+            
             if (!rowData.hasZ_) {
                ip = new ShortProcessor(width, height);
-               short pixels[] = new short[size];
+               final short pixels[] = new short[size];
                ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
-                           }
+               renderTiles(tiles, new TileRenderer() {
+                  @Override
+                  public void render(int tile) {
+                     for (int s = tiles.tileStart_[tile]; s < tiles.tileStart_[tile + 1]; s++) {
+                        int i = tiles.tileSpots_[s];
+                        int index = (yc[i] * width) + xc[i];
+                        if (pixels[index] != -1) {
+                           pixels[index] += 1;
                         }
                      }
                   }
-               }
+               });
             } else if (rowData.hasZ_) {
-               ShortProcessor[] sp = new ShortProcessor[3];
-               short[][] pixels = new short[3][size];
-               for (int i = 0; i < 3; i++) {
-                  sp[i] = new ShortProcessor(width, height);
-                  sp[i].setPixels(pixels[i]);
-               }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
-                           }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
-                           }
-                        }
-                     }
+               final double spread = rowData.maxZ_ - rowData.minZ_;
+               final int[] zIndex = new int[nrSpots];
+               for (int i = 0; i < nrSpots; i++) {
+                  zIndex[i] = (int) (256 * (spots.getZCenter(spotIndex[i]) - rowData.minZ_) / spread);
+                  if (zIndex[i] < 0) {
+                     zIndex[i] = 0;
+                  }
+                  if (zIndex[i] > 255) {
+                     zIndex[i] = 255;
                   }
                }
-               // we have 3 ShortProcessors.  Combine into a color image:
+               // Each tile sums the color of its spots in the three channels.
+               // The color image is scaled by the maximum in all tiles, so
+               // tiles are rendered twice: once to find the maximum, 
+               // and once to fill in the color image.  This avoids keeping 
+               // the three channels of the complete image in memory.
                ColorProcessor cp = new ColorProcessor(width, height);
-               byte[][] colorPixels = new byte[3][];
-               for (int i = 0; i < 3; i++) {
-                  colorPixels[i] = new byte[size];
-               }
-               //ip.setPixels(colorPixels);
-               double max = sp[0].getMax();
-               for (int i = 1; i < 3; i++) {
-                  if (sp[i].getMax() > max) {
-                     max = sp[i].getMax();
+               final int[] colorPixels = (int[]) cp.getPixels();
+               final int[] tileMax = new int[tiles.size()];
+               final double[] max = new double[1];
+               TileRenderer zRenderer = new TileRenderer() {
+                  @Override
+                  public void render(int tile) {
+                     int x0 = tiles.x0(tile);
+                     int y0 = tiles.y0(tile);
+                     int tileWidth = tiles.x1(tile) - x0;
+                     int tileHeight = tiles.y1(tile) - y0;
+                     int[][] channels = new int[3][tileWidth * tileHeight];
+                     for (int s = tiles.tileStart_[tile]; s < tiles.tileStart_[tile + 1]; s++) {
+                        int i = tiles.tileSpots_[s];
+                        int index = (yc[i] - y0) * tileWidth + xc[i] - x0;
+                        for (int c = 0; c < 3; c++) {
+                           channels[c][index] = Math.min(65535, 
+                                   channels[c][index] + zLut_[zIndex[i]][c]);
+                           tileMax[tile] = Math.max(tileMax[tile], channels[c][index]);
+                        }
+                     }
+                     if (max[0] == 0.0) {
+                        return;
+                     }
+                     for (int y = 0; y < tileHeight; y++) {
+                        for (int x = 0; x < tileWidth; x++) {
+                           int p = y * tileWidth + x;
+                           int r = (int) (255.0 * channels[0][p] / max[0]);
+                           int g = (int) (255.0 * channels[1][p] / max[0]);
+                           int b = (int) (255.0 * channels[2][p] / max[0]);
+                           colorPixels[(y0 + y) * width + x0 + x] = 
+                                   0xff000000 | (r << 16) | (g << 8) | b;
+                        }
+                     }
                   }
+               };
+               renderTiles(tiles, zRenderer);
+               for (int t = 0; t < tiles.size(); t++) {
+                  max[0] = Math.max(max[0], tileMax[t]);
                }
-               for (int p = 0; p < size; p++) {
-                  for (int i = 0; i < 3; i++) {
-                     colorPixels[i][p] = (byte) (256.0 * pixels[i][p] / max);
-                  }
-
+               if (max[0] > 0.0) {
+                  renderTiles(tiles, zRenderer);
                }
-               cp.setRGB(colorPixels[0], colorPixels[1], colorPixels[2]);
                ip = cp;
             }
 
@@ -174,113 +339,111 @@ public class ImageRenderer {
 
 
             // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
+            final boolean normalize = method == 2;
 
             ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
+            final float pixels[] = new float[size];
             ip.setPixels(pixels);
 
-            ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
-               }
-
-
-               if (sf.filter(spot)) {
-
-
+            for (int n = 0; n < spots.size(); n++) {
+               if (sf.filter(spots, n)) {
                   // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
+                  int hw = (int) (2 * spots.getSigma(n) / renderedPixelInNm);
+                  if (hw == 0) {
+                     hw = 2;
                   }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
-                        }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
-                        }
-
+                  int x = (int) (factor * spots.getXCenter(n));
+                  int y = (int) (factor * spots.getYCenter(n));
+
+                  if (x > rect.x + hw && x < endx - hw
+                          && y > rect.y + hw && y < endy - hw) {
+                     if (x > hw && x < (fullWidth - hw)
+                             && y > hw && y < (fullHeight - hw)) {
+                        spotIndex[nrSpots] = n;
+                        xc[nrSpots] = x - rect.x;
+                        yc[nrSpots] = y - rect.y;
+                        halfWidth[nrSpots] = hw;
+                        nrSpots++;
                      }
                   }
                }
             }
-
+            final Tiles tiles = new Tiles(width, height, xc, yc, halfWidth, nrSpots);
+            final int rectX = rect.x;
+            final int rectY = rect.y;
+
+            renderTiles(tiles, new TileRenderer() {
+               @Override
+               public void render(int tile) {
+                  int x0 = tiles.x0(tile);
+                  int x1 = tiles.x1(tile);
+                  int y0 = tiles.y0(tile);
+                  int y1 = tiles.y1(tile);
+                  for (int s = tiles.tileStart_[tile]; s < tiles.tileStart_[tile + 1]; s++) {
+                     int i = tiles.tileSpots_[s];
+                     int n = spotIndex[i];
+                     /*
+                      * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sig^2)), with A = 1
+                      * is the product of a gaussian in x and one in y, 
+                      * evaluated on the box of 2 * halfWidth pixels around 
+                      * the center of the spot (in the full magnified image)
+                      */
+                     int hw = halfWidth[i];
+                     int boxSize = 2 * hw;
+                     double xCenter = spots.getXCenter(n) / renderedPixelInNm;
+                     double yCenter = spots.getYCenter(n) / renderedPixelInNm;
+                     double twoSigmaSquared = 2.0 * spots.getSigma(n) / renderedPixelInNm
+                             * spots.getSigma(n) / renderedPixelInNm;
+                     int xStart = xc[i] - hw;
+                     int yStart = yc[i] - hw;
+                     double[] gx = new double[boxSize];
+                     double[] gy = new double[boxSize];
+                     double sumX = 0.0;
+                     double sumY = 0.0;
+                     for (int b = 0; b < boxSize; b++) {
+                        double dx = xStart + rectX + b - xCenter;
+                        double dy = yStart + rectY + b - yCenter;
+                        gx[b] = Math.exp(-dx * dx / twoSigmaSquared);
+                        gy[b] = Math.exp(-dy * dy / twoSigmaSquared);
+                        sumX += gx[b];
+                        sumY += gy[b];
+                     }
+                     double scale = 1.0;
+                     // normalize if requested
+                     if (normalize && sumX * sumY > 0.0) {
+                        scale = 1.0 / (sumX * sumY);
+                     }
+                     // only add the part of the box that is in this tile
+                     int bx0 = Math.max(x0, xStart);
+                     int bx1 = Math.min(x1, xStart + boxSize);
+                     int by0 = Math.max(y0, yStart);
+                     int by1 = Math.min(y1, yStart + boxSize);
+                     for (int y = by0; y < by1; y++) {
+                        double rowScale = scale * gy[y - yStart];
+                        for (int x = bx0; x < bx1; x++) {
+                           pixels[y * width + x] += (float) (rowScale * gx[x - xStart]);
+                        }
+                     }
+                  }
+               }
+            });
 
             ij.IJ.showProgress(1);
-            ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
+            ij.IJ.showStatus("Rendered image using " + nrSpots + " spots.");
 
          }
       } catch (java.lang.OutOfMemoryError ome) {
          // report out of memory
          ij.IJ.showMessage("Out of Memory", "Not enought memory to draw image at this resolution");
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            ij.IJ.showMessage("Out of Memory", "Not enought memory to draw image at this resolution");
+         } else {
+            ReportingUtils.logError(ee.getCause(), "Error while rendering image");
+         }
       }
 
 
@@ -332,6 +495,7 @@ public class ImageRenderer {
       int endy = rect.y + rect.height;
       final int size = width * height;
       double factor = magnification / rowData.pixelSizeNm_;
+      final SpotStore spots = rowData.spotList_;
 
       ImageStack is = new ImageStack(width, height);
       ImageProcessor[] ip = new ImageProcessor[nrZs];
@@ -345,11 +509,11 @@ public class ImageRenderer {
             is.addSlice(ip[i]);
          }
 
-         for (SpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
+         for (int n = 0; n < spots.size(); n++) {
+            if (sf.filter(spots, n)) {
+               int x = (int) (factor * spots.getXCenter(n));
+               int y = (int) (factor * spots.getYCenter(n));
+               int z = (int) (factor * (spots.getZCenter(n) - rowData.minZ_) * 500.0);
                if (x > rect.x && x < endx && y > rect.y && y < endy) {
                   x -= rect.x;
                   y -= rect.y;
@@ -30,16 +30,19 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.ResultsTableListener;
 import edu.ucsf.valelab.gaussianfit.Terms;
 import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.fitting.FittingException;
 import edu.ucsf.valelab.gaussianfit.fitting.Gaussian1DFitter;
 import edu.ucsf.valelab.gaussianfit.fitting.P2DFitter;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPointByData;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotGrid;
 import edu.ucsf.valelab.gaussianfit.utils.CalcUtils;
 import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import edu.ucsf.valelab.gaussianfit.utils.NumberUtils;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.Arrow;
@@ -57,6 +60,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.micromanager.internal.MMStudio;
 
@@ -264,79 +271,26 @@ public class ParticlePairLister {
                rowCounter++;
                ij.IJ.showStatus("Creating Pairs for row " + rowCounter);
 
-               Map<Integer, ArrayList<ArrayList<GsSpotPair>>> spotPairsByFrame
-                       = new HashMap<Integer, ArrayList<ArrayList<GsSpotPair>>>();
-
-               // index spots by position
-               Map<Integer, ArrayList<SpotData>> spotListsByPosition = new HashMap<Integer, ArrayList<SpotData>>();
-               // and keep track of the positions that are actually used
+               // keep track of the positions that are actually used
+               final RowData rowData = dc.getSpotData(row);
                List<Integer> positions = new ArrayList<Integer>();
-               for (SpotData spot : dc.getSpotData(row).spotList_) {
-                  if (positions.indexOf(spot.getPosition()) == -1) {
-                     positions.add(spot.getPosition());
-                  }
-                  if (spotListsByPosition.get(spot.getPosition()) == null) {
-                     spotListsByPosition.put(spot.getPosition(), new ArrayList<SpotData>());
+               for (int i = 0; i < rowData.spotList_.size(); i++) {
+                  if (positions.indexOf(rowData.spotList_.getPosition(i)) == -1) {
+                     positions.add(rowData.spotList_.getPosition(i));
                   }
-                  spotListsByPosition.get(spot.getPosition()).add(spot);
                }
                Collections.sort(positions);
 
                // First go through all frames to find all pairs, organize by position
-               int nrSpotPairsInFrame1 = 0;
-               for (int pos : positions) {
-                  spotPairsByFrame.put(pos, new ArrayList<ArrayList<GsSpotPair>>());
-
-                  for (int frame = 1; frame <= dc.getSpotData(row).nrFrames_; frame++) {
-                     // TODO: show correct progress
-                     ij.IJ.showProgress(frame, dc.getSpotData(row).nrFrames_);
-
-                     spotPairsByFrame.get(pos).add(new ArrayList<GsSpotPair>());
-
-                     // Get points from both channels as ArrayLists   
-                     ArrayList<SpotData> gsCh1 = new ArrayList<SpotData>();
-                     ArrayList<SpotData> gsCh2 = new ArrayList<SpotData>();
-                     ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
-                     for (SpotData gs : spotListsByPosition.get(pos)) {
-                        if (gs.getFrame() == frame) {
-                           if (gs.getChannel() == 1) {
-                              gsCh1.add(gs);
-                           } else if (gs.getChannel() == 2) {
-                              gsCh2.add(gs);
-                              Point2D.Double point = new Point2D.Double(
-                                      gs.getXCenter(), gs.getYCenter());
-                              xyPointsCh2.add(point);
-                           }
-                        }
-                     }
-
-                     // Find matching points in the two ArrayLists
-                     Iterator it2 = gsCh1.iterator();
-                     NearestPoint2D np = new NearestPoint2D(xyPointsCh2, maxDistanceNm_);
-                     while (it2.hasNext()) {
-                        SpotData ch1Spot = (SpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(
-                                ch1Spot.getXCenter(), ch1Spot.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           // find this point in the ch2 spot list
-                           SpotData ch2Spot = null;
-                           for (int i = 0; i < gsCh2.size() && ch2Spot == null; i++) {
-                              if (pCh2.x == gsCh2.get(i).getXCenter()
-                                      && pCh2.y == gsCh2.get(i).getYCenter()) {
-                                 ch2Spot = gsCh2.get(i);
-                              }
-                           }
-                           if (ch2Spot != null) {
-                              GsSpotPair pair = new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2);
-                              spotPairsByFrame.get(pos).get(frame - 1).add(pair);
-                           } else {
-                              // this should never happen!
-                              System.out.println("Failed to find spot");
-                           }
-                        }
-                     }
-                  }
+               Map<Integer, ArrayList<ArrayList<GsSpotPair>>> spotPairsByFrame;
+               try {
+                  spotPairsByFrame = findPairs(rowData, positions);
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+                  return;
+               } catch (ExecutionException ee) {
+                  ReportingUtils.logError(ee.getCause(), "Error while finding pairs");
+                  continue;
                }
 
                if (showPairs_ ) {
@@ -926,4 +880,82 @@ public class ParticlePairLister {
       return gf.solve();
    }
 
+   /**
+    * Finds the closest spot in channel 2 for each spot in channel 1, in the 
+    * same frame and position.  Frames are independent of each other, and are
+    * processed in parallel.  Spots in channel 2 are looked up in a grid index
+    * per frame and position.
+    * 
+    * @param rowData - spots to look for pairs in
+    * @param positions - positions used in rowData
+    * @return for each position, a list with the pairs found in each frame
+    */
+   private Map<Integer, ArrayList<ArrayList<GsSpotPair>>> findPairs(
+           final RowData rowData, final List<Integer> positions) 
+           throws InterruptedException, ExecutionException {
+      final Map<Integer, ArrayList<ArrayList<GsSpotPair>>> spotPairsByFrame
+              = new HashMap<Integer, ArrayList<ArrayList<GsSpotPair>>>();
+      for (int pos : positions) {
+         ArrayList<ArrayList<GsSpotPair>> pairsByFrame = 
+                 new ArrayList<ArrayList<GsSpotPair>>(rowData.nrFrames_);
+         for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
+            pairsByFrame.add(new ArrayList<GsSpotPair>());
+         }
+         spotPairsByFrame.put(pos, pairsByFrame);
+      }
+
+      ExecutorService frameThreads = Executors.newFixedThreadPool(
+              ij.Prefs.getThreads());
+      try {
+         List<Future<?>> frameResults = new ArrayList<Future<?>>(rowData.nrFrames_);
+         for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
+            final int f = frame;
+            frameResults.add(frameThreads.submit(new Runnable() {
+               @Override
+               public void run() {
+                  // Get points from both channels by position
+                  Map<Integer, List<SpotData>> gsCh1 = new HashMap<Integer, List<SpotData>>();
+                  Map<Integer, List<SpotData>> gsCh2 = new HashMap<Integer, List<SpotData>>();
+                  for (int pos : positions) {
+                     gsCh1.put(pos, new ArrayList<SpotData>());
+                     gsCh2.put(pos, new ArrayList<SpotData>());
+                  }
+                  for (SpotData gs : rowData.getSpotsInFrame(f)) {
+                     if (gs.getChannel() == 1) {
+                        gsCh1.get(gs.getPosition()).add(gs);
+                     } else if (gs.getChannel() == 2) {
+                        gsCh2.get(gs.getPosition()).add(gs);
+                     }
+                  }
+
+                  // Find matching points in the two lists
+                  for (int pos : positions) {
+                     List<SpotData> ch2Spots = gsCh2.get(pos);
+                     SpotGrid grid = SpotGrid.ofData(ch2Spots, maxDistanceNm_);
+                     // each task only adds to the lists of its own frame
+                     ArrayList<GsSpotPair> pairs = spotPairsByFrame.get(pos).get(f - 1);
+                     for (SpotData ch1Spot : gsCh1.get(pos)) {
+                        int index = grid.nearest(ch1Spot.getXCenter(), 
+                                ch1Spot.getYCenter(), maxDistanceNm_);
+                        if (index >= 0) {
+                           SpotData ch2Spot = ch2Spots.get(index);
+                           pairs.add(new GsSpotPair(ch1Spot, ch2Spot, 
+                                   new Point2D.Double(ch1Spot.getXCenter(), ch1Spot.getYCenter()),
+                                   new Point2D.Double(ch2Spot.getXCenter(), ch2Spot.getYCenter())));
+                        }
+                     }
+                  }
+               }
+            }));
+         }
+         for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
+            ij.IJ.showProgress(frame, rowData.nrFrames_);
+            frameResults.get(frame - 1).get();
+         }
+      } finally {
+         frameThreads.shutdownNow();
+      }
+      return spotPairsByFrame;
+   }
+
 }
\ No newline at end of file
@@ -31,6 +31,7 @@ package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
@@ -133,6 +134,7 @@ public class DriftCorrector {
                }
             }
             ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+            final SpotStore spots = rowData.spotList_;
             
             try {
                // make imageprocessors for all the images that we will generate
@@ -147,15 +149,15 @@ public class DriftCorrector {
                double factor = (double) mag / rowData.pixelSizeNm_;
 
                // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
+               for (int n = 0; n < spots.size(); n++) {
                   int j;
                   if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
+                     j = (spots.getSlice(n) - 1) / framesToCombine;
                   } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
+                     j = (spots.getFrame(n) - 1) / framesToCombine;
                   }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
+                  int x = (int) (factor * spots.getXCenter(n));
+                  int y = (int) (factor * spots.getYCenter(n));
                   int index = (y * width) + x;
                   if (index < size && index > 0) {
                      if (pixels[j][index] != -1) {
@@ -202,16 +204,16 @@ public class DriftCorrector {
 
 
                // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
+               for (int n = 0; n < spots.size(); n++) {
                   int j;
                   if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
+                     j = (spots.getSlice(n) - 1) / framesToCombine;
                   } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
+                     j = (spots.getFrame(n) - 1) / framesToCombine;
                   }
                   if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+                     int x = (int) (factor * spots.getXCenter(n));
+                     int y = (int) (factor * spots.getYCenter(n));
                      int index = (y * width) + x;
                      if (index < size && index > 0) {
                         if (pixelsRef[index] != -1) {
@@ -238,16 +240,16 @@ public class DriftCorrector {
                      ipTest.set(p, 0);
                   }
                   
-                  for (SpotData spot : rowData.spotList_) {
+                  for (int n = 0; n < spots.size(); n++) {
                      int j;
                      if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
+                        j = (spots.getSlice(n) - 1) / framesToCombine;
                      } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
+                        j = (spots.getFrame(n) - 1) / framesToCombine;
                      }
                      if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
+                        int x = (int) (factor * spots.getXCenter(n));
+                        int y = (int) (factor * spots.getYCenter(n));
                         int index = (y * width) + x;
                         if (index < size && index > 0) {
                            if (pixelsTest[index] != -1) {
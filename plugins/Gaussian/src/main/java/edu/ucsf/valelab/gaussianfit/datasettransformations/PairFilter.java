@@ -33,14 +33,17 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotGrid;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -97,110 +100,28 @@ public class PairFilter {
 
          @Override
          public void run() {
+            // frames are independent of each other, so filter them in parallel
+            ExecutorService frameThreads = Executors.newFixedThreadPool(
+                    ij.Prefs.getThreads());
             try {
+               List<Future<List<SpotData>>> frameResults = 
+                       new ArrayList<Future<List<SpotData>>>(rowData.nrFrames_);
+               for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
+                  final int f = frame;
+                  frameResults.add(frameThreads.submit(new Callable<List<SpotData>>() {
+                     @Override
+                     public List<SpotData> call() {
+                        return filterFrame(rowData, f, maxDistance, deviationMax, 
+                                sqrtNrQuadrants, qSize);
+                     }
+                  }));
+               }
+               
+               // collect the results in frame order
                List<SpotData> correctedData = new ArrayList<SpotData>();
-
                for (int frame = 1; frame <= rowData.nrFrames_; frame++) {
                   ij.IJ.showProgress(frame, rowData.nrFrames_);
-
-                  // Get points from both channels in each frame as ArrayLists 
-                  // split channel 1 into the nrQuadrants
-                  Map<Integer, List<SpotData>> gsCh1 = new HashMap<Integer, List<SpotData>>(nrQuadrants);
-                  for (int q = 0; q < nrQuadrants; q++) {
-                     gsCh1.put(q, new ArrayList<SpotData>());
-                  }
-                  // index channel 2 by position
-                  ArrayList<List<Point2D.Double>> xyPointsCh2 = 
-                          new ArrayList<List<Point2D.Double>>(rowData.nrPositions_);
-                  ArrayList<List<SpotData>> xySpotsCh2 = 
-                          new ArrayList<List<SpotData>>(rowData.nrPositions_);
-                  for (int position = 1; position <= rowData.nrPositions_; position++) {
-                     xyPointsCh2.add(position - 1, new ArrayList<Point2D.Double>());
-                     xySpotsCh2.add(position - 1, new ArrayList<SpotData>());
-                  }
-
-                  for (SpotData gs : rowData.spotList_) {
-                     if (gs.getFrame() == frame) {
-                        if (gs.getChannel() == 1) {
-                           int yOffset = (int) Math.floor(gs.getYCenter() / qSize);
-                           int xOffset = (int) Math.floor(gs.getXCenter() / qSize);
-                           int q = yOffset * sqrtNrQuadrants + xOffset;
-                           if (q >= 0 && q < nrQuadrants) {
-                              gsCh1.get(q).add(gs);
-                           }
-                        } else if (gs.getChannel() == 2) {
-                           xySpotsCh2.get(gs.getPosition() - 1).add(gs);
-                           Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                           xyPointsCh2.get(gs.getPosition() - 1).add(point);
-                        }
-                     }
-                  }
-
-                  if (xyPointsCh2.isEmpty()) {
-                     ReportingUtils.logError("Pairs function in Localization plugin: no points found in second channel in frame " + frame);
-                     continue;
-                  }
-
-                  // we have the points of channel 1 in each quadrant
-                  // find each matching partner, and do statistics on each quadrant
-                  // only keep pairs that match what was requested
-                  
-                  // First set up the nearestPoint maps for all positions
-                  List<NearestPoint2D> npsByPosition = new ArrayList<NearestPoint2D>(rowData.nrPositions_);
-                  for (int position = 1; position <= rowData.nrPositions_; position++) {
-                     npsByPosition.add(position - 1, new NearestPoint2D(xyPointsCh2.get(position - 1), maxDistance));
-                  }
-                  for (int q = 0; q < nrQuadrants; q++) {
-                     ij.IJ.showProgress( (q+1) * frame, (nrQuadrants + 1) * rowData.nrFrames_);
-                     // Find matching points in the two ArrayLists
-                     Iterator it2 = gsCh1.get(q).iterator();
-                     ArrayList<Double> distances = new ArrayList<Double>();
-                     ArrayList<Double> orientations = new ArrayList<Double>();
-
-                     while (it2.hasNext()) {
-                        SpotData gs = (SpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                        Point2D.Double pCh2 = npsByPosition.get(gs.getPosition() - 1).findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           double d2 = NearestPoint2D.distance2(pCh1, pCh2);
-                           double d = Math.sqrt(d2);
-                           distances.add(d);
-                           orientations.add(NearestPoint2D.orientation(pCh1, pCh2));
-                        }
-                     }
-                     double distAvg = ListUtils.listAvg(distances);
-                     double distStd = ListUtils.listStdDev(distances, distAvg);
-                     double orientationAvg = ListUtils.listAvg(orientations);
-                     double orientationStd = ListUtils.listStdDev(orientations,
-                             orientationAvg);
-
-                     // now repeat going through the list and apply the criteria
-                     it2 = gsCh1.get(q).iterator();
-                     while (it2.hasNext()) {
-                        SpotData gs = (SpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                        Point2D.Double pCh2 = npsByPosition.get(gs.getPosition() - 1).findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           double d2 = NearestPoint2D.distance2(pCh1, pCh2);
-                           double d = Math.sqrt(d2);
-                           // we can possibly add the same criterium for orientation
-                           if (d > distAvg - deviationMax * distStd
-                                   && d < distAvg + deviationMax * distStd) {
-                              correctedData.add(gs);
-                              // we have to find the matching spot in channel 2!
-                              for (SpotData gsCh2 : xySpotsCh2.get(gs.getPosition() - 1)) {
-                                 if (gsCh2.getFrame() == frame) {
-                                    if (gsCh2.getChannel() == 2) {
-                                       if (gsCh2.getXCenter() == pCh2.x && gsCh2.getYCenter() == pCh2.y) {
-                                          correctedData.add(gsCh2);
-                                       }
-                                    }
-                                 }
-                              }
-                           }
-                        }
-                     }
-                  }
+                  correctedData.addAll(frameResults.get(frame - 1).get());
                }
 
                // Add transformed data to data overview window
@@ -210,9 +131,20 @@ public class PairFilter {
                DataCollectionForm.getInstance().addSpotData(builder);
 
                ij.IJ.showStatus("Finished pair correction");
+            } catch (InterruptedException ie) {
+               ij.IJ.showStatus("Pair correction was interrupted");
+            } catch (ExecutionException ee) {
+               if (ee.getCause() instanceof OutOfMemoryError) {
+                  System.gc();
+                  ij.IJ.error("Out of Memory");
+               } else {
+                  ReportingUtils.logError(ee.getCause(), "Error in pair correction");
+               }
             } catch (OutOfMemoryError oom) {
                System.gc();
                ij.IJ.error("Out of Memory");
+            } finally {
+               frameThreads.shutdownNow();
             }
             isRunning_.set(false);
          }
@@ -226,4 +158,96 @@ public class PairFilter {
       }
    }
 
+   /**
+    * Finds the pairs in a single frame, and returns the spots of the pairs
+    * that pass the criteria, each spot in channel 1 followed by its partner 
+    * in channel 2.  Spots in channel 2 are looked up in a grid index per 
+    * position.
+    */
+   private static List<SpotData> filterFrame(final RowData rowData, 
+           final int frame, final double maxDistance, final double deviationMax, 
+           final int sqrtNrQuadrants, final double qSize) {
+      final int nrQuadrants = sqrtNrQuadrants * sqrtNrQuadrants;
+      List<SpotData> correctedData = new ArrayList<SpotData>();
+
+      // Get points from both channels in this frame as ArrayLists 
+      // split channel 1 into the nrQuadrants
+      List<List<SpotData>> gsCh1 = new ArrayList<List<SpotData>>(nrQuadrants);
+      for (int q = 0; q < nrQuadrants; q++) {
+         gsCh1.add(new ArrayList<SpotData>());
+      }
+      // index channel 2 by position
+      List<List<SpotData>> xySpotsCh2 = 
+              new ArrayList<List<SpotData>>(rowData.nrPositions_);
+      for (int position = 1; position <= rowData.nrPositions_; position++) {
+         xySpotsCh2.add(new ArrayList<SpotData>());
+      }
+
+      for (SpotData gs : rowData.getSpotsInFrame(frame)) {
+         if (gs.getChannel() == 1) {
+            int yOffset = (int) Math.floor(gs.getYCenter() / qSize);
+            int xOffset = (int) Math.floor(gs.getXCenter() / qSize);
+            int q = yOffset * sqrtNrQuadrants + xOffset;
+            if (q >= 0 && q < nrQuadrants) {
+               gsCh1.get(q).add(gs);
+            }
+         } else if (gs.getChannel() == 2) {
+            xySpotsCh2.get(gs.getPosition() - 1).add(gs);
+         }
+      }
+
+      // we have the points of channel 1 in each quadrant
+      // find each matching partner, and do statistics on each quadrant
+      // only keep pairs that match what was requested
+
+      // First set up the grids for all positions
+      List<SpotGrid> gridsByPosition = new ArrayList<SpotGrid>(rowData.nrPositions_);
+      for (int position = 1; position <= rowData.nrPositions_; position++) {
+         gridsByPosition.add(SpotGrid.ofData(xySpotsCh2.get(position - 1), maxDistance));
+      }
+      for (int q = 0; q < nrQuadrants; q++) {
+         // Find matching points in the two lists
+         List<SpotData> quadrant = gsCh1.get(q);
+         int[] partners = new int[quadrant.size()];
+         double[] pairDistances = new double[quadrant.size()];
+         ArrayList<Double> distances = new ArrayList<Double>();
+         ArrayList<Double> orientations = new ArrayList<Double>();
+
+         for (int i = 0; i < quadrant.size(); i++) {
+            SpotData gs = quadrant.get(i);
+            SpotGrid grid = gridsByPosition.get(gs.getPosition() - 1);
+            partners[i] = grid.nearest(gs.getXCenter(), gs.getYCenter(), maxDistance);
+            if (partners[i] >= 0) {
+               Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
+               Point2D.Double pCh2 = new Point2D.Double(grid.getX(partners[i]), 
+                       grid.getY(partners[i]));
+               pairDistances[i] = Math.sqrt(NearestPoint2D.distance2(pCh1, pCh2));
+               distances.add(pairDistances[i]);
+               orientations.add(NearestPoint2D.orientation(pCh1, pCh2));
+            }
+         }
+         double distAvg = ListUtils.listAvg(distances);
+         double distStd = ListUtils.listStdDev(distances, distAvg);
+         double orientationAvg = ListUtils.listAvg(orientations);
+         double orientationStd = ListUtils.listStdDev(orientations,
+                 orientationAvg);
+
+         // now repeat going through the list and apply the criteria
+         for (int i = 0; i < quadrant.size(); i++) {
+            if (partners[i] >= 0) {
+               SpotData gs = quadrant.get(i);
+               double d = pairDistances[i];
+               // we can possibly add the same criterium for orientation
+               if (d > distAvg - deviationMax * distStd
+                       && d < distAvg + deviationMax * distStd) {
+                  correctedData.add(gs);
+                  // the grid index is the index of the matching spot in channel 2
+                  correctedData.add(xySpotsCh2.get(gs.getPosition() - 1).get(partners[i]));
+               }
+            }
+         }
+      }
+      return correctedData;
+   }
+
 }
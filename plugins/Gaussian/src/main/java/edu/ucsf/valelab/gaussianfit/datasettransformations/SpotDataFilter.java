@@ -30,6 +30,7 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -115,6 +116,33 @@ public class SpotDataFilter {
       return true;
    }
    
-   
+   /**
+    * Indicates whether or not the spot at the given index in the store 
+    * is acceptable, without creating a SpotData for it
+    * 
+    * @param spots - column store with spot data
+    * @param index - index of the spot in the store
+    * @return true if spot is acceptable
+    */
+   public boolean filter (SpotStore spots, int index) {
+      if (useSigma_) {
+         if (spots.getSigma(index) < sigmaMin_ || spots.getSigma(index) > sigmaMax_)
+            return false;
+      }
+      if (useIntensity_) {
+         if (spots.getIntensity(index) < intensityMin_ || spots.getIntensity(index) > intensityMax_)
+            return false;
+      }
+      for (Map.Entry<String, Extremes> item : itemFilter_.entrySet()) {
+         Double value = spots.getValue(item.getKey(), index);
+         if (value != null) {
+            if (value < item.getValue().minimum_ || value > item.getValue().maximum_) {
+               return false;
+            }
+         }
+      }
+      
+      return true;
+   }
    
 }
@@ -33,12 +33,14 @@ package edu.ucsf.valelab.gaussianfit.fitmanagement;
 
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.BatchGaussianFitter;
 import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
 import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
@@ -50,6 +52,9 @@ import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
  */
 public class GaussianFitStackThread extends GaussianInfo implements Runnable {
 
+   // maximum number of spots taken from the queue and fitted in one go
+   private static final int BATCHSIZE = 64;
+
    Thread t_;
    boolean stopNow_ = false;
 
@@ -81,43 +86,56 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
 
    @Override
    public void run() {
-      GaussianFit gs_ = new GaussianFit(super.getShape(), super.getFitMode(),
-            super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2);
+      GaussianFit gs = null;
+      BatchGaussianFitter batchFitter = null;
+      if (BatchGaussianFitter.supportsFitMode(super.getFitMode())) {
+         batchFitter = new BatchGaussianFitter(super.getShape(), super.getFitMode(),
+               super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2,
+               BATCHSIZE);
+      } else {
+         gs = new GaussianFit(super.getShape(), super.getFitMode(),
+               super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2);
+      }
       ZCalibrator zc = DataCollectionForm.zc_;
+      List<SpotData> batch = new ArrayList<SpotData>(BATCHSIZE);
 
-      while (!stopNow_) {
-         SpotData spot;
+      boolean done = false;
+      while (!stopNow_ && !done) {
+         batch.clear();
          synchronized (GFSLOCK) {
             try {
-               spot = sourceList_.take();
-               // Look for signal that we are done, add back to queue if found
-               if (spot.getFrame() == -1) {
-                  sourceList_.add(spot);
-                  return;
-               }
+               // Wait for a spot, then claim whatever else is waiting (up to 
+               // the batch size).  Since each thread claims new work as soon
+               // as it is done with its batch, the load stays balanced 
+               // between threads
+               batch.add(sourceList_.take());
+               sourceList_.drainTo(batch, BATCHSIZE - 1);
             } catch (InterruptedException iExp) {
                ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
                return;
             }
+            // Look for signal that we are done, add back to queue if found
+            for (int i = 0; i < batch.size(); i++) {
+               if (batch.get(i).getFrame() == -1) {
+                  List<SpotData> rest = batch.subList(i, batch.size());
+                  sourceList_.addAll(rest);
+                  rest.clear();
+                  done = true;
+                  break;
+               }
+            }
          }
 
          try {
-            // Note: the implementation will try to return a cached version of the ImageProcessor
-            ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
-            GaussianFit.Data fitResult = gs_.dogaussianfit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose 
-            // those when spot goes out of scope
-            SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
-            
-            if ( fitResult.getParms().length > 1 &&
-                    (!useWidthFilter_ || 
-                    (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
-                    && (!useNrPhotonsFilter_ || 
-                    (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
-               resultList_.add(spotData);
+            if (batchFitter != null) {
+               fitBatch(batch, batchFitter, zc);
+            } else {
+               for (SpotData spot : batch) {
+                  // Note: the implementation will try to return a cached version of the ImageProcessor
+                  ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
+                  addResult(spot, gs.dogaussianfit(ip, maxIterations_), zc);
+               }
             }
-
-
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
             ReportingUtils.logError("Thread run out of memory  " + 
@@ -128,4 +146,31 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
          }
       }
    }
+   
+   private void fitBatch(List<SpotData> batch, BatchGaussianFitter batchFitter,
+           ZCalibrator zc) {
+      batchFitter.clear();
+      for (SpotData spot : batch) {
+         ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
+         batchFitter.add((short[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+      }
+      batchFitter.fit(maxIterations_);
+      for (int i = 0; i < batch.size(); i++) {
+         addResult(batch.get(i), batchFitter.getData(i), zc);
+      }
+   }
+   
+   private void addResult(SpotData spot, GaussianFit.Data fitResult, ZCalibrator zc) {
+      // Note that the copy constructor will not copy pixel data, so we loose 
+      // those when spot goes out of scope
+      SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
+
+      if ( fitResult.getParms().length > 1 &&
+              (!useWidthFilter_ || 
+              (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
+              && (!useNrPhotonsFilter_ || 
+              (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
+         resultList_.add(spotData);
+      }
+   }
 }
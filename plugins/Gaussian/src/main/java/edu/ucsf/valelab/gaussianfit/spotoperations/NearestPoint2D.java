@@ -35,16 +35,14 @@ either expressed or implied, of the FreeBSD Project.
 
 package edu.ucsf.valelab.gaussianfit.spotoperations;
 
-import ags.utils.KdTree;
-import ags.utils.KdTree.Entry;
-import ags.utils.KdTree.SqrEuclid;
 import java.awt.geom.Point2D;
 import java.util.List;
 
 /**
  * Class that finds the closest by point in a point collection given a single point
  * 
- * The method findKDWSE uses a kd tree approach based written by Rednaxela
+ * The method findKDWSE uses a uniform grid index (SpotGrid) with cells
+ * the size of the maximum distance
  * 
  * 
  * @author nico
@@ -52,8 +50,7 @@ import java.util.List;
 public class NearestPoint2D {
    private final List<Point2D.Double> theList_;
    private final double maxDistance_;
-   private final double maxDistanceSquared_;
-   private KdTree<Integer> we_;
+   private SpotGrid grid_;
    
    //private final ArrayList<Point2D.Double> sortedByX_;
    //private final ArrayList<Point2D.Double> sortedByY_;
@@ -61,39 +58,24 @@ public class NearestPoint2D {
    public NearestPoint2D(List<Point2D.Double> unsorted, double maxDistance) {
       theList_ = unsorted;
       maxDistance_ = maxDistance;
-      maxDistanceSquared_ = maxDistance * maxDistance;
    }
    
    /**
-    *  method to find the nearest point in the collection of Points
-    * Uses Squared Euclidian distance method from Rednaxela
+    * method to find the nearest point in the collection of Points
+    * The grid index is built on the first call
     * 
     * @param input - point for which we want to find the nearest neighbor
     * @return point found or null when it was farther away than the cutoff set 
     * in the constructor
     */
    public Point2D.Double findKDWSE(Point2D.Double input) {
-      // construct a new KD tree if needed
-      if (we_ == null) {
-         we_ = new SqrEuclid<Integer>(2, 50 * theList_.size());
-         for (int i = 0; i < theList_.size(); i++) {
-            Point2D.Double p = theList_.get(i);
-            double[] point = {p.x, p.y};
-            we_.addPoint(point, i);
-         }
+      // construct the grid if needed
+      if (grid_ == null) {
+         grid_ = SpotGrid.ofPoints(theList_, maxDistance_);
       }
-      double[] testPoint = {input.x, input.y};
-      List<Entry<Integer>> result = we_.nearestNeighbor(testPoint, 1, false);
-
-      if (result.size() > 0) {
-         Integer index = result.get(0).value;
-         double distance = result.get(0).distance;
-
-         Point2D.Double ret = (Point2D.Double) theList_.get(index).clone();
-
-         if (distance < maxDistanceSquared_) {
-            return ret;
-         }
+      int index = grid_.nearest(input.x, input.y, maxDistance_);
+      if (index >= 0) {
+         return (Point2D.Double) theList_.get(index).clone();
       }
       
       return null;
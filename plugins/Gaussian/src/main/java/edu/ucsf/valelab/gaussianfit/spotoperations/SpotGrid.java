@@ -0,0 +1,262 @@
+/**
+ * Uniform grid index to find points close to a given point
+ *
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.PointData;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index for nearest neighbor and radius queries on 2D points.
+ * 
+ * The points are binned in a uniform grid of square cells (a cell list), 
+ * stored as one array of point indices sorted by cell and the offset of each
+ * cell in that array.  With a cell size close to the search distance, a 
+ * query only looks at the points in the few cells around the query point.
+ * Building the index is linear in the number of points, and the index can
+ * be used by multiple threads at the same time.
+ */
+public class SpotGrid {
+   
+   // limits the number of cells to a small multiple of the number of points
+   private static final int MAXCELLSPERPOINT = 4;
+   
+   private final double[] x_;
+   private final double[] y_;
+   private final double minX_;
+   private final double minY_;
+   private final double cellSize_;
+   private final int nrCols_;
+   private final int nrRows_;
+   private final int[] cellStart_;
+   private final int[] cellPoints_;
+   
+   /**
+    * Creates an index over the given points
+    * 
+    * @param x - x coordinates of the points
+    * @param y - y coordinates of the points
+    * @param cellSize - size of the grid cells, ideally close to the distance
+    *             used in queries.  Cells are made larger when the points are 
+    *             spread over a very large area compared to the cell size.
+    */
+   public SpotGrid(double[] x, double[] y, double cellSize) {
+      x_ = x;
+      y_ = y;
+      final int n = x.length;
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         minX = Math.min(minX, x[i]);
+         maxX = Math.max(maxX, x[i]);
+         minY = Math.min(minY, y[i]);
+         maxY = Math.max(maxY, y[i]);
+      }
+      if (n == 0) {
+         minX = minY = maxX = maxY = 0.0;
+      }
+      double width = maxX - minX;
+      double height = maxY - minY;
+      long maxCells = (long) MAXCELLSPERPOINT * n + 1;
+      if (!(cellSize > 0.0) || Double.isInfinite(cellSize) || 
+              (width / cellSize + 1) * (height / cellSize + 1) > maxCells) {
+         cellSize = Math.max(Math.sqrt(width * height / maxCells), 
+                 Math.max(width, height) / maxCells);
+         if (!(cellSize > 0.0)) {
+            cellSize = 1.0;
+         }
+      }
+      minX_ = minX;
+      minY_ = minY;
+      cellSize_ = cellSize;
+      nrCols_ = (int) (width / cellSize) + 1;
+      nrRows_ = (int) (height / cellSize) + 1;
+      
+      // counting sort of the points by cell
+      cellStart_ = new int[nrCols_ * nrRows_ + 1];
+      int[] cells = new int[n];
+      for (int i = 0; i < n; i++) {
+         cells[i] = cell(col(x[i]), row(y[i]));
+         cellStart_[cells[i] + 1]++;
+      }
+      for (int c = 1; c < cellStart_.length; c++) {
+         cellStart_[c] += cellStart_[c - 1];
+      }
+      cellPoints_ = new int[n];
+      int[] next = Arrays.copyOf(cellStart_, cellStart_.length - 1);
+      for (int i = 0; i < n; i++) {
+         cellPoints_[next[cells[i]]++] = i;
+      }
+   }
+   
+   /**
+    * Creates an index over a list of points.  Indices returned by queries
+    * are indices into this list.
+    */
+   public static SpotGrid ofPoints(List<Point2D.Double> points, double cellSize) {
+      double[] x = new double[points.size()];
+      double[] y = new double[points.size()];
+      for (int i = 0; i < points.size(); i++) {
+         x[i] = points.get(i).x;
+         y[i] = points.get(i).y;
+      }
+      return new SpotGrid(x, y, cellSize);
+   }
+   
+   /**
+    * Creates an index over a list of PointData.  Indices returned by queries
+    * are indices into this list.
+    */
+   public static SpotGrid ofData(List<? extends PointData> data, double cellSize) {
+      double[] x = new double[data.size()];
+      double[] y = new double[data.size()];
+      for (int i = 0; i < data.size(); i++) {
+         Point2D.Double p = data.get(i).getPoint();
+         x[i] = p.x;
+         y[i] = p.y;
+      }
+      return new SpotGrid(x, y, cellSize);
+   }
+   
+   public int size() {
+      return x_.length;
+   }
+   
+   public double getX(int index) {
+      return x_[index];
+   }
+   
+   public double getY(int index) {
+      return y_[index];
+   }
+   
+   private int col(double x) {
+      return Math.max(0, Math.min(nrCols_ - 1, (int) Math.floor((x - minX_) / cellSize_)));
+   }
+   
+   private int row(double y) {
+      return Math.max(0, Math.min(nrRows_ - 1, (int) Math.floor((y - minY_) / cellSize_)));
+   }
+   
+   private int cell(int col, int row) {
+      return row * nrCols_ + col;
+   }
+   
+   /**
+    * Finds the point closest to the given coordinates.  Searches rings of 
+    * cells around the cell of the query point, until the ring is further away
+    * than the closest point found so far, or than maxDistance.
+    * 
+    * @param x - x coordinate of the query point
+    * @param y - y coordinate of the query point
+    * @param maxDistance - only points closer than this distance are returned
+    * @return index of the closest point, or -1 if no point is closer than 
+    *          maxDistance
+    */
+   public int nearest(double x, double y, double maxDistance) {
+      final int qCol = col(x);
+      final int qRow = row(y);
+      final int maxRing = Math.max(nrCols_, nrRows_);
+      double bestD2 = maxDistance * maxDistance;
+      int best = -1;
+      for (int ring = 0; ring <= maxRing; ring++) {
+         // no point in this ring can be closer than this
+         double ringDistance = (ring - 1) * cellSize_;
+         if (ringDistance > 0 && ringDistance * ringDistance >= bestD2) {
+            break;
+         }
+         int rowStart = Math.max(0, qRow - ring);
+         int rowEnd = Math.min(nrRows_ - 1, qRow + ring);
+         int colStart = Math.max(0, qCol - ring);
+         int colEnd = Math.min(nrCols_ - 1, qCol + ring);
+         for (int r = rowStart; r <= rowEnd; r++) {
+            boolean edgeRow = r == qRow - ring || r == qRow + ring;
+            for (int c = colStart; c <= colEnd; c++) {
+               if (!edgeRow && c != qCol - ring && c != qCol + ring) {
+                  // interior cells were searched in earlier rings
+                  c = qCol + ring - 1;
+                  continue;
+               }
+               int cell = cell(c, r);
+               for (int p = cellStart_[cell]; p < cellStart_[cell + 1]; p++) {
+                  int i = cellPoints_[p];
+                  double dx = x_[i] - x;
+                  double dy = y_[i] - y;
+                  double d2 = dx * dx + dy * dy;
+                  if (d2 < bestD2) {
+                     bestD2 = d2;
+                     best = i;
+                  }
+               }
+            }
+         }
+      }
+      return best;
+   }
+   
+   /**
+    * Finds all points within the given distance of a point
+    * 
+    * @param x - x coordinate of the query point
+    * @param y - y coordinate of the query point
+    * @param radius - maximum distance (inclusive) to the query point
+    * @return indices of all points within radius, in no particular order
+    */
+   public int[] within(double x, double y, double radius) {
+      final double r2 = radius * radius;
+      int rowStart = row(y - radius);
+      int rowEnd = row(y + radius);
+      int colStart = col(x - radius);
+      int colEnd = col(x + radius);
+      int[] result = new int[16];
+      int n = 0;
+      for (int r = rowStart; r <= rowEnd; r++) {
+         for (int cell = cell(colStart, r); cell <= cell(colEnd, r); cell++) {
+            for (int p = cellStart_[cell]; p < cellStart_[cell + 1]; p++) {
+               int i = cellPoints_[p];
+               double dx = x_[i] - x;
+               double dy = y_[i] - y;
+               if (dx * dx + dy * dy <= r2) {
+                  if (n == result.length) {
+                     result = Arrays.copyOf(result, 2 * n);
+                  }
+                  result[n++] = i;
+               }
+            }
+         }
+      }
+      return Arrays.copyOf(result, n);
+   }
+   
+}
@@ -35,16 +35,20 @@ package edu.ucsf.valelab.gaussianfit.spotoperations;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.TrackData;
-import java.awt.geom.Point2D;
+import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -66,85 +70,45 @@ public class SpotLinker {
     * maximum distance of maxDistance.  If no spot is found, the link is added
     * and the linked (averaged) spot is added to the destination list 
     * through the function linkSpots.  This code could also be used for spot tracking
+    * Each position, channel and slice is linked independently, so these are
+    * processed in parallel.
     * 
     * @param rowData
     * @param maxDistance 
     */
-   public static void link(RowData rowData, double maxDistance) {
-      try {
-         ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
+   public static void link(final RowData rowData, final double maxDistance) {
+      ij.IJ.showStatus("Linking spotData...");
+      final boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
 
-         // linked spots go here:
-         List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List< List<SpotData>> tracks = 
-                 new ArrayList<List<SpotData>>();
+      // build the index before handing the data to other threads
+      rowData.getSpotListIndexedByFrame();
+      ExecutorService linkThreads = Executors.newFixedThreadPool(
+              ij.Prefs.getThreads());
+      try {
+         List<Future<List<SpotData>>> linkResults = 
+                 new ArrayList<Future<List<SpotData>>>();
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
             for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot, null,
-                                      new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                      new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointByData nsp = new NearestPointByData(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks = 
-                                   new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              GsSpotPair newSpot = ((GsSpotPair) nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()))).copy();
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getFirstSpot());
-                                 markedSpots.add(newSpot.getFirstSpot());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
+                  final int position = pos;
+                  final int channel = ch;
+                  final int slice = s;
+                  linkResults.add(linkThreads.submit(new Callable<List<SpotData>>() {
+                     @Override
+                     public List<SpotData> call() {
+                        return link(rowData, position, channel, slice, 
+                                maxDistance, useFrames);
                      }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
+                  }));
                }
             }
          }
 
+         // linked spots go here, in the same order as when linked sequentially
+         List<SpotData> destList = new ArrayList<SpotData>();
+         for (Future<List<SpotData>> linkResult : linkResults) {
+            destList.addAll(linkResult.get());
+         }
       
          // Add destList to rowData
          RowData.Builder builder = rowData.copy();
@@ -153,10 +117,77 @@ public class SpotLinker {
                   setSpotList(destList);
          DataCollectionForm.getInstance().addSpotData(builder);
 
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+         } else {
+            ReportingUtils.logError(ee.getCause(), "Error while linking spots");
+         }
       } catch (OutOfMemoryError oome) {
          JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+      } finally {
+         linkThreads.shutdownNow();
       }
    }
+   
+   /**
+    * Links the spots in consecutive frames of a single position, channel
+    * and slice.
+    * 
+    * @return linked (averaged) spots
+    */
+   private static List<SpotData> link(RowData rowData, int pos, int ch, int s,
+           double maxDistance, boolean useFrames) {
+      // linked spots go here:
+      List<SpotData> destList = new ArrayList<SpotData>();
+      // maintain active tracks here
+      List< List<SpotData>> tracks = 
+              new ArrayList<List<SpotData>>();
+      for (int f = 1; f <= rowData.nrFrames_; f++) {
+         List<SpotData> spots = rowData.get(f, s, ch, pos);
+         if (spots != null) {
+            // keep track of spots in this frame added to tracks 
+            boolean[] markedSpots = new boolean[spots.size()];
+            // go through all tracks to see if they can be extended
+            if (tracks.size() > 0) {
+               SpotGrid grid = SpotGrid.ofData(spots, maxDistance);
+               // tracks that were extended stay open
+               List<List<SpotData>> openTracks = 
+                       new ArrayList<List<SpotData>>(tracks.size());
+               for (List<SpotData> track : tracks) {
+                  SpotData tSpot = track.get(track.size() - 1);
+                  int index = grid.nearest(tSpot.getXCenter(), 
+                          tSpot.getYCenter(), maxDistance);
+                  if (index < 0) {
+                     // track could not be extended, finalize it
+                     linkSpots(track, destList, useFrames);
+                  } else {
+                     track.add(spots.get(index));
+                     markedSpots[index] = true;
+                     openTracks.add(track);
+                  }
+               }
+               tracks = openTracks;
+            }
+            // go through spots and start a new track with any spot 
+            // that was not part of a track
+            for (int i = 0; i < spots.size(); i++) {
+               if (!markedSpots[i]) {
+                  List<SpotData> track = new ArrayList<SpotData>();
+                  track.add(spots.get(i));
+                  tracks.add(track);
+               }
+            }
+         }
+      }
+      // add tracks that made it to the end to destination list
+      for (List<SpotData> track : tracks) {
+         linkSpots(track, destList, useFrames);
+      }
+      return destList;
+   }
 
    /**
     * Given a list of linked spots, create a single spot entry that will be
@@ -284,18 +315,18 @@ public class SpotLinker {
                      List<SpotData> spots = rowData.get(f, s, ch, pos);
                      if (spots != null) {
                         // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
+                        boolean[] markedSpots = new boolean[spots.size()];
                         // go through all tracks to see if they can be extended
                         if (tracks.size() > 0) {
-                           NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
-                           List<TrackData> removedTracks = 
-                                   new ArrayList<TrackData>();
+                           SpotGrid grid = SpotGrid.ofData(spots, maxDistance);
+                           // tracks that were not written out stay open
+                           List<TrackData> openTracks = 
+                                   new ArrayList<TrackData>(tracks.size());
                            for (TrackData track : tracks) {
                               SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null) {
+                              int index = grid.nearest(tSpot.getXCenter(), 
+                                      tSpot.getYCenter(), maxDistance);
+                              if (index < 0) {
                                  track.addMissing();
                                  if (track.missingMoreThan(nrMissing)) {
                                     // track could not be extended, finalize it
@@ -304,29 +335,24 @@ public class SpotLinker {
                                              track.get(0).distance(track.get(track.size() - 1)) > minTotalDistance)  {
                                        writeTrack(rowData, track.getList(), trackNr);
                                        trackNr++;
-                                       // and remove from the list of tracks
-                                       // to avoid a concurrent modification exception
-                                       // the removal needs to be a two step process
-                                       removedTracks.add(track);
+                                       continue;
                                     }
                                  }
                               } else {
                                  track.resetMissing();
-                                 track.add(newSpot);
-                                 markedSpots.add(newSpot);
+                                 track.add(spots.get(index));
+                                 markedSpots[index] = true;
                               }
+                              openTracks.add(track);
                            }
-                           // second part of removing tracks
-                           for (TrackData track : removedTracks) {
-                              tracks.remove(track);
-                           }
+                           tracks = openTracks;
                         }
                         // go through spots and start a new track with any spot 
                         // that was not part of a previous track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
+                        for (int i = 0; i < spots.size(); i++) {
+                           if (!markedSpots[i]) {
                               TrackData track = new TrackData();
-                              track.add(spot);
+                              track.add(spots.get(i));
                               tracks.add(track);
                            }
                         }
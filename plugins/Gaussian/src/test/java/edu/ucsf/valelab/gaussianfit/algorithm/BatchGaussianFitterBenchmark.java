@@ -0,0 +1,68 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import ij.process.ShortProcessor;
+
+/**
+ * Reports how many spots per second GaussianFit and the batch fitter fit.
+ * Not a unit test; run main() by hand.
+ */
+public class BatchGaussianFitterBenchmark {
+   
+   private static final int ROUNDS = 5;
+   
+   public static void main(String[] args) {
+      int[][] cases = {
+         {GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARD},
+         {GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARDMLE},
+         {GaussianFit.ASYMMETRIC, GaussianFit.LEVENBERGMARQUARD},
+         {GaussianFit.ELLIPSE, GaussianFit.LEVENBERGMARQUARD}};
+      for (int[] c : cases) {
+         short[][] spots = TestBatchGaussianFitter.simulateSpots(
+                 TestBatchGaussianFitter.NRSPOTS, 1, 0.0, 
+                 c[0] == GaussianFit.ELLIPSE);
+         // the first rounds warm up the JIT
+         long gaussianFitTime = 0;
+         long batchTime = 0;
+         for (int round = 0; round < ROUNDS; round++) {
+            gaussianFitTime = timeGaussianFit(c[0], c[1], spots);
+            batchTime = timeBatchFitter(c[0], c[1], spots);
+         }
+         System.out.println("Shape " + c[0] + ", fit mode " + c[1] + 
+                 ": GaussianFit " + spotsPerSecond(spots.length, gaussianFitTime) + 
+                 " spots/sec., BatchGaussianFitter " + 
+                 spotsPerSecond(spots.length, batchTime) + " spots/sec.");
+      }
+   }
+   
+   private static int spotsPerSecond(int nrSpots, long nanoSeconds) {
+      return (int) (nrSpots / (nanoSeconds / 1.0e9));
+   }
+   
+   private static long timeGaussianFit(int shape, int fitMode, short[][] spots) {
+      GaussianFit gs = new GaussianFit(shape, fitMode);
+      int size = TestBatchGaussianFitter.BOXSIZE;
+      long start = System.nanoTime();
+      for (short[] spot : spots) {
+         ShortProcessor ip = new ShortProcessor(size, size, spot, null);
+         gs.dogaussianfit(ip, TestBatchGaussianFitter.MAXITERATIONS);
+      }
+      return System.nanoTime() - start;
+   }
+   
+   private static long timeBatchFitter(int shape, int fitMode, short[][] spots) {
+      int batchSize = TestBatchGaussianFitter.BATCHSIZE;
+      int size = TestBatchGaussianFitter.BOXSIZE;
+      BatchGaussianFitter batchFitter = new BatchGaussianFitter(shape, fitMode, 
+              false, 0.0, batchSize);
+      long start = System.nanoTime();
+      for (int i = 0; i < spots.length; i += batchSize) {
+         batchFitter.clear();
+         for (int j = i; j < i + batchSize && j < spots.length; j++) {
+            batchFitter.add(spots[j], size, size);
+         }
+         batchFitter.fit(TestBatchGaussianFitter.MAXITERATIONS);
+      }
+      return System.nanoTime() - start;
+   }
+   
+}
@@ -0,0 +1,152 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the batch fitter with GaussianFit on simulated spots.
+ * BatchGaussianFitterBenchmark compares their speed.
+ */
+public class TestBatchGaussianFitter {
+   
+   static final int NRSPOTS = 2048;
+   static final int BOXSIZE = 10;
+   static final int BATCHSIZE = 64;
+   static final int MAXITERATIONS = 200;
+   private static final double FIXEDWIDTH = 1.2;
+   
+   /**
+    * Simulates spots with Poisson-like noise
+    * 
+    * @param fixedWidth - if > 0, the width of all spots, otherwise spots have
+    *                   random widths
+    * @param elliptical - if true, spots have different widths along two
+    *                   axes, at a random angle
+    */
+   static short[][] simulateSpots(int nrSpots, long seed, double fixedWidth,
+           boolean elliptical) {
+      Random random = new Random(seed);
+      short[][] spots = new short[nrSpots][BOXSIZE * BOXSIZE];
+      for (short[] pixels : spots) {
+         double a = 500.0 + 1000.0 * random.nextDouble();
+         double xc = BOXSIZE / 2 - 1 + 2.0 * random.nextDouble();
+         double yc = BOXSIZE / 2 - 1 + 2.0 * random.nextDouble();
+         double s = fixedWidth > 0.0 ? fixedWidth : 1.0 + 0.5 * random.nextDouble();
+         double s2 = s;
+         double theta = 0.0;
+         if (elliptical) {
+            s2 = s * (1.3 + 0.3 * random.nextDouble());
+            theta = 0.2 + 1.0 * random.nextDouble();
+         }
+         double cos = Math.cos(theta);
+         double sin = Math.sin(theta);
+         for (int y = 0; y < BOXSIZE; y++) {
+            for (int x = 0; x < BOXSIZE; x++) {
+               double u = (x - xc) * cos + (y - yc) * sin;
+               double v = (y - yc) * cos - (x - xc) * sin;
+               double m = 100.0 + a * Math.exp(-(u * u) / (2 * s * s) 
+                       - (v * v) / (2 * s2 * s2));
+               pixels[y * BOXSIZE + x] = (short) Math.round(m 
+                       + Math.sqrt(m) * random.nextGaussian());
+            }
+         }
+      }
+      return spots;
+   }
+   
+   private void compare(int shape, int fitMode, double fixedWidth, 
+           boolean elliptical) {
+      short[][] spots = simulateSpots(NRSPOTS, 1, fixedWidth, elliptical);
+      boolean fixWidth = fixedWidth > 0.0;
+      GaussianFit gs = new GaussianFit(shape, fitMode, fixWidth, fixedWidth);
+      BatchGaussianFitter batchFitter = new BatchGaussianFitter(shape, fitMode, 
+              fixWidth, fixedWidth, BATCHSIZE);
+      
+      double[][] expected = new double[NRSPOTS][];
+      for (int i = 0; i < NRSPOTS; i++) {
+         ShortProcessor ip = new ShortProcessor(BOXSIZE, BOXSIZE, spots[i], null);
+         expected[i] = gs.dogaussianfit(ip, MAXITERATIONS).getParms();
+      }
+      
+      double[][] actual = new double[NRSPOTS][];
+      for (int i = 0; i < NRSPOTS; i += BATCHSIZE) {
+         batchFitter.clear();
+         for (int j = i; j < i + BATCHSIZE && j < NRSPOTS; j++) {
+            batchFitter.add(spots[j], BOXSIZE, BOXSIZE);
+         }
+         batchFitter.fit(MAXITERATIONS);
+         for (int j = 0; j < batchFitter.size(); j++) {
+            actual[i + j] = batchFitter.getData(j).getParms();
+         }
+      }
+      
+      // a fixed width is not part of the parameters
+      int nrParams = fixWidth ? 4 : shape + 4;
+      for (int i = 0; i < NRSPOTS; i++) {
+         if (expected[i].length == 1) {
+            continue;
+         }
+         Assert.assertEquals(nrParams, expected[i].length);
+         Assert.assertEquals(expected[i].length, actual[i].length);
+         Assert.assertEquals(expected[i][GaussianFit.XC], 
+                 actual[i][GaussianFit.XC], 0.05);
+         Assert.assertEquals(expected[i][GaussianFit.YC], 
+                 actual[i][GaussianFit.YC], 0.05);
+         if (!fixWidth) {
+            Assert.assertEquals(expected[i][GaussianFit.S], 
+                    actual[i][GaussianFit.S], 0.05);
+         }
+         if (!fixWidth && shape >= GaussianFit.ASYMMETRIC) {
+            Assert.assertEquals(expected[i][GaussianFit.S2], 
+                    actual[i][GaussianFit.S2], 0.05);
+         }
+      }
+   }
+   
+   @Test
+   public void testCircle() {
+      compare(GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARD, 0.0, false);
+   }
+   
+   @Test
+   public void testCircleMLE() {
+      compare(GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARDMLE, 0.0, false);
+   }
+   
+   @Test
+   public void testAsymmetric() {
+      compare(GaussianFit.ASYMMETRIC, GaussianFit.LEVENBERGMARQUARD, 0.0, false);
+   }
+   
+   @Test
+   public void testEllipse() {
+      compare(GaussianFit.ELLIPSE, GaussianFit.LEVENBERGMARQUARD, 0.0, true);
+   }
+   
+   @Test
+   public void testEllipseMLE() {
+      compare(GaussianFit.ELLIPSE, GaussianFit.LEVENBERGMARQUARDMLE, 0.0, true);
+   }
+   
+   @Test
+   public void testFixedWidth() {
+      compare(GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARD, FIXEDWIDTH, 
+              false);
+   }
+   
+   @Test
+   public void testFixedWidthMLE() {
+      compare(GaussianFit.CIRCLE, GaussianFit.LEVENBERGMARQUARDMLE, FIXEDWIDTH, 
+              false);
+   }
+   
+   @Test
+   public void testFixedWidthIgnoresShape() {
+      // As in GaussianFit, fixing the width implies a circular Gaussian
+      compare(GaussianFit.ELLIPSE, GaussianFit.LEVENBERGMARQUARD, FIXEDWIDTH, 
+              false);
+   }
+   
+}
@@ -0,0 +1,69 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares grid queries with a brute force search over all points
+ */
+public class TestSpotGrid {
+
+   private static double distance2(double[] x, double[] y, int i, double qx, double qy) {
+      return (x[i] - qx) * (x[i] - qx) + (y[i] - qy) * (y[i] - qy);
+   }
+
+   @Test
+   public void testQueries() {
+      Random random = new Random(5);
+      for (int trial = 0; trial < 200; trial++) {
+         int n = random.nextInt(300);
+         // include sparse data sets and points on a single line
+         double extent = trial % 3 == 0 ? 1.0e6 : 1000.0;
+         double[] x = new double[n];
+         double[] y = new double[n];
+         for (int i = 0; i < n; i++) {
+            x[i] = random.nextDouble() * extent;
+            y[i] = trial % 7 == 0 ? 5.0 : random.nextDouble() * extent;
+         }
+         double maxDistance = trial % 5 == 0 ?
+                 Double.POSITIVE_INFINITY : random.nextDouble() * 200.0;
+         SpotGrid grid = new SpotGrid(x, y, maxDistance);
+
+         for (int q = 0; q < 50; q++) {
+            // query points can be outside of the area covered by the points
+            double qx = random.nextDouble() * extent * 1.4 - 0.2 * extent;
+            double qy = random.nextDouble() * extent * 1.4 - 0.2 * extent;
+
+            int best = -1;
+            double bestD2 = maxDistance * maxDistance;
+            for (int i = 0; i < n; i++) {
+               double d2 = distance2(x, y, i, qx, qy);
+               if (d2 < bestD2) {
+                  bestD2 = d2;
+                  best = i;
+               }
+            }
+            int found = grid.nearest(qx, qy, maxDistance);
+            Assert.assertEquals(best < 0, found < 0);
+            if (best >= 0) {
+               Assert.assertEquals(bestD2, distance2(x, y, found, qx, qy), 1.0e-9);
+            }
+
+            double radius = random.nextDouble() * 100.0;
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+               if (distance2(x, y, i, qx, qy) <= radius * radius) {
+                  count++;
+               }
+            }
+            int[] within = grid.within(qx, qy, radius);
+            Assert.assertEquals(count, within.length);
+            for (int i : within) {
+               Assert.assertTrue(distance2(x, y, i, qx, qy) <= radius * radius);
+            }
+         }
+      }
+   }
+
+}
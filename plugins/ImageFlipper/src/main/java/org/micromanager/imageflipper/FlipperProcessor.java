@@ -21,7 +21,6 @@
 package org.micromanager.imageflipper;
 
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 
 import mmcorej.TaggedImage;
 
@@ -30,6 +29,7 @@ import org.json.JSONObject;
 
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
+import org.micromanager.data.PixelTransforms;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 
@@ -79,6 +79,15 @@ public class FlipperProcessor extends Processor {
             transformImage(studio_, image, isMirrored_, rotation_));
    }
 
+   /**
+    * Each image is processed independently, so images can be processed in
+    * parallel.
+    */
+   @Override
+   public boolean getIsParallelSafe() {
+      return true;
+   }
+
    /**
     * Executes image transformation
     * First mirror the image if requested, than rotate as requested
@@ -92,21 +101,11 @@ public class FlipperProcessor extends Processor {
          boolean isMirrored, int rotation) {
       int width = image.getWidth();
       int height = image.getHeight();
-      
-      ImageProcessor proc = studio.data().ij().createProcessor(image);
-
-      if (isMirrored) {
-         proc.flipHorizontal();
-      }
-      if (rotation == R90) {
-         proc = proc.rotateRight();
-      }
-      if (rotation == R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
-      }
-      if (rotation == R270) {
-         proc = proc.rotateLeft();
+      Object pixels = PixelTransforms.transform(image.getRawPixels(), width,
+            height, image.getBytesPerPixel(), isMirrored, rotation, null);
+      if (rotation == R90 || rotation == R270) {
+         width = image.getHeight();
+         height = image.getWidth();
       }
       // Insert some metadata to indicate what we did to the image.
       PropertyMap.PropertyMapBuilder builder;
@@ -120,8 +119,9 @@ public class FlipperProcessor extends Processor {
       builder.putInt("ImageFlipper-Rotation", rotation);
       builder.putString("ImageFlipper-Mirror", isMirrored ? "On" : "Off");
       Metadata newMetadata = image.getMetadata().copy().userData(builder.build()).build();
-      Image result = studio.data().ij().createImage(proc, image.getCoords(),
-            newMetadata);
+      Image result = studio.data().createImage(pixels, width, height,
+            image.getBytesPerPixel(), image.getNumComponents(),
+            image.getCoords(), newMetadata);
       return result;
    }
 }
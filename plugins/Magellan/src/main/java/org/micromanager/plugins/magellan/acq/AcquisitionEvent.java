@@ -36,6 +36,7 @@ public class AcquisitionEvent  {
    final public List<CovariantPairing> covariants_;
    public String autofocusZName_;
    public double autofocusPosition_;
+   final public EventTiming timing_ = new EventTiming();
    
    
    public AcquisitionEvent(Acquisition acq, int frameIndex, int channelIndex, int sliceIndex, int positionIndex, 
@@ -0,0 +1,113 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+
+package main.java.org.micromanager.plugins.magellan.acq;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded tiles, limited by the total size of their pixels, so that
+ * panning and zooming don't repeatedly read the same tiles from disk
+ */
+public class DecodedTileCache<K> {
+
+   //number of modification stamps, each shared by the keys that hash to it
+   private static final int NUM_STAMPS = 4096;
+
+   private final long maxBytes_;
+   private long bytes_ = 0;
+   //a stamp is incremented whenever a tile that hashes to it is invalidated, so that invalidating
+   //one tile does not stop unrelated tiles that are being read from being cached
+   private final long[] modificationStamps_ = new long[NUM_STAMPS];
+   private final LinkedHashMap<K, MagellanTaggedImage> tiles_ = new LinkedHashMap<K, MagellanTaggedImage>(16, 0.75f, true);
+
+   public DecodedTileCache(long maxBytes) {
+      maxBytes_ = maxBytes;
+   }
+
+   public synchronized MagellanTaggedImage get(K key) {
+      return tiles_.get(key);
+   }
+
+   /**
+    * @return a stamp to pass to put(), which can be used to detect that a tile read from
+    * elsewhere may have been invalidated while it was being read
+    */
+   public synchronized long getModificationStamp(K key) {
+      return modificationStamps_[stampIndex(key)];
+   }
+
+   /**
+    * Add a tile, evicting least recently used tiles as needed to stay within the size limit
+    * @param stamp value of getModificationStamp(key) from before the tile was read. If the tile
+    * may have been invalidated since then, it is not added. Pass -1 for tiles that never change.
+    */
+   public synchronized void put(K key, MagellanTaggedImage tile, long stamp) {
+      if (stamp != -1 && stamp != modificationStamps_[stampIndex(key)]) {
+         return;
+      }
+      long size = sizeOf(tile);
+      if (size > maxBytes_) {
+         return;
+      }
+      remove(key);
+      tiles_.put(key, tile);
+      bytes_ += size;
+      Iterator<Map.Entry<K, MagellanTaggedImage>> iter = tiles_.entrySet().iterator();
+      while (bytes_ > maxBytes_ && iter.hasNext()) {
+         bytes_ -= sizeOf(iter.next().getValue());
+         iter.remove();
+      }
+   }
+
+   /**
+    * Drop a tile whose pixels have changed
+    */
+   public synchronized void invalidate(K key) {
+      modificationStamps_[stampIndex(key)]++;
+      remove(key);
+   }
+
+   public synchronized void clear() {
+      for (int i = 0; i < NUM_STAMPS; i++) {
+         modificationStamps_[i]++;
+      }
+      tiles_.clear();
+      bytes_ = 0;
+   }
+
+   private static int stampIndex(Object key) {
+      int h = key.hashCode();
+      return (h ^ (h >>> 16)) & (NUM_STAMPS - 1);
+   }
+
+   private void remove(K key) {
+      MagellanTaggedImage old = tiles_.remove(key);
+      if (old != null) {
+         bytes_ -= sizeOf(old);
+      }
+   }
+
+   private static long sizeOf(MagellanTaggedImage tile) {
+      if (tile.pix instanceof byte[]) {
+         return ((byte[]) tile.pix).length;
+      }
+      return 2L * ((short[]) tile.pix).length;
+   }
+}
@@ -0,0 +1,52 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+
+package main.java.org.micromanager.plugins.magellan.acq;
+
+/**
+ * Time in ms spent in each phase of executing an acquisition event. Phases
+ * on the engine thread are waiting for the event to be generated, updating
+ * hardware, snapping and reading images out of the core. Handing images to
+ * the acquisition happens on a separate thread, overlapping with the next event.
+ */
+public class EventTiming {
+
+   public volatile long waitForEvent_, hardware_, snap_, readout_, handoff_;
+   private int numEvents_ = 0;
+
+   /**
+    * Add the timing of an event to this total
+    */
+   public synchronized void add(EventTiming timing) {
+      waitForEvent_ += timing.waitForEvent_;
+      hardware_ += timing.hardware_;
+      snap_ += timing.snap_;
+      readout_ += timing.readout_;
+      handoff_ += timing.handoff_;
+      numEvents_++;
+   }
+
+   public synchronized int getNumEvents() {
+      return numEvents_;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "waiting for events " + waitForEvent_ + " ms, hardware " + hardware_ + " ms, snapping " + snap_
+              + " ms, reading images " + readout_ + " ms, handing off images " + handoff_ + " ms";
+   }
+}
@@ -199,8 +199,8 @@ public class MMImageCache {
       return changingKeys_;
    }
 
-   public Set<String> imageKeys() {
-     return imageStorage_.imageKeys();
+   public TileIndex getTileIndex() {
+     return imageStorage_.getTileIndex();
    }
 
    private boolean isRGB() throws JSONException {
@@ -27,9 +27,16 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import main.java.org.micromanager.plugins.magellan.bidc.JavaLayerImageConstructor;
 import main.java.org.micromanager.plugins.magellan.bidc.FrameIntegrationMethod;
@@ -61,12 +68,15 @@ public class MagellanEngine {
 
    private static final int HARDWARE_ERROR_RETRIES = 6;
    private static final int DELWAY_BETWEEN_RETRIES_MS = 5;
+   private static final int IMAGE_HANDOFF_QUEUE_SIZE = 16;
    private static CMMCore core_;
    private AcquisitionEvent lastEvent_ = null;
    private ExploreAcquisition currentExploreAcq_;
    private ParallelAcquisitionGroup currentFixedAcqs_;
    private MultipleAcquisitionManager multiAcqManager_;
    private ExecutorService acqExecutor_;
+   private final ExecutorService eventPrefetchExecutor_;
+   private final ThreadPoolExecutor imageHandoffExecutor_;
    private EventBus bus_;
    private AcqDurationEstimator acqDurationEstiamtor_;
 
@@ -79,6 +89,30 @@ public class MagellanEngine {
             return new Thread(r, "Custom Acquisition Engine Thread");
          }
       });
+      eventPrefetchExecutor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "Acquisition event prefetch thread");
+         }
+      });
+      imageHandoffExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+              new ArrayBlockingQueue<Runnable>(IMAGE_HANDOFF_QUEUE_SIZE), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "Acquisition image handoff thread");
+         }
+      }, new RejectedExecutionHandler() {
+         @Override
+         public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            //wait for space rather than dropping images
+            try {
+               executor.getQueue().put(r);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               throw new RejectedExecutionException(ex);
+            }
+         }
+      });
    }
 
    private void validateSettings(FixedAreaAcquisitionSettings settings) throws Exception {
@@ -228,46 +262,95 @@ public class MagellanEngine {
             if (!(acq instanceof ExploreAcquisition)) {
                GUI.getInstance().acquisitionRunning(true);
             }
-            while (true) {
-               try {
-                  if (Thread.interrupted()) {
-                     if (!(acq instanceof ExploreAcquisition)) {
-                        GUI.getInstance().acquisitionRunning(false);
+            final EventTiming totalTiming = new EventTiming();
+            //generate the next event while the current one is being acquired. This is started here 
+            //rather than when the task is submitted, so that it can't take events meant for an earlier task
+            final BlockingQueue<AcquisitionEvent> nextEvent = new ArrayBlockingQueue<AcquisitionEvent>(1);
+            Future<?> prefetch = eventPrefetchExecutor_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     while (true) {
+                        AcquisitionEvent event = acq.getNextEvent();
+                        nextEvent.put(event);
+                        if (event.isEngineTaskFinishedEvent()) {
+                           return;
+                        }
                      }
-                     return;
+                  } catch (InterruptedException ex) {
+                     //engine task is finished
                   }
-                  AcquisitionEvent event = acq.getNextEvent();
-                  if (event.isEngineTaskFinishedEvent()) {
-                     if (!(acq instanceof ExploreAcquisition)) {
-                        GUI.getInstance().acquisitionRunning(false);
+               }
+            });
+            try {
+               while (true) {
+                  try {
+                     if (Thread.interrupted()) {
+                        if (!(acq instanceof ExploreAcquisition)) {
+                           GUI.getInstance().acquisitionRunning(false);
+                        }
+                        return;
                      }
-                     break; //this parallel group or explore acqusition is done
+                     long startTime = System.currentTimeMillis();
+                     AcquisitionEvent event = nextEvent.take();
+                     event.timing_.waitForEvent_ = System.currentTimeMillis() - startTime;
+                     if (event.isEngineTaskFinishedEvent()) {
+                        if (!(acq instanceof ExploreAcquisition)) {
+                           GUI.getInstance().acquisitionRunning(false);
+                        }
+                        break; //this parallel group or explore acqusition is done
+                     }
+                     executeAcquisitionEvent(event, totalTiming);
+                  } catch (InterruptedException ex) {
+                     Log.log("Unexpected interrupt to acquisiton engine thread");
+                     return;
                   }
-                  executeAcquisitionEvent(event);
-               } catch (InterruptedException ex) {
-                  Log.log("Unexpected interrupt to acquisiton engine thread");
-                  return;
                }
+            } finally {
+               prefetch.cancel(true);
+               //log once all images from this task have been handed off
+               handOff(new Runnable() {
+                  @Override
+                  public void run() {
+                     if (totalTiming.getNumEvents() > 0) {
+                        Log.log("Acquisition engine time for " + totalTiming.getNumEvents() + " images: " + totalTiming);
+                     }
+                  }
+               });
             }
          }
       });
    }
 
-   private void executeAcquisitionEvent(AcquisitionEvent event) throws InterruptedException {
+   /**
+    * Run a task on the image handoff thread, after all previously handed off tasks. Blocks if 
+    * the handoff thread is too far behind, so acquisition doesn't get too far ahead of saving
+    */
+   private void handOff(Runnable r) {
+      try {
+         imageHandoffExecutor_.execute(r);
+      } catch (RejectedExecutionException ex) {
+         Log.log("Couldn't hand off images from acquisition engine");
+      }
+   }
+
+   private void executeAcquisitionEvent(final AcquisitionEvent event, EventTiming totalTiming) throws InterruptedException {
       if (event.isReQueryEvent()) {
          //nothing to do, just a dummy event to get of blocking call when switching between parallel acquisitions
       } else if (event.isAcquisitionFinishedEvent()) {
          //signal to MagellanTaggedImageSink to finish saving thread and mark acquisition as finished
-         JavaLayerImageConstructor.getInstance().addSignalMagellanTaggedImage(event, new SignalTaggedImage(SignalTaggedImage.AcqSingal.AcqusitionFinsihed));
+         handOffSignal(event, new SignalTaggedImage(SignalTaggedImage.AcqSingal.AcqusitionFinsihed));
       } else if (event.isTimepointFinishedEvent()) {
          //signal to MagellanTaggedImageSink to let acqusition know that saving for the current time point has completed  
-         JavaLayerImageConstructor.getInstance().addSignalMagellanTaggedImage(event, new SignalTaggedImage(SignalTaggedImage.AcqSingal.TimepointFinished));
+         handOffSignal(event, new SignalTaggedImage(SignalTaggedImage.AcqSingal.TimepointFinished));
       } else if (event.isAutofocusAdjustmentEvent()) {
          setAutofocusPosition(event.autofocusZName_, event.autofocusPosition_);
       } else {
+         long hardwareStartTime = System.currentTimeMillis();
          updateHardware(event);
+         event.timing_.hardware_ = System.currentTimeMillis() - hardwareStartTime;
          double startTime = System.currentTimeMillis();
-         acquireImage(event);
+         acquireImage(event, totalTiming);
          if (GlobalSettings.getInstance().getDemoMode()) {
             Thread.sleep(DEMO_DELAY_IMAGE_CAPTURE);
          }
@@ -282,7 +365,24 @@ public class MagellanEngine {
       }
    }
 
-   private void acquireImage(final AcquisitionEvent event) throws InterruptedException {
+   /**
+    * Signals go through the handoff thread so that they reach the acquisition after its images
+    */
+   private void handOffSignal(final AcquisitionEvent event, final MagellanTaggedImage signal) {
+      handOff(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               JavaLayerImageConstructor.getInstance().addSignalMagellanTaggedImage(event, signal);
+            } catch (InterruptedException ex) {
+               Log.log("Unexpected interrupt to image handoff thread");
+            }
+         }
+      });
+   }
+
+   private void acquireImage(final AcquisitionEvent event, final EventTiming totalTiming) throws InterruptedException {
+      long startTime = System.currentTimeMillis();
       loopHardwareCommandRetries(new HardwareCommand() {
          @Override
          public void run() throws Exception {
@@ -292,21 +392,40 @@ public class MagellanEngine {
 
       //get elapsed time
       final long currentTime = System.currentTimeMillis();
+      event.timing_.snap_ = currentTime - startTime;
       if (event.acquisition_.getStartTime_ms() == -1) {
          //first image, initialize
          event.acquisition_.setStartTime_ms(currentTime);
       }
 
-      //send to storage
+      //read images out of the core
+      final Runnable[] addToAcq = new Runnable[1];
       loopHardwareCommandRetries(new HardwareCommand() {
          @Override
          public void run() throws Exception {
-            JavaLayerImageConstructor.getInstance().getMagellanTaggedImagesAndAddToAcq(event, currentTime);
+            addToAcq[0] = JavaLayerImageConstructor.getInstance().getMagellanTaggedImages(event, currentTime);
          }
       }, "getting tagged image");
+      event.timing_.readout_ = System.currentTimeMillis() - currentTime;
 
-      //now that Core Communicator has added images into construction pipeline,
-      //free to snap again which will add more to circular buffer
+      //now that images have been read from the core, free to snap again which will add more to circular buffer. 
+      //Adding metadata and sending to storage happens on the handoff thread while the next event starts
+      handOff(new Runnable() {
+         @Override
+         public void run() {
+            long handoffStartTime = System.currentTimeMillis();
+            if (addToAcq[0] != null) {
+               try {
+                  addToAcq[0].run();
+               } catch (Exception e) {
+                  Log.log("Problem adding image to acquisition");
+                  Log.log(e);
+               }
+            }
+            event.timing_.handoff_ = System.currentTimeMillis() - handoffStartTime;
+            totalTiming.add(event.timing_);
+         }
+      });
    }
 
    private void setAutofocusPosition(final String zName, final double pos) throws InterruptedException {
@@ -317,6 +436,16 @@ public class MagellanEngine {
             core_.setPosition(zName, pos);
          }
       }, "Setting autofocus position");
+      waitForDevice(zName, "autofocus Z device");
+   }
+
+   private void waitForDevice(final String device, String name) throws InterruptedException {
+      loopHardwareCommandRetries(new HardwareCommand() {
+         @Override
+         public void run() throws Exception {
+            core_.waitForDevice(device);
+         }
+      }, "waiting for " + name + " to not be busy");
    }
 
    //from MM website, a potential way to speed up acq:
@@ -347,20 +476,27 @@ public class MagellanEngine {
       final String xyStage = event.acquisition_.getXYStageName();
       final String zStage = event.acquisition_.getZStageName();
 
-      //move Z before XY 
+      //Move Z and wait for it before moving XY, so the objective can't hit anything on the way
+      //to the new position. The channel change doesn't depend on XY, so it happens while XY moves.
+      //Each device is timed on its own, because the duration estimator adds up the times
+      final boolean moveZ = lastEvent_ == null || event.sliceIndex_ != lastEvent_.sliceIndex_;
+      final boolean moveXY = lastEvent_ == null || event.positionIndex_ != lastEvent_.positionIndex_;
+      ChannelSetting channel = null;
+      if (lastEvent_ == null || event.channelIndex_ != lastEvent_.channelIndex_
+              && event.acquisition_.channels_ != null && !event.acquisition_.channels_.isEmpty()) {
+         try {
+            channel = event.acquisition_.channels_.get(event.channelIndex_);
+            if (!channel.use_ || channel.config_ == null) {
+               channel = null;
+            }
+         } catch (Exception ex) {
+            Log.log("Couldn't change channel group");
+         }
+      }
+      final ChannelSetting setting = channel;
       /////////////////////////////Z stage/////////////////////////////
-      if (lastEvent_ == null || event.sliceIndex_ != lastEvent_.sliceIndex_) {            
+      if (moveZ) {            
          double startTime = System.currentTimeMillis();
-         //wait for it to not be busy (is this even needed?)
-         loopHardwareCommandRetries(new HardwareCommand() {
-            @Override
-            public void run() throws Exception {
-               while (core_.deviceBusy(zStage)) {
-                  Thread.sleep(2);
-               }
-            }
-         }, "waiting for Z stage to not be busy");
-         //move Z stage
          loopHardwareCommandRetries(new HardwareCommand() {
             @Override
             public void run() throws Exception {
@@ -371,36 +507,16 @@ public class MagellanEngine {
                }
             }
          }, "move Z device");
-         //wait for it to not be busy (is this even needed?)
-         loopHardwareCommandRetries(new HardwareCommand() {
-            @Override
-            public void run() throws Exception {
-               while (core_.deviceBusy(zStage)) {
-                  Thread.sleep(2);
-               }
-            }
-         }, "waiting for Z stage to not be busy");
+         waitForDevice(zStage, "Z stage");
          try {
             acqDurationEstiamtor_.storeZMoveTime(System.currentTimeMillis() - startTime);
          } catch (Exception ex) {
             Log.log(ex);
          }
       }
-
-
       /////////////////////////////XY Stage/////////////////////////////
-      if (lastEvent_ == null || event.positionIndex_ != lastEvent_.positionIndex_) {     
-         double startTime = System.currentTimeMillis();
-         //wait for it to not be busy (is this even needed??)
-         loopHardwareCommandRetries(new HardwareCommand() {
-            @Override
-            public void run() throws Exception {
-               while (core_.deviceBusy(xyStage)) {
-                  Thread.sleep(2);
-               }
-            }
-         }, "waiting for XY stage to not be busy");
-         //move to new position
+      double xyStartTime = System.currentTimeMillis();
+      if (moveXY) {     
          loopHardwareCommandRetries(new HardwareCommand() {
             @Override
             public void run() throws Exception {
@@ -411,42 +527,32 @@ public class MagellanEngine {
                }
             }
          }, "moving XY stage");
-         //wait for it to not be busy (is this even needed??)
+      }
+      /////////////////////////////Channels/////////////////////////////
+      if (setting != null) {
+         double startTime = System.currentTimeMillis();
          loopHardwareCommandRetries(new HardwareCommand() {
             @Override
             public void run() throws Exception {
-               while (core_.deviceBusy(xyStage)) {
-                  Thread.sleep(2);
-               }
+               core_.setConfig(setting.group_, setting.config_);
             }
-         }, "waiting for XY stage to not be busy");
+         }, "Set channel group");
+         loopHardwareCommandRetries(new HardwareCommand() {
+            @Override
+            public void run() throws Exception {
+               core_.waitForConfig(setting.group_, setting.config_);
+            }
+         }, "waiting for channel group");
          try {
-            acqDurationEstiamtor_.storeXYMoveTime(System.currentTimeMillis() - startTime);
+            acqDurationEstiamtor_.storeChannelSwitchTime(System.currentTimeMillis() - startTime);
          } catch (Exception ex) {
             Log.log(ex);
          }
       }
-      
-      /////////////////////////////Channels/////////////////////////////
-      if (lastEvent_ == null || event.channelIndex_ != lastEvent_.channelIndex_
-              && event.acquisition_.channels_ != null && !event.acquisition_.channels_.isEmpty()) {
-         double startTime = System.currentTimeMillis();
-         try {
-            final ChannelSetting setting = event.acquisition_.channels_.get(event.channelIndex_);
-            if (setting.use_ && setting.config_ != null) {
-               loopHardwareCommandRetries(new HardwareCommand() {
-                  @Override
-                  public void run() throws Exception {
-                     core_.setConfig(setting.group_, setting.config_);
-                  }
-               }, "Set channel group");
-            }
-
-         } catch (Exception ex) {
-            Log.log("Couldn't change channel group");
-         }
+      if (moveXY) {
+         waitForDevice(xyStage, "XY stage");
          try {
-            acqDurationEstiamtor_.storeChannelSwitchTime(System.currentTimeMillis() - startTime);
+            acqDurationEstiamtor_.storeXYMoveTime(System.currentTimeMillis() - xyStartTime);
          } catch (Exception ex) {
             Log.log(ex);
          }
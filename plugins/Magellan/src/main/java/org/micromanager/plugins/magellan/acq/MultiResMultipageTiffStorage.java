@@ -25,12 +25,26 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -56,6 +70,17 @@ public class MultiResMultipageTiffStorage {
    private final double BACKGROUND_PIXEL_PERCENTILE = 0.1; // assume background pixels are at 10th percentile of histogram
    private static final String FULL_RES_SUFFIX = "Full resolution";
    private static final String DOWNSAMPLE_SUFFIX = "Downsampled_x";
+   private static final int PYRAMID_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+   private static final int MAX_QUEUED_PYRAMID_TILES = 64;
+   private static final long MAX_PENDING_TILE_BYTES = 256L * 1024 * 1024;
+   private static final long MAX_CACHED_TILE_BYTES = Math.min(512L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+   //Threads shared by all storages for reading and assembling tiles for display, and for reading
+   //tiles adjacent to the displayed area ahead of time
+   private static final ExecutorService tileLoader_ = Executors.newFixedThreadPool(
+           Math.max(2, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory("Magellan tile loader"));
+   private static final ThreadPoolExecutor tilePrefetcher_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+           new ArrayBlockingQueue<Runnable>(128), new DaemonThreadFactory("Magellan tile prefetcher"),
+           new ThreadPoolExecutor.DiscardOldestPolicy());
    private TaggedImageStorageMultipageTiff fullResStorage_;
    private TreeMap<Integer, TaggedImageStorageMultipageTiff> lowResStorages_; //map of resolution index to storage instance
    private String directory_;
@@ -73,6 +98,17 @@ public class MultiResMultipageTiffStorage {
    private AffineTransform affine_;
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
+   //Lower resolution levels are built by these threads, so that putImage only has to write the full
+   //resolution tile
+   private ThreadPoolExecutor pyramidExecutor_; //null for datasets opened from disk
+   //Pyramid builders hold the read lock while adding a tile; adding a resolution level, which re-adds
+   //every tile of the level above, holds the write lock
+   private final ReentrantReadWriteLock pyramidLock_ = new ReentrantReadWriteLock();
+   //Lower resolution tiles being assembled in memory, in least recently used order
+   private final LinkedHashMap<TileKey, PendingTile> pendingTiles_ = new LinkedHashMap<TileKey, PendingTile>(16, 0.75f, true);
+   private int maxPendingTiles_;
+   //Decoded tiles recently used for display
+   private final DecodedTileCache<TileKey> tileCache_ = new DecodedTileCache<TileKey>(MAX_CACHED_TILE_BYTES);
    
    /**
     * Constructor to load existing storage from disk
@@ -104,15 +140,17 @@ public class MultiResMultipageTiffStorage {
       try {
          if (MD.isExploreAcq(summaryMD_) ) {
             TreeMap<Integer, XYStagePosition> positions = new TreeMap<Integer, XYStagePosition>();
-            for (String key : fullResStorage_.imageKeys()) {
-               // array with entires channelIndex, sliceIndex, frameIndex, positionIndex
-               int[] indices = MD.getIndices(key); 
-               int posIndex = indices[3];
-               if (!positions.containsKey(posIndex) ) {
-                  //read rowIndex, colIndex, stageX, stageY from per image metadata
-                  JSONObject md = fullResStorage_.getImageTags(indices[0], indices[1], indices[2], indices[3]);                  
-                  positions.put(posIndex, new XYStagePosition(new Point2D.Double(MD.getStageX(md),MD.getStageY(md)), 
-                          MD.getGridRow(md), MD.getGridCol(md)));
+            TileIndex index = fullResStorage_.getTileIndex();
+            for (int slice : index.getSlices()) {
+               for (long image : index.getImagesAtSlice(slice)) {
+                  int posIndex = TileIndex.getPosition(image);
+                  if (!positions.containsKey(posIndex)) {
+                     //read rowIndex, colIndex, stageX, stageY from per image metadata
+                     JSONObject md = fullResStorage_.getImageTags(TileIndex.getChannel(image), slice,
+                             TileIndex.getFrame(image), posIndex);
+                     positions.put(posIndex, new XYStagePosition(new Point2D.Double(MD.getStageX(md),MD.getStageY(md)), 
+                             MD.getGridRow(md), MD.getGridCol(md)));
+                  }
                }
             }          
             JSONArray pList = new JSONArray();
@@ -173,6 +211,13 @@ public class MultiResMultipageTiffStorage {
          Log.log("couldn't create Full res storage", true);
       }
       lowResStorages_ = new TreeMap<Integer, TaggedImageStorageMultipageTiff>();
+      pyramidExecutor_ = new ThreadPoolExecutor(PYRAMID_THREADS, PYRAMID_THREADS, 0, TimeUnit.NANOSECONDS,
+              new LinkedBlockingQueue<Runnable>(MAX_QUEUED_PYRAMID_TILES), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "Magellan pyramid builder");
+         }
+      }, new ThreadPoolExecutor.CallerRunsPolicy()); //if the builders fall too far behind, slow down acquisition rather than running out of memory
       try {
          bdvXML_ = new BDVXMLWriter(new File(directory_), fullResStorage_.getNumChannels(), MD.getBytesPerPixel(summaryMD_));
       } catch (IOException ex) {
@@ -195,6 +240,7 @@ public class MultiResMultipageTiffStorage {
       tileHeight_ = fullResTileHeightIncludingOverlap_ - yOverlap_;
       pixelSizeZ_ = MD.getZStepUm(summaryMD_);
       pixelSizeXY_ = MD.getPixelSizeUm(summaryMD_);
+      maxPendingTiles_ = (int) Math.max(16, MAX_PENDING_TILE_BYTES / Math.max(1, tileWidth_ * tileHeight_ * byteDepth_));
       affine_ = AffineUtils.stringToTransform(MD.getAffineTransformString(summaryMD_));
    }
    
@@ -282,11 +328,19 @@ public class MultiResMultipageTiffStorage {
    }
    
    public int getBackgroundPixelValue(int channelIndex) {
-      return backgroundPix_.containsKey(channelIndex) ? backgroundPix_.get(channelIndex) : 0;
+      synchronized (backgroundPix_) {
+         return backgroundPix_.containsKey(channelIndex) ? backgroundPix_.get(channelIndex) : 0;
+      }
+   }
+
+   private boolean hasBackgroundPixelValue(int channelIndex) {
+      synchronized (backgroundPix_) {
+         return backgroundPix_.containsKey(channelIndex);
+      }
    }
 
    private void readBackgroundPixelValue(int channel, MagellanTaggedImage img) {
-       if (!estimateBackground_ || backgroundPix_.containsKey(channel)) {
+       if (!estimateBackground_ || hasBackgroundPixelValue(channel)) {
            return;
        }
       int[] pixVals = new int[fullResTileHeightIncludingOverlap_ * fullResTileWidthIncludingOverlap_];
@@ -300,7 +354,9 @@ public class MultiResMultipageTiffStorage {
          }
       }
       Arrays.sort(pixVals);
-      backgroundPix_.put(channel, pixVals[(int) (pixVals.length * BACKGROUND_PIXEL_PERCENTILE)]);
+      synchronized (backgroundPix_) {
+         backgroundPix_.put(channel, pixVals[(int) (pixVals.length * BACKGROUND_PIXEL_PERCENTILE)]);
+      }
    }
    
    /**
@@ -345,110 +401,143 @@ public class MultiResMultipageTiffStorage {
     * @return Tagged image or taggeded image with background pixels and null tags if no
     * pixel data is present
     */
-   public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
-           int width, int height) {
-      Object pixels;
+   public MagellanTaggedImage getImageForDisplay(final int channel, final int slice, final int frame, final int dsIndex, final long x, final long y, 
+           final int width, final int height) {
+      final Object pixels;
       if (byteDepth_ == 1) {
          pixels = new byte[width * height]; 
-         if (backgroundPix_.containsKey(channel)) {
+         if (hasBackgroundPixelValue(channel)) {
             Arrays.fill((byte[]) pixels, (byte)getBackgroundPixelValue(channel));
          }
       } else {            
          pixels = new short[width * height];      
-         if (backgroundPix_.containsKey(channel)) {
+         if (hasBackgroundPixelValue(channel)) {
             Arrays.fill((short[]) pixels, (short)getBackgroundPixelValue(channel));
          }
       }
-      //go line by line through one column of tiles at a time, then move to next column
-      JSONObject topLeftMD = null;
-      //first calculate how many columns and rows of tiles are relevant and the number of pixels
-      //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
-         }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
-      //get starting row and column
+      //range of rows and columns of tiles that overlap the requested area
       long rowStart = tileIndexFromPixelIndex(y, false);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
       long colStart = tileIndexFromPixelIndex(x, true);
-      //xOffset and y offset are the distance from the top left of the display image into which 
-      //we are copying data
-      int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
-         int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      //each tile is fetched and copied into its own part of the returned image in parallel.
+      //Tasks are ordered by column, then row, so the first tile found supplies the metadata
+      List<Callable<JSONObject>> tasks = new ArrayList<Callable<JSONObject>>();
+      for (long col = colStart; col <= colEnd; col++) {
+         for (long row = rowStart; row <= rowEnd; row++) {
+            final long tileRow = row, tileCol = col;
+            tasks.add(new Callable<JSONObject>() {
+               @Override
+               public JSONObject call() {
+                  return copyTileForDisplay(channel, slice, frame, dsIndex, tileRow, tileCol, x, y, width, height, pixels);
+               }
+            });
+         }
+      }
+      JSONObject topLeftMD = null;
+      try {
+         List<Future<JSONObject>> results = tileLoader_.invokeAll(tasks);
+         for (Future<JSONObject> result : results) {
+            if (result.get() != null) {
+               topLeftMD = result.get();
+               break;
             }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
-               //Somtimes an inability to read IFDs soon after they are written results in an image being read 
-               //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
-               //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
+         }
+      } catch (Exception e) {
+         Log.log("Problem loading tiles for display");
+         Log.log(e);
+      }
+      prefetchTilesAround(channel, slice, frame, dsIndex, rowStart, rowEnd, colStart, colEnd);
+      return new MagellanTaggedImage(pixels, topLeftMD);
+   }
+
+   /**
+    * Copy the part of one tile that overlaps the area being displayed into the displayed pixels
+    * @return the tile's tags, or null if there is no data for the tile
+    */
+   private JSONObject copyTileForDisplay(int channel, int slice, int frame, int dsIndex, long row, long col,
+           long x, long y, int width, int height, Object pixels) {
+      MagellanTaggedImage tile = getTileForDisplay(channel, slice, frame, dsIndex, row, col);
+      if (tile == null) {
+         return null; //If no data present for this tile go on to next one
+      }
+      //overlap of this tile with the displayed area, in pixels of this resolution
+      long left = Math.max(x, col * tileWidth_);
+      long right = Math.min(x + width, (col + 1) * tileWidth_);
+      long top = Math.max(y, row * tileHeight_);
+      long bottom = Math.min(y + height, (row + 1) * tileHeight_);
+      int tileXPix = (int) (left - col * tileWidth_);
+      int tileYPix = (int) (top - row * tileHeight_);
+      int tileWidth = tileWidth_;
+      if (dsIndex == 0) {
+         //account for overlaps when viewing full resolution tiles
+         tileXPix += xOverlap_ / 2;
+         tileYPix += yOverlap_ / 2;
+         tileWidth = fullResTileWidthIncludingOverlap_;
+      }
+      int lineWidth = (int) (right - left);
+      try {
+         for (int line = 0; line < bottom - top; line++) {
+            System.arraycopy(tile.pix, (tileYPix + line) * tileWidth + tileXPix, pixels,
+                    (int) ((top - y + line) * width + (left - x)), lineWidth);
+         }
+      } catch (Exception e) {
+         e.printStackTrace();
+         Log.log("Problem copying pixels");
+      }
+      return tile.tags;
+   }
+
+   /**
+    * Get a tile from the cache of decoded tiles, or read it and add it to the cache
+    * @return the tile, or null if it has no data
+    */
+   private MagellanTaggedImage getTileForDisplay(int channel, int slice, int frame, int dsIndex, long row, long col) {
+      int position = posManager_.getPositionIndexFromTilePosition(dsIndex, row, col);
+      if (position == -1) {
+         return null;
+      }
+      TileKey key = new TileKey(dsIndex, channel, slice, frame, position);
+      MagellanTaggedImage tile = tileCache_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      long stamp = tileCache_.getModificationStamp(key);
+      tile = getImage(channel, slice, frame, position, dsIndex);
+      if (tile == null || (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0)
+              || (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0)) {
+         //Somtimes an inability to read IFDs soon after they are written results in an image being read 
+         //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
+         //a black flickering during acquisition
+         return null;
+      }
+      //full resolution tiles never change once written; lower resolution tiles are invalidated
+      //when the pyramid builder changes them
+      tileCache_.put(key, tile, dsIndex == 0 ? -1 : stamp);
+      return tile;
+   }
+
+   /**
+    * Read the ring of tiles just outside the displayed area into the cache in the background,
+    * so that they are ready if the user pans. Tiles for areas that are no longer displayed are
+    * dropped from the queue if it fills up
+    */
+   private void prefetchTilesAround(final int channel, final int slice, final int frame, final int dsIndex,
+           long rowStart, long rowEnd, long colStart, long colEnd) {
+      for (long row = rowStart - 1; row <= rowEnd + 1; row++) {
+         for (long col = colStart - 1; col <= colEnd + 1; col++) {
+            if (row >= rowStart && row <= rowEnd && col >= colStart && col <= colEnd) {
                continue;
             }
-            //take top left tile for metadata
-            if (topLeftMD == null) {
-               topLeftMD = tile.tags;
-            }
-            //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
-               }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
+            final long tileRow = row, tileCol = col;
+            tilePrefetcher_.execute(new Runnable() {
+               @Override
+               public void run() {
+                  getTileForDisplay(channel, slice, frame, dsIndex, tileRow, tileCol);
                }
-               try {
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, tileYPix * tileWidth_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int)(col - colStart)));
-                  }
-               } catch (Exception e) {
-                  e.printStackTrace();
-                  Log.log("Problem copying pixels");
-               }
-            }
-            yOffset += lineHeights.get((int)(row - rowStart));
-
+            });
          }
-         xOffset += lineWidths.get((int)(col - colStart));
       }
-      return new MagellanTaggedImage(pixels, topLeftMD);
    }
    
    /**
@@ -456,199 +545,420 @@ public class MultiResMultipageTiffStorage {
     * @param resIndex 
     */
    public void initializeToLevel(int resIndex) {
-      //create a null pointer in lower res storages to signal addToLoResStorage function
-      //to continue downsampling to this level
-      for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
-         lowResStorages_.put(i, null);
+      pyramidLock_.writeLock().lock();
+      try {
+         //create a null pointer in lower res storages to signal the pyramid builder
+         //to continue downsampling to this level
+         for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
+            lowResStorages_.put(i, null);
+         }
+         //Make sure position nodes for lower resolutions are created if they weren't automatically
+         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+      } finally {
+         pyramidLock_.writeLock().unlock();
       }
-      //Make sure position nodes for lower resolutions are created if they weren't automatically
-      posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
    }
 
    /**
     * create an additional lower resolution level so that image can be zoomed out 
     */
    public boolean addLowerResolution() {
-      synchronized(this) {
-         if (fullResStorage_.imageKeys().size() == 0) {
+      pyramidLock_.writeLock().lock();
+      try {
+         if (fullResStorage_.getTileIndex().size() == 0) {
             //nothing to downsample
             return false;
          }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
+         //create a null pointer in lower res storages to signal the pyramid builder
          //to continue downsampling to this level
          lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
          //update position manager to reflect addition of new resolution level
          posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
-         String aLabel = fullResStorage_.imageKeys().iterator().next();
-         int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
+         //build the new level now, so that it can be displayed immediately
+         createMissingLevels(getLowestResolutionLevel());
          return true;
+      } finally {
+         pyramidLock_.writeLock().unlock();
       }
    }
-   
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
 
+   /**
+    * Hand a full resolution tile to the pyramid builder threads, which
+    * downsample it into all lower resolution levels
+    */
+   private void submitToPyramid(final MagellanTaggedImage img, final int fullResPositionIndex) {
+      pyramidExecutor_.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               addToLowResStorage(img, fullResPositionIndex);
+               //lower res storages must not change while a level is being created
+               pyramidLock_.readLock().lock();
+               try {
+                  evictPendingTiles(maxPendingTiles_);
+               } finally {
+                  pyramidLock_.readLock().unlock();
+               }
+            } catch (Exception e) {
+               Log.log("Couldn't add tile to lower resolutions");
+               Log.log(e);
+            }
+         }
+      });
+   }
+
+   private void addToLowResStorage(MagellanTaggedImage img, int fullResPositionIndex) {
+      int channel = MD.getChannelIndex(img.tags);
       if (estimateBackground_) {
          readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
       }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
-      //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
-      //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
-
-         //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
-            createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
+      pyramidLock_.readLock().lock();
+      try {
+         int lowestLevel = getLowestResolutionLevel();
+         if (hasMissingLevel(lowestLevel)) {
+            //creating a level requires exclusive access to the pyramid
+            pyramidLock_.readLock().unlock();
+            pyramidLock_.writeLock().lock();
+            boolean includedThisTile;
+            try {
+               lowestLevel = getLowestResolutionLevel();
+               includedThisTile = createMissingLevels(lowestLevel);
+            } finally {
+               pyramidLock_.readLock().lock();
+               pyramidLock_.writeLock().unlock();
             }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
-         }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-            currentLevelPix = byteDepth_ == 1 ? new byte[tileWidth_ * tileHeight_] : new short[tileWidth_ * tileHeight_];
-            //fill in with background pixel value
-            if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
+            if (includedThisTile) {
+               return;
             }
-         } else {
-            currentLevelPix = existingImage.pix; 
-         }     
+         }
+         downsampleToLevel(img.pix, img.tags, 0, fullResPositionIndex, lowestLevel, 1);
+      } finally {
+         pyramidLock_.readLock().unlock();
+      }
+   }
 
-         
-         //Determine which position in 2x2 this tile sits in
-         int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
-         int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+   /**
+    * Auto downsample until max number of tiles in either direction is less than the highest dsFactor
+    * or keep going until lowest user created resolution exists
+    */
+   private int getLowestResolutionLevel() {
+      int level = 0;
+      while (lowResStorages_.containsKey(level + 1)
+              || posManager_.getNumRows() >= Math.pow(2, level + 1) || posManager_.getNumCols() >= Math.pow(2, level + 1)) {
+         level++;
+      }
+      return level;
+   }
 
+   private boolean hasMissingLevel(int lowestLevel) {
+      for (int level = 1; level <= lowestLevel; level++) {
+         if (lowResStorages_.get(level) == null) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Create storage for any levels down to lowestLevel that don't have it yet, and fill them
+    * in from the level above. Must hold the write lock.
+    * @return true if the level of full resolution tiles was re-added, so that any tile already
+    * in full res storage has been added to the pyramid
+    */
+   private boolean createMissingLevels(int lowestLevel) {
+      int firstMissing = -1;
+      for (int level = 1; level <= lowestLevel; level++) {
+         if (lowResStorages_.get(level) == null) {
+            createDownsampledStorage(level);
+            if (firstMissing == -1) {
+               firstMissing = level;
+            }
+         }
+      }
+      if (firstMissing == -1) {
+         return false;
+      }
+      //add all tiles from the level above to the new ones, reading them back from disk
+      flushPendingTiles();
+      TaggedImageStorageMultipageTiff previousLevelStorage = firstMissing == 1 ? fullResStorage_ : lowResStorages_.get(firstMissing - 1);
+      long weight = 1L << (2 * (firstMissing - 1));
+      //full res tiles may be added while we do this, so work from a copy of each slice's images
+      TileIndex index = previousLevelStorage.getTileIndex();
+      for (int slice : index.getSlices()) {
+         for (long image : index.getImagesAtSlice(slice)) {
+            int position = TileIndex.getPosition(image);
+            MagellanTaggedImage ti = previousLevelStorage.getImage(TileIndex.getChannel(image), slice,
+                    TileIndex.getFrame(image), position);
+            if (ti != null) {
+               downsampleToLevel(ti.pix, ti.tags, firstMissing - 1,
+                       posManager_.getFullResPositionIndex(position, firstMissing - 1), lowestLevel, weight);
+            }
+         }
+      }
+      return firstMissing == 1;
+   }
+
+   /**
+    * Average 2x2 squares of pixels of a tile into the appropriate quadrant of its parent tile at the
+    * next resolution level, and so on down to lowestLevel. Parent tiles are assembled in memory
+    * and only written to disk once all their children have been added (or they are evicted from
+    * memory). Each parent is locked while its own parent is updated, so that updates to a tile
+    * propagate in the order they were made.
+    * @param weight number of full resolution tiles the source tile represents
+    */
+   private void downsampleToLevel(Object sourcePix, JSONObject sourceTags, int sourceLevel, int fullResPositionIndex,
+           int lowestLevel, long weight) {
+      int channel = MD.getChannelIndex(sourceTags);
+      int slice = MD.getSliceIndex(sourceTags);
+      int frame = MD.getFrameIndex(sourceTags);
+      PendingTile source = null;
+      try {
+         for (int level = sourceLevel + 1; level <= lowestLevel; level++) {
+            PendingTile parent = lockPendingTile(new TileKey(level, channel, slice, frame,
+                    posManager_.getLowResPositionIndex(fullResPositionIndex, level)), sourceTags, fullResPositionIndex);
+            //Determine which position in 2x2 this tile sits in
+            int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, level - 1) % 2));
+            int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, level - 1) % 2));
+            downsample(source == null ? sourcePix : source.pix, level, parent.pix, xPos, yPos);
+            tileCache_.invalidate(parent.key);
+            parent.weight += weight;
+            if (source != null) {
+               source.lock.unlock();
+            }
+            source = parent;
+            if (parent.weight >= 1L << (2 * level)) {
+               //all children are present, so nothing more should be added to this tile
+               removePendingTile(parent);
+            }
+         }
+      } finally {
+         if (source != null) {
+            source.lock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Average 2x2 squares of pixels from a tile at level - 1 into one quadrant of a tile at level.
+    * At the edges of the source tile, only the pixels that exist are averaged. If the full res
+    * tile has an odd number of pixels, the last one gets chopped off to make it fit into tile
+    * containers
+    */
+   private void downsample(Object sourcePix, int level, Object destPix, int xPos, int yPos) {
+      //offsets account for overlap pixels at resolution level 0, which are thrown away
+      int xOffset = 0, yOffset = 0, sourceWidth = tileWidth_, sourceHeight = tileHeight_;
+      if (level == 1) {
+         xOffset = xOverlap_ / 2;
+         yOffset = yOverlap_ / 2;
+         sourceWidth = fullResTileWidthIncludingOverlap_;
+         sourceHeight = fullResTileHeightIncludingOverlap_;
+      }
+      for (int y = 0; y < tileHeight_; y += 2) {
+         boolean hasBelow = y < sourceHeight - 1;
+         int sourceRow = (y + yOffset) * sourceWidth + xOffset;
+         int destRow = ((y + yPos * tileHeight_) / 2) * tileWidth_ + (xPos * tileWidth_) / 2;
+         if (byteDepth_ == 1) {
+            byte[] source = (byte[]) sourcePix;
+            byte[] dest = (byte[]) destPix;
+            for (int x = 0; x < tileWidth_; x += 2) {
+               int i = sourceRow + x;
+               int sum = source[i] & 0xff;
+               int count = 1;
+               boolean hasRight = x < sourceWidth - 1;
+               if (hasRight) {
+                  sum += source[i + 1] & 0xff;
+                  count++;
                }
-               
-               //always take top left pixel, maybe take others depending on whether at image edge
-               int sum = 0;
-               if (byteDepth_ == 1) {
-                  sum += ((byte[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xff;                  
-               } else {
-                  sum += ((short[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xffff;
-               }
-               //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-               if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                  count += 3;
-                  if (byteDepth_ == 1) {
-                     sum += (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff);
-                  } else {
-                     sum += (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff);
-                  }
-               } else if (x < previousLevelWidth - 1) { //if not right edge, add two more pix
+               if (hasBelow) {
+                  sum += source[i + sourceWidth] & 0xff;
                   count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff;
+                  if (hasRight) {
+                     sum += source[i + sourceWidth + 1] & 0xff;
+                     count++;
                   }
-               } else if (y < previousLevelHeight - 1) { // if not bottom edge, add two more pix
+               }
+               dest[destRow + x / 2] = (byte) (sum / count);
+            }
+         } else {
+            short[] source = (short[]) sourcePix;
+            short[] dest = (short[]) destPix;
+            for (int x = 0; x < tileWidth_; x += 2) {
+               int i = sourceRow + x;
+               int sum = source[i] & 0xffff;
+               int count = 1;
+               boolean hasRight = x < sourceWidth - 1;
+               if (hasRight) {
+                  sum += source[i + 1] & 0xffff;
                   count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff;
-                  }
-               } else {
-                  //it is the bottom right corner, no more pix to add
                }
-               //add averaged pixel into appropriate quadrant of current res level
-               //if full res tile has an odd number of pix, the last one gets chopped off
-               //to make it fit into tile containers
-               try {
-                  int index = ((y + yPos * tileHeight_)/2) * tileWidth_ + (x + xPos * tileWidth_)/2;
-                  if (byteDepth_ == 1) {
-                     ((byte[])currentLevelPix)[index] = (byte) (sum / count);
-                  } else {
-                     ((short[])currentLevelPix)[index] = (short) (sum / count);
+               if (hasBelow) {
+                  sum += source[i + sourceWidth] & 0xffff;
+                  count++;
+                  if (hasRight) {
+                     sum += source[i + sourceWidth + 1] & 0xffff;
+                     count++;
                   }
-               } catch (Exception e) {
-                  Log.log("Couldn't copy pixels to lower resolution");
-                  e.printStackTrace();
-                  return;
                }
+               dest[destRow + x / 2] = (short) (sum / count);
             }
          }
-         
-         //store this tile in the storage class correspondign to this resolution
+      }
+   }
+
+   /**
+    * Get the in-memory copy of a lower resolution tile, reading it from disk or creating it
+    * if needed, and lock it.
+    * @param sourceTags tags of the tile being added, used to make tags for a new tile
+    */
+   private PendingTile lockPendingTile(TileKey key, JSONObject sourceTags, int fullResPositionIndex) {
+      while (true) {
+         PendingTile tile;
+         synchronized (pendingTiles_) {
+            tile = pendingTiles_.get(key);
+            if (tile == null) {
+               tile = new PendingTile(key);
+               pendingTiles_.put(key, tile);
+            }
+         }
+         tile.lock.lock();
+         if (!tile.removed) {
+            if (tile.pix == null) {
+               loadPendingTile(tile, sourceTags, fullResPositionIndex);
+            }
+            return tile;
+         }
+         //it was written to disk while we were waiting, so start over
+         tile.lock.unlock();
+      }
+   }
+
+   private void loadPendingTile(PendingTile tile, JSONObject sourceTags, int fullResPositionIndex) {
+      TileKey key = tile.key;
+      TaggedImageStorageMultipageTiff storage = lowResStorages_.get(key.resLevel);
+      MagellanTaggedImage existingImage;
+      synchronized (storage) {
+         existingImage = storage.getImage(key.channel, key.slice, key.frame, key.position);
+      }
+      if (existingImage != null) {
+         //copy, since the storage may still be writing the old pixels
+         tile.pix = byteDepth_ == 1 ? ((byte[]) existingImage.pix).clone() : ((short[]) existingImage.pix).clone();
+         tile.tags = existingImage.tags;
+         tile.onDisk = true;
+         return;
+      }
+      if (byteDepth_ == 1) {
+         tile.pix = new byte[tileWidth_ * tileHeight_];
+         Arrays.fill((byte[]) tile.pix, (byte) getBackgroundPixelValue(key.channel));
+      } else {
+         tile.pix = new short[tileWidth_ * tileHeight_];
+         Arrays.fill((short[]) tile.pix, (short) getBackgroundPixelValue(key.channel));
+      }
+      try {
+         //create a copy of tags so tags from a different res level arent inadverntanly modified
+         // while waiting for being written to disk
+         JSONObject tags = new JSONObject(sourceTags.toString());
+         //modify tags to reflect image size, and correct position index
+         MD.setWidth(tags, tileWidth_);
+         MD.setHeight(tags, tileHeight_);
+         long gridRow = posManager_.getGridRow(fullResPositionIndex, key.resLevel);
+         long gridCol = posManager_.getGridCol(fullResPositionIndex, key.resLevel);
+         MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
+         MD.setPositionIndex(tags, key.position);
+         tile.tags = tags;
+      } catch (Exception e) {
+         Log.log("Couldnt modify tags for lower resolution level");
+      }
+   }
+
+   /**
+    * Write a locked tile to disk and drop it from memory, so that later additions to it read it back.
+    * The tile stays in pendingTiles_ until it has been written, so that other threads wait on its
+    * lock rather than starting a new copy of the tile before the old one is on disk.
+    */
+   private void removePendingTile(PendingTile tile) {
+      TileKey key = tile.key;
+      TaggedImageStorageMultipageTiff storage = lowResStorages_.get(key.resLevel);
+      try {
+         synchronized (storage) {
+            if (tile.onDisk) {
+               //Image already exists, only overwrite pixels to include new tiles
+               storage.overwritePixels(tile.pix, key.channel, key.slice, key.frame, key.position);
+            } else {
+               storage.putImage(new MagellanTaggedImage(tile.pix, tile.tags));
+            }
+         }
+      } catch (Exception e) {
+         Log.log("Couldn't write lower resolution tile");
+         Log.log(e);
+      }
+      dropPendingTile(tile);
+   }
+
+   /**
+    * Mark a locked tile as removed and take it out of pendingTiles_
+    */
+   private void dropPendingTile(PendingTile tile) {
+      tile.removed = true;
+      synchronized (pendingTiles_) {
+         if (pendingTiles_.get(tile.key) == tile) {
+            pendingTiles_.remove(tile.key);
+         }
+      }
+   }
+
+   /**
+    * Write least recently used tiles to disk until at most maxTiles are held in memory
+    */
+   private void evictPendingTiles(int maxTiles) {
+      while (true) {
+         PendingTile tile;
+         synchronized (pendingTiles_) {
+            if (pendingTiles_.size() <= maxTiles) {
+               return;
+            }
+            tile = pendingTiles_.values().iterator().next();
+         }
+         tile.lock.lock();
          try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
-               //create a copy of tags so tags from a different res level arent inadverntanly modified
-               // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
-               //modify tags to reflect image size, and correct position index
-               MD.setWidth(tags, tileWidth_);
-               MD.setHeight(tags, tileHeight_);
-               long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
-               long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
-               MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
+            if (tile.removed) {
+               //another thread wrote it while we were waiting
+               continue;
+            }
+            if (tile.pix != null) {
+               removePendingTile(tile);
             } else {
-               //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
+               //created but not yet loaded, so there is nothing to write
+               dropPendingTile(tile);
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            Log.log("Couldnt modify tags for lower resolution level");
+         } finally {
+            tile.lock.unlock();
          }
+      }
+   }
+
+   private void flushPendingTiles() {
+      evictPendingTiles(0);
+   }
 
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+   /**
+    * @return a copy of the given lower resolution tile if it is currently held in memory, otherwise null
+    */
+   private MagellanTaggedImage getPendingTile(int resLevel, int channel, int slice, int frame, int position) {
+      PendingTile tile;
+      synchronized (pendingTiles_) {
+         tile = pendingTiles_.get(new TileKey(resLevel, channel, slice, frame, position));
+      }
+      if (tile == null) {
+         return null;
+      }
+      tile.lock.lock();
+      try {
+         if (tile.removed || tile.pix == null) {
+            return null;
+         }
+         return new MagellanTaggedImage(byteDepth_ == 1 ? ((byte[]) tile.pix).clone() : ((short[]) tile.pix).clone(), tile.tags);
+      } finally {
+         tile.lock.unlock();
       }
    }
 
@@ -677,12 +987,14 @@ public class MultiResMultipageTiffStorage {
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
             fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
             }
          }
+         //lower resolutions are built in the background. This is done outside the lock, since
+         //the pyramid builders may need it and, when they fall behind, this thread helps them out
+         submitToPyramid(MagellanTaggedImage, MD.getPositionIndex(MagellanTaggedImage.tags));
       } catch (IOException ex) {
          Log.log(ex.toString());
       } 
@@ -692,10 +1004,45 @@ public class MultiResMultipageTiffStorage {
       if (resLevel == 0) {
          return fullResStorage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
       } else {
-         return lowResStorages_.get(resLevel).getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+         //tiles still being assembled are more up to date than those on disk
+         MagellanTaggedImage pending = getPendingTile(resLevel, channelIndex, sliceIndex, frameIndex, positionIndex);
+         if (pending != null) {
+            return pending;
+         }
+         TaggedImageStorageMultipageTiff storage = lowResStorages_.get(resLevel);
+         return storage == null ? null : storage.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
       }
    }
 
+   /**
+    * Read a single tile of the stitched image straight from the storage for its resolution
+    * level, without going through the cache of decoded tiles or prefetching its neighbors as
+    * reads for display do. Full resolution tiles are cropped to remove their overlap
+    *
+    * @param row tile row at the requested resolution
+    * @param col tile column at the requested resolution
+    * @return tile of getTileWidth() by getTileHeight() pixels, or null if there is no data for the tile
+    */
+   public MagellanTaggedImage readTile(int channel, int slice, int frame, int resLevel, long row, long col) {
+      int position = posManager_.getPositionIndexFromTilePosition(resLevel, row, col);
+      if (position == -1) {
+         return null;
+      }
+      MagellanTaggedImage tile = getImage(channel, slice, frame, position, resLevel);
+      if (tile == null || tile.pix == null) {
+         return null;
+      }
+      if (resLevel != 0 || (xOverlap_ == 0 && yOverlap_ == 0)) {
+         return tile;
+      }
+      Object pix = byteDepth_ == 1 ? new byte[tileWidth_ * tileHeight_] : new short[tileWidth_ * tileHeight_];
+      for (int line = 0; line < tileHeight_; line++) {
+         System.arraycopy(tile.pix, (line + yOverlap_ / 2) * fullResTileWidthIncludingOverlap_ + xOverlap_ / 2,
+                 pix, line * tileWidth_, tileWidth_);
+      }
+      return new MagellanTaggedImage(pix, tile.tags);
+   }
+
    public MagellanTaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       //return a single tile from the full res image
       return fullResStorage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
@@ -705,11 +1052,26 @@ public class MultiResMultipageTiffStorage {
       return getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
    }
 
-   public Set<String> imageKeys() {
-      return fullResStorage_.imageKeys();
+   public TileIndex getTileIndex() {
+      return fullResStorage_.getTileIndex();
    }
 
    public void finished() {
+      //let lower resolutions catch up, then write whatever is still in memory
+      if (pyramidExecutor_ != null) {
+         pyramidExecutor_.shutdown();
+         try {
+            pyramidExecutor_.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         } catch (InterruptedException ex) {
+            Log.log("Interrupted while waiting for lower resolutions to finish");
+         }
+      }
+      pyramidLock_.writeLock().lock();
+      try {
+         flushPendingTiles();
+      } finally {
+         pyramidLock_.writeLock().unlock();
+      }
       try {
          if (bdvXML_ != null) { //if its not an oened dataset
             bdvXML_.close();
@@ -749,6 +1111,7 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void close() {
+      tileCache_.clear();
       //put closing on differnt channel so as to not hang up EDT while waiting for finishing
       new Thread(new Runnable() {
          @Override
@@ -855,13 +1218,9 @@ public class MultiResMultipageTiffStorage {
            return 0;
          }
       } );
-      Set<String> keys = new TreeSet<String>(imageKeys());
-      for (String s : keys) {
-            int[] indices = MD.getIndices(s);
-            if (indices[1] == slice) {
-               exploredTiles.add(new Point((int) posManager_.getGridCol(indices[3], 0), (int) posManager_.getGridRow(indices[3], 0)));
-            }
-
+      BitSet positions = getTileIndex().getPositionsAtSlice(slice);
+      for (int pos = positions.nextSetBit(0); pos >= 0; pos = positions.nextSetBit(pos + 1)) {
+         exploredTiles.add(new Point((int) posManager_.getGridCol(pos, 0), (int) posManager_.getGridRow(pos, 0)));
       }
       return exploredTiles;
    }
@@ -875,4 +1234,68 @@ public class MultiResMultipageTiffStorage {
       return posManager_.getMinCol();
    }
    
+   private static class DaemonThreadFactory implements ThreadFactory {
+      private final String name_;
+
+      DaemonThreadFactory(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, name_);
+         thread.setDaemon(true);
+         return thread;
+      }
+   }
+
+   /**
+    * Identifies a tile at a given resolution level
+    */
+   private static class TileKey {
+      final int resLevel, channel, slice, frame, position;
+
+      TileKey(int resLevel, int channel, int slice, int frame, int position) {
+         this.resLevel = resLevel;
+         this.channel = channel;
+         this.slice = slice;
+         this.frame = frame;
+         this.position = position;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof TileKey)) {
+            return false;
+         }
+         TileKey k = (TileKey) o;
+         return resLevel == k.resLevel && channel == k.channel && slice == k.slice
+                 && frame == k.frame && position == k.position;
+      }
+
+      @Override
+      public int hashCode() {
+         return (((resLevel * 31 + channel) * 31 + slice) * 31 + frame) * 31 + position;
+      }
+   }
+
+   /**
+    * A lower resolution tile being assembled in memory. All fields are guarded by lock
+    */
+   private static class PendingTile {
+      final TileKey key;
+      final ReentrantLock lock = new ReentrantLock();
+      Object pix;
+      JSONObject tags;
+      //whether an older version of this tile has already been written
+      boolean onDisk;
+      //set once the tile is written and dropped from memory
+      boolean removed;
+      //number of full resolution tiles added to this tile
+      long weight;
+
+      PendingTile(TileKey key) {
+         this.key = key;
+      }
+   }
 }
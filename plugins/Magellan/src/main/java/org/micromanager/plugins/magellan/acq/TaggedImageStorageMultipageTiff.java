@@ -72,6 +72,8 @@ public final class TaggedImageStorageMultipageTiff   {
    
    //Map of image labels to file 
    private HashMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Index of the images present, for enumerating them without parsing labels
+   private final TileIndex tileIndex_ = new TileIndex();
 
    /*
     * Constructor that doesn't make reference to MMStudio so it can be used independently of MM GUI
@@ -146,11 +148,15 @@ public final class TaggedImageStorageMultipageTiff   {
                reader = new MultipageTiffReader(f);
                Set<String> labels = reader.getIndexKeys();
                for (String label : labels) {
-                  tiffReadersByLabel_.put(label, reader);
-                  maxChannelIndex_ = Math.max(maxChannelIndex_, Integer.parseInt(label.split("_")[0]));
-                  maxSliceIndex_ = Math.max(maxSliceIndex_, Integer.parseInt(label.split("_")[1]));
-                  minSliceIndex_ = Math.min(minSliceIndex_, Integer.parseInt(label.split("_")[1]));
-                  maxFrameIndex_ = Math.max(maxFrameIndex_, Integer.parseInt(label.split("_")[2]));                 
+                  // array with entires channelIndex, sliceIndex, frameIndex, positionIndex
+                  int[] indices = MD.getIndices(label);
+                  if (tiffReadersByLabel_.put(label, reader) == null) {
+                     tileIndex_.add(indices[0], indices[1], indices[2], indices[3]);
+                  }
+                  maxChannelIndex_ = Math.max(maxChannelIndex_, indices[0]);
+                  maxSliceIndex_ = Math.max(maxSliceIndex_, indices[1]);
+                  minSliceIndex_ = Math.min(minSliceIndex_, indices[1]);
+                  maxFrameIndex_ = Math.max(maxFrameIndex_, indices[2]);
                }
             } catch (IOException ex) {
                ex.printStackTrace();
@@ -279,14 +285,20 @@ public final class TaggedImageStorageMultipageTiff   {
       FileSet set = fileSets_.get(fileSetIndex);
       try {
          set.writeImage(MagellanTaggedImage);
-         tiffReadersByLabel_.put(label, set.getCurrentReader());
+         if (tiffReadersByLabel_.put(label, set.getCurrentReader()) == null) {
+            tileIndex_.add(MD.getChannelIndex(MagellanTaggedImage.tags), MD.getSliceIndex(MagellanTaggedImage.tags),
+                    MD.getFrameIndex(MagellanTaggedImage.tags), MD.getPositionIndex(MagellanTaggedImage.tags));
+         }
       } catch (IOException ex) {
         Log.log("problem writing image to file");
       }
    }
 
-   public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+   /**
+    * @return index of all images that have been added to this storage
+    */
+   public TileIndex getTileIndex() {
+      return tileIndex_;
    }
 
    /**
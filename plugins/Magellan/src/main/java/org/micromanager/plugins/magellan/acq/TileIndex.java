@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+
+package main.java.org.micromanager.plugins.magellan.acq;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeMap;
+
+/**
+ * Index of the images in a storage by channel, slice, frame and position,
+ * kept up to date as images are added so that the contents of a dataset can
+ * be enumerated without building and parsing "c_s_f_p" label strings.
+ * Images are grouped by slice. Within a slice, each image is stored as a
+ * single long packing its channel, frame and position, and the positions
+ * that have any image are kept in a bit set.
+ */
+public class TileIndex {
+
+   private static final int MAX_CHANNEL_OR_FRAME = 0xffff;
+
+   private final TreeMap<Integer, SliceTiles> slices_ = new TreeMap<Integer, SliceTiles>();
+   private int size_ = 0;
+
+   /**
+    * Add an image to the index. Callers are responsible for not adding the
+    * same image twice
+    */
+   public synchronized void add(int channel, int slice, int frame, int position) {
+      if (channel < 0 || channel > MAX_CHANNEL_OR_FRAME || frame < 0 || frame > MAX_CHANNEL_OR_FRAME || position < 0) {
+         throw new IllegalArgumentException("Image indices out of range: " + channel + "_" + slice + "_" + frame + "_" + position);
+      }
+      SliceTiles tiles = slices_.get(slice);
+      if (tiles == null) {
+         tiles = new SliceTiles();
+         slices_.put(slice, tiles);
+      }
+      tiles.add(((long) channel << 48) | ((long) frame << 32) | position);
+      size_++;
+   }
+
+   public synchronized int size() {
+      return size_;
+   }
+
+   /**
+    * @return slice indices that have at least one image, in increasing order
+    */
+   public synchronized int[] getSlices() {
+      int[] slices = new int[slices_.size()];
+      int i = 0;
+      for (int slice : slices_.keySet()) {
+         slices[i++] = slice;
+      }
+      return slices;
+   }
+
+   /**
+    * @return copy of the images at the given slice, in the order they were added,
+    * packed as longs that can be read with getChannel, getFrame and getPosition
+    */
+   public synchronized long[] getImagesAtSlice(int slice) {
+      SliceTiles tiles = slices_.get(slice);
+      return tiles == null ? new long[0] : Arrays.copyOf(tiles.images, tiles.numImages);
+   }
+
+   /**
+    * @return copy of the set of position indices with at least one image at the given slice
+    */
+   public synchronized BitSet getPositionsAtSlice(int slice) {
+      SliceTiles tiles = slices_.get(slice);
+      return tiles == null ? new BitSet() : (BitSet) tiles.positions.clone();
+   }
+
+   public static int getChannel(long image) {
+      return (int) (image >>> 48);
+   }
+
+   public static int getFrame(long image) {
+      return (int) ((image >>> 32) & MAX_CHANNEL_OR_FRAME);
+   }
+
+   public static int getPosition(long image) {
+      return (int) image;
+   }
+
+   private static class SliceTiles {
+
+      long[] images = new long[16];
+      int numImages = 0;
+      final BitSet positions = new BitSet();
+
+      void add(long image) {
+         if (numImages == images.length) {
+            images = Arrays.copyOf(images, images.length * 2);
+         }
+         images[numImages++] = image;
+         positions.set(getPosition(image));
+      }
+   }
+}
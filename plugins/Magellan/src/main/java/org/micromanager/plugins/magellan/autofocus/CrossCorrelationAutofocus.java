@@ -19,12 +19,12 @@ package main.java.org.micromanager.plugins.magellan.autofocus;
 
 import main.java.org.micromanager.plugins.magellan.acq.FixedAreaAcquisition;
 import main.java.org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
-import ij.ImagePlus;
-import ij.ImageStack;
-import ij3d.image3d.FHTImage3D;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -35,7 +35,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import main.java.org.micromanager.plugins.magellan.main.Magellan;
 import main.java.org.micromanager.plugins.magellan.misc.Log;
 import org.apache.commons.math.ArgumentOutsideDomainException;
 import org.apache.commons.math.analysis.interpolation.SplineInterpolator;
@@ -56,6 +55,7 @@ public class CrossCorrelationAutofocus {
    //8e8--682 s
    private static final int NUM_VOXEL_TARGET = 20000000; //this target shuld take 1-2 min to calculate, while maintaining images of a resonable size
    private static final int AF_TIMEOUT_MIN = 30;
+   private static final int NUM_FFT_THREADS = Runtime.getRuntime().availableProcessors();
    
    private final int channelIndex_;
    private final double maxDisplacement_;
@@ -67,6 +67,11 @@ public class CrossCorrelationAutofocus {
    private int downsampledWidth_;
    private int downsampledHeight_;
    private ExecutorService afExecutor_;
+   //loads slices and computes FFTs in parallel
+   private final ExecutorService fftExecutor_;
+   //FFT plan and buffers, reused for each time point
+   private FFT3D fft_;
+   private float[] fftRe_, fftIm_;
            
    
    public CrossCorrelationAutofocus(final FixedAreaAcquisition acq, int channelIndex, double maxDisplacement , double initialPosition) {
@@ -75,6 +80,14 @@ public class CrossCorrelationAutofocus {
           public Thread newThread(Runnable r) {
               return new Thread(r, acq.getName() + " Autofocusexecutor");
           }
+      });
+      fftExecutor_ = Executors.newFixedThreadPool(NUM_FFT_THREADS, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, acq.getName() + " Autofocus FFT thread");
+              t.setDaemon(true);
+              return t;
+          }
       });
        channelIndex_ = channelIndex;
       maxDisplacement_ = maxDisplacement;
@@ -118,6 +131,9 @@ public class CrossCorrelationAutofocus {
    
    public void close() {
        afExecutor_.shutdownNow();
+       fftExecutor_.shutdownNow();
+       fftRe_ = null;
+       fftIm_ = null;
    }
    
    /**
@@ -156,14 +172,12 @@ public class CrossCorrelationAutofocus {
             Log.log("Drift compensation DS Width: " + downsampledWidth_, false);
             Log.log("Drift compensation DS Height: " + downsampledHeight_, false);
         } else {
-            ImageStack lastTPStack = createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
-            ImageStack currentTPStack = createAFStack(acq_, timeIndex, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
             //run autofocus
             //image drift is the difference between this TP and the previous one
             //but does not represent the acutal drift because these 2 TPs will likely have different 
             //positions for the AF compensation Z device
             //drifteCorrection = move for the AF drive to bring current TP to position of previous TP
-            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPStack, currentTPStack, acq_.getZStep());
+            double driftCorrection = -calcFocusDrift(acq_.getName(), timeIndex, acq_.getZStep());
             Log.log(acq_.getName() + " Drift compensation: correction = " + driftCorrection, true);
             //now add in a factor accounting for the previous AF
             //i.e. how far the reference image is from the desired position
@@ -181,56 +195,140 @@ public class CrossCorrelationAutofocus {
         }
     }
 
-    /**
-     * return a 32 bit for use with cross corr autofocus
-     *
+   /**
+    * Make sure the FFT plan and buffers match the current size of the autofocus stacks. These are
+    * kept between time points so they only need to be allocated again if the number of slices changes
+    */
+   private void preparePlan() {
+      int depth = FFT3D.nextPowerOf2(acq_.getNumSlices());
+      if (fft_ == null || fft_.getDepth() != depth) {
+         fft_ = new FFT3D(FFT3D.nextPowerOf2(downsampledWidth_), FFT3D.nextPowerOf2(downsampledHeight_), depth, 
+                 fftExecutor_, NUM_FFT_THREADS);
+         //release old buffers before allocating new ones
+         fftRe_ = null;
+         fftIm_ = null;
+         fftRe_ = new float[fft_.getSize()];
+         fftIm_ = new float[fft_.getSize()];
+      } else {
+         Arrays.fill(fftRe_, 0);
+         Arrays.fill(fftIm_, 0);
+      }
+   }
 
-    * @return
+   /**
+    * Load the downsampled autofocus channel of every slice at a time point into the data region of an
+    * FFT buffer, with its mean subtracted so that the zero padding doesn't contribute to the correlation
     */
-   private static ImageStack createAFStack(FixedAreaAcquisition acq, int timeIndex, int channelIndex, int width, int height, int dsIndex) {
-      ImageStack stack = new ImageStack(width, height);
-      //get background pixel value
-      for (int slice = acq.getMinSliceIndex(); slice < acq.getMinSliceIndex() + acq.getNumSlices(); slice++) {
-         //add as int
-         float[] pix32;
-         if (Magellan.getCore().getBytesPerPixel() == 1) {
-            byte[] pix = (byte[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
-            pix32 = new float[pix.length];
-            for (int i = 0; i < pix.length; i++) {
-               pix32[i] = pix[i] & 0xff;
+   private void loadAFStack(final int timeIndex, final float[] buffer) throws InterruptedException, ExecutionException {
+      final int width = downsampledWidth_, height = downsampledHeight_;
+      final int nx = fft_.getWidth(), sliceSize = fft_.getWidth() * fft_.getHeight();
+      final int numSlices = acq_.getNumSlices(), minSlice = acq_.getMinSliceIndex();
+      List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+      for (int i = 0; i < numSlices; i++) {
+         final int slice = i;
+         tasks.add(new Callable<Double>() {
+            @Override
+            public Double call() {
+               Object pix = acq_.getStorage().getImageForDisplay(channelIndex_, minSlice + slice, timeIndex,
+                       downsampleIndex_, 0, 0, width, height).pix;
+               double sum = 0;
+               for (int y = 0; y < height; y++) {
+                  int offset = slice * sliceSize + y * nx;
+                  for (int x = 0; x < width; x++) {
+                     float val = pix instanceof byte[] ? ((byte[]) pix)[y * width + x] & 0xff : ((short[]) pix)[y * width + x] & 0xffff;
+                     buffer[offset + x] = val;
+                     sum += val;
+                  }
+               }
+               return sum;
+            }
+         });
+      }
+      double sum = 0;
+      for (Future<Double> f : fftExecutor_.invokeAll(tasks)) {
+         sum += f.get();
+      }
+      float mean = (float) (sum / ((double) numSlices * width * height));
+      for (int slice = 0; slice < numSlices; slice++) {
+         for (int y = 0; y < height; y++) {
+            int offset = slice * sliceSize + y * nx;
+            for (int x = 0; x < width; x++) {
+               buffer[offset + x] -= mean;
             }
-         } else {
-            short[] pix = (short[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
-            pix32 = new float[pix.length];
-            for (int i = 0; i < pix.length; i++) {
-               pix32[i] = pix[i] & 0xffff;
+         }
+      }
+   }
+
+   /**
+    * Cross correlate the two time points
+    * @return maximum cross correlation in the center of each slice of the (centered) cross correlation
+    */
+   private double[] crossCorrelate(int timeIndex) throws InterruptedException, ExecutionException {
+      preparePlan();
+      loadAFStack(timeIndex - 1, fftRe_);
+      loadAFStack(timeIndex, fftIm_);
+      crossCorrelate(fft_, fftRe_, fftIm_);
+      //find maxima with quadrants swapped so zero shift is at the center
+      int nx = fft_.getWidth(), ny = fft_.getHeight(), nz = fft_.getDepth();
+      double[] ccIntensity = new double[nz];
+      for (int z = 0; z < nz; z++) {
+         ccIntensity[z] = findMaxPixelVal(fftRe_, ((z + nz / 2) % nz) * nx * ny, nx, ny);
+      }
+      return ccIntensity;
+   }
+
+   /**
+    * Replace re with the circular cross correlation of the real volumes in re and im, i.e.
+    * re[s] = N * sum over x of re[x + s] * im[x], where N is the size of the volume (the inverse
+    * transform is not scaled). Uses one complex FFT for both: re is the real part and im the
+    * imaginary part, and their spectra are separated using the symmetry of the transforms of real data
+    */
+   static void crossCorrelate(FFT3D fft, float[] re, float[] im) throws InterruptedException, ExecutionException {
+      fft.transform(re, im, false);
+      //multiply spectrum of re by the conjugate of the spectrum of im
+      int nx = fft.getWidth(), ny = fft.getHeight(), nz = fft.getDepth();
+      for (int z = 0; z < nz; z++) {
+         for (int y = 0; y < ny; y++) {
+            for (int x = 0; x < nx; x++) {
+               int k = (z * ny + y) * nx + x;
+               int negK = (((nz - z) % nz) * ny + (ny - y) % ny) * nx + (nx - x) % nx;
+               if (negK < k) {
+                  continue; //already done as part of a pair
+               }
+               float zRe = re[k], zIm = im[k], wRe = re[negK], wIm = im[negK];
+               float aRe = (zRe + wRe) / 2, aIm = (zIm - wIm) / 2;
+               float bRe = (zIm + wIm) / 2, bIm = (wRe - zRe) / 2;
+               float pRe = aRe * bRe + aIm * bIm, pIm = aIm * bRe - aRe * bIm;
+               //product at -k is the conjugate of the product at k
+               re[k] = pRe;
+               im[k] = pIm;
+               re[negK] = pRe;
+               im[negK] = -pIm;
             }
          }
-         stack.addSlice(null, pix32);
       }
-      return stack;
+      //cross correlation is the real part
+      fft.transform(re, im, true);
    }
 
    /**
     *
-    * @param original
-   * @param current
-   * @param pixelSizeZ
    * @return double representing the focus position of current relative to original (i.e. 4 means
    * that current is focused 4 um deeper than current)
    */
-   private double calcFocusDrift(String acqName, final ImageStack tp0Stack, final ImageStack currentTPStack, double pixelSizeZ) throws Exception {    
+   private double calcFocusDrift(String acqName, final int timeIndex, double pixelSizeZ) throws Exception {    
       Log.log( acqName + " Autofocus: cross correlating", true);    
+      long startTime = System.currentTimeMillis();
       //do actual autofocusing on a seperate thread so a bug in it won't crash everything
-      Future<ImageStack> f = afExecutor_.submit(new Callable<ImageStack>() {
+      Future<double[]> f = afExecutor_.submit(new Callable<double[]>() {
           @Override
-          public ImageStack call() throws Exception {
-              return FHTImage3D.crossCorrelation(tp0Stack, currentTPStack);
+          public double[] call() throws Exception {
+              return crossCorrelate(timeIndex);
           }
       });
-      ImageStack xCorrStack;
+      double[] ccIntensity;
        try {
-           xCorrStack = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
+           ccIntensity = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
        } catch (InterruptedException ex) {
            Log.log("autofocus aborted");
            throw new Exception();
@@ -243,14 +341,12 @@ public class CrossCorrelationAutofocus {
            throw new Exception();
        }
       
-      Log.log( acqName + " Autofocus: finished cross correlating..calculating drift", true);      
-      ImagePlus xCorr = new ImagePlus("XCorr", xCorrStack);      
+      Log.log( acqName + " Autofocus: finished cross correlating in " + (System.currentTimeMillis() - startTime) 
+              + " ms..calculating drift", true);      
       //find the maximum cross correlation intensity at each z slice
-      double[] ccIntensity = new double[xCorr.getNSlices()], interpolatedCCMax = new double[xCorr.getNSlices()];
-      for (int i = 1; i <= ccIntensity.length; i++) {
-         xCorr.setSlice(i);      
-         ccIntensity[i - 1] = findMaxPixelVal((float[]) xCorr.getProcessor().getPixels(), xCorr.getWidth(), xCorr.getHeight());
-         interpolatedCCMax[i - 1] = i - 1;
+      double[] interpolatedCCMax = new double[ccIntensity.length];
+      for (int i = 0; i < ccIntensity.length; i++) {
+         interpolatedCCMax[i] = i;
       }
 
       //find maximum value of interpolated spline function
@@ -270,21 +366,22 @@ public class CrossCorrelationAutofocus {
       //get maximum value of xCorr in slice index units
       double ccMaxSliceIndex = sliceIndexInterpolationPoints[maxIndex];
       //convert to um
-      double drift_um = (ccMaxSliceIndex - (((double) xCorr.getNSlices()) / 2.0)) * pixelSizeZ;
-      xCorr.close();
-      
+      double drift_um = (ccMaxSliceIndex - (((double) ccIntensity.length) / 2.0)) * pixelSizeZ;
+      Log.log(acqName + " Autofocus: total time " + (System.currentTimeMillis() - startTime) + " ms", true);
       return drift_um;
    }
    
-   private static float findMaxPixelVal(float[] pix, int width, int height) {
+   /**
+    * @param offset start of the slice in pix, whose quadrants have not been swapped
+    */
+   private static float findMaxPixelVal(float[] pix, int offset, int width, int height) {
       //only use central square for calulating max, because weird large values can occur on the edges of the xCorr
       float max = 0;
-      for (int i = 0; i < width*height; i++) {
-         if (i / width < height / 4 || i / width > 3*height / 4 ||
-                 i % width  < width / 4 || i % width > 3*width/4) {
-            continue; // use only central square of pixels
+      for (int y = height / 4; y <= 3 * height / 4; y++) {
+         int row = offset + ((y + height / 2) % height) * width;
+         for (int x = width / 4; x <= 3 * width / 4; x++) {
+            max = Math.max(max, pix[row + (x + width / 2) % width]);
          }
-         max = Math.max(max, pix[i]);
       }
       return max;
    }
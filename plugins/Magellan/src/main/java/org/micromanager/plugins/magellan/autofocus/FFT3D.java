@@ -0,0 +1,212 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+
+package main.java.org.micromanager.plugins.magellan.autofocus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * In place complex 3D FFT of a volume whose dimensions are powers of 2, stored
+ * as separate real and imaginary arrays in x, y, z order. Twiddle factors and
+ * bit reversal tables are computed once, so a plan can be reused for every
+ * volume of the same size. Lines along each axis are transformed in parallel.
+ * The inverse transform is not scaled.
+ */
+class FFT3D {
+
+   private final int nx_, ny_, nz_;
+   private final Line1D x_, y_, z_;
+   private final ExecutorService executor_;
+   private final int numTasks_;
+
+   FFT3D(int nx, int ny, int nz, ExecutorService executor, int numThreads) {
+      nx_ = nx;
+      ny_ = ny;
+      nz_ = nz;
+      x_ = new Line1D(nx);
+      y_ = new Line1D(ny);
+      z_ = new Line1D(nz);
+      executor_ = executor;
+      numTasks_ = 4 * numThreads;
+   }
+
+   static int nextPowerOf2(int n) {
+      int p = 1;
+      while (p < n) {
+         p <<= 1;
+      }
+      return p;
+   }
+
+   int getWidth() {
+      return nx_;
+   }
+
+   int getHeight() {
+      return ny_;
+   }
+
+   int getDepth() {
+      return nz_;
+   }
+
+   int getSize() {
+      return nx_ * ny_ * nz_;
+   }
+
+   void transform(final float[] re, final float[] im, final boolean inverse) throws InterruptedException, ExecutionException {
+      //x lines are contiguous, so are transformed in place
+      runInParallel(ny_ * nz_, new LineTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int line = start; line < end; line++) {
+               x_.transform(re, im, line * nx_, 1, inverse, null, null);
+            }
+         }
+      });
+      //y lines have stride nx
+      runInParallel(nx_ * nz_, new LineTask() {
+         @Override
+         public void run(int start, int end) {
+            float[] lineRe = new float[ny_], lineIm = new float[ny_];
+            for (int line = start; line < end; line++) {
+               int offset = (line / nx_) * nx_ * ny_ + line % nx_;
+               y_.transform(re, im, offset, nx_, inverse, lineRe, lineIm);
+            }
+         }
+      });
+      //z lines have stride nx * ny
+      runInParallel(nx_ * ny_, new LineTask() {
+         @Override
+         public void run(int start, int end) {
+            float[] lineRe = new float[nz_], lineIm = new float[nz_];
+            for (int line = start; line < end; line++) {
+               z_.transform(re, im, line, nx_ * ny_, inverse, lineRe, lineIm);
+            }
+         }
+      });
+   }
+
+   private void runInParallel(int numLines, final LineTask task) throws InterruptedException, ExecutionException {
+      int chunk = Math.max(1, (numLines + numTasks_ - 1) / numTasks_);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int start = 0; start < numLines; start += chunk) {
+         final int s = start, e = Math.min(numLines, start + chunk);
+         tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               task.run(s, e);
+               return null;
+            }
+         });
+      }
+      for (Future<Void> f : executor_.invokeAll(tasks)) {
+         f.get();
+      }
+   }
+
+   private interface LineTask {
+
+      void run(int start, int end);
+   }
+
+   /**
+    * Iterative radix-2 FFT of lines of one length
+    */
+   private static class Line1D {
+
+      private final int n_;
+      private final double[] cos_, sin_;
+      private final int[] bitReversed_;
+
+      Line1D(int n) {
+         n_ = n;
+         cos_ = new double[n / 2];
+         sin_ = new double[n / 2];
+         for (int k = 0; k < n / 2; k++) {
+            cos_[k] = Math.cos(2 * Math.PI * k / n);
+            sin_[k] = Math.sin(2 * Math.PI * k / n);
+         }
+         bitReversed_ = new int[n];
+         int bits = Integer.numberOfTrailingZeros(n);
+         for (int i = 0; i < n && bits > 0; i++) {
+            bitReversed_[i] = Integer.reverse(i) >>> (32 - bits);
+         }
+      }
+
+      /**
+       * Transform the line starting at offset with the given stride. Strided lines are
+       * copied into the scratch arrays, transformed and copied back
+       */
+      void transform(float[] re, float[] im, int offset, int stride, boolean inverse, float[] lineRe, float[] lineIm) {
+         if (n_ == 1) {
+            return;
+         }
+         if (stride != 1) {
+            for (int i = 0; i < n_; i++) {
+               lineRe[i] = re[offset + i * stride];
+               lineIm[i] = im[offset + i * stride];
+            }
+            transform(lineRe, lineIm, 0, inverse);
+            for (int i = 0; i < n_; i++) {
+               re[offset + i * stride] = lineRe[i];
+               im[offset + i * stride] = lineIm[i];
+            }
+         } else {
+            transform(re, im, offset, inverse);
+         }
+      }
+
+      private void transform(float[] re, float[] im, int offset, boolean inverse) {
+         for (int i = 0; i < n_; i++) {
+            int j = bitReversed_[i];
+            if (j > i) {
+               float t = re[offset + i];
+               re[offset + i] = re[offset + j];
+               re[offset + j] = t;
+               t = im[offset + i];
+               im[offset + i] = im[offset + j];
+               im[offset + j] = t;
+            }
+         }
+         float sign = inverse ? 1 : -1;
+         for (int size = 2; size <= n_; size <<= 1) {
+            int half = size >> 1;
+            int step = n_ / size;
+            for (int start = 0; start < n_; start += size) {
+               for (int k = 0; k < half; k++) {
+                  float c = (float) cos_[k * step];
+                  float s = sign * (float) sin_[k * step];
+                  int a = offset + start + k;
+                  int b = a + half;
+                  float tRe = re[b] * c - im[b] * s;
+                  float tIm = re[b] * s + im[b] * c;
+                  re[b] = re[a] - tRe;
+                  im[b] = im[a] - tIm;
+                  re[a] += tRe;
+                  im[a] += tIm;
+               }
+            }
+         }
+      }
+   }
+}
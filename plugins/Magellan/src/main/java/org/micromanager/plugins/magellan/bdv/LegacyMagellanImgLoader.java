@@ -44,39 +44,56 @@ public abstract class LegacyMagellanImgLoader< T extends NativeType< T >, V exte
 
    final CacheArrayLoader< A > loader_;
    private final VolatileGlobalCellCache bdvCache_;
-   private MultiResMultipageTiffStorage tiffStorage_;
+   private final int numResLevels_;
+   private final int tileWidth_, tileHeight_;
    private final double[][] mipmapResolutions_;
    private final long[][] imageDimensions_;
    private final AffineTransform3D[] mipmapTransforms_;
 
    
    protected LegacyMagellanImgLoader(MultiResMultipageTiffStorage tiffStorage,  final CacheArrayLoader< A > loader, final T type, final V volatileType) {
+      //TODO: this only works for fixed area, not explore acquisitions at the moment
+      //TODO: add negative pixel offset for explore acquisitions
+      this(loader, type, volatileType, tiffStorage.getNumFrames(), tiffStorage.getNumChannels(),
+              tiffStorage.getTileWidth(), tiffStorage.getTileHeight(), tiffStorage.getPixelSizeXY(), tiffStorage.getPixelSizeZ(),
+              getImageDimensions(tiffStorage), new long[tiffStorage.getNumResLevels()][2]);
+   }
+
+   protected LegacyMagellanImgLoader(N5Dataset dataset, final CacheArrayLoader< A > loader, final T type, final V volatileType) {
+      this(loader, type, volatileType, dataset.getNumFrames(), dataset.getNumChannels(),
+              dataset.getTileWidth(), dataset.getTileHeight(), dataset.getPixelSizeXY(), dataset.getPixelSizeZ(),
+              dataset.getImageDimensions(), dataset.getImageOffsets());
+   }
+
+   /**
+    * @param imageDimensions width, height and depth in pixels at each resolution level
+    * @param imageOffsets x and y offset in full resolution pixels of the image at each resolution level
+    */
+   private LegacyMagellanImgLoader(final CacheArrayLoader< A > loader, final T type, final V volatileType, int numFrames, int numChannels,
+           int tileWidth, int tileHeight, double pixelSizeXY, double pixelSizeZ, long[][] imageDimensions, long[][] imageOffsets) {
      super(type, volatileType);
-      tiffStorage_ = tiffStorage;
       //CacheArrayLoader<A> loader, 
       //int maxNumTimepoints
       //int maxNumSetups -- Setup = channel in our context
       //int maxNumLevels -- maximum number of resolution levels defined later in constructor
       //int numFetcherThreads
-      int numResLevels = tiffStorage_.getNumResLevels();
-      long fullResHeight = tiffStorage_.getTileHeight() * tiffStorage_.getNumRows();
-      long fullResWidth = tiffStorage_.getTileWidth() * tiffStorage_.getNumCols();
+      numResLevels_ = imageDimensions.length;
+      tileWidth_ = tileWidth;
+      tileHeight_ = tileHeight;
       
       loader_ = loader;
       bdvCache_ = new VolatileGlobalCellCache(
-              tiffStorage.getNumFrames(), tiffStorage.getNumChannels(), numResLevels, 10);
+              numFrames, numChannels, numResLevels_, 10);
       
-      mipmapResolutions_ = new double[numResLevels][]; //esentially x, y z pixel sizes, specific to resolution level
-      imageDimensions_ = new long[ numResLevels ][];
-      mipmapTransforms_ = new AffineTransform3D[ numResLevels ];
+      mipmapResolutions_ = new double[numResLevels_][]; //esentially x, y z pixel sizes, specific to resolution level
+      imageDimensions_ = imageDimensions;
+      mipmapTransforms_ = new AffineTransform3D[ numResLevels_ ];
 
-      for (int resLevelIndex = 0; resLevelIndex < numResLevels; resLevelIndex++)  {
-         double xySize = tiffStorage_.getPixelSizeXY() * Math.pow(2, resLevelIndex);
-         double zSize = tiffStorage_.getPixelSizeZ(); //doesn't cahnge since no downsampling of Z
+      for (int resLevelIndex = 0; resLevelIndex < numResLevels_; resLevelIndex++)  {
+         double xySize = pixelSizeXY * Math.pow(2, resLevelIndex);
+         double zSize = pixelSizeZ; //doesn't cahnge since no downsampling of Z
          
           mipmapResolutions_[resLevelIndex] = new double[]{ xySize, xySize, zSize }; 
-          //TODO: this only works for fixed area, not explore acquisitions at the moment          
-          imageDimensions_[resLevelIndex] = new long[]{ fullResWidth >> resLevelIndex, fullResHeight >> resLevelIndex, tiffStorage_.getNumSlices() };
          
          final AffineTransform3D mipmapTransform = new AffineTransform3D();
          //Affine transform diagonal (e.g. pixel sizes)
@@ -86,21 +103,30 @@ public abstract class LegacyMagellanImgLoader< T extends NativeType< T >, V exte
          mipmapTransform.set(zSize, 2, 2);
 
          //Affine transform 4th colum (offsets)
-         //TODO: add negative pixel offset for explore acquisitions
-         mipmapTransform.set(0, 0, 3);
-         mipmapTransform.set(0, 1, 3);
+         mipmapTransform.set(imageOffsets[resLevelIndex][0] * pixelSizeXY, 0, 3);
+         mipmapTransform.set(imageOffsets[resLevelIndex][1] * pixelSizeXY, 1, 3);
          mipmapTransform.set(0, 2, 3);
          
          mipmapTransforms_[resLevelIndex] = mipmapTransform;
       }
    }
 
+   private static long[][] getImageDimensions(MultiResMultipageTiffStorage tiffStorage) {
+      long fullResHeight = tiffStorage.getTileHeight() * tiffStorage.getNumRows();
+      long fullResWidth = tiffStorage.getTileWidth() * tiffStorage.getNumCols();
+      long[][] dimensions = new long[tiffStorage.getNumResLevels()][];
+      for (int resLevelIndex = 0; resLevelIndex < dimensions.length; resLevelIndex++) {
+         dimensions[resLevelIndex] = new long[]{ fullResWidth >> resLevelIndex, fullResHeight >> resLevelIndex, tiffStorage.getNumSlices() };
+      }
+      return dimensions;
+   }
+
    private < T extends NativeType<T>> CachedCellImg< T, A> prepareCachedImage(final ViewId view, final int resLevelIndex, final LoadingStrategy loadingStrategy) {
       final long[] dimensions = imageDimensions_[resLevelIndex];
       //the only "shape" of block that your CacheArrayLoader needs to be able to load (plus they will be aligned at multiples of tileWidth, tileHeight,
-      final int[] cellDimensions = new int[]{tiffStorage_.getTileWidth(), tiffStorage_.getTileHeight(), 1}; 
+      final int[] cellDimensions = new int[]{tileWidth_, tileHeight_, 1}; 
 
-      final int priority = tiffStorage_.getNumResLevels() - 1 - resLevelIndex;
+      final int priority = numResLevels_ - 1 - resLevelIndex;
       final CacheHints cacheHints = new CacheHints(loadingStrategy, priority, false);
       final CellCache< A > c = bdvCache_.new VolatileCellCache< A >(view.getTimePointId(), view.getViewSetupId(), resLevelIndex, cacheHints, loader_);
       final VolatileImgCells< A> cells = new VolatileImgCells< A>(c, new Fraction(), dimensions, cellDimensions);
@@ -120,7 +146,7 @@ public abstract class LegacyMagellanImgLoader< T extends NativeType< T >, V exte
 
    @Override
    public int numMipmapLevels(final int setup) {
-     return tiffStorage_.getNumResLevels();
+     return numResLevels_;
    }
 
    @Override
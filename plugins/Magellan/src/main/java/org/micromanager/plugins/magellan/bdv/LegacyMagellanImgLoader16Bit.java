@@ -28,6 +28,10 @@ public class LegacyMagellanImgLoader16Bit extends LegacyMagellanImgLoader< Unsig
       super(storage, new MultiResMPTiffVolatileShortArrayLoader(storage), new UnsignedShortType(), new VolatileUnsignedShortType());
    }
 
+   public LegacyMagellanImgLoader16Bit(N5Dataset dataset) {
+      super(dataset, new N5VolatileShortArrayLoader(dataset), new UnsignedShortType(), new VolatileUnsignedShortType());
+   }
+
    @Override
    protected void linkType(final CachedCellImg< UnsignedShortType, VolatileShortArray> img) {
       img.setLinkedType(new UnsignedShortType(img));
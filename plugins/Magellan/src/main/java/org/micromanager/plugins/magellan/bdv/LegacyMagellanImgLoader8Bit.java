@@ -29,6 +29,10 @@ public class LegacyMagellanImgLoader8Bit extends LegacyMagellanImgLoader< Unsign
       super(storage, new MultiResMPTiffVolatileByteArrayLoader(storage), new UnsignedByteType(), new VolatileUnsignedByteType());
    }
 
+   public LegacyMagellanImgLoader8Bit(N5Dataset dataset) {
+      super(dataset, new N5VolatileByteArrayLoader(dataset), new UnsignedByteType(), new VolatileUnsignedByteType());
+   }
+
    @Override
    protected void linkType(final CachedCellImg< UnsignedByteType, VolatileByteArray> img) {
       img.setLinkedType(new UnsignedByteType(img));
@@ -26,4 +26,8 @@ public class MagellanImgLoader16Bit extends LegacyViewerImgLoaderWrapper< Unsign
    public MagellanImgLoader16Bit(MultiResMultipageTiffStorage storage) {
       super(new LegacyMagellanImgLoader16Bit(storage));
    }
+
+   public MagellanImgLoader16Bit(N5Dataset dataset) {
+      super(new LegacyMagellanImgLoader16Bit(dataset));
+   }
 }
@@ -26,4 +26,8 @@ public class MagellanImgLoader8Bit extends LegacyViewerImgLoaderWrapper< Unsigne
    public MagellanImgLoader8Bit(MultiResMultipageTiffStorage storage) {
       super(new LegacyMagellanImgLoader8Bit(storage ));
    }
+
+   public MagellanImgLoader8Bit(N5Dataset dataset) {
+      super(new LegacyMagellanImgLoader8Bit(dataset));
+   }
 }
@@ -0,0 +1,239 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package main.java.org.micromanager.plugins.magellan.bdv;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import main.java.org.micromanager.plugins.magellan.json.JSONException;
+import main.java.org.micromanager.plugins.magellan.json.JSONObject;
+
+/**
+ * A Magellan dataset exported by N5Exporter: a directory in the N5 layout used
+ * by BigDataViewer, with one dataset per channel, frame and resolution level
+ * (setup&lt;c&gt;/timepoint&lt;t&gt;/s&lt;level&gt;). Each block holds a single
+ * tile of a single slice, so reading a block only touches one small file.
+ */
+public class N5Dataset {
+
+   static final String ATTRIBUTES_FILE = "attributes.json";
+   static final String N5_VERSION_KEY = "n5";
+   static final String N5_VERSION = "2.0.0";
+   //Magellan specific attributes, stored in the root attributes
+   static final String MAGELLAN_KEY = "Magellan";
+   static final String NUM_CHANNELS = "NumChannels";
+   static final String NUM_FRAMES = "NumFrames";
+   static final String MIN_SLICE_INDEX = "MinSliceIndex";
+   static final String NUM_SLICES = "NumSlices";
+   static final String NUM_RES_LEVELS = "NumResLevels";
+   static final String TILE_WIDTH = "TileWidth";
+   static final String TILE_HEIGHT = "TileHeight";
+   static final String BYTE_DEPTH = "ByteDepth";
+   static final String PIXEL_SIZE_XY = "PixelSizeXY";
+   static final String PIXEL_SIZE_Z = "PixelSizeZ";
+   static final String MIN_ROW = "MinRow";
+   static final String MIN_COL = "MinCol";
+   static final String NUM_ROWS = "NumRows";
+   static final String NUM_COLS = "NumCols";
+   static final String COMPRESSED = "Compressed";
+
+   private final File dir_;
+   private final int numChannels_, numFrames_, minSliceIndex_, numSlices_, numResLevels_;
+   private final int tileWidth_, tileHeight_, byteDepth_;
+   private final double pixelSizeXY_, pixelSizeZ_;
+   private final long minRow_, minCol_, numRows_, numCols_;
+   private final boolean compressed_;
+
+   public N5Dataset(File dir) throws IOException {
+      dir_ = dir;
+      try {
+         JSONObject md = readAttributes(dir).getJSONObject(MAGELLAN_KEY);
+         numChannels_ = md.getInt(NUM_CHANNELS);
+         numFrames_ = md.getInt(NUM_FRAMES);
+         minSliceIndex_ = md.getInt(MIN_SLICE_INDEX);
+         numSlices_ = md.getInt(NUM_SLICES);
+         numResLevels_ = md.getInt(NUM_RES_LEVELS);
+         tileWidth_ = md.getInt(TILE_WIDTH);
+         tileHeight_ = md.getInt(TILE_HEIGHT);
+         byteDepth_ = md.getInt(BYTE_DEPTH);
+         pixelSizeXY_ = md.getDouble(PIXEL_SIZE_XY);
+         pixelSizeZ_ = md.getDouble(PIXEL_SIZE_Z);
+         minRow_ = md.getLong(MIN_ROW);
+         minCol_ = md.getLong(MIN_COL);
+         numRows_ = md.getLong(NUM_ROWS);
+         numCols_ = md.getLong(NUM_COLS);
+         compressed_ = md.getBoolean(COMPRESSED);
+      } catch (JSONException ex) {
+         throw new IOException("Not an exported Magellan dataset: " + dir);
+      }
+   }
+
+   /**
+    * @return true if the directory contains a Magellan dataset exported in the N5 layout
+    */
+   public static boolean isN5Dataset(File dir) {
+      try {
+         return readAttributes(dir).has(MAGELLAN_KEY);
+      } catch (Exception e) {
+         return false;
+      }
+   }
+
+   static JSONObject readAttributes(File dir) throws IOException {
+      Scanner scanner = new Scanner(new File(dir, ATTRIBUTES_FILE), "UTF-8");
+      try {
+         return new JSONObject(scanner.useDelimiter("\\A").next());
+      } catch (JSONException ex) {
+         throw new IOException("Couldn't read " + ATTRIBUTES_FILE + " in " + dir);
+      } finally {
+         scanner.close();
+      }
+   }
+
+   static String getDatasetPath(int channel, int frame, int level) {
+      return "setup" + channel + File.separator + "timepoint" + frame + File.separator + "s" + level;
+   }
+
+   /**
+    * Low resolution tiles are aligned to the full resolution grid, so the tile at row r
+    * at level 0 is part of tile r >> level at a given level
+    * @return index of first row or column of tiles at the given level
+    */
+   static long getGridStart(long fullResMin, int level) {
+      return fullResMin >> level;
+   }
+
+   /**
+    * @return number of rows or columns of tiles at the given level
+    */
+   static long getGridCount(long fullResMin, long fullResCount, int level) {
+      return ((fullResMin + fullResCount - 1) >> level) - (fullResMin >> level) + 1;
+   }
+
+   public int getNumChannels() {
+      return numChannels_;
+   }
+
+   public int getNumFrames() {
+      return numFrames_;
+   }
+
+   public int getMinSliceIndex() {
+      return minSliceIndex_;
+   }
+
+   public int getNumSlices() {
+      return numSlices_;
+   }
+
+   public int getNumResLevels() {
+      return numResLevels_;
+   }
+
+   public int getTileWidth() {
+      return tileWidth_;
+   }
+
+   public int getTileHeight() {
+      return tileHeight_;
+   }
+
+   public int getByteDepth() {
+      return byteDepth_;
+   }
+
+   public double getPixelSizeXY() {
+      return pixelSizeXY_;
+   }
+
+   public double getPixelSizeZ() {
+      return pixelSizeZ_;
+   }
+
+   /**
+    * @return width, height and depth in pixels of the image at each resolution level
+    */
+   public long[][] getImageDimensions() {
+      long[][] dimensions = new long[numResLevels_][];
+      for (int level = 0; level < numResLevels_; level++) {
+         dimensions[level] = new long[]{getGridCount(minCol_, numCols_, level) * tileWidth_,
+            getGridCount(minRow_, numRows_, level) * tileHeight_, numSlices_};
+      }
+      return dimensions;
+   }
+
+   /**
+    * @return x and y position in full resolution pixels of the top left corner of the image
+    * at each resolution level, relative to that of the full resolution image
+    */
+   public long[][] getImageOffsets() {
+      long[][] offsets = new long[numResLevels_][];
+      for (int level = 0; level < numResLevels_; level++) {
+         offsets[level] = new long[]{((getGridStart(minCol_, level) << level) - minCol_) * tileWidth_,
+            ((getGridStart(minRow_, level) << level) - minRow_) * tileHeight_};
+      }
+      return offsets;
+   }
+
+   /**
+    * Read one block (a single tile of one slice)
+    * @param gridPosition block indices in x, y and z
+    * @return byte[] or short[] pixels, or null if nothing was exported for this block
+    */
+   public Object readBlock(int channel, int frame, int level, long[] gridPosition) throws IOException {
+      File file = new File(new File(dir_, getDatasetPath(channel, frame, level)),
+              gridPosition[0] + File.separator + gridPosition[1] + File.separator + gridPosition[2]);
+      InputStream in;
+      try {
+         in = new BufferedInputStream(new FileInputStream(file));
+      } catch (FileNotFoundException e) {
+         return null;
+      }
+      try {
+         DataInputStream header = new DataInputStream(in);
+         short mode = header.readShort();
+         int numElements = 1;
+         int numDimensions = header.readShort();
+         for (int i = 0; i < numDimensions; i++) {
+            numElements *= header.readInt();
+         }
+         if (mode == 1) {
+            //varlength mode stores the number of elements explicitly
+            numElements = header.readInt();
+         }
+         DataInputStream data = new DataInputStream(compressed_ ? new GZIPInputStream(in) : in);
+         byte[] bytes = new byte[numElements * byteDepth_];
+         data.readFully(bytes);
+         if (byteDepth_ == 1) {
+            return bytes;
+         }
+         short[] pix = new short[numElements];
+         ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(pix);
+         return pix;
+      } finally {
+         in.close();
+      }
+   }
+}
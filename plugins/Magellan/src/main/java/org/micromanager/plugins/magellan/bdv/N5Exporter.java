@@ -0,0 +1,256 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package main.java.org.micromanager.plugins.magellan.bdv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import main.java.org.micromanager.plugins.magellan.acq.MagellanTaggedImage;
+import main.java.org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
+import main.java.org.micromanager.plugins.magellan.json.JSONArray;
+import main.java.org.micromanager.plugins.magellan.json.JSONException;
+import main.java.org.micromanager.plugins.magellan.json.JSONObject;
+import main.java.org.micromanager.plugins.magellan.misc.Log;
+
+/**
+ * Writes a Magellan dataset, including all of its resolution levels, as a
+ * chunked N5 directory that can be read with N5Dataset. Each chunk is one
+ * stitched tile of one slice, so readers only load the data they display.
+ * Tiles that were never acquired are not written.
+ *
+ * The directory holds attributes.json and one setup&lt;channel&gt;/timepoint&lt;frame&gt;/s&lt;level&gt;
+ * dataset per channel, frame and resolution level. The BigDataViewer loaders only use
+ * the export when attributes.json is in the same directory as the dataset's
+ * FIJI_BigDataViewer_Metadata.xml, so to view it in BigDataViewer, export into the
+ * dataset's own directory (the default when exporting from the display).
+ */
+public class N5Exporter {
+
+   private static final int MAX_QUEUED_BLOCKS = 64;
+
+   private final MultiResMultipageTiffStorage storage_;
+   private final File dir_;
+   private final boolean compress_;
+   private volatile IOException writeException_;
+
+   private N5Exporter(MultiResMultipageTiffStorage storage, File dir, boolean compress) {
+      storage_ = storage;
+      dir_ = dir;
+      compress_ = compress;
+   }
+
+   /**
+    * Export a finished dataset
+    * @param dir directory to write to, which is created if it doesn't exist
+    * @param compress gzip compress each chunk, rather than writing raw pixels
+    */
+   public static void export(MultiResMultipageTiffStorage storage, File dir, boolean compress) throws IOException {
+      new N5Exporter(storage, dir, compress).export();
+   }
+
+   private void export() throws IOException {
+      if (!dir_.isDirectory() && !dir_.mkdirs()) {
+         throw new IOException("Couldn't create directory " + dir_);
+      }
+      int numLevels = storage_.getNumResLevels();
+      int minSlice = storage_.getMinSliceIndexOpenedDataset();
+      try {
+         writeRootAttributes();
+         for (int channel = 0; channel < storage_.getNumChannels(); channel++) {
+            writeSetupAttributes(channel, numLevels);
+            for (int frame = 0; frame < storage_.getNumFrames(); frame++) {
+               for (int level = 0; level < numLevels; level++) {
+                  writeDatasetAttributes(channel, frame, level);
+               }
+            }
+         }
+      } catch (JSONException ex) {
+         throw new IOException(ex.getMessage());
+      }
+      //compressing and writing chunks is done in parallel, while tiles are read and stitched on this thread
+      ThreadPoolExecutor writers = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+              Runtime.getRuntime().availableProcessors(), 0, TimeUnit.NANOSECONDS,
+              new ArrayBlockingQueue<Runnable>(MAX_QUEUED_BLOCKS), new ThreadPoolExecutor.CallerRunsPolicy());
+      try {
+         for (int channel = 0; channel < storage_.getNumChannels(); channel++) {
+            for (int frame = 0; frame < storage_.getNumFrames(); frame++) {
+               for (int level = 0; level < numLevels; level++) {
+                  final File dataset = new File(dir_, N5Dataset.getDatasetPath(channel, frame, level));
+                  long rowStart = N5Dataset.getGridStart(storage_.getMinRow(), level);
+                  long colStart = N5Dataset.getGridStart(storage_.getMinCol(), level);
+                  long numRows = N5Dataset.getGridCount(storage_.getMinRow(), storage_.getNumRows(), level);
+                  long numCols = N5Dataset.getGridCount(storage_.getMinCol(), storage_.getNumCols(), level);
+                  for (int z = 0; z < storage_.getNumSlices(); z++) {
+                     for (long y = 0; y < numRows; y++) {
+                        for (long x = 0; x < numCols; x++) {
+                           if (writeException_ != null) {
+                              throw writeException_;
+                           }
+                           final MagellanTaggedImage tile = storage_.readTile(channel, z + minSlice, frame, level,
+                                   rowStart + y, colStart + x);
+                           if (tile == null) {
+                              continue; //no data at this tile
+                           }
+                           final File block = new File(dataset, x + File.separator + y + File.separator + z);
+                           writers.execute(new Runnable() {
+                              @Override
+                              public void run() {
+                                 try {
+                                    writeBlock(block, tile.pix);
+                                 } catch (IOException ex) {
+                                    writeException_ = ex;
+                                 }
+                              }
+                           });
+                        }
+                     }
+                  }
+               }
+            }
+         }
+      } finally {
+         writers.shutdown();
+         try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         } catch (InterruptedException ex) {
+            Log.log("Interrupted while waiting for export to finish");
+            Thread.currentThread().interrupt();
+         }
+      }
+      if (writeException_ != null) {
+         throw writeException_;
+      }
+   }
+
+   private void writeRootAttributes() throws IOException, JSONException {
+      JSONObject md = new JSONObject();
+      md.put(N5Dataset.NUM_CHANNELS, storage_.getNumChannels());
+      md.put(N5Dataset.NUM_FRAMES, storage_.getNumFrames());
+      md.put(N5Dataset.MIN_SLICE_INDEX, storage_.getMinSliceIndexOpenedDataset());
+      md.put(N5Dataset.NUM_SLICES, storage_.getNumSlices());
+      md.put(N5Dataset.NUM_RES_LEVELS, storage_.getNumResLevels());
+      md.put(N5Dataset.TILE_WIDTH, storage_.getTileWidth());
+      md.put(N5Dataset.TILE_HEIGHT, storage_.getTileHeight());
+      md.put(N5Dataset.BYTE_DEPTH, storage_.getByteDepth());
+      md.put(N5Dataset.PIXEL_SIZE_XY, storage_.getPixelSizeXY());
+      md.put(N5Dataset.PIXEL_SIZE_Z, storage_.getPixelSizeZ());
+      md.put(N5Dataset.MIN_ROW, storage_.getMinRow());
+      md.put(N5Dataset.MIN_COL, storage_.getMinCol());
+      md.put(N5Dataset.NUM_ROWS, storage_.getNumRows());
+      md.put(N5Dataset.NUM_COLS, storage_.getNumCols());
+      md.put(N5Dataset.COMPRESSED, compress_);
+      JSONObject attributes = new JSONObject();
+      attributes.put(N5Dataset.N5_VERSION_KEY, N5Dataset.N5_VERSION);
+      attributes.put(N5Dataset.MAGELLAN_KEY, md);
+      writeAttributes(dir_, attributes);
+   }
+
+   private void writeSetupAttributes(int channel, int numLevels) throws IOException, JSONException {
+      JSONArray factors = new JSONArray();
+      for (int level = 0; level < numLevels; level++) {
+         factors.put(new JSONArray().put(1 << level).put(1 << level).put(1));
+      }
+      JSONObject attributes = new JSONObject();
+      attributes.put("downsamplingFactors", factors);
+      attributes.put("dataType", getDataType());
+      writeAttributes(new File(dir_, "setup" + channel), attributes);
+   }
+
+   private void writeDatasetAttributes(int channel, int frame, int level) throws IOException, JSONException {
+      JSONObject compression = new JSONObject();
+      if (compress_) {
+         compression.put("type", "gzip");
+         compression.put("level", -1);
+      } else {
+         compression.put("type", "raw");
+      }
+      JSONObject attributes = new JSONObject();
+      attributes.put("dimensions", new JSONArray()
+              .put(N5Dataset.getGridCount(storage_.getMinCol(), storage_.getNumCols(), level) * storage_.getTileWidth())
+              .put(N5Dataset.getGridCount(storage_.getMinRow(), storage_.getNumRows(), level) * storage_.getTileHeight())
+              .put(storage_.getNumSlices()));
+      attributes.put("blockSize", new JSONArray().put(storage_.getTileWidth()).put(storage_.getTileHeight()).put(1));
+      attributes.put("dataType", getDataType());
+      attributes.put("compression", compression);
+      writeAttributes(new File(dir_, N5Dataset.getDatasetPath(channel, frame, level)), attributes);
+   }
+
+   private String getDataType() {
+      return storage_.getByteDepth() == 1 ? "uint8" : "uint16";
+   }
+
+   private static void writeAttributes(File dir, JSONObject attributes) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Couldn't create directory " + dir);
+      }
+      Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, N5Dataset.ATTRIBUTES_FILE)), "UTF-8");
+      try {
+         writer.write(attributes.toString());
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * Write a block in the N5 format: an uncompressed header giving the block dimensions,
+    * followed by the (optionally compressed) big endian pixels
+    */
+   private void writeBlock(File file, Object pix) throws IOException {
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+         throw new IOException("Couldn't create directory " + parent);
+      }
+      ByteBuffer buffer;
+      if (pix instanceof byte[]) {
+         buffer = ByteBuffer.wrap((byte[]) pix);
+      } else {
+         short[] shorts = (short[]) pix;
+         buffer = ByteBuffer.allocate(2 * shorts.length).order(ByteOrder.BIG_ENDIAN);
+         buffer.asShortBuffer().put(shorts);
+      }
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+      try {
+         DataOutputStream header = new DataOutputStream(out);
+         header.writeShort(0); //default mode
+         header.writeShort(3);
+         header.writeInt(storage_.getTileWidth());
+         header.writeInt(storage_.getTileHeight());
+         header.writeInt(1);
+         header.flush();
+         if (compress_) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(buffer.array());
+            gzip.finish();
+         } else {
+            out.write(buffer.array());
+         }
+      } finally {
+         out.close();
+      }
+   }
+}
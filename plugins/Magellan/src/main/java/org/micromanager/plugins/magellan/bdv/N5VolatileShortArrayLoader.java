@@ -0,0 +1,71 @@
+///////////////////////////////////////////////////////////////////////////////
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package main.java.org.micromanager.plugins.magellan.bdv;
+
+import bdv.img.cache.CacheArrayLoader;
+import java.io.IOException;
+import main.java.org.micromanager.plugins.magellan.misc.Log;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Loads blocks for BigDataViewer directly from the chunks of a dataset exported by
+ * N5Exporter. Blocks are aligned to the chunks, so each request reads a single file.
+ */
+public class N5VolatileShortArrayLoader implements CacheArrayLoader<VolatileShortArray> {
+
+   private VolatileShortArray theEmptyArray_;
+   private final N5Dataset dataset_;
+
+   public N5VolatileShortArrayLoader(N5Dataset dataset) {
+      theEmptyArray_ = new VolatileShortArray(dataset.getTileWidth() * dataset.getTileHeight(), false);
+      dataset_ = dataset;
+   }
+
+   @Override
+   public int getBytesPerElement() {
+      return 2;
+   }
+
+   @Override
+   public VolatileShortArray loadArray(final int timepoint, final int setup, final int level, int[] dimensions, long[] min) throws InterruptedException {
+      long[] gridPosition = new long[]{min[0] / dataset_.getTileWidth(), min[1] / dataset_.getTileHeight(), min[2]};
+      try {
+         short[] pix = (short[]) dataset_.readBlock(setup, timepoint, level, gridPosition);
+         if (pix != null) {
+            return new VolatileShortArray(pix, true);
+         }
+      } catch (IOException ex) {
+         Log.log("Couldn't read block " + gridPosition[0] + "," + gridPosition[1] + "," + gridPosition[2]);
+         Log.log(ex);
+      }
+      //tiles that were never acquired are blank
+      return new VolatileShortArray(dimensions[0] * dimensions[1] * dimensions[2], true);
+   }
+
+   @Override
+   public VolatileShortArray emptyArray(final int[] dimensions) {
+      int numEntities = 1;
+      for (int i = 0; i < dimensions.length; ++i) {
+         numEntities *= dimensions[ i];
+      }
+      if (theEmptyArray_.getCurrentStorageArray().length < numEntities) {
+         theEmptyArray_ = new VolatileShortArray(numEntities, false);
+      }
+      return theEmptyArray_;
+   }
+
+}
@@ -36,6 +36,10 @@ public class XMLIOMagellanImageLoader16Bit implements XmlIoBasicImgLoader<Magell
    @Override
    public MagellanImgLoader16Bit fromXml(org.jdom2.Element elmnt, File file, AbstractSequenceDescription<?, ?, ?> asd) {     
       try {
+         //read directly from the chunks if the dataset has been exported
+         if (N5Dataset.isN5Dataset(file.getParentFile())) {
+            return new MagellanImgLoader16Bit(new N5Dataset(file.getParentFile()));
+         }
          MultiResMultipageTiffStorage storage = new MultiResMultipageTiffStorage(file.getParent());
          return new MagellanImgLoader16Bit(storage);
       } catch (IOException ex) {
@@ -36,6 +36,10 @@ public class XMLIOMagellanImageLoader8Bit implements XmlIoBasicImgLoader<Magella
    @Override
    public MagellanImgLoader8Bit fromXml(org.jdom2.Element elmnt, File file, AbstractSequenceDescription<?, ?, ?> asd) {     
       try {
+         //read directly from the chunks if the dataset has been exported
+         if (N5Dataset.isN5Dataset(file.getParentFile())) {
+            return new MagellanImgLoader8Bit(new N5Dataset(file.getParentFile()));
+         }
          MultiResMultipageTiffStorage storage = new MultiResMultipageTiffStorage(file.getParent());
          return new MagellanImgLoader8Bit(storage);
       } catch (IOException ex) {
@@ -193,6 +193,20 @@ public class JavaLayerImageConstructor {
      *
      */
     public void getMagellanTaggedImagesAndAddToAcq(AcquisitionEvent event, final long currentTime) throws Exception {
+        Runnable handoff = getMagellanTaggedImages(event, currentTime);
+        if (handoff != null) {
+            handoff.run();
+        }
+    }
+
+    /**
+     * Read the images from the last snap out of the core, so that it is free
+     * to snap again. Converting them, adding metadata and adding them to the
+     * acquisition can be done later on another thread by running the returned task
+     *
+     * @return task that adds the images to the acquisition, or null if they have already been added
+     */
+    public Runnable getMagellanTaggedImages(final AcquisitionEvent event, final long currentTime) throws Exception {
         if (javaLayerConstruction_) {
             //Images go into circular buffer one channel at a time followed by succsessive frames
             //want to change the order to all frames of a channel at a time
@@ -223,13 +237,23 @@ public class JavaLayerImageConstructor {
                     event.acquisition_.addImage(makeDemoImage(c, event.xyPosition_.getCenter(), event.zPosition_, tags));
                 }
             } else {
-                for (int c = 0; c < core_.getNumberOfCameraChannels(); c++) {
-                    MagellanTaggedImage img = convertTaggedImage(core_.getTaggedImage(c));
-                    MagellanEngine.addImageMetadata(img.tags, event, event.timeIndex_, c, currentTime - event.acquisition_.getStartTime_ms(), 1);
-                    event.acquisition_.addImage(img);
+                final TaggedImage[] images = new TaggedImage[(int) core_.getNumberOfCameraChannels()];
+                for (int c = 0; c < images.length; c++) {
+                    images[c] = core_.getTaggedImage(c);
                 }
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int c = 0; c < images.length; c++) {
+                            MagellanTaggedImage img = convertTaggedImage(images[c]);
+                            MagellanEngine.addImageMetadata(img.tags, event, event.timeIndex_, c, currentTime - event.acquisition_.getStartTime_ms(), 1);
+                            event.acquisition_.addImage(img);
+                        }
+                    }
+                };
             }
         }
+        return null;
     }
 
     private MagellanTaggedImage makeDemoImage(int camChannelIndex, Point2D.Double position, double zPos, JSONObject tags) {
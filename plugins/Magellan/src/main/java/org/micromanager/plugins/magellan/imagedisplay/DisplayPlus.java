@@ -34,13 +34,16 @@ import java.awt.event.*;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.concurrent.ThreadFactory;
+import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
 import main.java.org.micromanager.plugins.magellan.acq.MMImageCache;
+import main.java.org.micromanager.plugins.magellan.bdv.N5Exporter;
 import ij.measure.Calibration;
 import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -152,6 +155,46 @@ public class DisplayPlus extends VirtualAcquisitionDisplay implements ListDataLi
       return multiResStorage_;
    }
 
+   /**
+    * Export the dataset as N5 chunks in a directory chosen by the user. This defaults
+    * to the dataset's own directory, next to the BigDataViewer XML file, which is where
+    * BigDataViewer looks for an export
+    */
+   public void exportN5() {
+      if (acq_ != null && !acq_.isFinished()) {
+         Log.log("Acquisition must finish before it can be exported", true);
+         return;
+      }
+      JFileChooser chooser = new JFileChooser();
+      chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      chooser.setDialogTitle("Export N5 to directory");
+      chooser.setSelectedFile(new File(multiResStorage_.getDiskLocation()));
+      if (chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
+         return;
+      }
+      final File dir = chooser.getSelectedFile();
+      int compress = JOptionPane.showConfirmDialog(null, "Gzip compress exported chunks?", "Export N5",
+              JOptionPane.YES_NO_CANCEL_OPTION);
+      if (compress != JOptionPane.YES_OPTION && compress != JOptionPane.NO_OPTION) {
+         return;
+      }
+      final boolean gzip = compress == JOptionPane.YES_OPTION;
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            ProgressBar bar = new ProgressBar("Exporting N5", 0, 1);
+            bar.setVisible(true);
+            try {
+               N5Exporter.export(multiResStorage_, dir, gzip);
+            } catch (IOException ex) {
+               Log.log("Couldn't export N5: " + ex.getMessage(), true);
+            } finally {
+               bar.setVisible(false);
+            }
+         }
+      }, "N5 export thread").start();
+   }
+
    //Thread safe calls for getting displayed indices
    public int getVisibleSliceIndex() {
       return subImageControls_ == null ? 0 : subImageControls_.getDisplayedSlice();
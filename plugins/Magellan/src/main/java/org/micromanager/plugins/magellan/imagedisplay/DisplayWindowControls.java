@@ -225,6 +225,7 @@ public class DisplayWindowControls extends Panel {
       jScrollPane1 = new javax.swing.JScrollPane();
       channelsTable_ = new javax.swing.JTable();
       showInFolderButton_ = new javax.swing.JButton();
+      exportN5Button_ = new javax.swing.JButton();
       abortButton_ = new javax.swing.JButton();
       pauseButton_ = new javax.swing.JButton();
       fpsLabel_ = new javax.swing.JLabel();
@@ -473,6 +474,14 @@ public class DisplayWindowControls extends Panel {
          }
       });
 
+      exportN5Button_.setText("Export N5...");
+      exportN5Button_.setToolTipText("Export dataset as chunked N5 for BigDataViewer");
+      exportN5Button_.addActionListener(new java.awt.event.ActionListener() {
+         public void actionPerformed(java.awt.event.ActionEvent evt) {
+            exportN5Button_ActionPerformed(evt);
+         }
+      });
+
       abortButton_.setIcon(new javax.swing.ImageIcon(getClass().getResource("/main/resources/org/micromanager/abort.png"))); // NOI18N
       abortButton_.setToolTipText("Abort acquisition");
       abortButton_.addActionListener(new java.awt.event.ActionListener() {
@@ -514,6 +523,8 @@ public class DisplayWindowControls extends Panel {
          .addGroup(layout.createSequentialGroup()
             .addComponent(showInFolderButton_)
             .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+            .addComponent(exportN5Button_)
+            .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
             .addComponent(abortButton_)
             .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
             .addComponent(pauseButton_)
@@ -533,6 +544,7 @@ public class DisplayWindowControls extends Panel {
             .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                   .addComponent(showInFolderButton_)
+                  .addComponent(exportN5Button_)
                   .addComponent(abortButton_)
                   .addComponent(pauseButton_))
                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
@@ -629,6 +641,10 @@ public class DisplayWindowControls extends Panel {
       display_.showFolder();
    }//GEN-LAST:event_showInFolderButton_ActionPerformed
 
+   private void exportN5Button_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportN5Button_ActionPerformed
+      display_.exportN5();
+   }//GEN-LAST:event_exportN5Button_ActionPerformed
+
    private void showFootprintCheckBox_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_showFootprintCheckBox_ActionPerformed
       display_.setSurfaceDisplaySettings(showFootprintCheckBox_.isSelected(), showStagePositionsCheckBox_.isSelected()
               && aboveBelowSurfaceCombo_.getSelectedIndex() == 0, showStagePositionsCheckBox_.isSelected()
@@ -678,6 +694,7 @@ public class DisplayWindowControls extends Panel {
    private javax.swing.JComboBox currentSufaceCombo_;
    private javax.swing.JLabel currentSurfaceLabel_;
    private javax.swing.JLabel elapsedTimeLabel_;
+   private javax.swing.JButton exportN5Button_;
    private javax.swing.JPanel explorePanel_;
    private javax.swing.JLabel fpsLabel_;
    private javax.swing.JLabel gridColsLabel_;
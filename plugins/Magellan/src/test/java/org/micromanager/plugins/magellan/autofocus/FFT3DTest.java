@@ -0,0 +1,129 @@
+package main.java.org.micromanager.plugins.magellan.autofocus;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the FFT and the FFT cross correlation used by the drift
+ * compensation autofocus with direct computations
+ */
+public class FFT3DTest {
+
+   private ExecutorService executor_;
+
+   @Before
+   public void setUp() {
+      executor_ = Executors.newFixedThreadPool(3);
+   }
+
+   @After
+   public void tearDown() {
+      executor_.shutdownNow();
+   }
+
+   /**
+    * Volume of the given size with random values in a width x height x depth
+    * region at the origin and zeros elsewhere, as the autofocus pads its stacks
+    */
+   private static float[] randomVolume(Random random, int nx, int ny, int nz,
+           int width, int height, int depth) {
+      float[] result = new float[nx * ny * nz];
+      for (int z = 0; z < depth; z++) {
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               result[(z * ny + y) * nx + x] = random.nextFloat() - 0.5f;
+            }
+         }
+      }
+      return result;
+   }
+
+   @Test
+   public void testTransformMatchesDFT() throws Exception {
+      Random random = new Random(3);
+      int nx = 8, ny = 4, nz = 2;
+      FFT3D fft = new FFT3D(nx, ny, nz, executor_, 3);
+      float[] re = randomVolume(random, nx, ny, nz, nx, ny, nz);
+      float[] im = randomVolume(random, nx, ny, nz, nx, ny, nz);
+      float[] outRe = re.clone();
+      float[] outIm = im.clone();
+      fft.transform(outRe, outIm, false);
+      for (int kz = 0; kz < nz; kz++) {
+         for (int ky = 0; ky < ny; ky++) {
+            for (int kx = 0; kx < nx; kx++) {
+               double sumRe = 0, sumIm = 0;
+               for (int z = 0; z < nz; z++) {
+                  for (int y = 0; y < ny; y++) {
+                     for (int x = 0; x < nx; x++) {
+                        int i = (z * ny + y) * nx + x;
+                        double angle = -2 * Math.PI * ((double) kx * x / nx
+                                + (double) ky * y / ny + (double) kz * z / nz);
+                        sumRe += re[i] * Math.cos(angle) - im[i] * Math.sin(angle);
+                        sumIm += re[i] * Math.sin(angle) + im[i] * Math.cos(angle);
+                     }
+                  }
+               }
+               int k = (kz * ny + ky) * nx + kx;
+               Assert.assertEquals(sumRe, outRe[k], 1.0e-4);
+               Assert.assertEquals(sumIm, outIm[k], 1.0e-4);
+            }
+         }
+      }
+      // the inverse transform is not scaled
+      fft.transform(outRe, outIm, true);
+      for (int i = 0; i < re.length; i++) {
+         Assert.assertEquals(re[i] * re.length, outRe[i], 1.0e-4);
+         Assert.assertEquals(im[i] * im.length, outIm[i], 1.0e-4);
+      }
+   }
+
+   private void checkCrossCorrelation(Random random, int width, int height,
+           int depth) throws Exception {
+      int nx = FFT3D.nextPowerOf2(width);
+      int ny = FFT3D.nextPowerOf2(height);
+      int nz = FFT3D.nextPowerOf2(depth);
+      FFT3D fft = new FFT3D(nx, ny, nz, executor_, 3);
+      float[] a = randomVolume(random, nx, ny, nz, width, height, depth);
+      float[] b = randomVolume(random, nx, ny, nz, width, height, depth);
+      float[] re = a.clone();
+      float[] im = b.clone();
+      CrossCorrelationAutofocus.crossCorrelate(fft, re, im);
+      int n = fft.getSize();
+      for (int sz = 0; sz < nz; sz++) {
+         for (int sy = 0; sy < ny; sy++) {
+            for (int sx = 0; sx < nx; sx++) {
+               double expected = 0;
+               for (int z = 0; z < nz; z++) {
+                  for (int y = 0; y < ny; y++) {
+                     for (int x = 0; x < nx; x++) {
+                        int shifted = (((z + sz) % nz) * ny + (y + sy) % ny) * nx
+                                + (x + sx) % nx;
+                        expected += a[shifted] * b[(z * ny + y) * nx + x];
+                     }
+                  }
+               }
+               Assert.assertEquals("shift " + sx + "," + sy + "," + sz,
+                       n * expected, re[(sz * ny + sy) * nx + sx], 1.0e-3 * n);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testCrossCorrelation() throws Exception {
+      checkCrossCorrelation(new Random(7), 8, 4, 4);
+   }
+
+   @Test
+   public void testPaddedCrossCorrelation() throws Exception {
+      Random random = new Random(11);
+      checkCrossCorrelation(random, 5, 3, 6);
+      checkCrossCorrelation(random, 7, 1, 3);
+      checkCrossCorrelation(random, 1, 6, 1);
+   }
+}
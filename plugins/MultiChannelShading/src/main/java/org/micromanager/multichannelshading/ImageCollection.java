@@ -44,6 +44,8 @@ public class ImageCollection {
    private final HashMap<String, HashMap<String, ImagePlusInfo>> flatFields_;
    private final HashMap<String, String> presetFiles_;
    private String backgroundFilePath_;
+   // Incremented whenever a background or flatfield image changes
+   private int version_ = 0;
 
    private final String BASEIMAGE = "base";
    
@@ -56,6 +58,7 @@ public class ImageCollection {
    
    public void setBackground(String file) throws ShadingException {
       background_.clear();
+      version_++;
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
          ImagePlus ip = opener.openImage(file);
@@ -175,6 +178,7 @@ public class ImageCollection {
          newFlatField.put(BASEIMAGE, flatField);
          newFlatField.put(makeKey(1, fp.getRoi()), flatField);
          flatFields_.put(preset, newFlatField);
+         version_++;
       } catch (ShadingException ex) {
          gui_.logs().logError("Shading plugin, addFlatField in ImageCollection: " + 
                  ex.getMessage());
@@ -195,10 +199,21 @@ public class ImageCollection {
 
    public void clearFlatFields() {
       flatFields_.clear();
+      version_++;
    }
 
    public void removeFlatField(String preset) {
       flatFields_.remove(preset);
+      version_++;
+   }
+
+   /**
+    * @return number that changes whenever a background or flatfield image
+    *         is set, added, or removed, so that users can tell when data
+    *         derived from the images is stale
+    */
+   public int getVersion() {
+      return version_;
    }
 
    public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
@@ -0,0 +1,280 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingCorrector.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Applies background subtraction and flatfield correction to 8 or 16 bit
+ * pixel arrays in a single pass.  The background (offset) of each
+ * background/flatfield combination is converted once to the pixel type of
+ * the images it is applied to, and cached together with the flatfield
+ * (gain) pixels, so that correcting a frame only reads the frame, the two
+ * planes, and writes the result.  Large frames are corrected in bands of
+ * rows on the provided executor.
+ */
+public class ShadingCorrector {
+   // Frames smaller than this are not worth splitting over threads
+   private static final int MIN_PIXELS_PER_BAND = 256 * 1024;
+
+   private final ExecutorService executor_;
+   private final HashMap<PlanesKey, Planes> planes_;
+
+   /**
+    * Offset and gain to be applied to images of a given type
+    */
+   public static class Planes {
+      // byte[] or short[], matching the images, or null
+      private final Object offset_;
+      // multiplier for each pixel, or null
+      private final float[] gain_;
+
+      private Planes(Object offset, float[] gain) {
+         offset_ = offset;
+         gain_ = gain;
+      }
+   }
+
+   /**
+    * The images of an ImageCollection are derived once per binning and ROI,
+    * so an image together with the binning identifies the planes.
+    */
+   private static class PlanesKey {
+      private final ImagePlusInfo background_;
+      private final ImagePlusInfo flatField_;
+      private final int binning_;
+      private final int bytesPerPixel_;
+
+      private PlanesKey(ImagePlusInfo background, ImagePlusInfo flatField,
+              int binning, int bytesPerPixel) {
+         background_ = background;
+         flatField_ = flatField;
+         binning_ = binning;
+         bytesPerPixel_ = bytesPerPixel;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof PlanesKey)) {
+            return false;
+         }
+         PlanesKey key = (PlanesKey) other;
+         return background_ == key.background_
+                 && flatField_ == key.flatField_
+                 && binning_ == key.binning_
+                 && bytesPerPixel_ == key.bytesPerPixel_;
+      }
+
+      @Override
+      public int hashCode() {
+         int hash = System.identityHashCode(background_);
+         hash = 31 * hash + System.identityHashCode(flatField_);
+         hash = 31 * hash + binning_;
+         return 31 * hash + bytesPerPixel_;
+      }
+   }
+
+   /**
+    * @param executor used to correct large frames in parallel, may be null
+    */
+   public ShadingCorrector(ExecutorService executor) {
+      executor_ = executor;
+      planes_ = new HashMap<PlanesKey, Planes>();
+   }
+
+   /**
+    * Return the offset and gain planes for images of the given type,
+    * converting them the first time they are requested.  Call clear()
+    * when the images in the ImageCollection change.
+    * @param background Background image, or null
+    * @param flatField Normalized flatfield image, or null
+    * @param binning Binning of the images to be corrected
+    * @param numPixels Number of pixels in the images to be corrected
+    * @param bytesPerPixel 1 or 2
+    * @return planes to be passed to correct()
+    * @throws ShadingException if the images do not have the size of the
+    *         images to be corrected
+    */
+   public synchronized Planes getPlanes(ImagePlusInfo background,
+           ImagePlusInfo flatField, int binning, int numPixels,
+           int bytesPerPixel) throws ShadingException {
+      PlanesKey key = new PlanesKey(background, flatField, binning,
+              bytesPerPixel);
+      Planes planes = planes_.get(key);
+      if (planes != null) {
+         return planes;
+      }
+      Object offset = null;
+      if (background != null) {
+         offset = convertBackground(background.getProcessor(), numPixels,
+                 bytesPerPixel);
+      }
+      float[] gain = null;
+      if (flatField != null) {
+         ImageProcessor ffProcessor = flatField.getProcessor();
+         if (ffProcessor.getPixelCount() != numPixels) {
+            throw new ShadingException("Flatfield image has "
+                    + ffProcessor.getPixelCount() + " pixels, but the image has "
+                    + numPixels);
+         }
+         gain = (float[]) ffProcessor.getPixels();
+      }
+      planes = new Planes(offset, gain);
+      planes_.put(key, planes);
+      return planes;
+   }
+
+   /**
+    * Drop all cached planes, so that they no longer hold on to images
+    * that were replaced or removed.
+    */
+   public synchronized void clear() {
+      planes_.clear();
+   }
+
+   /**
+    * Background pixels are clipped to the range of the image pixels and
+    * stored in the same type, so that subtraction needs no conversion
+    */
+   private static Object convertBackground(ImageProcessor bgProcessor,
+           int numPixels, int bytesPerPixel) throws ShadingException {
+      if (bgProcessor.getPixelCount() != numPixels) {
+         throw new ShadingException("Background image has "
+                 + bgProcessor.getPixelCount() + " pixels, but the image has "
+                 + numPixels);
+      }
+      int maxValue = bytesPerPixel == 1 ? 0xff : 0xffff;
+      byte[] bytes = bytesPerPixel == 1 ? new byte[numPixels] : null;
+      short[] shorts = bytesPerPixel == 1 ? null : new short[numPixels];
+      for (int i = 0; i < numPixels; i++) {
+         int value;
+         if (bgProcessor instanceof ByteProcessor
+                 || bgProcessor instanceof ShortProcessor) {
+            value = bgProcessor.get(i);
+         } else {
+            value = (int) bgProcessor.getf(i);
+         }
+         value = Math.min(maxValue, Math.max(0, value));
+         if (bytes != null) {
+            bytes[i] = (byte) value;
+         } else {
+            shorts[i] = (short) value;
+         }
+      }
+      return bytes != null ? bytes : shorts;
+   }
+
+   /**
+    * Subtract the background, clipping at 0, then multiply with the
+    * flatfield, rounding and clipping at the maximum pixel value.
+    * @param pixels byte[] or short[] pixels of the image to correct, which
+    *        are not modified
+    * @param planes planes obtained from getPlanes() for this type of image
+    * @param width Width of the image
+    * @param height Height of the image
+    * @return new array with the corrected pixels
+    * @throws InterruptedException
+    * @throws ExecutionException
+    */
+   public Object correct(final Object pixels, final Planes planes,
+           final int width, int height)
+           throws InterruptedException, ExecutionException {
+      final Object result;
+      if (pixels instanceof byte[]) {
+         result = new byte[width * height];
+      } else {
+         result = new short[width * height];
+      }
+      int numBands = executor_ == null ? 1
+              : Math.min(Runtime.getRuntime().availableProcessors(),
+                      width * height / MIN_PIXELS_PER_BAND);
+      if (numBands <= 1) {
+         correctBand(pixels, planes, result, 0, width * height);
+         return result;
+      }
+      List<Future<Void>> futures = new ArrayList<Future<Void>>(numBands);
+      for (int band = 0; band < numBands; band++) {
+         final int start = (int) ((long) height * band / numBands) * width;
+         final int end = (int) ((long) height * (band + 1) / numBands) * width;
+         futures.add(executor_.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               correctBand(pixels, planes, result, start, end);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (Future<Void> future : futures) {
+            future.get();
+         }
+      } finally {
+         for (Future<Void> future : futures) {
+            future.cancel(true);
+         }
+      }
+      return result;
+   }
+
+   private static void correctBand(Object pixels, Planes planes,
+           Object result, int start, int end) {
+      float[] gain = planes.gain_;
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         byte[] offset = (byte[]) planes.offset_;
+         byte[] out = (byte[]) result;
+         for (int i = start; i < end; i++) {
+            int value = in[i] & 0xff;
+            if (offset != null) {
+               value = Math.max(0, value - (offset[i] & 0xff));
+            }
+            if (gain != null) {
+               float newValue = value * gain[i] + 0.5f;
+               value = newValue > 0xff ? 0xff : (int) newValue;
+            }
+            out[i] = (byte) value;
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         short[] offset = (short[]) planes.offset_;
+         short[] out = (short[]) result;
+         for (int i = start; i < end; i++) {
+            int value = in[i] & 0xffff;
+            if (offset != null) {
+               value = Math.max(0, value - (offset[i] & 0xffff));
+            }
+            if (gain != null) {
+               float newValue = value * gain[i] + 0.5f;
+               value = newValue > 0xffff ? 0xffff : (int) newValue;
+            }
+            out[i] = (short) value;
+         }
+      }
+   }
+}
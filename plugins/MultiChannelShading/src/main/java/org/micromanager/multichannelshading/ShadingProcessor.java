@@ -21,9 +21,12 @@
 
 package org.micromanager.multichannelshading;
 
-import ij.process.ImageProcessor;
-
 import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
@@ -45,6 +48,12 @@ public class ShadingProcessor extends Processor {
    private ImageCollection imageCollection_;
    private String channelGroup_;
    private String[] presets_;
+   private final ThreadPoolExecutor executor_;
+   private final ShadingCorrector corrector_;
+   // ImageCollection version the cached planes of corrector_ belong to
+   private int collectionVersion_;
+   // Settings of each preset, so that we do not ask the core for every image
+   private final HashMap<String, Configuration> presetConfigs_;
 
    public ShadingProcessor(Studio studio, String channelGroup,
            String backgroundFile, String[] presets,
@@ -67,6 +76,26 @@ public class ShadingProcessor extends Processor {
       } catch (Exception e) {
          studio_.logs().logError(e, "Error recreating ImageCollection");
       }
+      // Idle threads time out, so nothing lingers if cleanup() is never called
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      if (numThreads > 1) {
+         executor_ = new ThreadPoolExecutor(numThreads, numThreads, 10,
+                 TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+         executor_.allowCoreThreadTimeOut(true);
+      } else {
+         executor_ = null;
+      }
+      corrector_ = new ShadingCorrector(executor_);
+      collectionVersion_ = imageCollection_.getVersion();
+      presetConfigs_ = new HashMap<String, Configuration>();
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      corrector_.clear();
+      if (executor_ != null) {
+         executor_.shutdownNow();
+      }
    }
 
 
@@ -93,9 +122,6 @@ public class ShadingProcessor extends Processor {
       Metadata metadata = image.getMetadata();
       PropertyMap userData = metadata.getUserData();
 
-      Image bgSubtracted = image;
-      Image result;
-      
       // subtract background
       Integer binning = metadata.getBinning();
       if (binning == null) {
@@ -117,74 +143,65 @@ public class ShadingProcessor extends Processor {
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
                  NoBackgroundForThisBinModeClass.class, msg);
       }
-      if (background != null) {
-         ImageProcessor ip = studio_.data().ij().createProcessor(image);
-         ImageProcessor ipBackground = background.getProcessor();
-         try {
-            ip = ImageUtils.subtractImageProcessors(ip, ipBackground);
-            if (userData != null) {
-               userData = userData.copy().putBoolean("Background-corrected", true).build();
-            }
-         } catch (ShadingException e) {
-            String msg = "Unable to subtract background";
-            studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
-                 ErrorSubtractingClass.class, msg);
-         }
-         bgSubtracted = studio_.data().ij().createImage(ip, image.getCoords(),
-                 metadata.copy().userData(userData).build());
-      }
 
       ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(
               metadata, binning, rect);
 
-      // do not calculate flat field if we don't have a matching channel;
-      // just return the background-subtracted image (which is the unmodified
-      // image if we also don't have a background subtraction file).
-      if (flatFieldImage == null) {
-         context.outputImage(bgSubtracted);
+      // Nothing to do if we have neither a background nor a flatfield
+      // image for this channel
+      if (background == null && flatFieldImage == null) {
+         context.outputImage(image);
          return;
       }
 
-      if (userData != null) {
-         userData = userData.copy().putBoolean("Flatfield-corrected", true).build();
-         metadata = metadata.copy().userData(userData).build();
+      if (imageCollection_.getVersion() != collectionVersion_) {
+         // Background or flatfield images were changed; cached planes
+         // refer to images that are no longer in use
+         corrector_.clear();
+         collectionVersion_ = imageCollection_.getVersion();
       }
-      
-      if (image.getBytesPerPixel() == 1) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) image.getRawPixels();
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++) {
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
+      long startTime = System.nanoTime();
+      ShadingCorrector.Planes planes;
+      try {
+         planes = corrector_.getPlanes(background, flatFieldImage, binning,
+                 width * height, image.getBytesPerPixel());
+      } catch (ShadingException e) {
+         String msg = "Unable to correct image: " + e.getMessage();
+         studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
+              ErrorSubtractingClass.class, msg);
+         context.outputImage(image);
+         return;
+      }
+      Object newPixels;
+      try {
+         newPixels = corrector_.correct(image.getRawPixels(), planes,
+                 width, height);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         context.outputImage(image);
+         return;
+      } catch (ExecutionException e) {
+         studio_.logs().logError(e, "Error correcting image");
+         context.outputImage(image);
+         return;
+      }
+      double correctionTimeMs = (System.nanoTime() - startTime) / 1e6;
+
+      if (userData != null) {
+         PropertyMap.PropertyMapBuilder builder = userData.copy();
+         if (background != null) {
+            builder.putBoolean("Background-corrected", true);
          }
-         result = studio_.data().createImage(newPixels, width, height,
-                 1, 1, image.getCoords(), metadata);
-         context.outputImage(result);
-      } else if (image.getBytesPerPixel() == 2) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.getRawPixels();
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++) {
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel
-                    * flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
+         if (flatFieldImage != null) {
+            builder.putBoolean("Flatfield-corrected", true);
          }
-         result = studio_.data().createImage(newPixels, width, height,
-                 2, 1, image.getCoords(), metadata);
-         context.outputImage(result);
+         builder.putDouble("Shading-CorrectionTimeMs", correctionTimeMs);
+         metadata = metadata.copy().userData(builder.build()).build();
       }
+
+      Image result = studio_.data().createImage(newPixels, width, height,
+              image.getBytesPerPixel(), 1, image.getCoords(), metadata);
+      context.outputImage(result);
    }
 
 
@@ -200,8 +217,11 @@ public class ShadingProcessor extends Processor {
       PropertyMap scopeData = metadata.getScopeData();
       for (String preset : presets_) {
          try {
-            Configuration config = studio_.getCMMCore().getConfigData(
-                    channelGroup_, preset);
+            Configuration config = presetConfigs_.get(preset);
+            if (config == null) {
+               config = studio_.getCMMCore().getConfigData(channelGroup_, preset);
+               presetConfigs_.put(preset, config);
+            }
             boolean presetMatch = true;
             for (int i = 0; i < config.size(); i++) {
                PropertySetting ps = config.getSetting(i);
@@ -0,0 +1,171 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the single pass correction of ShadingCorrector with the two
+ * passes ShadingProcessor used to make: subtracting the background with
+ * ImageUtils, then multiplying the result with the flatfield.
+ */
+public class ShadingCorrectorTest {
+   // Large enough to be corrected in several bands
+   private static final int WIDTH = 1024;
+   private static final int HEIGHT = 700;
+
+   private ExecutorService executor_;
+
+   @Before
+   public void setUp() {
+      executor_ = Executors.newFixedThreadPool(4);
+   }
+
+   @After
+   public void tearDown() {
+      executor_.shutdownNow();
+   }
+
+   private static byte[] randomBytes(Random random) {
+      byte[] result = new byte[WIDTH * HEIGHT];
+      random.nextBytes(result);
+      return result;
+   }
+
+   private static short[] randomShorts(Random random, int maxValue) {
+      short[] result = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (short) random.nextInt(maxValue + 1);
+      }
+      return result;
+   }
+
+   /**
+    * Normalized flatfield around 1, high enough to saturate some pixels
+    */
+   private static float[] randomGain(Random random) {
+      float[] result = new float[WIDTH * HEIGHT];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = 0.5f + random.nextFloat();
+      }
+      return result;
+   }
+
+   /**
+    * The correction as it used to be done.  The flatfield pass rounds and
+    * clips at the maximum pixel value, as the 16 bit path did.
+    */
+   private static Object twoPass(Object pixels, ImageProcessor background,
+           float[] gain) throws ShadingException {
+      ImageProcessor ip;
+      if (pixels instanceof byte[]) {
+         ip = new ByteProcessor(WIDTH, HEIGHT, (byte[]) pixels, null);
+      } else {
+         ip = new ShortProcessor(WIDTH, HEIGHT, (short[]) pixels, null);
+      }
+      if (background != null) {
+         ip = ImageUtils.subtractImageProcessors(ip, background);
+      }
+      if (gain == null) {
+         return ip.getPixels();
+      }
+      int maxValue = pixels instanceof byte[] ? 0xff : 0xffff;
+      byte[] bytes = pixels instanceof byte[] ? new byte[WIDTH * HEIGHT] : null;
+      short[] shorts = bytes == null ? new short[WIDTH * HEIGHT] : null;
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         float newValue = ip.get(i) * gain[i] + 0.5f;
+         if (newValue > maxValue) {
+            newValue = maxValue;
+         }
+         if (bytes != null) {
+            bytes[i] = (byte) newValue;
+         } else {
+            shorts[i] = (short) (((int) newValue) & 0x0000ffff);
+         }
+      }
+      return bytes != null ? bytes : shorts;
+   }
+
+   private Object singlePass(Object pixels, ImageProcessor background,
+           float[] gain) throws Exception {
+      ShadingCorrector corrector = new ShadingCorrector(executor_);
+      ImagePlusInfo bg = background == null ? null
+              : new ImagePlusInfo(background);
+      ImagePlusInfo ff = gain == null ? null : new ImagePlusInfo(
+              new FloatProcessor(WIDTH, HEIGHT, gain, null));
+      int bytesPerPixel = pixels instanceof byte[] ? 1 : 2;
+      ShadingCorrector.Planes planes = corrector.getPlanes(bg, ff, 1,
+              WIDTH * HEIGHT, bytesPerPixel);
+      return corrector.correct(pixels, planes, WIDTH, HEIGHT);
+   }
+
+   @Test
+   public void test8Bit() throws Exception {
+      Random random = new Random(24);
+      byte[] pixels = randomBytes(random);
+      ByteProcessor background = new ByteProcessor(WIDTH, HEIGHT,
+              randomBytes(random), null);
+      float[] gain = randomGain(random);
+      Assert.assertArrayEquals((byte[]) twoPass(pixels, background, gain),
+              (byte[]) singlePass(pixels, background, gain));
+      Assert.assertArrayEquals((byte[]) twoPass(pixels, background, null),
+              (byte[]) singlePass(pixels, background, null));
+      Assert.assertArrayEquals((byte[]) twoPass(pixels, null, gain),
+              (byte[]) singlePass(pixels, null, gain));
+   }
+
+   @Test
+   public void test16Bit() throws Exception {
+      Random random = new Random(25);
+      short[] pixels = randomShorts(random, 0xffff);
+      ShortProcessor background = new ShortProcessor(WIDTH, HEIGHT,
+              randomShorts(random, 0xffff), null);
+      float[] gain = randomGain(random);
+      Assert.assertArrayEquals((short[]) twoPass(pixels, background, gain),
+              (short[]) singlePass(pixels, background, gain));
+      Assert.assertArrayEquals((short[]) twoPass(pixels, background, null),
+              (short[]) singlePass(pixels, background, null));
+      Assert.assertArrayEquals((short[]) twoPass(pixels, null, gain),
+              (short[]) singlePass(pixels, null, gain));
+   }
+
+   @Test
+   public void test16BitWithFloatBackground() throws Exception {
+      Random random = new Random(26);
+      short[] pixels = randomShorts(random, 4095);
+      float[] backgroundPixels = new float[WIDTH * HEIGHT];
+      for (int i = 0; i < backgroundPixels.length; i++) {
+         backgroundPixels[i] = 100.0f + 50.0f * random.nextFloat();
+      }
+      FloatProcessor background = new FloatProcessor(WIDTH, HEIGHT,
+              backgroundPixels, null);
+      float[] gain = randomGain(random);
+      Assert.assertArrayEquals((short[]) twoPass(pixels, background, gain),
+              (short[]) singlePass(pixels, background, gain));
+   }
+
+   @Test
+   public void testPlanesCache() throws Exception {
+      ShadingCorrector corrector = new ShadingCorrector(null);
+      ImagePlusInfo background = new ImagePlusInfo(new ShortProcessor(
+              4, 4, new short[16], null));
+      ShadingCorrector.Planes planes = corrector.getPlanes(background, null,
+              1, 16, 2);
+      Assert.assertSame(planes, corrector.getPlanes(background, null, 1, 16, 2));
+      Assert.assertNotSame(planes,
+              corrector.getPlanes(background, null, 2, 16, 2));
+      Assert.assertNotSame(planes,
+              corrector.getPlanes(background, null, 1, 16, 1));
+      corrector.clear();
+      Assert.assertNotSame(planes,
+              corrector.getPlanes(background, null, 1, 16, 2));
+   }
+}
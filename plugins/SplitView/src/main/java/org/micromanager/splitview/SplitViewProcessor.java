@@ -23,14 +23,13 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ImageProcessor;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.micromanager.data.Coords;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.Image;
+import org.micromanager.data.PixelTransforms;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
@@ -93,30 +92,34 @@ public class SplitViewProcessor extends Processor {
       return summary.copy().channelNames(newNames).build();
    }
 
+   /**
+    * Each image is processed independently, so images can be processed in
+    * parallel.
+    */
    @Override
-   public void processImage(Image image, ProcessorContext context) {
-      ImageProcessor proc = studio_.data().ij().createProcessor(image);
+   public boolean getIsParallelSafe() {
+      return true;
+   }
 
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      boolean isVertical = orientation_.equals(SplitViewFrame.TB);
       int width = image.getWidth();
       int height = image.getHeight();
-      int xStep = 0;
-      int yStep = 0;
-      if (orientation_.equals(SplitViewFrame.TB)) {
+      Object[] parts = PixelTransforms.split(image.getRawPixels(), width,
+            height, image.getBytesPerPixel(), numSplits_, isVertical, null);
+      if (isVertical) {
          height /= numSplits_;
-         yStep = height;
       }
       else {
          width /= numSplits_;
-         xStep = width;
       }
 
       int channelIndex = image.getCoords().getChannel();
       for (int i = 0; i < numSplits_; ++i) {
-         proc.setRoi(i * xStep, i * yStep, width, height);
-
          Coords coords = image.getCoords().copy()
             .channel(channelIndex * numSplits_ + i).build();
-         Image output = studio_.data().createImage(proc.crop().getPixels(),
+         Image output = studio_.data().createImage(parts[i],
                width, height, image.getBytesPerPixel(),
                image.getNumComponents(), coords, image.getMetadata());
          context.outputImage(output);
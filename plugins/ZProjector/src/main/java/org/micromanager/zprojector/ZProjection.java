@@ -0,0 +1,212 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ZProjection.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+
+/**
+ * Projection of a single Z stack that is updated as each slice arrives, so
+ * that only the running statistics (and not the whole stack) are kept in
+ * memory.  Supports the average, max, min, sum and standard deviation
+ * methods of ImageJ's ZProjector, but unlike ImageJ, the projection has the
+ * pixel type of the slices (the average is rounded, and sums are clipped at
+ * the maximum pixel value).
+ * Not thread safe; use one instance per stack.
+ */
+public class ZProjection {
+   private final int method_;
+   private int width_;
+   private int height_;
+   private int bytesPerPixel_;
+   private int numComponents_;
+   private int count_;
+   // Sum for average and sum projections, current extreme value for max
+   // and min, and the running mean and sum of squared differences
+   // (Welford's method) for standard deviation
+   private long[] sum_;
+   private int[] extrema_;
+   private double[] mean_;
+   private double[] m2_;
+
+   /**
+    * @param method ZProjector.AVG_METHOD, MAX_METHOD, MIN_METHOD, SUM_METHOD,
+    * or SD_METHOD
+    * @throws ZProjectorException for other methods (such as the median),
+    * which need all slices at once
+    */
+   public ZProjection(int method) throws ZProjectorException {
+      if (!isSupportedMethod(method)) {
+         throw new ZProjectorException("Unsupported projection method: " + method);
+      }
+      method_ = method;
+   }
+
+   private static boolean isSupportedMethod(int method) {
+      return method == ZProjector.AVG_METHOD || method == ZProjector.MAX_METHOD
+              || method == ZProjector.MIN_METHOD
+              || method == ZProjector.SUM_METHOD
+              || method == ZProjector.SD_METHOD;
+   }
+
+   /**
+    * @param method ZProjector method
+    * @param image slice of the stack to be projected
+    * @return true if stacks of images like this one can be projected with
+    * the given method by this class; if not, use ImageJ's ZProjector
+    */
+   public static boolean canProject(int method, Image image) {
+      return isSupportedMethod(method) && image.getNumComponents() == 1
+              && image.getBytesPerPixel() <= 2;
+   }
+
+   /**
+    * @return number of slices added so far
+    */
+   public int getCount() {
+      return count_;
+   }
+
+   /**
+    * Add a slice to the projection.  All slices must have the same size
+    * and pixel type.
+    * @param image 8 or 16 bit grayscale slice
+    * @throws ZProjectorException if the slice differs from previous slices,
+    * or has an unsupported pixel type
+    */
+   public void addSlice(Image image) throws ZProjectorException {
+      if (image.getNumComponents() != 1 || image.getBytesPerPixel() > 2) {
+         throw new ZProjectorException(
+                 "Can only project 8 or 16 bit grayscale images");
+      }
+      if (count_ == 0) {
+         width_ = image.getWidth();
+         height_ = image.getHeight();
+         bytesPerPixel_ = image.getBytesPerPixel();
+         numComponents_ = image.getNumComponents();
+         allocate(width_ * height_);
+      } else if (image.getWidth() != width_ || image.getHeight() != height_
+              || image.getBytesPerPixel() != bytesPerPixel_) {
+         throw new ZProjectorException("Slices in a stack differ in size or type");
+      }
+      Object pixels = image.getRawPixels();
+      byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+      short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+      boolean first = count_ == 0;
+      count_++;
+      int numPixels = width_ * height_;
+      for (int i = 0; i < numPixels; i++) {
+         int value = bytes != null ? bytes[i] & 0xff : shorts[i] & 0xffff;
+         switch (method_) {
+            case ZProjector.AVG_METHOD:
+            case ZProjector.SUM_METHOD:
+               sum_[i] = first ? value : sum_[i] + value;
+               break;
+            case ZProjector.MAX_METHOD:
+               extrema_[i] = first ? value : Math.max(extrema_[i], value);
+               break;
+            case ZProjector.MIN_METHOD:
+               extrema_[i] = first ? value : Math.min(extrema_[i], value);
+               break;
+            default:
+               if (first) {
+                  mean_[i] = value;
+                  m2_[i] = 0;
+               } else {
+                  double delta = value - mean_[i];
+                  mean_[i] += delta / count_;
+                  m2_[i] += delta * (value - mean_[i]);
+               }
+               break;
+         }
+      }
+   }
+
+   private void allocate(int numPixels) {
+      switch (method_) {
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            if (sum_ == null || sum_.length != numPixels) {
+               sum_ = new long[numPixels];
+            }
+            break;
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+            if (extrema_ == null || extrema_.length != numPixels) {
+               extrema_ = new int[numPixels];
+            }
+            break;
+         default:
+            if (mean_ == null || mean_.length != numPixels) {
+               mean_ = new double[numPixels];
+               m2_ = new double[numPixels];
+            }
+            break;
+      }
+   }
+
+   /**
+    * Create the projection of all slices added so far, and start over.
+    * @param studio used to create the image
+    * @param coords coordinates of the projection
+    * @param metadata metadata of the projection
+    * @return projected image, or null if no slices were added
+    */
+   public Image getProjection(Studio studio, Coords coords, Metadata metadata) {
+      if (count_ == 0) {
+         return null;
+      }
+      int numPixels = width_ * height_;
+      int maxValue = bytesPerPixel_ == 1 ? 0xff : 0xffff;
+      byte[] bytes = bytesPerPixel_ == 1 ? new byte[numPixels] : null;
+      short[] shorts = bytesPerPixel_ == 1 ? null : new short[numPixels];
+      for (int i = 0; i < numPixels; i++) {
+         long value;
+         switch (method_) {
+            case ZProjector.AVG_METHOD:
+               value = (sum_[i] + count_ / 2) / count_;
+               break;
+            case ZProjector.SUM_METHOD:
+               value = sum_[i];
+               break;
+            case ZProjector.MAX_METHOD:
+            case ZProjector.MIN_METHOD:
+               value = extrema_[i];
+               break;
+            default:
+               value = count_ > 1
+                       ? Math.round(Math.sqrt(m2_[i] / (count_ - 1))) : 0;
+               break;
+         }
+         value = Math.min(value, maxValue);
+         if (bytes != null) {
+            bytes[i] = (byte) value;
+         } else {
+            shorts[i] = (short) value;
+         }
+      }
+      count_ = 0;
+      return studio.data().createImage(bytes != null ? bytes : shorts,
+              width_, height_, bytesPerPixel_, numComponents_, coords, metadata);
+   }
+}
@@ -0,0 +1,81 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ZProjectorConfigurator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.MMFrame;
+
+/**
+ * Lets the user choose the projection method used by ZProjectorProcessor.
+ */
+public class ZProjectorConfigurator extends MMFrame implements ProcessorConfigurator {
+   // Methods that can be calculated while slices arrive, in the order of
+   // ImageJ's ZProjector.METHODS, so that the index is the method
+   private static final int NUM_STREAMING_METHODS = ZProjector.SD_METHOD + 1;
+
+   private final Studio studio_;
+   private final JComboBox methods_;
+
+   public ZProjectorConfigurator(PropertyMap settings, Studio studio) {
+      studio_ = studio;
+      JPanel panel = new JPanel(new MigLayout("flowx"));
+      panel.add(new JLabel("<html>This processor replaces each Z stack with its projection.</html>"), "span, wrap");
+      panel.add(new JLabel("Projection method: "), "split 2");
+      String[] methods = new String[NUM_STREAMING_METHODS];
+      System.arraycopy(ZProjector.METHODS, 0, methods, 0, NUM_STREAMING_METHODS);
+      methods_ = new JComboBox(methods);
+      int method = settings.getInt(ZProjectorProcessorPlugin.PROJECTION_METHOD,
+              ZProjector.MAX_METHOD);
+      if (method >= 0 && method < NUM_STREAMING_METHODS) {
+         methods_.setSelectedIndex(method);
+      }
+      panel.add(methods_, "wrap");
+      add(panel);
+
+      loadAndRestorePosition(300, 300);
+   }
+
+   @Override
+   public void showGUI() {
+      pack();
+      setVisible(true);
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      PropertyMap.PropertyMapBuilder builder = studio_.data().getPropertyMapBuilder();
+      builder.putInt(ZProjectorProcessorPlugin.PROJECTION_METHOD,
+              methods_.getSelectedIndex());
+      return builder.build();
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+}
@@ -50,7 +50,7 @@ public class ZProjectorPlugin implements DisplayGearMenuPlugin, SciJavaPlugin {
    @Override
    public void onPluginSelected(DisplayWindow display) {
       // no need to hold on to the instance, we just want to create the frame
-      ZProjectorPluginExecutor ourFrame = new ZProjectorPluginExecutor(studio_, display);
+      ZProjectorPluginFrame ourFrame = new ZProjectorPluginFrame(studio_, display);
    }
 
    @Override
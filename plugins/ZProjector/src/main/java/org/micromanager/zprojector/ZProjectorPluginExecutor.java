@@ -20,45 +20,55 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.zprojector;
 
+import com.google.common.eventbus.Subscribe;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.plugin.ZProjector;
-import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.SwingWorker;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
-import org.micromanager.data.Coords.CoordsBuilder;
 import org.micromanager.data.Datastore;
+import org.micromanager.data.DatastoreFrozenEvent;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
+import org.micromanager.data.NewImageEvent;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.display.DisplayWindow;
+import org.micromanager.events.AcquisitionEndedEvent;
+import org.micromanager.events.DatastoreClosingEvent;
 
 /**
- *
+ * Z-projects all stacks of a dataset into a new datastore.  Slices are read
+ * one at a time and added to a running projection, so that only one slice
+ * and the projection of each stack are held in memory, and independent
+ * stacks (positions, time points and channels) are projected in parallel.
+ * Ongoing acquisitions can be projected as well: each stack is projected as
+ * soon as all its slices have arrived, until the acquisition ends.  Other
+ * datastores that are not frozen (such as those of Snap/Live and the Album)
+ * are projected as they are.  Stacks that can not be projected slice by slice
+ * (RGB and 32 bit images, and the median) are projected with ImageJ.
  * @author nico
  */
 public class ZProjectorPluginExecutor {
 
    private final Studio studio_;
 
-   public ZProjectorPluginExecutor(Studio studio, DisplayWindow window) {
+   public ZProjectorPluginExecutor(Studio studio) {
       studio_ = studio;
-
-      // Not sure if this is needed, be safe for now
-      /*
-      if (!window.getDatastore().getIsFrozen()) {
-         studio_.logs().showMessage("Can not Z-Project ongoing acquisitions", 
-                 window.getAsWindow());
-         return;
-      }
-      */
-      
-      // TODO: provide UI to other projection methods and z-ranges
-      project(window, window.getName() + "Z-Projection", ZProjector.MAX_METHOD);
-
    }
 
    /**
@@ -70,70 +80,243 @@ public class ZProjectorPluginExecutor {
     */
    public final void project(final DisplayWindow theWindow,
            final String newName, final int projectionMethod) {
+      project(theWindow, newName, projectionMethod, null);
+   }
+
+   /**
+    * Performs the actual creation of a new image with reduced content
+    *
+    * @param theWindow - original window to be copied
+    * @param newName - name for the copy
+    * @param projectionMethod ZProjector method
+    * @param savePath - directory in which to save the projection as a
+    * multipage TIFF dataset, or null to keep the projection in RAM
+    */
+   public final void project(final DisplayWindow theWindow,
+           final String newName, final int projectionMethod,
+           final String savePath) {
 
       class ZProjectTask extends SwingWorker<Void, Void> {
 
+         private final Datastore oldStore_ = theWindow.getDatastore();
+         private Datastore newStore_;
+         private ExecutorService executor_;
+         private int numSlices_;
+         // Stacks (coords with z = 0) that were handed to the executor
+         private final Set<Coords> submitted_ = new HashSet<Coords>();
+         private final List<Future<Void>> futures_ = new ArrayList<Future<Void>>();
+         // Released when the acquisition adding images to oldStore_ ends
+         private final CountDownLatch finishedLatch_ = new CountDownLatch(1);
+         private volatile boolean isSourceClosed_ = false;
+
          ZProjectTask() {
          }
 
          @Override
          public Void doInBackground() throws Exception {  // TODO use Exceptions
 
-            // TODO: provide options for disk-backed datastores
-            Datastore newStore = studio_.data().createRAMDatastore();
-
-            Datastore oldStore = theWindow.getDatastore();
-            Coords oldSizeCoord = oldStore.getMaxIndices();
-            CoordsBuilder newSizeCoordsBuilder = oldSizeCoord.copy();
-            newSizeCoordsBuilder.z(1);
-            SummaryMetadata metadata = oldStore.getSummaryMetadata();
+            String name = newName;
+            if (savePath == null) {
+               newStore_ = studio_.data().createRAMDatastore();
+            } else {
+               String newPath = studio_.data().getUniqueSaveDirectory(
+                       savePath + File.separator + newName);
+               name = new File(newPath).getName();
+               try {
+                  newStore_ = studio_.data().createMultipageTIFFDatastore(
+                          newPath, true, false);
+               } catch (IOException ex) {
+                  studio_.logs().showError(ex, "Can not save to " + newPath);
+                  return null;
+               }
+            }
 
+            SummaryMetadata metadata = oldStore_.getSummaryMetadata();
+            Coords dimensions = metadata.getIntendedDimensions();
+            if (dimensions == null || dimensions.getZ() <= 0) {
+               dimensions = oldStore_.getMaxIndices();
+               numSlices_ = Math.max(1, dimensions.getZ() + 1);
+            } else {
+               numSlices_ = dimensions.getZ();
+            }
             metadata = metadata.copy()
-                    .intendedDimensions(newSizeCoordsBuilder.build())
+                    .intendedDimensions(dimensions.copy().z(1).build())
                     .build();
-            Coords.CoordsBuilder cb = studio_.data().getCoordsBuilder();
+            executor_ = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+            // Listen before looking at the images, so that no slice of an
+            // ongoing acquisition is missed
+            boolean isLive = !oldStore_.getIsFrozen() && isBeingAcquired();
+            if (isLive) {
+               oldStore_.registerForEvents(this);
+               studio_.events().registerForEvents(this);
+               if (oldStore_.getIsFrozen()
+                       || !studio_.acquisitions().isAcquisitionRunning()) {
+                  finishedLatch_.countDown();
+               }
+            }
             try {
-               newStore.setSummaryMetadata(metadata);
-               DisplayWindow copyDisplay = studio_.displays().createDisplay(newStore);
-               copyDisplay.setCustomTitle(newName);
-               studio_.displays().manage(newStore);
-               for (int p = 0; p <= oldSizeCoord.getStagePosition(); p++) {
-                  for (int t = 0; t <= oldSizeCoord.getTime(); t++) {
-                     for (int c = 0; c <= oldSizeCoord.getChannel(); c++) {
-                        Coords.CoordsBuilder cbz = cb.stagePosition(p).time(t).channel(c);
-                        Image tmpImg = oldStore.getImage(cbz.z(0).build());
-                        ImageStack stack = new ImageStack(
-                                tmpImg.getWidth(), tmpImg.getHeight());
-                        Metadata imgMetadata = tmpImg.getMetadata();
-                        for (int z = 0; z <= oldSizeCoord.getZ(); z++) {
-                           Image img = oldStore.getImage(cbz.z(z).build());
-                           ImageProcessor ip
-                                   = studio_.data().getImageJConverter().createProcessor(img);
-                           stack.addSlice(ip);
-                        }
-                        ImagePlus tmp = new ImagePlus("tmp", stack);
-                        ZProjector zp = new ZProjector(tmp);
-                        zp.setMethod(projectionMethod);
-                        zp.doProjection();
-                        ImagePlus projection = zp.getProjection();
-                        Image outImg = studio_.data().getImageJConverter().createImage(
-                                projection.getProcessor(), cbz.z(0).build(),
-                                imgMetadata.copy().build());
-                        newStore.putImage(outImg);
-                     }
+               newStore_.setSummaryMetadata(metadata);
+               DisplayWindow copyDisplay = studio_.displays().createDisplay(newStore_);
+               copyDisplay.setCustomTitle(name);
+               studio_.displays().manage(newStore_);
+
+               if (isLive) {
+                  for (Coords coords : oldStore_.getUnorderedImageCoords()) {
+                     submitIfComplete(coords);
                   }
+                  finishedLatch_.await();
                }
-
-            } catch (DatastoreFrozenException ex) {
-               studio_.logs().showError("Can not add data to frozen datastore");
-            } catch (DatastoreRewriteException ex) {
-               studio_.logs().showError("Can not overwrite data");
+               // Whatever is left: all stacks of a finished dataset, and
+               // incomplete stacks of an aborted acquisition
+               if (!isSourceClosed_) {
+                  for (Coords coords : oldStore_.getUnorderedImageCoords()) {
+                     submit(coords.copy().z(0).build());
+                  }
+               }
+               List<Future<Void>> futures;
+               synchronized (submitted_) {
+                  futures = new ArrayList<Future<Void>>(futures_);
+               }
+               for (Future<Void> future : futures) {
+                  future.get();
+               }
+            } catch (ExecutionException ex) {
+               Throwable cause = ex.getCause();
+               if (cause instanceof DatastoreFrozenException) {
+                  studio_.logs().showError("Can not add data to frozen datastore");
+               } else if (cause instanceof DatastoreRewriteException) {
+                  studio_.logs().showError("Can not overwrite data");
+               } else {
+                  studio_.logs().showError(ex, "Z-Projection failed");
+               }
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            } finally {
+               if (isLive) {
+                  oldStore_.unregisterForEvents(this);
+                  studio_.events().unregisterForEvents(this);
+               }
+               executor_.shutdownNow();
             }
 
-            newStore.freeze();
+            newStore_.freeze();
             return null;
          }
 
+         @Subscribe
+         public void onNewImage(NewImageEvent event) {
+            submitIfComplete(event.getCoords());
+         }
+
+         @Subscribe
+         public void onDatastoreFrozen(DatastoreFrozenEvent event) {
+            finishedLatch_.countDown();
+         }
+
+         @Subscribe
+         public void onAcquisitionEnded(AcquisitionEndedEvent event) {
+            finishedLatch_.countDown();
+         }
+
+         @Subscribe
+         public void onDatastoreClosing(DatastoreClosingEvent event) {
+            if (event.getDatastore() == oldStore_) {
+               isSourceClosed_ = true;
+               finishedLatch_.countDown();
+            }
+         }
+
+         /**
+          * Whether an acquisition is still adding images to the source.
+          * Snap/Live and the Album keep their datastores open for good, so
+          * waiting for them to be frozen would never end.
+          */
+         private boolean isBeingAcquired() {
+            if (!studio_.acquisitions().isAcquisitionRunning()) {
+               return false;
+            }
+            DisplayWindow liveDisplay = studio_.live().getDisplay();
+            if (liveDisplay != null && liveDisplay.getDatastore() == oldStore_) {
+               return false;
+            }
+            return studio_.album().getDatastore() != oldStore_;
+         }
+
+         /**
+          * Submit the stack that the given slice belongs to if all its slices
+          * are present
+          */
+         private void submitIfComplete(Coords sliceCoords) {
+            Coords.CoordsBuilder builder = sliceCoords.copy();
+            for (int z = 0; z < numSlices_; z++) {
+               if (!oldStore_.hasImage(builder.z(z).build())) {
+                  return;
+               }
+            }
+            submit(builder.z(0).build());
+         }
+
+         private void submit(final Coords stackCoords) {
+            synchronized (submitted_) {
+               if (!submitted_.add(stackCoords)) {
+                  return;
+               }
+               futures_.add(executor_.submit(new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                     projectStack(stackCoords);
+                     return null;
+                  }
+               }));
+            }
+         }
+
+         private void projectStack(Coords stackCoords) throws Exception {
+            Coords.CoordsBuilder builder = stackCoords.copy();
+            Image firstImage = null;
+            ZProjection projection = null;
+            // Only used for stacks that ZProjection can not handle
+            ImageStack stack = null;
+            for (int z = 0; z < numSlices_; z++) {
+               Image img = oldStore_.getImage(builder.z(z).build());
+               if (img == null) {
+                  continue;
+               }
+               if (firstImage == null) {
+                  firstImage = img;
+                  if (ZProjection.canProject(projectionMethod, img)) {
+                     projection = new ZProjection(projectionMethod);
+                  } else {
+                     stack = new ImageStack(img.getWidth(), img.getHeight());
+                  }
+               }
+               if (projection != null) {
+                  projection.addSlice(img);
+               } else {
+                  stack.addSlice(studio_.data().getImageJConverter()
+                          .createProcessor(img));
+               }
+            }
+            if (firstImage == null) {
+               return;
+            }
+            Metadata metadata = firstImage.getMetadata().copy().build();
+            Image outImg;
+            if (projection != null) {
+               outImg = projection.getProjection(studio_, stackCoords, metadata);
+            } else {
+               ZProjector zp = new ZProjector(new ImagePlus("tmp", stack));
+               zp.setMethod(projectionMethod);
+               zp.doProjection();
+               outImg = studio_.data().getImageJConverter().createImage(
+                       zp.getProjection().getProcessor(), stackCoords, metadata);
+            }
+            synchronized (newStore_) {
+               newStore_.putImage(outImg);
+            }
+         }
+
          @Override
          public void done() {
 
@@ -0,0 +1,167 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ZProjectorPluginFrame.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import java.awt.FileDialog;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JTextField;
+import javax.swing.WindowConstants;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.ApplicationSkin;
+import org.micromanager.Studio;
+import org.micromanager.data.Datastore;
+import org.micromanager.display.DisplayWindow;
+import org.micromanager.internal.utils.DaytimeNighttime;
+import org.micromanager.internal.utils.JavaUtils;
+import org.micromanager.internal.utils.MMDialog;
+
+/**
+ * Lets the user choose the projection method, the name of the projection,
+ * and whether to keep it in RAM or save it to disk
+ */
+public class ZProjectorPluginFrame extends MMDialog {
+   private final Studio studio_;
+   private final DisplayWindow ourWindow_;
+   private final Datastore ourStore_;
+
+   public ZProjectorPluginFrame (Studio studio, DisplayWindow window) {
+      studio_ = studio;
+      final ZProjectorPluginFrame cpFrame = this;
+
+      super.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+
+      ourWindow_ = window;
+      ourStore_ = ourWindow_.getDatastore();
+
+      super.setLayout(new MigLayout("flowx, fill, insets 8"));
+      File file = new File(window.getName());
+      String shortName = file.getName();
+      super.setTitle(ZProjectorPlugin.MENUNAME + "   " + shortName);
+
+      super.loadAndRestorePosition(100, 100, 375, 275);
+
+      super.add(new JLabel("method"));
+      final JComboBox methodBox = new JComboBox(ZProjector.METHODS);
+      int method = studio_.profile().getInt(ZProjectorPluginFrame.class,
+              "Method", ZProjector.MAX_METHOD);
+      if (method >= 0 && method < ZProjector.METHODS.length) {
+         methodBox.setSelectedIndex(method);
+      }
+      methodBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            studio_.profile().setInt(ZProjectorPluginFrame.class, "Method",
+                    methodBox.getSelectedIndex());
+         }
+      });
+      super.add(methodBox, "span 2, wrap");
+
+      super.add(new JLabel("name"));
+      final JTextField nameField = new JTextField(shortName + "Z-Projection");
+      super.add(nameField, "span2, grow, wrap");
+
+      boolean save = false;
+      if (ourStore_.getSavePath() != null) {
+         save = !ourStore_.getSavePath().equals("") &&
+                      studio_.profile().getBoolean(ZProjectorPluginFrame.class, "Save", false);
+      }
+      final JCheckBox saveCheckBox = new JCheckBox("save", save);
+      saveCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            studio_.profile().setBoolean(
+                    ZProjectorPluginFrame.class, "Save", saveCheckBox.isSelected());
+         }
+      });
+      super.add(saveCheckBox);
+
+      final JTextField dirField = new JTextField(ourStore_.getSavePath());
+      super.add (dirField, "span 2, split 2, wmax 250");
+      JButton dirButton = new JButton("...");
+      dirButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            if (JavaUtils.isMac()) {
+               // For Mac we only select directories, unfortunately!
+               System.setProperty("apple.awt.fileDialogForDirectories", "true");
+
+               FileDialog fd = new FileDialog(cpFrame, "Select Directory", FileDialog.SAVE);
+               fd.setDirectory(dirField.getText());
+               fd.setFile("");
+
+               fd.setVisible(true);
+               System.setProperty("apple.awt.fileDialogForDirectories", "false");
+
+               if (fd.getFile() != null) {
+                  File f = new File(fd.getDirectory());
+                  dirField.setText(f.getPath());
+               }
+               fd.dispose();
+            } else {
+               DaytimeNighttime.getInstance().suspendToMode(ApplicationSkin.SkinMode.DAY);
+               JFileChooser fc = new JFileChooser();
+               fc.setSelectedFile(new File(dirField.getText()));
+               DaytimeNighttime.getInstance().resume();
+               fc.setDialogTitle("Select Directory");
+               fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+
+               int returnVal = fc.showSaveDialog(cpFrame);
+               if (returnVal == JFileChooser.APPROVE_OPTION) {
+                  dirField.setText(fc.getSelectedFile().getAbsolutePath());
+               }
+            }
+         }
+      });
+      super.add(dirButton, "wmax 25, wrap");
+
+      JButton OKButton = new JButton("OK");
+      OKButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            cpFrame.dispose();
+            new ZProjectorPluginExecutor(studio_).project(ourWindow_,
+                    nameField.getText(),
+                    methodBox.getSelectedIndex(),
+                    saveCheckBox.isSelected() ? dirField.getText() : null);
+         }
+      });
+      super.add(OKButton, "span 3, split 2, tag ok, wmin button");
+
+      JButton CancelButton = new JButton("Cancel");
+      CancelButton.addActionListener(new ActionListener(){
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            cpFrame.dispose();
+         }
+      });
+      super.add(CancelButton, "tag cancel, wrap");
+
+      super.pack();
+      super.setVisible(true);
+   }
+}
@@ -0,0 +1,138 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ZProjectorProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.zprojector;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import org.micromanager.Studio;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+
+/**
+ * Pipeline processor that replaces each Z stack with its projection.  Slices
+ * are added to a running projection as they arrive, and the projection is
+ * output (at z = 0) once the last slice of the stack has been received.
+ * Acquisitions without Z stacks, channels that are acquired without a Z
+ * stack, and images that can not be projected are passed through unchanged.
+ */
+public class ZProjectorProcessor extends Processor {
+   private final Studio studio_;
+   private final int projectionMethod_;
+   // Running projection for each stack, keyed by the coords with z = 0
+   private final HashMap<Coords, ZProjection> projections_;
+   // Metadata of the first slice of each stack, used for its projection
+   private final HashMap<Coords, Metadata> firstSliceMetadata_;
+   // Channels that the acquisition takes a single image of, rather than a
+   // Z stack
+   private final HashSet<Integer> unstackedChannels_;
+   private int numSlices_ = 0;
+   private boolean hasReportedError_ = false;
+
+   public ZProjectorProcessor(Studio studio, int projectionMethod) {
+      studio_ = studio;
+      projectionMethod_ = projectionMethod;
+      projections_ = new HashMap<Coords, ZProjection>();
+      firstSliceMetadata_ = new HashMap<Coords, Metadata>();
+      unstackedChannels_ = new HashSet<Integer>();
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      Coords intended = summary.getIntendedDimensions();
+      if (intended == null || intended.getZ() <= 1) {
+         numSlices_ = 0;
+         return summary;
+      }
+      numSlices_ = intended.getZ();
+      unstackedChannels_.clear();
+      // The MDA settings only describe this data if they call for a Z stack
+      // in the same channel group
+      SequenceSettings settings =
+              studio_.acquisitions().getAcquisitionSettings();
+      if (settings.slices.size() > 0 && settings.channels.size() > 0
+              && settings.channelGroup.equals(summary.getChannelGroup())) {
+         // Channel indices only count the channels that are in use
+         int index = 0;
+         for (ChannelSpec channel : settings.channels) {
+            if (!channel.useChannel) {
+               continue;
+            }
+            if (Boolean.FALSE.equals(channel.doZStack)) {
+               unstackedChannels_.add(index);
+            }
+            index++;
+         }
+      }
+      return summary.copy().intendedDimensions(intended.copy().z(1).build())
+              .build();
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      if (numSlices_ <= 1 || image.getCoords().getZ() < 0
+              || unstackedChannels_.contains(image.getCoords().getChannel())) {
+         context.outputImage(image);
+         return;
+      }
+      Coords coords = image.getCoords().copy().z(0).build();
+      try {
+         ZProjection projection = projections_.get(coords);
+         if (projection == null) {
+            projection = new ZProjection(projectionMethod_);
+            projections_.put(coords, projection);
+            firstSliceMetadata_.put(coords, image.getMetadata());
+         }
+         projection.addSlice(image);
+         if (projection.getCount() == numSlices_) {
+            projections_.remove(coords);
+            context.outputImage(projection.getProjection(studio_, coords,
+                    firstSliceMetadata_.remove(coords)));
+         }
+      } catch (ZProjectorException ex) {
+         if (!hasReportedError_) {
+            studio_.logs().showError(ex, "Unable to Z-project images");
+            hasReportedError_ = true;
+         }
+         projections_.remove(coords);
+         firstSliceMetadata_.remove(coords);
+         context.outputImage(image);
+      }
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      // Output projections of stacks that were cut short, e.g. because the
+      // acquisition was aborted, so that no data are silently lost
+      for (Coords coords : projections_.keySet()) {
+         ZProjection projection = projections_.get(coords);
+         context.outputImage(projection.getProjection(studio_, coords,
+                 firstSliceMetadata_.get(coords)));
+      }
+      projections_.clear();
+      firstSliceMetadata_.clear();
+   }
+}